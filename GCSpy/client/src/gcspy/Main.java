@@ -8,6 +8,8 @@
 
 package gcspy;
 
+import gcspy.comm.Endpoint;
+import gcspy.interpreter.Capabilities;
 import gcspy.utils.Arguments;
 import gcspy.vis.MainFrame;
 
@@ -30,8 +32,17 @@ public class Main {
         System.out.println("    -server <host> <port>");
         System.out.println("        specifies where the server is");
         System.out.println("        e.g. -server host 3000");
+        System.out.println("        or on this host  -server localhost unix:/tmp/gcspy.sock");
+        System.out.println("                         -server localhost shm:/dev/shm/gcspy-3000");
         System.out.println("    -connect (requires -server)");
         System.out.println("        connects immediately");
+        System.out.println("    -offer <capabilities> (optional)");
+        System.out.println("        the capabilities to offer the server: " +
+                Capabilities.presentNames() + ", all or none;");
+        System.out.println("        none, the default, also works with older servers");
+        System.out.println("    -decoders <threads> (optional)");
+        System.out.println("        decodes streams on this many threads, while another");
+        System.out.println("        receives; 0, the default, does it all on one thread");
         System.out.println("    -pause");
         System.out.println("        pauses immediately after it connects");
         System.out.println("    -small (optional)");
@@ -52,13 +63,19 @@ public class Main {
     static public void main(String args[]) {
         Arguments arguments = new Arguments();
 
-        int serverParams[] = {Arguments.STRING_TYPE, Arguments.POS_INT_TYPE};
-        Object serverValues[] = {"localhost", 3000};
+        int serverParams[] = {Arguments.STRING_TYPE, Arguments.STRING_TYPE};
+        Object serverValues[] = {"localhost", "3000"};
         arguments.add("-server", false, serverParams, serverValues);
         String connectRequires[] = {"-server"};
         arguments.add("-connect", connectRequires, null);
         String pauseRequires[] = {"-server"};
         arguments.add("-pause", pauseRequires, null);
+        int offerParams[] = {Arguments.STRING_TYPE};
+        Object offerDefault[] = {"none"};
+        arguments.add("-offer", false, offerParams, offerDefault);
+        int decodersParams[] = {Arguments.POS_INT_TYPE};
+        Object decodersDefault[] = {0};
+        arguments.add("-decoders", false, decodersParams, decodersDefault);
         String smallExcluded[] = {"-tiny"};
         arguments.add("-small", null, smallExcluded);
         String tinyExcluded[] = {"-small"};
@@ -69,13 +86,27 @@ public class Main {
 
         Object values[] = arguments.getValues("-server");
         String host = (String) values[0];
-        int port = (Integer) values[1];
+        String port = (String) values[1];
+        try {
+            Endpoint.parse(port, host);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+        int offered = 0;
+        try {
+            offered = Capabilities.parseFlags((String) arguments.getValues("-offer")[0]);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+        int decoders = ((Integer) arguments.getValues("-decoders")[0]).intValue();
         boolean connect = arguments.isSet("-connect");
         boolean pause = arguments.isSet("-pause");
         boolean small = arguments.isSet("-small");
         boolean tiny = arguments.isSet("-tiny");
 
         MainFrame frame = new MainFrame(host, port, small, tiny, pause, connect);
+        frame.setOfferedCapabilities(offered);
+        frame.setDecodeThreads(decoders);
         frame.setSize(1024, 720);
         frame.setVisible(true);
     }
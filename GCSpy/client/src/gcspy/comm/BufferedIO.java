@@ -18,4 +18,7 @@ public class BufferedIO {
     /** A mask for the bottom 8 bits */
     static final int LOW_8_MASK = (1 << 8) - 1;
 
+    /** A mask for the bottom 16 bits */
+    static final int LOW_16_MASK = (1 << 16) - 1;
+
 }
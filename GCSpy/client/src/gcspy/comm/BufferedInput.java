@@ -9,7 +9,8 @@
 package gcspy.comm;
 
 import java.awt.*;
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Buffered input from a byte array
@@ -22,20 +23,20 @@ import java.io.ByteArrayOutputStream;
  * false          0
  * true           1
  * int            bbbb
+ * varint         b...b (7 bits per byte, low bits first)
  * string         byte...byte0
  * len            int
  * array          len item...item
  * color          ubyte ubyte ubyte
  * </pre>
+ * Multi-byte values are big-endian, so arrays are decoded in bulk
+ * through ByteBuffer views rather than one byte at a time.
  * @author Tony Printezis
  */
 public class BufferedInput {
 
-    private byte buffer[];
-    /* The current position in the buffer */
-    private int i;
-    /* The length of the buffer */
-    private int len;
+    /* The buffer; its position is the current position, its limit the length */
+    private ByteBuffer buffer;
 
     /**
      * Create a new buffer
@@ -43,9 +44,26 @@ public class BufferedInput {
      * @param len The buffer's length
      */
     public BufferedInput(byte buffer[], int len) {
+        this(ByteBuffer.wrap(buffer, 0, len));
+    }
+
+    /**
+     * Create a new buffer that reads the bytes between the position
+     * and the limit of a ByteBuffer, without copying them
+     * @param buffer The byte buffer
+     */
+    public BufferedInput(ByteBuffer buffer) {
+        reset(buffer);
+    }
+
+    /**
+     * Start reading a new buffer, so that the same BufferedInput
+     * can be used for every frame of a connection
+     * @param buffer The byte buffer
+     */
+    void reset(ByteBuffer buffer) {
         this.buffer = buffer;
-        this.len = len;
-        i = 0;
+        buffer.order(ByteOrder.BIG_ENDIAN);
     }
 
     /**
@@ -53,13 +71,46 @@ public class BufferedInput {
      * @return true if we have reached the end of the buffer
      */
     public boolean finished() {
-        return (i == len);
+        return !buffer.hasRemaining();
+    }
+
+    /**
+     * Get the position of the next byte to be read
+     * @return the position in the buffer
+     */
+    public int getPosition() {
+        return buffer.position();
+    }
+
+    /**
+     * Skip items without reading them
+     * @param len The number of items
+     * @param size The size of each item (bytes)
+     */
+    public void skip(int len, int size) {
+        checkArrayLength(len, size);
+        buffer.position(buffer.position() + len * size);
+    }
+
+    /**
+     * Create a buffer over the bytes read since a position, so that they
+     * can be read again, possibly by another thread. The bytes are
+     * shared, not copied.
+     * @param start The position, as returned by getPosition
+     * @return a new BufferedInput over the bytes from start up to the
+     * current position
+     */
+    public BufferedInput slice(int start) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        view.limit(buffer.position());
+        return new BufferedInput(view);
     }
 
     /* return A BufferedIOException indicating that the end of the buffer has been reached */
     private BufferedIOException raiseError() {
         return new BufferedIOException("End of buffer reached, buffer length = " +
-                buffer.length);
+                buffer.capacity());
     }
 
     /*
@@ -67,15 +118,16 @@ public class BufferedInput {
      * param extra The room required (bytes)
      */
     private void checkLength(int extra) {
-        if ((i + extra) > len) throw raiseError();
+        if (extra > buffer.remaining()) throw raiseError();
     }
 
-    /* return the next value as a short from the buffer */
-    private short baseRead() {
-        short res = (short) buffer[i++];
-        if (res < 0)
-            res += 256;
-        return res;
+    /*
+     * Check whether an array of len items of size bytes each is left in the buffer
+     * param len The number of items
+     * param size The size of each item (bytes)
+     */
+    private void checkArrayLength(int len, int size) {
+        if ((len < 0) || ((long) len * size > buffer.remaining())) throw raiseError();
     }
 
     /**
@@ -93,7 +145,7 @@ public class BufferedInput {
      */
     public byte readByte() {
         checkLength(1);
-        return (byte) baseRead();
+        return buffer.get();
     }
 
     /**
@@ -102,7 +154,7 @@ public class BufferedInput {
      */
     public short readUByte() {
         checkLength(1);
-        return baseRead();
+        return (short) (buffer.get() & BufferedIO.LOW_8_MASK);
     }
 
     /**
@@ -111,10 +163,7 @@ public class BufferedInput {
      */
     public short readShort() {
         checkLength(2);
-        short res = baseRead();
-        res <<= 8;
-        res |= baseRead();
-        return res;
+        return buffer.getShort();
     }
 
     /**
@@ -123,10 +172,7 @@ public class BufferedInput {
      */
     public int readUShort() {
         checkLength(2);
-        int res = baseRead();
-        res <<= 8;
-        res |= baseRead();
-        return res;
+        return buffer.getShort() & BufferedIO.LOW_16_MASK;
     }
 
     /**
@@ -135,14 +181,22 @@ public class BufferedInput {
      */
     public int readInt() {
         checkLength(4);
-        int res = (int) baseRead();
-        res <<= 8;
-        res |= (int) baseRead();
-        res <<= 8;
-        res |= (int) baseRead();
-        res <<= 8;
-        res |= (int) baseRead();
-        return res;
+        return buffer.getInt();
+    }
+
+    /**
+     * Read the next int written by BufferedOutput.writeVarInt
+     * @return the next value as an int from the buffer
+     */
+    public int readVarInt() {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = readByte();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return v;
+        }
+        throw new BufferedIOException("Malformed varint");
     }
 
 
@@ -151,13 +205,19 @@ public class BufferedInput {
      * @return the string
      */
     public String readString() {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        byte b = readByte();
-        while (b != 0) {
-            stream.write((int) b);
-            b = readByte();
+        int start = buffer.position();
+        int end = start;
+        while (true) {
+            if (end >= buffer.limit())
+                throw raiseError();
+            if (buffer.get(end) == 0)
+                break;
+            ++end;
         }
-        return stream.toString();
+        byte bytes[] = new byte[end - start];
+        buffer.get(bytes);
+        buffer.get();
+        return new String(bytes);
     }
 
 
@@ -174,10 +234,22 @@ public class BufferedInput {
      * @return the next array of bytes read from the buffer
      */
     public byte[] readByteArray() {
+        return readByteArray(null);
+    }
+
+    /**
+     * Read an array from the buffer into an existing array,
+     * which is only replaced if its length does not match.
+     * The first item is the length of the array
+     * @param array The array to read into (may be null)
+     * @return the array holding the bytes read from the buffer
+     */
+    public byte[] readByteArray(byte array[]) {
         int len = readArrayLen();
-        byte array[] = new byte[len];
-        for (int i = 0; i < len; ++i)
-            array[i] = readByte();
+        checkArrayLength(len, 1);
+        if ((array == null) || (array.length != len))
+            array = new byte[len];
+        buffer.get(array, 0, len);
         return array;
     }
 
@@ -186,10 +258,25 @@ public class BufferedInput {
      * @return the next array of unsigned bytes read from the buffer
      */
     public short[] readUByteArray() {
+        return readUByteArray(null);
+    }
+
+    /**
+     * Read an array from the buffer into an existing array,
+     * which is only replaced if its length does not match.
+     * The first item is the length of the array
+     * @param array The array to read into (may be null)
+     * @return the array holding the unsigned bytes read from the buffer
+     */
+    public short[] readUByteArray(short array[]) {
         int len = readArrayLen();
-        short array[] = new short[len];
+        checkArrayLength(len, 1);
+        if ((array == null) || (array.length != len))
+            array = new short[len];
+        int start = buffer.position();
         for (int i = 0; i < len; ++i)
-            array[i] = readUByte();
+            array[i] = (short) (buffer.get(start + i) & BufferedIO.LOW_8_MASK);
+        buffer.position(start + len);
         return array;
     }
 
@@ -198,10 +285,23 @@ public class BufferedInput {
      * @return the next array of shorts read from the buffer
      */
     public short[] readShortArray() {
+        return readShortArray(null);
+    }
+
+    /**
+     * Read an array from the buffer into an existing array,
+     * which is only replaced if its length does not match.
+     * The first item is the length of the array
+     * @param array The array to read into (may be null)
+     * @return the array holding the shorts read from the buffer
+     */
+    public short[] readShortArray(short array[]) {
         int len = readArrayLen();
-        short array[] = new short[len];
-        for (int i = 0; i < len; ++i)
-            array[i] = readShort();
+        checkArrayLength(len, 2);
+        if ((array == null) || (array.length != len))
+            array = new short[len];
+        buffer.asShortBuffer().get(array, 0, len);
+        buffer.position(buffer.position() + 2 * len);
         return array;
     }
 
@@ -210,10 +310,25 @@ public class BufferedInput {
      * @return the next array of unsigned shorts read from the buffer
      */
     public int[] readUShortArray() {
+        return readUShortArray(null);
+    }
+
+    /**
+     * Read an array from the buffer into an existing array,
+     * which is only replaced if its length does not match.
+     * The first item is the length of the array
+     * @param array The array to read into (may be null)
+     * @return the array holding the unsigned shorts read from the buffer
+     */
+    public int[] readUShortArray(int array[]) {
         int len = readArrayLen();
-        int array[] = new int[len];
+        checkArrayLength(len, 2);
+        if ((array == null) || (array.length != len))
+            array = new int[len];
+        int start = buffer.position();
         for (int i = 0; i < len; ++i)
-            array[i] = readUShort();
+            array[i] = buffer.getShort(start + 2 * i) & BufferedIO.LOW_16_MASK;
+        buffer.position(start + 2 * len);
         return array;
     }
 
@@ -222,13 +337,61 @@ public class BufferedInput {
      * @return the next array of ints read from the buffer
      */
     public int[] readIntArray() {
+        return readIntArray(null);
+    }
+
+    /**
+     * Read an array from the buffer into an existing array,
+     * which is only replaced if its length does not match.
+     * The first item is the length of the array
+     * @param array The array to read into (may be null)
+     * @return the array holding the ints read from the buffer
+     */
+    public int[] readIntArray(int array[]) {
         int len = readArrayLen();
-        int array[] = new int[len];
-        for (int i = 0; i < len; ++i)
-            array[i] = readInt();
+        checkArrayLength(len, 4);
+        if ((array == null) || (array.length != len))
+            array = new int[len];
+        buffer.asIntBuffer().get(array, 0, len);
+        buffer.position(buffer.position() + 4 * len);
         return array;
     }
 
+    /**
+     * Read bytes without a length into part of an existing array
+     * @param array The array to read into
+     * @param offset The index of the first item to read
+     * @param len The number of items to read
+     */
+    public void readBytes(byte array[], int offset, int len) {
+        checkArrayLength(len, 1);
+        buffer.get(array, offset, len);
+    }
+
+    /**
+     * Read shorts without a length into part of an existing array
+     * @param array The array to read into
+     * @param offset The index of the first item to read
+     * @param len The number of items to read
+     */
+    public void readShorts(short array[], int offset, int len) {
+        checkArrayLength(len, 2);
+        buffer.asShortBuffer().get(array, offset, len);
+        buffer.position(buffer.position() + 2 * len);
+    }
+
+    /**
+     * Read ints without a length into part of an existing array
+     * @param array The array to read into
+     * @param offset The index of the first item to read
+     * @param len The number of items to read
+     */
+    public void readInts(int array[], int offset, int len) {
+        checkArrayLength(len, 4);
+        buffer.asIntBuffer().get(array, offset, len);
+        buffer.position(buffer.position() + 4 * len);
+    }
+
     /**
      * Read a colour from the input buffer
      * @return the next colour from the buffer
@@ -9,6 +9,7 @@
 package gcspy.comm;
 
 import java.awt.*;
+import java.nio.ByteBuffer;
 
 /**
  * Buffered output to a byte array
@@ -21,29 +22,57 @@ import java.awt.*;
  * false          0
  * true           1
  * int            bbbb
+ * varint         b...b (7 bits per byte, low bits first)
  * string         byte...byte0
  * len            int
  * array          len item...item
  * color          ubyte ubyte ubyte
  * </pre>
+ * Multi-byte values are big-endian, so arrays are encoded in bulk
+ * through ByteBuffer views rather than one byte at a time.
  * @author Tony Printezis
  */
 public class BufferedOutput {
 
     /* The buffer */
     private byte buffer[];
+    /* A big-endian view of the buffer */
+    private ByteBuffer bytes;
     /* The current position in the buffer */
     private int i;
+    /* The length the buffer may grow to */
+    private int maxLen;
 
     /**
      * Create a new output buffer
      * @param buffer the buffer
      */
     public BufferedOutput(byte buffer[]) {
+        this(buffer, buffer.length);
+    }
+
+    /**
+     * Create a new output buffer that is replaced by a larger one
+     * when it fills up
+     * @param buffer the buffer to start with
+     * @param maxLen the length the buffer may grow to
+     */
+    public BufferedOutput(byte buffer[], int maxLen) {
         this.buffer = buffer;
+        this.maxLen = Math.max(maxLen, buffer.length);
+        bytes = ByteBuffer.wrap(buffer);
         i = 0;
     }
 
+    /**
+     * Get the buffer, which is not the one passed to the constructor
+     * if it had to grow
+     * @return the buffer
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
     /**
      * Get the current length of the buffer
      * @return the current length (position) of the buffer
@@ -55,7 +84,20 @@ public class BufferedOutput {
     /* return a new BufferedIOException if the buffer is full */
     private BufferedIOException raiseError() {
         return new BufferedIOException("Buffer is full, buffer length = " +
-                buffer.length);
+                maxLen);
+    }
+
+    /*
+     * Grow the buffer to hold at least needed bytes
+     * throw a BufferedIOException if it cannot grow that far
+     */
+    private void grow(long needed) {
+        if (needed > maxLen) throw raiseError();
+        int len = (int) Math.min(Math.max(needed, 2L * buffer.length), maxLen);
+        byte tmp[] = new byte[len];
+        System.arraycopy(buffer, 0, tmp, 0, i);
+        buffer = tmp;
+        bytes = ByteBuffer.wrap(buffer);
     }
 
     /*
@@ -64,17 +106,28 @@ public class BufferedOutput {
      * throw a BufferedIOException if there is insufficient room left
      */
     private void checkLength(int extra) {
-        if ((i + extra) > buffer.length) throw raiseError();
+        if ((i + extra) > buffer.length) grow(i + (long) extra);
     }
 
     /*
-     * Write a value into the buffer as a byte
-     * param v The value to write
+     * Check that there is room for a number of items
+     * param len The number of items
+     * param size The size of each item (bytes)
+     * throw a BufferedIOException if there is insufficient room left
      */
-    private void baseWrite(short v) {
-        if (v > 127)
-            v -= 256;
-        buffer[i++] = (byte) v;
+    private void checkItems(int len, int size) {
+        if ((i + (long) len * size) > buffer.length) grow(i + (long) len * size);
+    }
+
+    /*
+     * Check that there is room for an array's length and its items
+     * param len The number of items
+     * param size The size of each item (bytes)
+     * throw a BufferedIOException if there is insufficient room left
+     */
+    private void checkArrayLength(int len, int size) {
+        if ((i + 4 + (long) len * size) > buffer.length)
+            grow(i + 4 + (long) len * size);
     }
 
 
@@ -95,7 +148,7 @@ public class BufferedOutput {
      */
     public void writeByte(byte v) {
         checkLength(1);
-        baseWrite((short) v);
+        buffer[i++] = v;
     }
 
     /**
@@ -104,7 +157,7 @@ public class BufferedOutput {
      */
     public void writeUByte(short v) {
         checkLength(1);
-        baseWrite(v);
+        buffer[i++] = (byte) v;
     }
 
     /**
@@ -113,8 +166,8 @@ public class BufferedOutput {
      */
     public void writeShort(int v) {
         checkLength(2);
-        baseWrite((short) (v >> 8));
-        baseWrite((short) (v & BufferedIO.LOW_8_MASK));
+        bytes.putShort(i, (short) v);
+        i += 2;
     }
 
     /**
@@ -123,8 +176,8 @@ public class BufferedOutput {
      */
     public void writeUShort(int v) {
         checkLength(2);
-        baseWrite((short) (v >> 8));
-        baseWrite((short) (v & BufferedIO.LOW_8_MASK));
+        bytes.putShort(i, (short) v);
+        i += 2;
     }
 
     /**
@@ -133,10 +186,35 @@ public class BufferedOutput {
      */
     public void writeInt(int v) {
         checkLength(4);
-        baseWrite((short) (v >> 24));
-        baseWrite((short) ((v >> 16) & BufferedIO.LOW_8_MASK));
-        baseWrite((short) ((v >> 8) & BufferedIO.LOW_8_MASK));
-        baseWrite((short) (v & BufferedIO.LOW_8_MASK));
+        bytes.putInt(i, v);
+        i += 4;
+    }
+
+    /**
+     * Write a non-negative int into the buffer, using as few bytes as
+     * its magnitude allows
+     * @param v The value to write
+     */
+    public void writeVarInt(int v) {
+        while ((v & ~0x7F) != 0) {
+            writeByte((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        writeByte((byte) v);
+    }
+
+    /**
+     * The number of bytes writeVarInt uses for a value
+     * @param v The value
+     * @return its encoded size
+     */
+    static public int varIntSize(int v) {
+        int size = 1;
+        while ((v & ~0x7F) != 0) {
+            ++size;
+            v >>>= 7;
+        }
+        return size;
     }
 
 
@@ -175,9 +253,10 @@ public class BufferedOutput {
      * @param len the number of bytes to write
      */
     public void writeByteArray(byte v[], int len) {
+        checkArrayLength(len, 1);
         writeArrayLen(len);
-        for (int i = 0; i < len; ++i)
-            writeByte(v[i]);
+        System.arraycopy(v, 0, buffer, i, len);
+        i += len;
     }
 
 
@@ -195,9 +274,11 @@ public class BufferedOutput {
      * @param len the number of bytes to write
      */
     public void writeUByteArray(short v[], int len) {
+        checkArrayLength(len, 1);
         writeArrayLen(len);
-        for (int i = 0; i < len; ++i)
-            writeUByte(v[i]);
+        for (int j = 0; j < len; ++j)
+            buffer[i + j] = (byte) v[j];
+        i += len;
     }
 
 
@@ -215,9 +296,11 @@ public class BufferedOutput {
      * @param len the number of bytes to write
      */
     public void writeShortArray(short v[], int len) {
+        checkArrayLength(len, 2);
         writeArrayLen(len);
-        for (int i = 0; i < len; ++i)
-            writeShort(v[i]);
+        bytes.position(i);
+        bytes.asShortBuffer().put(v, 0, len);
+        i += 2 * len;
     }
 
 
@@ -235,9 +318,11 @@ public class BufferedOutput {
      * @param len the number of bytes to write
      */
     public void writeUShortArray(int v[], int len) {
+        checkArrayLength(len, 2);
         writeArrayLen(len);
-        for (int i = 0; i < len; ++i)
-            writeUShort(v[i]);
+        for (int j = 0; j < len; ++j)
+            bytes.putShort(i + 2 * j, (short) v[j]);
+        i += 2 * len;
     }
 
 
@@ -255,9 +340,49 @@ public class BufferedOutput {
      * @param len the number of bytes to write
      */
     public void writeIntArray(int v[], int len) {
+        checkArrayLength(len, 4);
         writeArrayLen(len);
-        for (int i = 0; i < len; ++i)
-            writeInt(v[i]);
+        bytes.position(i);
+        bytes.asIntBuffer().put(v, 0, len);
+        i += 4 * len;
+    }
+
+    /**
+     * Write part of an array of bytes into the buffer, without its length
+     * @param v the array
+     * @param offset the index of the first item to write
+     * @param len the number of items to write
+     */
+    public void writeBytes(byte v[], int offset, int len) {
+        checkItems(len, 1);
+        System.arraycopy(v, offset, buffer, i, len);
+        i += len;
+    }
+
+    /**
+     * Write part of an array of shorts into the buffer, without its length
+     * @param v the array
+     * @param offset the index of the first item to write
+     * @param len the number of items to write
+     */
+    public void writeShorts(short v[], int offset, int len) {
+        checkItems(len, 2);
+        bytes.position(i);
+        bytes.asShortBuffer().put(v, offset, len);
+        i += 2 * len;
+    }
+
+    /**
+     * Write part of an array of ints into the buffer, without its length
+     * @param v the array
+     * @param offset the index of the first item to write
+     * @param len the number of items to write
+     */
+    public void writeInts(int v[], int offset, int len) {
+        checkItems(len, 4);
+        bytes.position(i);
+        bytes.asIntBuffer().put(v, offset, len);
+        i += 4 * len;
     }
 
     /** Write a zero-length array into the buffer */
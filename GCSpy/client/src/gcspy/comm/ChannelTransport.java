@@ -0,0 +1,177 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.comm;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Frames carried over a SocketChannel, TCP or Unix domain.
+ * Incoming bytes are read into a single direct buffer and each frame
+ * is handed out as a view of that buffer, so a frame is never copied
+ * between reading it and decoding it.
+ */
+class ChannelTransport extends Transport {
+
+    private SocketChannel channel;
+
+    private int maxLen;
+
+    /* Received bytes live between readPos and writePos */
+    private ByteBuffer inBuffer;
+    private int readPos;
+    private int writePos;
+
+    /* The view handed out for the current frame */
+    private ByteBuffer frame;
+
+    private ByteBuffer header;
+    private ByteBuffer srcs[] = new ByteBuffer[2];
+    private byte payloadArray[];
+
+    /**
+     * Create a new channel transport
+     * @param channel The (blocking) channel on which to communicate
+     * @param maxLen Maximum frame size
+     * @throws IOException
+     */
+    ChannelTransport(SocketChannel channel, int maxLen) throws IOException {
+        this.channel = channel;
+        this.maxLen = maxLen;
+
+        channel.configureBlocking(true);
+        // Unix domain channels have no Socket, but take the same options
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, maxLen);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, maxLen);
+
+        // grown on demand, up to a whole frame
+        inBuffer = ByteBuffer.allocateDirect(Math.min(maxLen, INITIAL_LEN) + DEL_SIZE);
+        frame = inBuffer.duplicate();
+        readPos = 0;
+        writePos = 0;
+
+        header = ByteBuffer.allocateDirect(DEL_SIZE + 1);
+        srcs[0] = header;
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    void send(byte buffer[], int len) throws IOException {
+        ByteBuffer payload = wrap(buffer, 0, len);
+
+        header.clear();
+        header.putInt(len);
+        header.flip();
+
+        // length and payload go out in one gathering write
+        while (payload.hasRemaining() || header.hasRemaining())
+            channel.write(srcs);
+    }
+
+    void send(byte first, byte buffer[], int offset, int len)
+            throws IOException {
+        ByteBuffer payload = wrap(buffer, offset, len);
+
+        header.clear();
+        header.putInt(len + 1);
+        header.put(first);
+        header.flip();
+
+        // length and payload go out in one gathering write
+        while (payload.hasRemaining() || header.hasRemaining())
+            channel.write(srcs);
+    }
+
+    private ByteBuffer wrap(byte buffer[], int offset, int len) {
+        if (buffer != payloadArray) {
+            payloadArray = buffer;
+            srcs[1] = ByteBuffer.wrap(buffer);
+        }
+        ByteBuffer payload = srcs[1];
+        payload.limit(offset + len);
+        payload.position(offset);
+        return payload;
+    }
+
+    /*
+     * Move the unread bytes to the start of the buffer
+     */
+    private void compact() {
+        inBuffer.limit(writePos);
+        inBuffer.position(readPos);
+        inBuffer.compact();
+        writePos -= readPos;
+        readPos = 0;
+    }
+
+    /*
+     * Replace the buffer by one that holds at least needed bytes
+     */
+    private void grow(int needed) {
+        int capacity = Math.min(Math.max(needed, 2 * inBuffer.capacity()),
+                maxLen + DEL_SIZE);
+        ByteBuffer tmp = ByteBuffer.allocateDirect(capacity);
+        inBuffer.limit(writePos);
+        inBuffer.position(readPos);
+        tmp.put(inBuffer);
+        writePos -= readPos;
+        readPos = 0;
+        inBuffer = tmp;
+        frame = inBuffer.duplicate();
+    }
+
+    /*
+     * Make sure that at least needed bytes are available after readPos
+     * return false if the channel reached end-of-stream
+     */
+    private boolean fill(int needed) throws IOException {
+        if (readPos == writePos) {
+            readPos = 0;
+            writePos = 0;
+        }
+        while ((writePos - readPos) < needed) {
+            if (needed > inBuffer.capacity())
+                grow(needed);
+            if ((readPos + needed) > inBuffer.capacity())
+                compact();
+            inBuffer.limit(inBuffer.capacity());
+            inBuffer.position(writePos);
+            int cur = channel.read(inBuffer);
+            if (cur <= 0) {
+                readPos = 0;
+                writePos = 0;
+                return false;
+            }
+            writePos += cur;
+        }
+        return true;
+    }
+
+    ByteBuffer receive() throws IOException {
+        if (!fill(DEL_SIZE))
+            return null;
+        int len = inBuffer.getInt(readPos);
+        if ((len < 0) || (len > maxLen))
+            throw new IOException("frame length " + len +
+                    " exceeds maximum of " + maxLen);
+
+        if (!fill(DEL_SIZE + len))
+            return null;
+
+        int start = readPos + DEL_SIZE;
+        frame.limit(start + len);
+        frame.position(start);
+        readPos = start + len;
+        return frame;
+    }
+
+}
@@ -9,9 +9,11 @@
 package gcspy.comm;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 /**
  * All the socket stuff wrapped up
@@ -20,26 +22,73 @@ import java.net.Socket;
  */
 public class Client {
 
-    private Socket client;
+    /** Use the socket's input and output streams */
+    static public final int STREAM_TRANSPORT = 0;
+    /** Use a SocketChannel and a direct receive buffer */
+    static public final int CHANNEL_TRANSPORT = 1;
 
-    private int maxLen;
+    /** Frames are not compressed */
+    static public final int COMPRESSION_NONE = 0;
+    /** Frames are compressed with the in-tree LZ codec */
+    static public final int COMPRESSION_LZ = 1;
+    /** Frames are compressed with java.util.zip.Deflater */
+    static public final int COMPRESSION_DEFLATE = 2;
 
-    private OutputStream out;
+    /** The longest message that can be sent in chunks */
+    static public final int MAX_MESSAGE_LEN = 1 << 30;
 
-    private InputStream in;
+    /* the byte that starts every frame once chunks are agreed */
+    static private final byte LAST_CHUNK = 0;
+    static private final byte MORE_CHUNKS = 1;
 
-    private byte inBuffer[];
+    /* the most a frame grows by, on top of the message or chunk it carries */
+    static private final int FRAME_OVERHEAD = FrameCodec.MAX_OVERHEAD + 1;
+
+    private Transport transport;
+
+    private int maxLen;
+
+    private ByteBuffer frame;
 
     private int len;
 
-    private byte tmpBuffer[];
+    private int frameStart;
+
+    private BufferedInput input;
 
-    private int tmpLen;
+    private byte inBuffer[];
 
     private byte outBuffer[];
 
+    /* the last BufferedOutput handed out, whose buffer may have grown */
+    private BufferedOutput output;
+
+    private FrameCodec codec;
+
+    private boolean chunked;
+
+    /* the chunks of a message received so far */
+    private byte message[];
+
+    private ByteBuffer messageView;
+
+    /* where to record what goes over the wire, or null */
+    private WireMetrics metrics;
+
     /** INIT * */
 
+    /**
+     * Create a new client
+     * @param transport The transport on which to communicate
+     * @param maxLen Maximum buffer size
+     */
+    private Client(Transport transport, int maxLen) {
+        this.transport = transport;
+        this.maxLen = maxLen;
+        // grown on demand
+        outBuffer = new byte[Math.min(maxLen, Transport.INITIAL_LEN)];
+    }
+
     /**
      * Create a new client
      * @param socket The socket on which to communicate
@@ -47,21 +96,26 @@ public class Client {
      * @throws IOException
      */
     Client(Socket socket, int maxLen) throws IOException {
-        client = socket;
-
-        out = client.getOutputStream();
-        in = client.getInputStream();
-
-        this.maxLen = maxLen;
-        client.setReceiveBufferSize(maxLen);
-        client.setSendBufferSize(maxLen);
-
-        inBuffer = new byte[maxLen];
+        this(new StreamTransport(socket, maxLen + FRAME_OVERHEAD), maxLen);
+    }
 
-        tmpLen = 0;
-        tmpBuffer = new byte[2 * maxLen];
+    /**
+     * Create a new client
+     * @param channel The channel on which to communicate
+     * @param maxLen Maximum buffer size
+     * @throws IOException
+     */
+    Client(SocketChannel channel, int maxLen) throws IOException {
+        this(new ChannelTransport(channel, maxLen + FRAME_OVERHEAD), maxLen);
+    }
 
-        outBuffer = new byte[maxLen];
+    /**
+     * Create a new client
+     * @param link The shared memory link on which to communicate
+     * @param maxLen Maximum buffer size
+     */
+    Client(SharedMemoryLink link, int maxLen) {
+        this(createTransport(link, maxLen), maxLen);
     }
 
     /**
@@ -75,35 +129,151 @@ public class Client {
         this(new Socket(server, port), maxLen);
     }
 
+    /**
+     * Create a new client
+     * @param server The name of the server
+     * @param port The port number
+     * @param maxLen Maximum length of the stream
+     * @param transport The transport to use
+     * (one of <code>STREAM_TRANSPORT</code>, <code>CHANNEL_TRANSPORT</code>)
+     * @throws IOException
+     */
+    public Client(String server, int port, int maxLen, int transport)
+            throws IOException {
+        this(createTransport(server, port, maxLen, transport), maxLen);
+    }
+
+    /**
+     * Create a new client
+     * @param endpoint Where the server is
+     * @param maxLen Maximum length of the stream
+     * @param transport The transport to use for a TCP endpoint
+     * (one of <code>STREAM_TRANSPORT</code>, <code>CHANNEL_TRANSPORT</code>);
+     * a Unix domain socket always uses a channel
+     * @throws IOException
+     */
+    public Client(Endpoint endpoint, int maxLen, int transport)
+            throws IOException {
+        this(createTransport(endpoint, maxLen, transport), maxLen);
+    }
+
+    static private Transport createTransport(Endpoint endpoint, int maxLen,
+                                             int transport)
+            throws IOException {
+        switch (endpoint.getKind()) {
+            case Endpoint.SHARED_MEMORY:
+                return createTransport(
+                        SharedMemoryLink.connect(endpoint.getPath()), maxLen);
+            case Endpoint.UNIX:
+                return new ChannelTransport(SocketChannel.open(
+                        UnixDomainSocketAddress.of(endpoint.getPath())),
+                        maxLen + FRAME_OVERHEAD);
+            default:
+                return createTransport(endpoint.getHost(), endpoint.getPort(),
+                        maxLen, transport);
+        }
+    }
+
+    static private Transport createTransport(SharedMemoryLink link,
+                                             int maxLen) {
+        // the rings are seen as a pair of streams
+        return new StreamTransport(link.getIn().getInputStream(),
+                link.getOut().getOutputStream(), link, maxLen + FRAME_OVERHEAD);
+    }
+
+    static private Transport createTransport(String server, int port,
+                                             int maxLen, int transport)
+            throws IOException {
+        // leave room for compression and chunking to grow a frame
+        maxLen += FRAME_OVERHEAD;
+        switch (transport) {
+            case STREAM_TRANSPORT:
+                return new StreamTransport(new Socket(server, port), maxLen);
+            case CHANNEL_TRANSPORT:
+                return new ChannelTransport(
+                        SocketChannel.open(new InetSocketAddress(server, port)),
+                        maxLen);
+        }
+        throw new IllegalArgumentException("Unknown transport: " + transport);
+    }
+
     /**
      * Close the client
      *
      * @throws IOException
      */
     public void close() throws IOException {
-        client.close();
+        transport.close();
+        if (codec != null)
+            codec.end();
     }
 
-    /** DELIMITERS * */
+    /**
+     * Set how frames are compressed from now on.
+     * Both sides must switch at the same point in the conversation,
+     * so this should only be set once compression has been agreed.
+     * @param compression one of <code>COMPRESSION_NONE</code>,
+     * <code>COMPRESSION_LZ</code>, <code>COMPRESSION_DEFLATE</code>
+     */
+    public void setCompression(int compression) {
+        if (codec != null)
+            codec.end();
+        switch (compression) {
+            case COMPRESSION_NONE:
+                codec = null;
+                break;
+            case COMPRESSION_LZ:
+            case COMPRESSION_DEFLATE:
+                codec = new FrameCodec(compression);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown compression: " + compression);
+        }
+    }
 
-    static final private int DEL_SIZE = 4;
+    /**
+     * Set whether messages longer than the maximum frame length are
+     * split into chunks, each sent as a frame of its own.
+     * Every frame then starts with a byte that says whether more chunks
+     * of the message follow. Like compression, both sides must switch at
+     * the same point in the conversation.
+     * @param chunked whether to send and receive chunks
+     */
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
 
-    /*
-     * Read the length of an array from tmpBuffer @return the length
+    /**
+     * Record the frames sent and received from now on
+     * @param metrics The metrics to record them in, or null to stop
      */
-    private int readStreamLen() {
-        return ArrayInput.readInt(tmpBuffer, 0);
+    public void setMetrics(WireMetrics metrics) {
+        this.metrics = metrics;
     }
 
-    /*
-     * Write a length (in the GCspy wire format) to the output stream
-     * @param len
-     * @throws IOException
+    /**
+     * Get the longest frame that can be sent or received
+     * @return the maximum frame length
+     */
+    public int getMaxLen() {
+        return maxLen;
+    }
+
+    /**
+     * Send no frames longer than the peer can receive, once both sides
+     * have told each other their maximum frame length
+     * @param maxLen the peer's maximum frame length
      */
-    private void writeStreamLen(int len) throws IOException {
-        byte buffer[] = new byte[DEL_SIZE];
-        ArrayOutput.writeInt(buffer, 0, len);
-        out.write(buffer);
+    public void limitMaxLen(int maxLen) {
+        this.maxLen = Math.min(this.maxLen, maxLen);
+    }
+
+    /**
+     * Get the longest message that can be sent or received
+     * @return the maximum message length
+     */
+    public int getMaxMessageLen() {
+        return chunked ? MAX_MESSAGE_LEN : maxLen;
     }
 
     /** SENDING * */
@@ -114,9 +284,30 @@ public class Client {
    * @param its length
    */
     private void baseSend(byte buffer[], int len) throws IOException {
-        writeStreamLen(len);
-        out.write(buffer, 0, len);
-        out.flush();
+        if (len > getMaxMessageLen())
+            throw new IOException("Message length " + len +
+                    " exceeds maximum of " + getMaxMessageLen());
+        if (metrics != null)
+            metrics.frameSent(len);
+        if (codec != null) {
+            len = codec.pack(buffer, len);
+            buffer = codec.getPacked();
+        }
+        if (metrics != null) {
+            // plus the length word, and the header of each chunk
+            int frameNum = chunked ? Math.max(1, (len + maxLen - 1) / maxLen) : 1;
+            metrics.wireSent(len + frameNum * (chunked ? 5 : 4));
+        }
+        if (!chunked) {
+            transport.send(buffer, len);
+            return;
+        }
+        int offset = 0;
+        while (len - offset > maxLen) {
+            transport.send(MORE_CHUNKS, buffer, offset, maxLen);
+            offset += maxLen;
+        }
+        transport.send(LAST_CHUNK, buffer, offset, len - offset);
     }
 
     /**
@@ -143,7 +334,7 @@ public class Client {
      * @throws IOException
      */
     public void send(int len) throws IOException {
-        baseSend(outBuffer, len);
+        baseSend(getBufferOut(), len);
     }
 
     /**
@@ -152,7 +343,7 @@ public class Client {
      * @throws IOException
      */
     public void send(BufferedOutput output) throws IOException {
-        send(output.getLen());
+        baseSend(output.getBuffer(), output.getLen());
     }
 
     /**
@@ -160,6 +351,11 @@ public class Client {
      * @return the out buffer
      */
     public byte[] getBufferOut() {
+        // keep the buffer if the last BufferedOutput grew it
+        if (output != null) {
+            outBuffer = output.getBuffer();
+            output = null;
+        }
         return outBuffer;
     }
 
@@ -179,49 +375,114 @@ public class Client {
      * @throws IOException
      */
     public void receive() throws IOException {
-        int cur;
-        int totalLen;
-
-        while (tmpLen < DEL_SIZE) {
-            cur = in.read(tmpBuffer, tmpLen, maxLen);
-            if (cur <= 0) {
-                len = 0;
-                tmpLen = 0;
-                return;
-            }
-            tmpLen += cur;
-        }
-        len = readStreamLen();
-
-        totalLen = len + DEL_SIZE;
-        while (tmpLen < totalLen) {
-            cur = in.read(tmpBuffer, tmpLen, maxLen);
-            if (cur <= 0) {
-                len = 0;
-                tmpLen = 0;
-                return;
-            }
-            tmpLen += cur;
+        frame = receiveFrame();
+        if ((frame != null) && chunked)
+            frame = receiveChunks(frame);
+        if ((frame != null) && (codec != null))
+            frame = codec.unpack(frame, getMaxMessageLen());
+        if (frame == null)
+            len = 0;
+        else {
+            len = frame.remaining();
+            frameStart = frame.position();
+            if (metrics != null)
+                metrics.frameReceived(len);
         }
+    }
+
+    /*
+     * Receive a frame from the transport, recording its length
+     */
+    private ByteBuffer receiveFrame() throws IOException {
+        ByteBuffer frame = transport.receive();
+        if ((frame != null) && (metrics != null))
+            // plus the length word
+            metrics.wireReceived(frame.remaining() + 4);
+        return frame;
+    }
 
-        System.arraycopy(tmpBuffer, DEL_SIZE, inBuffer, 0, len);
+    /*
+     * Read the byte that starts a chunk
+     */
+    static private byte chunkHeader(ByteBuffer frame) throws IOException {
+        if (!frame.hasRemaining())
+            throw new IOException("Empty chunk");
+        return frame.get();
+    }
 
-        if (tmpLen > totalLen) {
-            System.arraycopy(tmpBuffer, totalLen, tmpBuffer, 0, tmpLen - totalLen);
-            tmpLen -= totalLen;
-        } else {
-            tmpLen = 0;
+    /*
+     * Append a chunk to the message received so far
+     * return the new length of the message
+     */
+    private int appendChunk(ByteBuffer frame, int messageLen)
+            throws IOException {
+        int chunkLen = frame.remaining();
+        if (messageLen + (long) chunkLen > MAX_MESSAGE_LEN)
+            throw new IOException("Message length exceeds maximum of " +
+                    MAX_MESSAGE_LEN);
+        if ((message == null) || (message.length < messageLen + chunkLen)) {
+            int len = Math.max(messageLen + chunkLen,
+                    (message == null) ? 2 * maxLen : 2 * message.length);
+            byte tmp[] = new byte[Math.min(len, MAX_MESSAGE_LEN)];
+            if (messageLen > 0)
+                System.arraycopy(message, 0, tmp, 0, messageLen);
+            message = tmp;
+            messageView = ByteBuffer.wrap(message);
         }
+        frame.get(message, messageLen, chunkLen);
+        return messageLen + chunkLen;
+    }
+
+    /*
+     * Reassemble a message from its chunks, the first of which is frame;
+     * return null if the peer went away half way through
+     */
+    private ByteBuffer receiveChunks(ByteBuffer frame) throws IOException {
+        byte more = chunkHeader(frame);
+        if (more == LAST_CHUNK)
+            return frame;
+
+        int messageLen = 0;
+        while (true) {
+            messageLen = appendChunk(frame, messageLen);
+            if (more == LAST_CHUNK)
+                break;
+            frame = receiveFrame();
+            if (frame == null)
+                return null;
+            more = chunkHeader(frame);
+        }
+        messageView.limit(messageLen);
+        messageView.position(0);
+        return messageView;
     }
 
     /**
-     * Return the input buffer
+     * Return the input buffer.
+     * Transports that do not receive into a byte array copy the
+     * current frame out first.
      * @return the in buffer
      */
     public byte[] getBufferIn() {
+        if (frame == null)
+            return inBuffer;
+        if (frame.hasArray() && (frame.arrayOffset() + frameStart == 0))
+            return frame.array();
+        if ((inBuffer == null) || (inBuffer.length < len))
+            inBuffer = new byte[len];
+        frame.get(frameStart, inBuffer, 0, len);
         return inBuffer;
     }
 
+    /**
+     * Copy the current frame into an array, so that it can be read
+     * after the next receive
+     * @param buffer The array, which must hold at least getLen() bytes
+     */
+    public void copyBufferIn(byte buffer[]) {
+        frame.get(frameStart, buffer, 0, len);
+    }
+
     /**
      * Has the input terminated?
      * @return true if len <= 0
@@ -243,7 +504,27 @@ public class Client {
      * @return a new BufferedInput using the in buffer
      */
     public BufferedInput createBufferedInput() {
-        return new BufferedInput(getBufferIn(), getLen());
+        // after the connection has closed, there is nothing to read
+        if (frame == null)
+            return new BufferedInput(ByteBuffer.allocate(0));
+        ByteBuffer view = frame.duplicate();
+        view.position(frameStart);
+        return new BufferedInput(view);
+    }
+
+    /**
+     * Return an input buffer over the current frame.
+     * Unlike <code>createBufferedInput</code> the same BufferedInput is
+     * handed out for every frame, so it is only valid until the next receive.
+     * @return the BufferedInput for the current frame
+     */
+    public BufferedInput getBufferedInput() {
+        ByteBuffer current = (frame != null) ? frame : ByteBuffer.allocate(0);
+        if (input == null)
+            input = new BufferedInput(current);
+        else
+            input.reset(current);
+        return input;
     }
 
     /**
@@ -251,7 +532,8 @@ public class Client {
      * @return a new BufferedOutput using the out buffer
      */
     public BufferedOutput createBufferedOutput() {
-        return new BufferedOutput(getBufferOut());
+        output = new BufferedOutput(getBufferOut(), getMaxMessageLen());
+        return output;
     }
 
 }
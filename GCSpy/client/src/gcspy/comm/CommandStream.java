@@ -28,12 +28,18 @@ public class CommandStream {
     /** The output buffer */
     protected BufferedOutput output;
 
+    /** Where to record the commands executed, or null */
+    protected WireMetrics metrics;
+
     static private final int MAGIC_TAG_START = 666666;
 
     static private final int MAGIC_TAG_END = -666;
 
     static private final byte END_STREAM = (byte) 0;
 
+    /** The number of bytes that finish adds to a command stream */
+    protected static final int FINISH_LEN = 1 + 4;
+
     /** The index of the first command */
     protected static final int FIRST_AVAILABLE_CMD = END_STREAM + 1;
 
@@ -90,7 +96,10 @@ public class CommandStream {
         while (cmd != END_STREAM) {
             if ((cmd > max) || (cmd < 0))
                 throw new CommandStreamException("Command out of bounds: " + cmd);
-            cmds[cmd].execute(input, fos);
+            if (metrics == null)
+                cmds[cmd].execute(input, fos);
+            else
+                executeMeasured(cmd, input, fos);
             cmd = getCmd(input);
         }
 
@@ -104,6 +113,25 @@ public class CommandStream {
         input.close();
     }
 
+    /* execute a command, recording its length and how long it took */
+    private void executeMeasured(byte cmd, BufferedInput input,
+                                 FileOutputStream fos) throws IOException {
+        int start = input.getPosition();
+        long before = System.nanoTime();
+        cmds[cmd].execute(input, fos);
+        // count the command byte as well
+        metrics.command(cmd, 1 + input.getPosition() - start,
+                System.nanoTime() - before);
+    }
+
+    /**
+     * Record the length and execution time of every command executed
+     * @param metrics The metrics to record them in, or null to stop
+     */
+    public void setMetrics(WireMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * Set the Buffered Output.
      * used when we are creating a command stream looks a bit nicer rather than
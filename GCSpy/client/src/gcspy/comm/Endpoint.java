@@ -0,0 +1,157 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.comm;
+
+/**
+ * Where a server listens or a client connects to. Endpoints are written as
+ * <pre>
+ * port               a TCP port (on the local host for a client)
+ * host:port          a TCP host and port
+ * unix:path          a Unix domain socket
+ * shm:path           a shared memory file, for a client on the same host
+ * </pre>
+ */
+public class Endpoint {
+
+    /** A TCP host and port */
+    static public final int TCP = 0;
+    /** A shared memory file */
+    static public final int SHARED_MEMORY = 1;
+    /** A Unix domain socket */
+    static public final int UNIX = 2;
+
+    static private final String SHARED_MEMORY_PREFIX = "shm:";
+    static private final String UNIX_PREFIX = "unix:";
+
+    private int kind;
+    private String host;
+    private int port;
+    private String path;
+
+    private Endpoint(int kind, String host, int port, String path) {
+        this.kind = kind;
+        this.host = host;
+        this.port = port;
+        this.path = path;
+    }
+
+    /**
+     * Create a TCP endpoint
+     * @param host The host name
+     * @param port The port number
+     */
+    public Endpoint(String host, int port) {
+        this(TCP, host, port, null);
+    }
+
+    /**
+     * Create a shared memory endpoint
+     * @param path The path of the shared memory file
+     * @return the endpoint
+     */
+    static public Endpoint sharedMemory(String path) {
+        return new Endpoint(SHARED_MEMORY, null, 0, path);
+    }
+
+    /**
+     * Create a Unix domain socket endpoint
+     * @param path The path of the socket
+     * @return the endpoint
+     */
+    static public Endpoint unix(String path) {
+        return new Endpoint(UNIX, null, 0, path);
+    }
+
+    /* the path after a prefix */
+    static private String pathOf(String endpoint, String prefix) {
+        String path = endpoint.substring(prefix.length());
+        if (path.length() == 0)
+            throw new IllegalArgumentException("No path in " + endpoint);
+        return path;
+    }
+
+    /**
+     * Parse an endpoint
+     * @param endpoint The endpoint as written on the command line
+     * @param defaultHost The host for a TCP endpoint given as a port only
+     * @return the endpoint
+     * @throws IllegalArgumentException if it cannot be parsed
+     */
+    static public Endpoint parse(String endpoint, String defaultHost) {
+        if (endpoint.startsWith(SHARED_MEMORY_PREFIX))
+            return sharedMemory(pathOf(endpoint, SHARED_MEMORY_PREFIX));
+        if (endpoint.startsWith(UNIX_PREFIX))
+            return unix(pathOf(endpoint, UNIX_PREFIX));
+        String host = defaultHost;
+        String port = endpoint;
+        int colon = endpoint.lastIndexOf(':');
+        if (colon >= 0) {
+            host = endpoint.substring(0, colon);
+            port = endpoint.substring(colon + 1);
+        }
+        try {
+            return new Endpoint(host, Integer.parseInt(port));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad endpoint " + endpoint);
+        }
+    }
+
+    /**
+     * Parse an endpoint, taking a port on its own to be on the local host
+     * @param endpoint The endpoint as written on the command line
+     * @return the endpoint
+     * @throws IllegalArgumentException if it cannot be parsed
+     */
+    static public Endpoint parse(String endpoint) {
+        return parse(endpoint, "localhost");
+    }
+
+    /**
+     * Get the kind of endpoint
+     * @return one of <code>TCP</code>, <code>SHARED_MEMORY</code>, <code>UNIX</code>
+     */
+    public int getKind() {
+        return kind;
+    }
+
+    /**
+     * Get the host of a TCP endpoint
+     * @return the host name
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Get the port of a TCP endpoint
+     * @return the port number
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get the path of a shared memory or Unix domain socket endpoint
+     * @return the path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public String toString() {
+        switch (kind) {
+            case SHARED_MEMORY:
+                return SHARED_MEMORY_PREFIX + path;
+            case UNIX:
+                return UNIX_PREFIX + path;
+            default:
+                return host + ":" + port;
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.comm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses whole frames once a Client has agreed on
+ * compression with its peer. Every frame then starts with a byte naming
+ * the codec; compressed frames follow it with their uncompressed length.
+ * <pre>
+ * uncompressed   0 payload
+ * compressed     codec int compressed-payload
+ * </pre>
+ * Frames that are small or do not compress are sent uncompressed.
+ */
+public class FrameCodec {
+
+    /** The most a frame grows by */
+    static public final int MAX_OVERHEAD = 1;
+
+    static private final int HEADER_LEN = 1 + 4;
+
+    /* Frames shorter than this are not worth compressing */
+    static private final int MIN_LEN = 64;
+
+    private int compression;
+
+    private LZCodec lz;
+    private Deflater deflater;
+    private Inflater inflater;
+
+    private byte packed[];
+    private byte unpacked[];
+    private ByteBuffer unpackedView;
+    private byte received[];
+    private byte extra[] = new byte[1];
+
+    /**
+     * Create a frame codec
+     * @param compression the codec to compress with
+     * (<code>Client.COMPRESSION_LZ</code> or <code>Client.COMPRESSION_DEFLATE</code>)
+     */
+    public FrameCodec(int compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Pack a frame for sending
+     * @param buffer the frame
+     * @param len its length
+     * @return the length of the packed frame, which is in getPacked()
+     */
+    public int pack(byte buffer[], int len) {
+        if ((packed == null) || (packed.length < len + MAX_OVERHEAD))
+            packed = new byte[len + MAX_OVERHEAD];
+        if (len >= MIN_LEN) {
+            int packedLen = -1;
+            // the compressed frame must be shorter than the uncompressed one
+            int limit = len + MAX_OVERHEAD - 1;
+            switch (compression) {
+                case Client.COMPRESSION_LZ:
+                    if (lz == null)
+                        lz = new LZCodec();
+                    packedLen = lz.compress(buffer, len, packed, HEADER_LEN, limit);
+                    break;
+                case Client.COMPRESSION_DEFLATE:
+                    packedLen = deflate(buffer, len, limit);
+                    break;
+            }
+            if (packedLen >= 0) {
+                packed[0] = (byte) compression;
+                ArrayOutput.writeInt(packed, 1, len);
+                return packedLen;
+            }
+        }
+        packed[0] = (byte) Client.COMPRESSION_NONE;
+        System.arraycopy(buffer, 0, packed, 1, len);
+        return len + 1;
+    }
+
+    private int deflate(byte buffer[], int len, int limit) {
+        if (deflater == null)
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.reset();
+        deflater.setInput(buffer, 0, len);
+        deflater.finish();
+        int packedLen = HEADER_LEN;
+        while (!deflater.finished() && (packedLen < limit))
+            packedLen += deflater.deflate(packed, packedLen, limit - packedLen);
+        return deflater.finished() ? packedLen : -1;
+    }
+
+    /**
+     * Return the buffer pack() packed the frame into
+     * @return the packed frame
+     */
+    public byte[] getPacked() {
+        return packed;
+    }
+
+    /**
+     * Unpack a received frame
+     * @param frame the frame, between its position and limit
+     * @param maxLen the maximum length of an uncompressed frame
+     * @return the payload, valid until the next call
+     * @throws IOException if the frame is corrupt
+     */
+    public ByteBuffer unpack(ByteBuffer frame, int maxLen) throws IOException {
+        if (!frame.hasRemaining())
+            throw new IOException("Empty frame");
+        int codec = frame.get();
+        if (codec == Client.COMPRESSION_NONE)
+            return frame;
+
+        if (frame.remaining() < 4)
+            throw new IOException("Truncated compressed frame");
+        int len = frame.getInt();
+        if ((len < 0) || (len > maxLen))
+            throw new IOException("Uncompressed frame length " + len +
+                    " exceeds maximum of " + maxLen);
+
+        byte src[];
+        int srcOff;
+        int srcLen = frame.remaining();
+        if (frame.hasArray()) {
+            src = frame.array();
+            srcOff = frame.arrayOffset() + frame.position();
+        } else {
+            if ((received == null) || (received.length < srcLen))
+                received = new byte[srcLen];
+            frame.duplicate().get(received, 0, srcLen);
+            src = received;
+            srcOff = 0;
+        }
+
+        if ((unpacked == null) || (unpacked.length < len)) {
+            unpacked = new byte[len];
+            unpackedView = ByteBuffer.wrap(unpacked);
+        }
+        switch (codec) {
+            case Client.COMPRESSION_LZ:
+                LZCodec.decompress(src, srcOff, srcLen, unpacked, len);
+                break;
+            case Client.COMPRESSION_DEFLATE:
+                inflate(src, srcOff, srcLen, len);
+                break;
+            default:
+                throw new IOException("Unknown frame compression: " + codec);
+        }
+        unpackedView.limit(len);
+        unpackedView.position(0);
+        return unpackedView;
+    }
+
+    private void inflate(byte src[], int srcOff, int srcLen, int len)
+            throws IOException {
+        if (inflater == null)
+            inflater = new Inflater();
+        inflater.reset();
+        inflater.setInput(src, srcOff, srcLen);
+        try {
+            int n = 0;
+            while (n < len) {
+                int cur = inflater.inflate(unpacked, n, len - n);
+                if ((cur == 0) && (inflater.finished() || inflater.needsInput() ||
+                        inflater.needsDictionary()))
+                    break;
+                n += cur;
+            }
+            // the stream must end where the frame says it does
+            if ((n == len) && !inflater.finished() &&
+                    (inflater.inflate(extra, 0, 1) != 0))
+                n = -1;
+            if ((n != len) || !inflater.finished())
+                throw new IOException("Corrupt deflated frame");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflated frame", e);
+        }
+    }
+
+    /** Release the codecs' native resources */
+    public void end() {
+        if (deflater != null)
+            deflater.end();
+        if (inflater != null)
+            inflater.end();
+    }
+
+}
@@ -0,0 +1,118 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.comm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, with a bucket for each power
+ * of two. Durations are recorded by one thread and can be read by any
+ * other, so the counts are atomic but the histogram as a whole is not
+ * read in one go.
+ */
+public class Histogram {
+
+    /* bucket i holds durations from 2^i up to 2^(i+1) ns; the last
+       bucket holds everything longer */
+    static private final int BUCKET_NUM = 40;
+
+    /* the count, the sum and the longest duration */
+    static private final int COUNT = BUCKET_NUM;
+    static private final int SUM = BUCKET_NUM + 1;
+    static private final int MAX = BUCKET_NUM + 2;
+
+    private AtomicLongArray values = new AtomicLongArray(BUCKET_NUM + 3);
+
+    static private int bucket(long nanos) {
+        if (nanos <= 1)
+            return 0;
+        return Math.min(63 - Long.numberOfLeadingZeros(nanos), BUCKET_NUM - 1);
+    }
+
+    /**
+     * Record a duration
+     * @param nanos The duration in ns
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        values.incrementAndGet(bucket(nanos));
+        values.incrementAndGet(COUNT);
+        values.addAndGet(SUM, nanos);
+        if (nanos > values.get(MAX))
+            values.set(MAX, nanos);
+    }
+
+    /** Forget every duration recorded */
+    public void reset() {
+        for (int i = 0; i < values.length(); ++i)
+            values.set(i, 0);
+    }
+
+    /**
+     * Get the number of durations recorded
+     * @return the count
+     */
+    public long getCount() {
+        return values.get(COUNT);
+    }
+
+    /**
+     * Get the mean duration
+     * @return the mean in ns, or 0 if none were recorded
+     */
+    public long getMean() {
+        long count = getCount();
+        return (count == 0) ? 0 : values.get(SUM) / count;
+    }
+
+    /**
+     * Get the longest duration
+     * @return the longest in ns
+     */
+    public long getMax() {
+        return values.get(MAX);
+    }
+
+    /**
+     * Get a bound on a percentile
+     * @param percent The percentile, from 0 to 100
+     * @return a duration in ns that at least that many percent of the
+     * durations do not exceed
+     */
+    public long getPercentile(double percent) {
+        long count = getCount();
+        if (count == 0)
+            return 0;
+        long needed = (long) Math.ceil(count * percent / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_NUM - 1; ++i) {
+            seen += values.get(i);
+            if (seen >= needed)
+                return Math.min(1L << (i + 1), getMax());
+        }
+        return getMax();
+    }
+
+    static private String micros(long nanos) {
+        return (nanos < 10000) ? (nanos / 1000.0) + "us" : (nanos / 1000) + "us";
+    }
+
+    /**
+     * Present the histogram in one line
+     * @return the count, mean, median, 99th percentile and maximum
+     */
+    public String present() {
+        return "n=" + getCount() +
+                " mean=" + micros(getMean()) +
+                " p50<=" + micros(getPercentile(50)) +
+                " p99<=" + micros(getPercentile(99)) +
+                " max=" + micros(getMax());
+    }
+
+}
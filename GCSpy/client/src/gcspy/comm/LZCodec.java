@@ -0,0 +1,210 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.comm;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A small, fast LZ77 codec, in the style of LZ4.
+ * The compressed data is a sequence of
+ * <pre>
+ * token          b (high nibble: literal count, low nibble: match length - 4)
+ * [count]        b...b (present if a nibble is 15; 255 means more follow)
+ * literals       b...b
+ * offset         bb (big-endian, absent in the last sequence)
+ * [match length] b...b
+ * </pre>
+ * The last sequence holds literals only.
+ */
+class LZCodec {
+
+    static private final int MIN_MATCH = 4;
+    static private final int MAX_OFFSET = (1 << 16) - 1;
+    static private final int HASH_BITS = 14;
+
+    private int table[] = new int[1 << HASH_BITS];
+
+    static private int readInt(byte b[], int i) {
+        return ((b[i] & 0xFF) << 24) | ((b[i + 1] & 0xFF) << 16) |
+                ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+    }
+
+    static private int hash(int v) {
+        return (v * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    /* write a nibble's overflow; return the new position, or -1 if full */
+    static private int writeCount(byte dst[], int op, int limit, int count) {
+        while (count >= 255) {
+            if (op >= limit)
+                return -1;
+            dst[op++] = (byte) 255;
+            count -= 255;
+        }
+        if (op >= limit)
+            return -1;
+        dst[op++] = (byte) count;
+        return op;
+    }
+
+    /* write one sequence; matchLen is 0 for the last one */
+    static private int writeSequence(byte src[], int anchor, int litLen,
+                                     int offset, int matchLen,
+                                     byte dst[], int op, int limit) {
+        if (op >= limit)
+            return -1;
+        int tokenPos = op++;
+        int token = (Math.min(litLen, 15) << 4);
+        if (litLen >= 15) {
+            op = writeCount(dst, op, limit, litLen - 15);
+            if (op < 0)
+                return -1;
+        }
+        if (op + litLen > limit)
+            return -1;
+        System.arraycopy(src, anchor, dst, op, litLen);
+        op += litLen;
+
+        if (matchLen > 0) {
+            if (op + 2 > limit)
+                return -1;
+            dst[op++] = (byte) (offset >>> 8);
+            dst[op++] = (byte) offset;
+            int len = matchLen - MIN_MATCH;
+            token |= Math.min(len, 15);
+            if (len >= 15) {
+                op = writeCount(dst, op, limit, len - 15);
+                if (op < 0)
+                    return -1;
+            }
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    /**
+     * Compress a prefix of an array
+     * @param src the data to compress
+     * @param srcLen its length
+     * @param dst where to put the compressed data
+     * @param dstOff the index in dst to start from
+     * @param dstLimit the index in dst not to reach
+     * @return the index in dst after the compressed data,
+     * or -1 if it did not fit
+     */
+    int compress(byte src[], int srcLen, byte dst[], int dstOff, int dstLimit) {
+        Arrays.fill(table, -1);
+
+        int ip = 0;
+        int anchor = 0;
+        int op = dstOff;
+        int end = srcLen - MIN_MATCH;
+
+        while (ip < end) {
+            int seq = readInt(src, ip);
+            int h = hash(seq);
+            int ref = table[h];
+            table[h] = ip;
+
+            if ((ref >= 0) && (ip - ref <= MAX_OFFSET) &&
+                    (readInt(src, ref) == seq)) {
+                int len = MIN_MATCH;
+                while ((ip + len < srcLen) && (src[ref + len] == src[ip + len]))
+                    ++len;
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, len,
+                        dst, op, dstLimit);
+                if (op < 0)
+                    return -1;
+                ip += len;
+                anchor = ip;
+            } else {
+                // skip faster through data that does not compress
+                ip += 1 + ((ip - anchor) >>> 6);
+            }
+        }
+        return writeSequence(src, anchor, srcLen - anchor, 0, 0,
+                dst, op, dstLimit);
+    }
+
+    static private IOException corrupt() {
+        return new IOException("Corrupt LZ compressed frame");
+    }
+
+    /**
+     * Decompress data
+     * @param src the compressed data
+     * @param srcOff the index of the compressed data in src
+     * @param srcLen the length of the compressed data
+     * @param dst where to put the decompressed data
+     * @param dstLen the length of the decompressed data
+     * @throws IOException if the data is corrupt
+     */
+    static void decompress(byte src[], int srcOff, int srcLen,
+                           byte dst[], int dstLen) throws IOException {
+        int ip = srcOff;
+        int srcEnd = srcOff + srcLen;
+        int op = 0;
+
+        while (true) {
+            if (ip >= srcEnd)
+                throw corrupt();
+            int token = src[ip++] & 0xFF;
+
+            int litLen = token >>> 4;
+            if (litLen == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd)
+                        throw corrupt();
+                    b = src[ip++] & 0xFF;
+                    litLen += b;
+                } while (b == 255);
+            }
+            // subtract, so that long runs of 255 cannot overflow
+            if ((litLen > srcEnd - ip) || (litLen > dstLen - op))
+                throw corrupt();
+            System.arraycopy(src, ip, dst, op, litLen);
+            ip += litLen;
+            op += litLen;
+            if (op == dstLen)
+                break;
+
+            if (ip + 2 > srcEnd)
+                throw corrupt();
+            int offset = ((src[ip] & 0xFF) << 8) | (src[ip + 1] & 0xFF);
+            ip += 2;
+            int matchLen = token & 15;
+            if (matchLen == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd)
+                        throw corrupt();
+                    b = src[ip++] & 0xFF;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+
+            int ref = op - offset;
+            if ((offset == 0) || (ref < 0) || (matchLen > dstLen - op))
+                throw corrupt();
+            if (offset >= matchLen) {
+                System.arraycopy(dst, ref, dst, op, matchLen);
+                op += matchLen;
+            } else {
+                // overlapping copy repeats the last offset bytes
+                for (int i = 0; i < matchLen; ++i)
+                    dst[op++] = dst[ref++];
+            }
+        }
+        if (ip != srcEnd)
+            throw corrupt();
+    }
+
+}
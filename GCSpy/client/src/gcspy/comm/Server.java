@@ -11,8 +11,17 @@ package gcspy.comm;
 import gcspy.utils.Utils;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * More socket stuff wrapped out
@@ -20,6 +29,21 @@ import java.net.Socket;
  */
 public class Server {
     private ServerSocket server;
+    private ServerSocketChannel channel;
+
+    /* the Unix domain socket, removed on close */
+    private Path socketPath;
+
+    /* the shared memory file a client is expected on next */
+    private String path;
+    private SharedMemoryLink link;
+    private boolean closed;
+
+    /* how often to check for a shared memory client, in ns */
+    static private final long ACCEPT_PERIOD = 1000 * 1000;
+
+    /** The backlog used when none is given (same as ServerSocket's) */
+    static public final int DEFAULT_BACKLOG = 50;
 
     /**
      * Create a new Server
@@ -43,6 +67,68 @@ public class Server {
         server = new ServerSocket(port);
     }
 
+    /**
+     * Create a new Server
+     * @param port The port to communicate on
+     * @param backlog The server socket backlog
+     * @param transport The transport for accepted clients
+     * (one of <code>Client.STREAM_TRANSPORT</code>, <code>Client.CHANNEL_TRANSPORT</code>)
+     * @throws IOException
+     */
+    public Server(int port,
+                  int backlog,
+                  int transport)
+            throws IOException {
+        listen(port, backlog, transport);
+    }
+
+    /**
+     * Create a new Server. For a TCP endpoint only the port is used.
+     * @param endpoint The endpoint to listen on
+     * @param backlog The server socket backlog
+     * @param transport The transport for accepted TCP clients
+     * (one of <code>Client.STREAM_TRANSPORT</code>, <code>Client.CHANNEL_TRANSPORT</code>);
+     * Unix domain socket clients always use a channel
+     * @throws IOException
+     */
+    public Server(Endpoint endpoint,
+                  int backlog,
+                  int transport)
+            throws IOException {
+        switch (endpoint.getKind()) {
+            case Endpoint.SHARED_MEMORY:
+                path = endpoint.getPath();
+                link = SharedMemoryLink.listen(path);
+                break;
+            case Endpoint.UNIX:
+                // a socket file left by a server that died would block the bind
+                socketPath = Paths.get(endpoint.getPath());
+                Files.deleteIfExists(socketPath);
+                channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                channel.bind(UnixDomainSocketAddress.of(socketPath), backlog);
+                break;
+            default:
+                listen(endpoint.getPort(), backlog, transport);
+        }
+    }
+
+    private void listen(int port,
+                        int backlog,
+                        int transport)
+            throws IOException {
+        switch (transport) {
+            case Client.STREAM_TRANSPORT:
+                server = new ServerSocket(port, backlog);
+                break;
+            case Client.CHANNEL_TRANSPORT:
+                channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(port), backlog);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+    }
+
     /**
      * Wait for a new client
      * @param maxLen The maximum length of the stream
@@ -51,10 +137,38 @@ public class Server {
      */
     public Client waitForNewClient(int maxLen)
             throws IOException {
+        if (path != null)
+            return waitForSharedMemoryClient(maxLen);
+        if (channel != null) {
+            SocketChannel socket = channel.accept();
+            return new Client(socket, maxLen);
+        }
         Socket socket = server.accept();
         return new Client(socket, maxLen);
     }
 
+    /*
+     * Wait for a client to take the shared memory file, then create a
+     * new one for the next client
+     */
+    private Client waitForSharedMemoryClient(int maxLen)
+            throws IOException {
+        SharedMemoryLink accepted;
+        while (true) {
+            synchronized (this) {
+                if (closed)
+                    throw new IOException("Server closed");
+                if (link.isConnected()) {
+                    accepted = link;
+                    link = SharedMemoryLink.listen(path);
+                    break;
+                }
+            }
+            LockSupport.parkNanos(ACCEPT_PERIOD);
+        }
+        return new Client(accepted, maxLen);
+    }
+
     /**
      * Close the server
      * @throws IOException
@@ -62,7 +176,18 @@ public class Server {
     public void close()
             throws IOException {
         Utils.sleep(50);
-        server.close();
+        if (path != null) {
+            synchronized (this) {
+                closed = true;
+                link.close();
+            }
+        } else if (channel != null) {
+            channel.close();
+            if (socketPath != null)
+                Files.deleteIfExists(socketPath);
+        }
+        else
+            server.close();
     }
 
 }
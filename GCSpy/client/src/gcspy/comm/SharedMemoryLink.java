@@ -0,0 +1,260 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.comm;
+
+import gcspy.utils.Utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A connection between a server and a client on the same host through
+ * a memory-mapped file, with a SharedMemoryRing for each direction.
+ * The file is laid out as
+ * <pre>
+ * int magic, int version, int state, int capacity   (padded to 64 bytes)
+ * ring                                               server to client
+ * ring                                               client to server
+ * </pre>
+ * A server creates the file in the listening state and waits for a
+ * client to switch it to connected. It then removes the file, so that
+ * the next client finds a fresh one, while both sides keep the mapping.
+ * <p>
+ * Each side holds a lock on a byte of the header, so that the other side
+ * can tell if it dies without closing the link.
+ */
+class SharedMemoryLink implements Closeable {
+
+    static private final int MAGIC = 0x47437370; // "GCsp"
+    static private final int VERSION = 1;
+
+    static private final int MAGIC_OFFSET = 0;
+    static private final int VERSION_OFFSET = 4;
+    static private final int STATE_OFFSET = 8;
+    static private final int CAPACITY_OFFSET = 12;
+    static private final int SERVER_LOCK = 16;
+    static private final int CLIENT_LOCK = 17;
+    static private final int HEADER_SIZE = 64;
+
+    static private final int LISTENING = 1;
+    static private final int CONNECTED = 2;
+
+    /* frames larger than a ring just pass through it in parts */
+    static private final int CAPACITY = 1024 * 1024;
+
+    /* how long a client waits for a busy server, in ms */
+    static private final long CONNECT_TIMEOUT = 5000;
+
+    static private final VarHandle INTS =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private Path path;
+    private boolean server;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private FileLock lock;
+    private boolean connected;
+    private boolean closed;
+
+    private SharedMemoryRing in;
+    private SharedMemoryRing out;
+
+    private SharedMemoryLink(Path path, boolean server) {
+        this.path = path;
+        this.server = server;
+    }
+
+    /* map the file and set up the rings */
+    private void map(int capacity) throws IOException {
+        int size = HEADER_SIZE + 2 * SharedMemoryRing.size(capacity);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        SharedMemoryRing toClient = new SharedMemoryRing(buffer, HEADER_SIZE,
+                capacity, this);
+        SharedMemoryRing toServer = new SharedMemoryRing(buffer,
+                HEADER_SIZE + SharedMemoryRing.size(capacity), capacity, this);
+        in = server ? toServer : toClient;
+        out = server ? toClient : toServer;
+    }
+
+    /******************** Server Side ********************/
+
+    /**
+     * Create a new file for a client to connect to
+     * @param path The file's path
+     * @return the link, not connected yet
+     * @throws IOException
+     */
+    static SharedMemoryLink listen(String path) throws IOException {
+        SharedMemoryLink link = new SharedMemoryLink(Paths.get(path), true);
+        Files.deleteIfExists(link.path);
+        link.path.toFile().deleteOnExit();
+        link.channel = FileChannel.open(link.path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            link.map(CAPACITY);
+            link.lock = link.channel.lock(SERVER_LOCK, 1, false);
+            link.in.reset();
+            link.out.reset();
+            link.buffer.putInt(VERSION_OFFSET, VERSION);
+            link.buffer.putInt(CAPACITY_OFFSET, CAPACITY);
+            INTS.setRelease(link.buffer, STATE_OFFSET, LISTENING);
+            // clients ignore the file until the magic number is there
+            INTS.setRelease(link.buffer, MAGIC_OFFSET, MAGIC);
+        } catch (IOException e) {
+            link.close();
+            throw e;
+        }
+        return link;
+    }
+
+    /**
+     * Has a client connected? Once one has, the file is removed.
+     * @return true if a client has connected
+     * @throws IOException
+     */
+    boolean isConnected() throws IOException {
+        if (!connected && ((int) INTS.getAcquire(buffer, STATE_OFFSET) == CONNECTED)) {
+            connected = true;
+            Files.deleteIfExists(path);
+        }
+        return connected;
+    }
+
+    /******************** Client Side ********************/
+
+    /**
+     * Connect to a server listening on a file
+     * @param path The file's path
+     * @return the link
+     * @throws IOException if there is no server or it stays busy
+     */
+    static SharedMemoryLink connect(String path) throws IOException {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (true) {
+            SharedMemoryLink link = new SharedMemoryLink(Paths.get(path), false);
+            try {
+                if (link.tryConnect())
+                    return link;
+            } catch (NoSuchFileException e) {
+                link.close();
+                throw new IOException("No GCspy server at shm:" + path);
+            } catch (IOException e) {
+                link.close();
+                throw e;
+            }
+            link.close();
+            if (System.currentTimeMillis() > deadline)
+                throw new IOException("GCspy server at shm:" + path + " is busy");
+            Utils.sleep(1);
+        }
+    }
+
+    /* try to claim the file; return false to try again */
+    private boolean tryConnect() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_SIZE)
+            return false; // still being created
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if ((int) INTS.getAcquire(buffer, MAGIC_OFFSET) != MAGIC)
+            return false;
+        if (buffer.getInt(VERSION_OFFSET) != VERSION)
+            throw new IOException("Unsupported shared memory version " +
+                    buffer.getInt(VERSION_OFFSET) + " at shm:" + path);
+        if ((int) INTS.getAcquire(buffer, STATE_OFFSET) != LISTENING)
+            return false; // taken, the server will create a new one
+        if (!isPeerAlive())
+            throw new IOException("Stale GCspy server file at shm:" + path);
+
+        // lock before claiming, so the server never sees the client dead
+        try {
+            lock = channel.tryLock(CLIENT_LOCK, 1, false);
+        } catch (OverlappingFileLockException e) {
+            return false; // another client in this JVM got there first
+        }
+        if (lock == null)
+            return false;
+        if (!INTS.compareAndSet(buffer, STATE_OFFSET, LISTENING, CONNECTED))
+            return false;
+        int capacity = buffer.getInt(CAPACITY_OFFSET);
+        if ((capacity <= 0) || (Integer.bitCount(capacity) != 1) ||
+                (HEADER_SIZE + 2L * SharedMemoryRing.size(capacity) > channel.size()))
+            throw new IOException("Corrupt shared memory file at shm:" + path);
+        map(capacity);
+        connected = true;
+        return true;
+    }
+
+    /******************** Both Sides ********************/
+
+    /**
+     * Is the other side still there?
+     * @return false if it has gone away without closing the link
+     */
+    boolean isPeerAlive() {
+        try {
+            FileLock peerLock = channel.tryLock(server ? CLIENT_LOCK : SERVER_LOCK,
+                    1, false);
+            if (peerLock == null)
+                return true;
+            peerLock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true; // held by this JVM
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the ring this side reads from
+     * @return the ring
+     */
+    SharedMemoryRing getIn() {
+        return in;
+    }
+
+    /**
+     * Get the ring this side writes to
+     * @return the ring
+     */
+    SharedMemoryRing getOut() {
+        return out;
+    }
+
+    /**
+     * Close this side of the link
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        if (connected) {
+            out.closeWriting();
+            in.closeReading();
+        } else if (server && (channel != null)) {
+            Files.deleteIfExists(path);
+        }
+        if (channel != null)
+            channel.close();
+    }
+
+}
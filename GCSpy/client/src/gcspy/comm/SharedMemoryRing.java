@@ -0,0 +1,263 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One direction of a shared memory link: a ring of bytes in a mapped
+ * file, with one writer and one reader, possibly in different processes.
+ * <p>
+ * Each side only ever writes its own counter, so no locks are needed.
+ * The writer copies bytes into the ring and then publishes them by
+ * advancing the tail with release semantics; the reader reads the tail
+ * with acquire semantics, copies the bytes out, and frees the space by
+ * advancing the head. The counters only grow, so the ring is empty when
+ * they are equal and full when they are a capacity apart.
+ * <p>
+ * The ring starts at an offset of the mapping and is laid out as
+ * <pre>
+ * long head           bytes read so far, written by the reader
+ * long tail           bytes written so far, written by the writer
+ * int  writerClosed   no more bytes will be written
+ * int  readerClosed   no more bytes will be read
+ * byte data[capacity]
+ * </pre>
+ * with the counters on cache lines of their own.
+ */
+class SharedMemoryRing {
+
+    /** The size of the header in front of the data */
+    static final int HEADER_SIZE = 192;
+
+    static private final int HEAD = 0;
+    static private final int TAIL = 64;
+    static private final int WRITER_CLOSED = 128;
+    static private final int READER_CLOSED = 132;
+
+    /* how often to spin before parking, and the longest park, in ns */
+    static private final int SPIN_NUM = 1000;
+    static private final long MAX_PARK = 1000 * 1000;
+    /* how long to wait before checking that the other side is still alive */
+    static private final long LIVENESS_PERIOD = 100L * 1000 * 1000;
+
+    static private final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    static private final VarHandle INTS =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private ByteBuffer buffer;
+    private int base;
+    private int data;
+    private int capacity;
+
+    private SharedMemoryLink link;
+
+    /* this side's own counter, which only this side writes */
+    private long position;
+
+    /* this side has closed its end */
+    private volatile boolean closed;
+
+    /**
+     * Create a view of a ring
+     * @param buffer The mapping
+     * @param base The offset of the ring in the mapping
+     * @param capacity The number of bytes of data, a power of two
+     * @param link The link the ring belongs to
+     */
+    SharedMemoryRing(ByteBuffer buffer, int base, int capacity,
+                     SharedMemoryLink link) {
+        this.buffer = buffer;
+        this.base = base;
+        this.data = base + HEADER_SIZE;
+        this.capacity = capacity;
+        this.link = link;
+    }
+
+    /**
+     * The size a ring takes up in the mapping
+     * @param capacity The number of bytes of data
+     * @return the size including the header
+     */
+    static int size(int capacity) {
+        return HEADER_SIZE + capacity;
+    }
+
+    /** Clear the ring, before either side uses it */
+    void reset() {
+        LONGS.setRelease(buffer, base + HEAD, 0L);
+        LONGS.setRelease(buffer, base + TAIL, 0L);
+        INTS.setRelease(buffer, base + WRITER_CLOSED, 0);
+        INTS.setRelease(buffer, base + READER_CLOSED, 0);
+    }
+
+    /******************** Waiting ********************/
+
+    /*
+     * Spin, then park for longer and longer, and every so often check
+     * that the other side is still there
+     */
+    private class Waiter {
+        private int spinNum;
+        private long park = 1000;
+        private long waited;
+
+        void await() throws IOException {
+            if (spinNum < SPIN_NUM) {
+                ++spinNum;
+                Thread.onSpinWait();
+                return;
+            }
+            LockSupport.parkNanos(park);
+            waited += park;
+            park = Math.min(2 * park, MAX_PARK);
+            if (waited >= LIVENESS_PERIOD) {
+                waited = 0;
+                if (!link.isPeerAlive())
+                    throw new IOException("Shared memory peer has gone away");
+            }
+            if (Thread.interrupted())
+                throw new IOException("Interrupted while waiting for the shared memory peer");
+        }
+    }
+
+    /******************** Writing ********************/
+
+    /**
+     * Write bytes into the ring, waiting for space if it is full
+     * @param b The bytes
+     * @param off The offset of the first byte
+     * @param len The number of bytes
+     * @throws IOException if the reader has closed or gone away
+     */
+    void write(byte b[], int off, int len) throws IOException {
+        Waiter waiter = null;
+        while (len > 0) {
+            long head = (long) LONGS.getAcquire(buffer, base + HEAD);
+            int free = capacity - (int) (position - head);
+            if (free == 0) {
+                if (closed || ((int) INTS.getAcquire(buffer, base + READER_CLOSED) != 0))
+                    throw new IOException("Shared memory reader has closed");
+                if (waiter == null)
+                    waiter = new Waiter();
+                waiter.await();
+                continue;
+            }
+
+            int n = Math.min(len, free);
+            int pos = (int) position & (capacity - 1);
+            int first = Math.min(n, capacity - pos);
+            buffer.put(data + pos, b, off, first);
+            if (first < n)
+                buffer.put(data, b, off + first, n - first);
+            position += n;
+            LONGS.setRelease(buffer, base + TAIL, position);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Tell the reader that no more bytes will be written */
+    void closeWriting() {
+        closed = true;
+        INTS.setRelease(buffer, base + WRITER_CLOSED, 1);
+    }
+
+    /******************** Reading ********************/
+
+    /**
+     * Read the bytes available, waiting for some if the ring is empty
+     * @param b The array to read into
+     * @param off The offset to read to
+     * @param len The most bytes to read
+     * @return the number of bytes read, or -1 if the writer has closed
+     * @throws IOException if the writer has gone away
+     */
+    int read(byte b[], int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        Waiter waiter = null;
+        while (true) {
+            long tail = (long) LONGS.getAcquire(buffer, base + TAIL);
+            int available = (int) (tail - position);
+            if (available > 0) {
+                int n = Math.min(len, available);
+                int pos = (int) position & (capacity - 1);
+                int first = Math.min(n, capacity - pos);
+                buffer.get(data + pos, b, off, first);
+                if (first < n)
+                    buffer.get(data, b, off + first, n - first);
+                position += n;
+                LONGS.setRelease(buffer, base + HEAD, position);
+                return n;
+            }
+            if ((int) INTS.getAcquire(buffer, base + WRITER_CLOSED) != 0) {
+                // the writer closes after its last write
+                if ((long) LONGS.getAcquire(buffer, base + TAIL) == position)
+                    return -1;
+                continue;
+            }
+            if (closed)
+                return -1;
+            if (waiter == null)
+                waiter = new Waiter();
+            waiter.await();
+        }
+    }
+
+    /** Tell the writer that no more bytes will be read */
+    void closeReading() {
+        closed = true;
+        INTS.setRelease(buffer, base + READER_CLOSED, 1);
+    }
+
+    /******************** Streams ********************/
+
+    /**
+     * Get a stream that reads from the ring
+     * @return the input stream
+     */
+    InputStream getInputStream() {
+        return new InputStream() {
+            public int read() throws IOException {
+                byte b[] = new byte[1];
+                return (SharedMemoryRing.this.read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+            }
+
+            public int read(byte b[], int off, int len) throws IOException {
+                return SharedMemoryRing.this.read(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Get a stream that writes to the ring
+     * @return the output stream
+     */
+    OutputStream getOutputStream() {
+        return new OutputStream() {
+            public void write(int b) throws IOException {
+                byte a[] = {(byte) b};
+                SharedMemoryRing.this.write(a, 0, 1);
+            }
+
+            public void write(byte b[], int off, int len) throws IOException {
+                SharedMemoryRing.this.write(b, off, len);
+            }
+        };
+    }
+
+}
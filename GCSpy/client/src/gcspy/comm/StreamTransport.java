@@ -0,0 +1,162 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.comm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames carried over a pair of input/output streams, usually those of
+ * a Socket
+ *
+ * @author Tony Printezis
+ */
+class StreamTransport extends Transport {
+
+    /* closes the streams */
+    private Closeable connection;
+
+    private int maxLen;
+
+    private OutputStream out;
+
+    private InputStream in;
+
+    /* Received bytes live between readPos and writePos */
+    private byte inBuffer[];
+
+    private int readPos;
+
+    private int writePos;
+
+    /* The view handed out for the current frame */
+    private ByteBuffer inView;
+
+    /* the length, and the byte sent before a buffer */
+    private byte lenBuffer[] = new byte[DEL_SIZE + 1];
+
+    /**
+     * Create a new stream transport
+     * @param socket The socket on which to communicate
+     * @param maxLen Maximum buffer size
+     * @throws IOException
+     */
+    StreamTransport(Socket socket, int maxLen) throws IOException {
+        this(socket.getInputStream(), socket.getOutputStream(), socket, maxLen);
+        socket.setReceiveBufferSize(maxLen);
+        socket.setSendBufferSize(maxLen);
+    }
+
+    /**
+     * Create a new stream transport
+     * @param in The stream to receive from
+     * @param out The stream to send to
+     * @param connection What to close when the transport is closed
+     * @param maxLen Maximum buffer size
+     */
+    StreamTransport(InputStream in, OutputStream out, Closeable connection,
+                    int maxLen) {
+        this.in = in;
+        this.out = out;
+        this.connection = connection;
+        this.maxLen = maxLen;
+
+        // grown on demand, up to a whole frame
+        setInBuffer(new byte[Math.min(maxLen, INITIAL_LEN) + DEL_SIZE]);
+    }
+
+    private void setInBuffer(byte buffer[]) {
+        inBuffer = buffer;
+        inView = ByteBuffer.wrap(inBuffer);
+    }
+
+    void close() throws IOException {
+        connection.close();
+    }
+
+    /*
+     * Write a length (in the GCspy wire format) to the output stream
+     * @param len
+     * @throws IOException
+     */
+    private void writeStreamLen(int len) throws IOException {
+        ArrayOutput.writeInt(lenBuffer, 0, len);
+        out.write(lenBuffer, 0, DEL_SIZE);
+    }
+
+    void send(byte buffer[], int len) throws IOException {
+        writeStreamLen(len);
+        out.write(buffer, 0, len);
+        out.flush();
+    }
+
+    void send(byte first, byte buffer[], int offset, int len)
+            throws IOException {
+        ArrayOutput.writeInt(lenBuffer, 0, len + 1);
+        lenBuffer[DEL_SIZE] = first;
+        out.write(lenBuffer, 0, DEL_SIZE + 1);
+        out.write(buffer, offset, len);
+        out.flush();
+    }
+
+    /*
+     * Make sure that at least needed bytes are available after readPos,
+     * moving them to the start of the buffer or growing it if necessary
+     * return false if the stream reached end-of-stream
+     */
+    private boolean fill(int needed) throws IOException {
+        if (readPos == writePos) {
+            readPos = 0;
+            writePos = 0;
+        }
+        while ((writePos - readPos) < needed) {
+            if ((readPos + needed) > inBuffer.length) {
+                byte buffer[] = inBuffer;
+                if (needed > inBuffer.length)
+                    buffer = new byte[Math.min(Math.max(needed, 2 * inBuffer.length),
+                            maxLen + DEL_SIZE)];
+                System.arraycopy(inBuffer, readPos, buffer, 0, writePos - readPos);
+                writePos -= readPos;
+                readPos = 0;
+                if (buffer != inBuffer)
+                    setInBuffer(buffer);
+            }
+            int cur = in.read(inBuffer, writePos, inBuffer.length - writePos);
+            if (cur <= 0) {
+                readPos = 0;
+                writePos = 0;
+                return false;
+            }
+            writePos += cur;
+        }
+        return true;
+    }
+
+    ByteBuffer receive() throws IOException {
+        if (!fill(DEL_SIZE))
+            return null;
+        int len = ArrayInput.readInt(inBuffer, readPos);
+        if ((len < 0) || (len > maxLen))
+            throw new IOException("frame length " + len +
+                    " exceeds maximum of " + maxLen);
+
+        if (!fill(DEL_SIZE + len))
+            return null;
+
+        int start = readPos + DEL_SIZE;
+        inView.limit(start + len);
+        inView.position(start);
+        readPos = start + len;
+        return inView;
+    }
+
+}
@@ -0,0 +1,59 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.comm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The framing layer underneath a Client.
+ * Every frame on the wire is a 4-byte length followed by the payload.
+ */
+abstract class Transport {
+
+    /** The size of the length prefix of each frame */
+    static final int DEL_SIZE = 4;
+
+    /** How long receive buffers start, before growing to the frames received */
+    static final int INITIAL_LEN = 64 * 1024;
+
+    /**
+     * Send a prefix of a buffer as one frame
+     * @param buffer the buffer to send
+     * @param len its length
+     * @throws IOException
+     */
+    abstract void send(byte buffer[], int len) throws IOException;
+
+    /**
+     * Send a byte followed by part of a buffer as one frame
+     * @param first the byte to send first
+     * @param buffer the buffer
+     * @param offset the index in the buffer to send from
+     * @param len the number of bytes of the buffer to send
+     * @throws IOException
+     */
+    abstract void send(byte first, byte buffer[], int offset, int len)
+            throws IOException;
+
+    /**
+     * Receive the next frame.
+     * The returned buffer holds the payload between its position and its
+     * limit, and is only valid until the next call to receive.
+     * @return the payload, or null if the peer has gone away
+     * @throws IOException
+     */
+    abstract ByteBuffer receive() throws IOException;
+
+    /**
+     * Close the transport
+     * @throws IOException
+     */
+    abstract void close() throws IOException;
+
+}
@@ -0,0 +1,241 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.comm;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * What goes over the wire of a connection and how long it takes to
+ * process: frames and bytes in each direction, the count, bytes and
+ * execution time of each command received, the time from receiving an
+ * event to the listeners having been told about it, and the round trip
+ * time measured by pings.
+ * <p>
+ * Metrics are recorded by the threads that send and receive, and can be
+ * read at any time, through JMX or as text.
+ */
+public class WireMetrics implements WireMetricsMBean {
+
+    /* the indices of the frame counters */
+    static private final int FRAMES_RECEIVED = 0;
+    static private final int BYTES_RECEIVED = 1;
+    static private final int WIRE_BYTES_RECEIVED = 2;
+    static private final int FRAMES_SENT = 3;
+    static private final int BYTES_SENT = 4;
+    static private final int WIRE_BYTES_SENT = 5;
+    static private final int COUNTER_NUM = 6;
+
+    private String names[];
+
+    private AtomicLongArray counters = new AtomicLongArray(COUNTER_NUM);
+    private AtomicLongArray commandNum;
+    private AtomicLongArray commandBytes;
+    private Histogram commandTimes[];
+
+    private Histogram latency = new Histogram();
+    private Histogram roundTrip = new Histogram();
+
+    /**
+     * Create the metrics for a connection
+     * @param names The names of the commands, indexed by command
+     */
+    public WireMetrics(String names[]) {
+        this.names = names;
+        commandNum = new AtomicLongArray(names.length);
+        commandBytes = new AtomicLongArray(names.length);
+        commandTimes = new Histogram[names.length];
+        for (int i = 0; i < names.length; ++i)
+            commandTimes[i] = new Histogram();
+    }
+
+    /******************** Recording ********************/
+
+    /**
+     * Record a frame received
+     * @param len Its length as decoded
+     */
+    public void frameReceived(int len) {
+        counters.incrementAndGet(FRAMES_RECEIVED);
+        counters.addAndGet(BYTES_RECEIVED, len);
+    }
+
+    /**
+     * Record bytes received over the wire
+     * @param len The length of a frame or chunk as received
+     */
+    public void wireReceived(int len) {
+        counters.addAndGet(WIRE_BYTES_RECEIVED, len);
+    }
+
+    /**
+     * Record a frame sent
+     * @param len Its length as encoded
+     */
+    public void frameSent(int len) {
+        counters.incrementAndGet(FRAMES_SENT);
+        counters.addAndGet(BYTES_SENT, len);
+    }
+
+    /**
+     * Record bytes sent over the wire
+     * @param len The length of a frame or chunk as sent
+     */
+    public void wireSent(int len) {
+        counters.addAndGet(WIRE_BYTES_SENT, len);
+    }
+
+    /**
+     * Record a command executed
+     * @param cmd The command
+     * @param len The bytes it took up in its frame
+     * @param nanos How long it took to decode and execute, in ns
+     */
+    public void command(int cmd, int len, long nanos) {
+        commandNum.incrementAndGet(cmd);
+        commandBytes.addAndGet(cmd, len);
+        commandTimes[cmd].record(nanos);
+    }
+
+    /**
+     * Record the time from receiving an event to the listeners having
+     * been told about it
+     * @param nanos The time in ns
+     */
+    public void rendered(long nanos) {
+        latency.record(nanos);
+    }
+
+    /**
+     * Record a round trip time
+     * @param nanos The time from sending a ping to receiving its pong, in ns
+     */
+    public void roundTrip(long nanos) {
+        roundTrip.record(nanos);
+    }
+
+    /******************** Reading ********************/
+
+    public long getFramesReceived() {
+        return counters.get(FRAMES_RECEIVED);
+    }
+
+    public long getBytesReceived() {
+        return counters.get(BYTES_RECEIVED);
+    }
+
+    public long getWireBytesReceived() {
+        return counters.get(WIRE_BYTES_RECEIVED);
+    }
+
+    public long getFramesSent() {
+        return counters.get(FRAMES_SENT);
+    }
+
+    public long getBytesSent() {
+        return counters.get(BYTES_SENT);
+    }
+
+    public long getWireBytesSent() {
+        return counters.get(WIRE_BYTES_SENT);
+    }
+
+    public double getMeanLatencyMillis() {
+        return latency.getMean() / 1000000.0;
+    }
+
+    public double getMeanRoundTripMillis() {
+        return roundTrip.getMean() / 1000000.0;
+    }
+
+    /**
+     * Get the receive-to-render latency histogram
+     * @return the histogram
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Get the round trip time histogram
+     * @return the histogram
+     */
+    public Histogram getRoundTrip() {
+        return roundTrip;
+    }
+
+    /**
+     * Get the execution time histogram of a command
+     * @param cmd The command
+     * @return the histogram
+     */
+    public Histogram getCommandTimes(int cmd) {
+        return commandTimes[cmd];
+    }
+
+    public String[] getCommandStats() {
+        ArrayList<String> stats = new ArrayList<String>();
+        for (int i = 0; i < names.length; ++i) {
+            long num = commandNum.get(i);
+            if (num == 0)
+                continue;
+            stats.add(names[i] + ": " + num + " cmds, " + commandBytes.get(i) +
+                    " bytes, " + commandTimes[i].present());
+        }
+        return stats.toArray(new String[stats.size()]);
+    }
+
+    public String getSummary() {
+        StringBuilder str = new StringBuilder();
+        str.append("Received ").append(getFramesReceived()).append(" frames, ")
+                .append(getBytesReceived()).append(" bytes (")
+                .append(getWireBytesReceived()).append(" on the wire)\n");
+        str.append("Sent ").append(getFramesSent()).append(" frames, ")
+                .append(getBytesSent()).append(" bytes (")
+                .append(getWireBytesSent()).append(" on the wire)\n");
+        String stats[] = getCommandStats();
+        for (int i = 0; i < stats.length; ++i)
+            str.append("  ").append(stats[i]).append('\n');
+        str.append("Receive to render: ").append(latency.present()).append('\n');
+        str.append("Round trip: ").append(roundTrip.present()).append('\n');
+        return str.toString();
+    }
+
+    public void reset() {
+        for (int i = 0; i < COUNTER_NUM; ++i)
+            counters.set(i, 0);
+        for (int i = 0; i < names.length; ++i) {
+            commandNum.set(i, 0);
+            commandBytes.set(i, 0);
+            commandTimes[i].reset();
+        }
+        latency.reset();
+        roundTrip.reset();
+    }
+
+    /******************** JMX ********************/
+
+    /**
+     * Register the metrics with the platform MBean server, as
+     * gcspy:type=WireMetrics,name=<name>
+     * @param name The name to register them under
+     * @return the name registered
+     * @throws JMException if they cannot be registered
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("gcspy:type=WireMetrics,name=" +
+                ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+}
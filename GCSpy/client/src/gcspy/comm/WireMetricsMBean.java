@@ -0,0 +1,79 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.comm;
+
+/**
+ * The JMX view of WireMetrics
+ */
+public interface WireMetricsMBean {
+
+    /**
+     * Get the number of frames received
+     * @return the frames, counting a chunked message once
+     */
+    long getFramesReceived();
+
+    /**
+     * Get the bytes received, as decoded
+     * @return the bytes
+     */
+    long getBytesReceived();
+
+    /**
+     * Get the bytes received, as sent over the wire
+     * @return the bytes, after compression and chunking
+     */
+    long getWireBytesReceived();
+
+    /**
+     * Get the number of frames sent
+     * @return the frames, counting a chunked message once
+     */
+    long getFramesSent();
+
+    /**
+     * Get the bytes sent, as encoded
+     * @return the bytes
+     */
+    long getBytesSent();
+
+    /**
+     * Get the bytes sent over the wire
+     * @return the bytes, after compression and chunking
+     */
+    long getWireBytesSent();
+
+    /**
+     * Get the mean time from receiving an event to the listeners
+     * having been told about it
+     * @return the mean in ms
+     */
+    double getMeanLatencyMillis();
+
+    /**
+     * Get the mean round trip time measured by pings
+     * @return the mean in ms
+     */
+    double getMeanRoundTripMillis();
+
+    /**
+     * Get the counts, bytes and execution times of each command
+     * @return a line for each command seen
+     */
+    String[] getCommandStats();
+
+    /**
+     * Get all the metrics as text
+     * @return the text
+     */
+    String getSummary();
+
+    /** Start counting from zero again */
+    void reset();
+
+}
@@ -0,0 +1,226 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter;
+
+import gcspy.comm.BufferedInput;
+import gcspy.comm.BufferedOutput;
+
+/**
+ * Compact encodings for byte arrays whose values are small or repetitive.
+ * <p>
+ * A run-length encoded array, used for controls, is
+ * <pre>
+ * varint len       the number of tiles
+ * run...           varint count, byte value
+ * </pre>
+ * where the runs cover exactly len tiles.
+ * <p>
+ * A bit-packed array, used for byte streams with a small maximum value, is
+ * <pre>
+ * byte bits        the number of bits per tile, 1 to 7
+ * varint len       the number of tiles
+ * bytes...         the values, bits each, starting at the lowest bit
+ * </pre>
+ * Both decode into a plain byte array, as STREAM and CONTROL would.
+ * An ArrayPacker keeps a scratch buffer, so it is used by one thread.
+ */
+public class ArrayPacker {
+
+    /** The most bits per tile worth packing into */
+    static public final int MAX_PACKED_BITS = 7;
+
+    private byte packed[] = new byte[0];
+
+    private byte[] getPacked(int len) {
+        if (packed.length < len)
+            packed = new byte[len];
+        return packed;
+    }
+
+    /******************** Bit Packing ********************/
+
+    /**
+     * Find how many bits each tile of a byte stream needs
+     * @param data The stream's data
+     * @param len The number of tiles
+     * @param maxValue The stream's maximum value
+     * @return the number of bits, or 0 if the data is not worth packing
+     */
+    static public int packedBits(byte data[], int len, int maxValue) {
+        if ((maxValue < 0) || (maxValue >= (1 << MAX_PACKED_BITS)))
+            return 0;
+        int or = maxValue;
+        for (int i = 0; i < len; ++i)
+            or |= data[i];
+        // a negative value sets the high bits too
+        if ((or & ~((1 << MAX_PACKED_BITS) - 1)) != 0)
+            return 0;
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(or));
+    }
+
+    /**
+     * The size of a bit-packed array
+     * @param len The number of tiles
+     * @param bits The number of bits per tile
+     * @return its encoded size
+     */
+    static public int packedSize(int len, int bits) {
+        return 1 + BufferedOutput.varIntSize(len) + packedLen(len, bits);
+    }
+
+    static private int packedLen(int len, int bits) {
+        return (int) (((long) len * bits + 7) >>> 3);
+    }
+
+    /**
+     * Write a byte array, packing each value into a number of bits
+     * @param output The BufferedOutput to write to
+     * @param data The array
+     * @param len The number of tiles to write
+     * @param bits The number of bits per tile, as found by packedBits
+     */
+    public void writePacked(BufferedOutput output, byte data[], int len,
+                            int bits) {
+        byte buffer[] = getPacked(packedLen(len, bits));
+        int n = 0;
+        int acc = 0;
+        int accBits = 0;
+        for (int i = 0; i < len; ++i) {
+            acc |= data[i] << accBits;
+            accBits += bits;
+            if (accBits >= 8) {
+                buffer[n++] = (byte) acc;
+                acc >>>= 8;
+                accBits -= 8;
+            }
+        }
+        if (accBits > 0)
+            buffer[n++] = (byte) acc;
+
+        output.writeByte((byte) bits);
+        output.writeVarInt(len);
+        output.writeBytes(buffer, 0, n);
+    }
+
+    /**
+     * Read a bit-packed byte array into an existing array,
+     * which is only replaced if its length does not match
+     * @param input The BufferedInput to read from
+     * @param array The array to read into (may be null)
+     * @return the array holding the values read
+     */
+    public byte[] readPacked(BufferedInput input, byte array[]) {
+        int bits = input.readByte();
+        int len = input.readVarInt();
+        checkPacked(bits, len);
+        int n = packedLen(len, bits);
+        byte buffer[] = getPacked(n);
+        input.readBytes(buffer, 0, n);
+
+        if ((array == null) || (array.length != len))
+            array = new byte[len];
+        int mask = (1 << bits) - 1;
+        int p = 0;
+        int acc = 0;
+        int accBits = 0;
+        for (int i = 0; i < len; ++i) {
+            if (accBits < bits) {
+                acc |= (buffer[p++] & 0xFF) << accBits;
+                accBits += 8;
+            }
+            array[i] = (byte) (acc & mask);
+            acc >>>= bits;
+            accBits -= bits;
+        }
+        return array;
+    }
+
+    /**
+     * Skip a bit-packed byte array without unpacking it
+     * @param input The BufferedInput to read from
+     */
+    static public void skipPacked(BufferedInput input) {
+        int bits = input.readByte();
+        int len = input.readVarInt();
+        checkPacked(bits, len);
+        input.skip(packedLen(len, bits), 1);
+    }
+
+    static private void checkPacked(int bits, int len) {
+        if ((bits < 1) || (bits > MAX_PACKED_BITS) || (len < 0))
+            throw new InterpreterException("Corrupt packed array");
+    }
+
+    /******************** Run-Length Encoding ********************/
+
+    /* the end of the run that starts at i */
+    static private int runEnd(byte data[], int i, int len) {
+        byte value = data[i];
+        while ((++i < len) && (data[i] == value))
+            ;
+        return i;
+    }
+
+    /**
+     * The size of a run-length encoded array
+     * @param data The array
+     * @param len The number of tiles
+     * @return its encoded size
+     */
+    static public int runLengthSize(byte data[], int len) {
+        int size = BufferedOutput.varIntSize(len);
+        for (int i = 0; i < len; ) {
+            int end = runEnd(data, i, len);
+            size += BufferedOutput.varIntSize(end - i) + 1;
+            i = end;
+        }
+        return size;
+    }
+
+    /**
+     * Write a byte array as runs of the same value
+     * @param output The BufferedOutput to write to
+     * @param data The array
+     * @param len The number of tiles to write
+     */
+    static public void writeRunLength(BufferedOutput output, byte data[],
+                                      int len) {
+        output.writeVarInt(len);
+        for (int i = 0; i < len; ) {
+            int end = runEnd(data, i, len);
+            output.writeVarInt(end - i);
+            output.writeByte(data[i]);
+            i = end;
+        }
+    }
+
+    /**
+     * Read a run-length encoded byte array into an existing array,
+     * which is only replaced if its length does not match
+     * @param input The BufferedInput to read from
+     * @param array The array to read into (may be null)
+     * @return the array holding the values read
+     */
+    static public byte[] readRunLength(BufferedInput input, byte array[]) {
+        int len = input.readVarInt();
+        if (len < 0)
+            throw new InterpreterException("Corrupt run-length array");
+        if ((array == null) || (array.length != len))
+            array = new byte[len];
+        for (int i = 0; i < len; ) {
+            int count = input.readVarInt();
+            if ((count <= 0) || (count > len - i))
+                throw new InterpreterException("Run out of bounds");
+            byte value = input.readByte();
+            for (int end = i + count; i < end; ++i)
+                array[i] = value;
+        }
+        return array;
+    }
+
+}
@@ -0,0 +1,226 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter;
+
+import gcspy.comm.BufferedInput;
+import gcspy.comm.BufferedOutput;
+
+/**
+ * What one side of a connection offers, or both sides have agreed on,
+ * during the boot handshake. A side that offers capabilities appends
+ * them to its boot information as
+ * <pre>
+ * short version     the protocol version
+ * byte fields[]     int flags, int maxFrameLen, and whatever later
+ *                   versions add
+ * </pre>
+ * so that a peer reads the fields it knows about and ignores the rest.
+ * A peer that appends nothing, like the C server, uses the legacy
+ * protocol: no flags, and frames of the length both sides were
+ * configured with.
+ */
+public class Capabilities {
+
+    /** The protocol version this implementation speaks */
+    static public final int PROTOCOL_VERSION = 1;
+
+    /** The server may pack several commands into one frame */
+    static public final int BATCHING = 1;
+    /** The server may send only the tiles that changed since the last event */
+    static public final int DELTA_STREAMS = 2;
+    /** Frames may be compressed with the in-tree LZ codec */
+    static public final int LZ_FRAMES = 4;
+    /** Frames may be compressed with Deflater */
+    static public final int DEFLATE_FRAMES = 8;
+    /** Messages longer than the maximum frame length may be sent in chunks */
+    static public final int CHUNKED_FRAMES = 16;
+    /** Controls may be run-length encoded and small byte streams bit-packed */
+    static public final int PACKED_ARRAYS = 32;
+    /** The client acknowledges events, so the server can send fewer while it lags */
+    static public final int EVENT_ACKS = 64;
+    /** The client may ping the server to measure the round trip time */
+    static public final int PINGS = 128;
+    /** The flags this implementation supports */
+    static public final int SUPPORTED =
+            BATCHING | DELTA_STREAMS | LZ_FRAMES | DEFLATE_FRAMES |
+            CHUNKED_FRAMES | PACKED_ARRAYS | EVENT_ACKS | PINGS;
+
+    /* the names of the flags, as given on the command line */
+    static private final String NAMES[] = {
+            "batching", "delta", "lz", "deflate", "chunked", "packed", "acks",
+            "pings"
+    };
+
+    /** The capabilities of a peer that sent the legacy handshake */
+    static public final Capabilities LEGACY = new Capabilities(0, 0, 0);
+
+    private int version;
+    private int flags;
+    private int maxFrameLen;
+
+    private Capabilities(int version, int flags, int maxFrameLen) {
+        this.version = version;
+        this.flags = flags;
+        this.maxFrameLen = maxFrameLen;
+    }
+
+    /**
+     * Create an offer in the current protocol version
+     * @param flags The flags offered
+     * @param maxFrameLen The longest frame this side can receive
+     */
+    public Capabilities(int flags, int maxFrameLen) {
+        this(PROTOCOL_VERSION, flags & SUPPORTED, maxFrameLen);
+    }
+
+    /**
+     * Agree with a peer's offer: the lower version, the flags both
+     * offer and the shorter frame length
+     * @param peer What the peer offered
+     * @return the capabilities agreed
+     */
+    public Capabilities agree(Capabilities peer) {
+        return new Capabilities(Math.min(version, peer.version),
+                flags & peer.flags, Math.min(maxFrameLen, peer.maxFrameLen));
+    }
+
+    /**
+     * Is this the legacy protocol?
+     * @return true if the peer sent the legacy handshake
+     */
+    public boolean isLegacy() {
+        return version == 0;
+    }
+
+    /**
+     * Get the protocol version
+     * @return the version, 0 for the legacy protocol
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the flags
+     * @return the flags
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Is a flag set?
+     * @param flag The flag
+     * @return true if it is set
+     */
+    public boolean has(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Get the maximum frame length
+     * @return the longest frame either side sends, 0 for the legacy
+     * protocol
+     */
+    public int getMaxFrameLen() {
+        return maxFrameLen;
+    }
+
+    /******************** Wire Format ********************/
+
+    /**
+     * Append the capabilities to the boot information
+     * @param output The BufferedOutput to write to
+     */
+    public void write(BufferedOutput output) {
+        BufferedOutput fields = new BufferedOutput(new byte[8]);
+        fields.writeInt(flags);
+        fields.writeInt(maxFrameLen);
+        output.writeShort(version);
+        output.writeByteArray(fields.getBuffer(), fields.getLen());
+    }
+
+    /**
+     * Read the capabilities a peer appended to its boot information
+     * @param input The BufferedInput to read from
+     * @return the capabilities
+     * @throws InterpreterException if they are malformed
+     */
+    static public Capabilities read(BufferedInput input) {
+        int version = input.readShort();
+        byte bytes[] = input.readByteArray();
+        if (version < 1)
+            throw new InterpreterException("Bad protocol version " + version);
+        BufferedInput fields = new BufferedInput(bytes, bytes.length);
+        int flags = fields.readInt();
+        int maxFrameLen = fields.readInt();
+        if (maxFrameLen <= 0)
+            throw new InterpreterException("Bad maximum frame length " + maxFrameLen);
+        // fields added by later versions follow, and are ignored
+        return new Capabilities(version, flags, maxFrameLen);
+    }
+
+    /******************** Names ********************/
+
+    /**
+     * Parse a list of flags, as given on the command line
+     * @param names Comma-separated flag names, or "all", or "none"
+     * @return the flags
+     * @throws IllegalArgumentException if a name is unknown
+     */
+    static public int parseFlags(String names) {
+        if (names.equals("all"))
+            return SUPPORTED;
+        int flags = 0;
+        if (names.equals("none"))
+            return flags;
+        String split[] = names.split(",");
+        for (int i = 0; i < split.length; ++i) {
+            int j = 0;
+            while ((j < NAMES.length) && !NAMES[j].equals(split[i].trim()))
+                ++j;
+            if (j == NAMES.length)
+                throw new IllegalArgumentException("Unknown capability " + split[i]);
+            flags |= 1 << j;
+        }
+        return flags;
+    }
+
+    /**
+     * The names of a set of flags
+     * @param flags The flags
+     * @return comma-separated flag names, or "none"
+     */
+    static public String presentFlags(int flags) {
+        StringBuilder str = new StringBuilder();
+        for (int i = 0; i < NAMES.length; ++i) {
+            if ((flags & (1 << i)) != 0) {
+                if (str.length() > 0)
+                    str.append(',');
+                str.append(NAMES[i]);
+            }
+        }
+        return (str.length() > 0) ? str.toString() : "none";
+    }
+
+    /**
+     * The names of the flags usable in command line options
+     * @return the names, comma-separated
+     */
+    static public String presentNames() {
+        return presentFlags(SUPPORTED);
+    }
+
+    public String toString() {
+        if (isLegacy())
+            return "legacy protocol";
+        return "protocol " + version + ", " + presentFlags(flags) +
+                ", frames up to " + maxFrameLen + " bytes";
+    }
+
+}
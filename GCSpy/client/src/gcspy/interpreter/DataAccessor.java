@@ -11,10 +11,31 @@ package gcspy.interpreter;
 /**
  * This interface represents a stream
  * and provides methods to interrogate the stream's contents.
+ * <p>
+ * Renderers that visit every tile should use the bulk methods, which
+ * read a range of tiles in one call, rather than the per-tile ones.
  * @author Tony Printezis 
  */
 public interface DataAccessor {
 
+    /**
+     * Set in a tile's class, as filled in by <code>getTiles</code>,
+     * if the tile is zero
+     */
+    byte TILE_ZERO = 32;
+
+    /**
+     * Set in a tile's class, as filled in by <code>getTiles</code>,
+     * if the tile's value exceeds the maximum
+     */
+    byte TILE_OVERFLOW = 64;
+
+    /**
+     * How many tiles to read at a time with the bulk methods, so that
+     * the arrays they fill stay small and in the cache
+     */
+    int BULK_LEN = 4096;
+
     /**
      * Get the value of a tile
      * @param i The index of the tile
@@ -51,6 +72,37 @@ public interface DataAccessor {
      */
     boolean isOverflow(int i);
 
+    /**
+     * Get the values of a range of tiles
+     * @param start The index of the first tile
+     * @param len The number of tiles
+     * @param values The array to fill from index 0
+     */
+    void getValues(int start, int len, int values[]);
+
+    /**
+     * Get the values of a range of tiles, adjusted according to the
+     * stream's presentation style
+     * @param start The index of the first tile
+     * @param len The number of tiles
+     * @param adjusted The array to fill from index 0
+     */
+    void getAdjusted(int start, int len, int adjusted[]);
+
+    /**
+     * Get what a renderer needs to paint a range of tiles: their adjusted
+     * values and their classes. A tile's class is its control value
+     * (see Space), with <code>TILE_ZERO</code> set if the tile is zero
+     * and <code>TILE_OVERFLOW</code> set if it exceeds the maximum.
+     * @param control The space's control values
+     * @param start The index of the first tile
+     * @param len The number of tiles
+     * @param adjusted The array to fill with adjusted values from index 0
+     * @param classes The array to fill with classes from index 0
+     */
+    void getTiles(byte control[], int start, int len, int adjusted[],
+                  byte classes[]);
+
     /**
      * Is data available?
      * @return true if data is available for this stream
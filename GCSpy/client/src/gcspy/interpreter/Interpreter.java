@@ -46,6 +46,13 @@ abstract public class Interpreter extends CommandStream {
     /** General information presented to the client */
     protected String generalInfo;
 
+    /** The capability flags this side offers during the boot handshake */
+    protected int offeredCapabilities;
+    /** The capabilities agreed with the other side */
+    protected Capabilities agreed = Capabilities.LEGACY;
+    /** The capability flags in use, normally those agreed */
+    protected int capabilities;
+
     private Verbose verbose = new Verbose(true);
 
     // Commands
@@ -77,13 +84,37 @@ abstract public class Interpreter extends CommandStream {
     static protected final byte SPACE_INFO_CMD = FIRST_AVAILABLE_CMD + 12;
     /** Space command */
     static protected final byte SPACE_CMD = FIRST_AVAILABLE_CMD + 13;
-
-    static private final byte CMD_LEN = SPACE_CMD + 1;
+    /** Changed tiles of a stream command */
+    static protected final byte STREAM_DELTA_CMD = FIRST_AVAILABLE_CMD + 14;
+    /** Bit-packed stream command */
+    static protected final byte STREAM_PACKED_CMD = FIRST_AVAILABLE_CMD + 15;
+    /** Run-length encoded control stream command */
+    static protected final byte CONTROL_RLE_CMD = FIRST_AVAILABLE_CMD + 16;
+    /** Client has processed events command */
+    static protected final byte EVENT_ACK_CMD = FIRST_AVAILABLE_CMD + 17;
+    /** Server's sampling period command */
+    static protected final byte SAMPLING_CMD = FIRST_AVAILABLE_CMD + 18;
+    /** Client measures the round trip time command */
+    static protected final byte PING_CMD = FIRST_AVAILABLE_CMD + 19;
+    /** Server answers a ping command */
+    static protected final byte PONG_CMD = FIRST_AVAILABLE_CMD + 20;
+
+    static private final byte CMD_LEN = PONG_CMD + 1;
+
+    /** The names of the commands, as shown in wire metrics */
+    static protected final String COMMAND_NAMES[] = {
+            "END", "PAUSE_REQ", "PAUSE", "RESTART", "PLAY_ONE", "SHUTDOWN_REQ",
+            "SHUTDOWN", "STREAM", "EVENT", "CONTROL", "EVENT_FILTERS",
+            "EVENT_COUNT", "SUMMARY", "SPACE_INFO", "SPACE", "STREAM_DELTA",
+            "STREAM_PACKED", "CONTROL_RLE", "EVENT_ACK", "SAMPLING", "PING", "PONG"
+    };
 
     /******************** Inner Classes ********************/
 
     protected class BootstrapParameters {
         public boolean pauseAtStart;
+        /** The capabilities carried, null for a legacy handshake */
+        public Capabilities capabilities;
 
         public BootstrapParameters() {
         }
@@ -103,6 +134,17 @@ abstract public class Interpreter extends CommandStream {
         verbose.setVerbose(v);
     }
 
+    /**
+     * Set the capabilities to offer during the boot handshake.
+     * A client that offers any capabilities appends them to its boot
+     * information, which servers that predate capability negotiation
+     * (including the C server) reject, so clients offer none by default.
+     * @param offeredCapabilities the capability flags (see Capabilities)
+     */
+    public void setOfferedCapabilities(int offeredCapabilities) {
+        this.offeredCapabilities = offeredCapabilities & Capabilities.SUPPORTED;
+    }
+
     /**
      * Set the event counts
      * @param eventCount The event counts
@@ -178,6 +220,23 @@ abstract public class Interpreter extends CommandStream {
         return eventCount;
     }
 
+    /**
+     * Get the capabilities agreed with the other side
+     * @return the capabilities
+     */
+    public Capabilities getCapabilities() {
+        return agreed;
+    }
+
+    /**
+     * Has a capability been agreed with the other side?
+     * @param capability the capability (one of the Capabilities flags)
+     * @return true if both sides use it
+     */
+    public boolean hasCapability(int capability) {
+        return (capabilities & capability) != 0;
+    }
+
     /**
      * Get the general information for this interpreter
      * @return the general information
@@ -226,6 +285,19 @@ abstract public class Interpreter extends CommandStream {
     protected void sendBootInfo(boolean server,
                                 BootstrapParameters params)
             throws IOException {
+        sendBootInfo(client, server, params);
+    }
+
+    /**
+     * Send boot information to a given client
+     * @param client the client to send to
+     * @param server True if this is the server
+     * @param params the BootStrapParameters
+     * @throws IOException
+     */
+    protected void sendBootInfo(Client client, boolean server,
+                                BootstrapParameters params)
+            throws IOException {
         BufferedOutput output = client.createBufferedOutput();
         output.writeString(MAGIC_STRING);
         output.writeInt(ENDIANESS);
@@ -235,6 +307,8 @@ abstract public class Interpreter extends CommandStream {
         } else {
             output.writeBoolean(params.pauseAtStart);
         }
+        if (params.capabilities != null)
+            params.capabilities.write(output);
         client.send(output);
     }
 
@@ -248,6 +322,20 @@ abstract public class Interpreter extends CommandStream {
     protected void receiveBootInfo(boolean server,
                                    BootstrapParameters params)
             throws IOException {
+        receiveBootInfo(client, server, params);
+    }
+
+    /**
+     * Receive boot information from a given client
+     * @param client the client to receive from
+     * @param server True if this is the server
+     * @param params the BootStrapParameters
+     * @throws IOException
+     * @throws InterpreterException if magic string or endianness do not match
+     */
+    protected void receiveBootInfo(Client client, boolean server,
+                                   BootstrapParameters params)
+            throws IOException {
         client.definitelyReceive();
         BufferedInput input = client.createBufferedInput();
         if (!input.readString().equals(MAGIC_STRING))
@@ -260,9 +348,50 @@ abstract public class Interpreter extends CommandStream {
         } else {
             params.pauseAtStart = input.readBoolean();
         }
+        // a versioned handshake appends the capabilities
+        params.capabilities = input.finished() ? null : Capabilities.read(input);
         input.close();
     }
 
+    /**
+     * Switch the client to the chunking and frame compression agreed
+     * during the handshake, preferring the LZ codec over Deflater.
+     * Both sides call this straight after the handshake.
+     */
+    protected void setupFraming() {
+        setupFraming(client, agreed);
+    }
+
+    /**
+     * Switch a given client to the frame length, chunking and frame
+     * compression it agreed on
+     * @param client the client
+     * @param agreed the capabilities agreed with it
+     */
+    protected void setupFraming(Client client, Capabilities agreed) {
+        if (!agreed.isLegacy())
+            client.limitMaxLen(agreed.getMaxFrameLen());
+        client.setChunked(agreed.has(Capabilities.CHUNKED_FRAMES));
+        if (agreed.has(Capabilities.LZ_FRAMES))
+            client.setCompression(Client.COMPRESSION_LZ);
+        else if (agreed.has(Capabilities.DEFLATE_FRAMES))
+            client.setCompression(Client.COMPRESSION_DEFLATE);
+    }
+
+    /**
+     * Agree on the capabilities with a peer
+     * @param client the client connected to the peer
+     * @param offered what the peer offered, null if it sent the legacy
+     * handshake
+     * @return the capabilities agreed
+     */
+    protected Capabilities agree(Client client, Capabilities offered) {
+        if (offered == null)
+            return Capabilities.LEGACY;
+        return new Capabilities(offeredCapabilities, client.getMaxLen())
+                .agree(offered);
+    }
+
     /******************** Serialisation / Deserialisation ********************/
 
     /**
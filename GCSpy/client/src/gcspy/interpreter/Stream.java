@@ -119,6 +119,18 @@ public class Stream {
         public boolean isOverflow(int i) {
             return internalIsOverflow(get(i));
         }
+
+        public void getAdjusted(int start, int len, int adjusted[]) {
+            getValues(start, len, adjusted);
+            adjustValues(start, len, adjusted);
+        }
+
+        public void getTiles(byte control[], int start, int len,
+                             int adjusted[], byte classes[]) {
+            getValues(start, len, adjusted);
+            classifyValues(control, start, len, adjusted, classes);
+            adjustValues(start, len, adjusted);
+        }
     }
 
     private class ByteAccessor extends AbsAccessor {
@@ -133,6 +145,12 @@ public class Stream {
         public int getLength() {
             return bData.length;
         }
+
+        public void getValues(int start, int len, int values[]) {
+            byte data[] = bData;
+            for (int k = 0; k < len; ++k)
+                values[k] = data[start + k];
+        }
     }
 
     private class ShortAccessor extends AbsAccessor {
@@ -147,6 +165,12 @@ public class Stream {
         public int getLength() {
             return sData.length;
         }
+
+        public void getValues(int start, int len, int values[]) {
+            short data[] = sData;
+            for (int k = 0; k < len; ++k)
+                values[k] = data[start + k];
+        }
     }
 
     private class IntAccessor extends AbsAccessor {
@@ -161,6 +185,12 @@ public class Stream {
         public int getLength() {
             return iData.length;
         }
+
+        public void getValues(int start, int len, int values[]) {
+            int data[] = iData;
+            for (int k = 0; k < len; ++k)
+                values[k] = data[start + k];
+        }
     }
 
     /** ****************** Setting Data ******************* */
@@ -447,6 +477,26 @@ public class Stream {
         }
     }
 
+    /**
+     * Copy this stream for a snapshot of an event. The copy has this
+     * stream's configuration and current maximum, but its own data and
+     * summary, which must not be modified.
+     * @param space The space the copy belongs to
+     * @param data The data, as an array of this stream's type
+     * @param summary The summary values
+     * @return the copy
+     */
+    public Stream copy(Space space, Object data, int summary[]) {
+        Stream copy = new Stream(name, dataType, minValue, maxValue,
+                zeroValue, defaultValue, stringPre, stringPost,
+                presentation, paintStyle, maxStreamIndex, color, enumNames);
+        copy.id = id;
+        copy.space = space;
+        copy.setData(data);
+        copy.summary = summary;
+        return copy;
+    }
+
     /** Reset the data values to their defaults */
     public void reset() {
         switch (dataType) {
@@ -521,6 +571,59 @@ public class Stream {
         return BAD_PRESENTATION;
     }
 
+    /*
+     * Adjust the values of a range of tiles in place; the same as
+     * getAdjustedValue, but with the presentation style only looked at once
+     */
+    private void adjustValues(int start, int len, int values[]) {
+        int min = minValue;
+        switch (presentation) {
+            case PRESENTATION_PLAIN:
+            case PRESENTATION_MAX_VAR:
+            case PRESENTATION_PERCENT:
+            case PRESENTATION_ENUM:
+                for (int k = 0; k < len; ++k)
+                    values[k] -= min;
+                break;
+            case PRESENTATION_PLUS:
+                int max = maxValue;
+                for (int k = 0; k < len; ++k)
+                    values[k] = Math.min(values[k], max) - min;
+                break;
+            case PRESENTATION_PERCENT_VAR:
+                DataAccessor maxAccessor = space.getStream(maxStreamIndex).getAccessor();
+                for (int k = 0; k < len; ++k)
+                    values[k] = (int) calcPercentage((long) values[k],
+                            (long) maxAccessor.get(start + k));
+                break;
+            default:
+                for (int k = 0; k < len; ++k)
+                    values[k] = BAD_PRESENTATION;
+                break;
+        }
+    }
+
+    /*
+     * Fill in the classes of a range of tiles from their control values
+     * and their unadjusted values
+     */
+    private void classifyValues(byte control[], int start, int len,
+                                int values[], byte classes[]) {
+        System.arraycopy(control, start, classes, 0, len);
+        if (paintStyle == PAINT_STYLE_ZERO) {
+            int zero = zeroValue;
+            for (int k = 0; k < len; ++k)
+                if (values[k] == zero)
+                    classes[k] |= DataAccessor.TILE_ZERO;
+        }
+        if (presentation == PRESENTATION_PLUS) {
+            int max = maxValue;
+            for (int k = 0; k < len; ++k)
+                if (values[k] > max)
+                    classes[k] |= DataAccessor.TILE_OVERFLOW;
+        }
+    }
+
     /**
      * Adjust a tile value according to the stream's presentation style.
      * Note: should not really call this for <code>PERCENT_VAR</code>
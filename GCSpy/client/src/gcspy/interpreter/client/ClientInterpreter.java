@@ -13,13 +13,22 @@ import gcspy.comm.BufferedInput;
 import gcspy.comm.BufferedOutput;
 import gcspy.comm.Client;
 import gcspy.comm.Command;
+import gcspy.comm.Endpoint;
+import gcspy.comm.WireMetrics;
 import gcspy.interpreter.*;
+import gcspy.utils.Utils;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
 
 /**
  * The client interpreter
@@ -30,14 +39,47 @@ public class ClientInterpreter extends Interpreter {
 
     private boolean terminated = false;
 
+    private boolean decodeInPlace = false;
+
+    // each thread that decodes streams needs its own scratch buffer
+    private final ThreadLocal<ArrayPacker> packers = new ThreadLocal<ArrayPacker>() {
+        protected ArrayPacker initialValue() {
+            return new ArrayPacker();
+        }
+    };
+
+    private int decodeThreadNum = 0;
+    private DecodePipeline pipeline;
+
+    // Snapshots
+    private final SnapshotBuffers buffers = new SnapshotBuffers();
+    private volatile EventSnapshot snapshot;
+    private long eventNum = 0;
+    private final SnapshotPublisher publisher = new SnapshotPublisher();
+
+    // events are acknowledged from the receiving thread, so sends are locked
+    private final Object sendLock = new Object();
+    private int processedNum;
+    private int samplingPeriod = 1;
+
+    // Metrics
+    private WireMetrics metrics;
+    // when the frame being executed was received, in ns
+    private long receivedAt;
+    private int pingNum;
+    private long pingSentAt;
+
     // Listeners
     private List<PauseListener> pauseListeners = new ArrayList<>();
 
-    private boolean enableEventListeners = false;
+    private volatile boolean enableEventListeners = false;
+
+    private List<EventListener> eventListeners = new CopyOnWriteArrayList<>();
 
-    private List<EventListener> eventListeners = new ArrayList<>();
+    private List<SpaceListener> spaceListeners = new CopyOnWriteArrayList<>();
 
-    private List<SpaceListener> spaceListeners = new ArrayList<>();
+    private Map<SnapshotListener, ListenerSubscriber> listenerSubscribers =
+            new ConcurrentHashMap<>();
 
     /** ****************** Accessor Methods ******************* */
 
@@ -50,8 +92,117 @@ public class ClientInterpreter extends Interpreter {
         return (ClientSpace) getSpace(i);
     }
 
+    /**
+     * Decode received arrays into the arrays that the streams, spaces and
+     * event counts already hold, instead of allocating new ones for every
+     * event. New arrays are only allocated when the number of tiles changes.
+     * Listeners that keep references to these arrays across events (rather
+     * than copying them) must not use this mode; they can hold on to a
+     * snapshot instead, as arrays that snapshots hold are never decoded into.
+     * @param decodeInPlace whether to decode in place
+     */
+    public void setDecodeInPlace(boolean decodeInPlace) {
+        this.decodeInPlace = decodeInPlace;
+    }
+
+    /**
+     * Are arrays decoded into the existing buffers?
+     * @return true if received arrays are decoded in place
+     */
+    public boolean isDecodeInPlace() {
+        return decodeInPlace;
+    }
+
+    /**
+     * Decode streams on a pool of threads, while another thread receives
+     * frames. Listeners are still called on the thread that runs the
+     * main loop, once all the streams of an event have been decoded,
+     * and the next event is not decoded until they return, so they see
+     * the same data as with a single thread. This takes effect the next
+     * time the main loop starts.
+     * @param decodeThreadNum the number of decoder threads, or 0 to
+     * receive and decode on the thread that runs the main loop
+     */
+    public void setDecodeThreads(int decodeThreadNum) {
+        this.decodeThreadNum = decodeThreadNum;
+    }
+
+    /**
+     * Get the number of decoder threads
+     * @return the number, 0 if the main loop decodes streams itself
+     */
+    public int getDecodeThreads() {
+        return decodeThreadNum;
+    }
+
+    /**
+     * Get the sampling period the server reported. The server raises it
+     * while this client lags behind, if the client acknowledges events.
+     * @return 1 if every event the filters pass is sent, n if one in n is
+     */
+    public int getSamplingPeriod() {
+        return samplingPeriod;
+    }
+
+    /**
+     * Get a snapshot of the spaces as they were at the last event. Unlike
+     * the spaces and streams themselves, which change as soon as the next
+     * event's data arrives, it can be read from any thread without
+     * locking. The caller must release the snapshot when it is done with
+     * it, so that its arrays can be reused.
+     * @return the snapshot, or null if no event has been received yet
+     */
+    public EventSnapshot acquireSnapshot() {
+        while (true) {
+            EventSnapshot latest = snapshot;
+            if ((latest == null) || latest.retain())
+                return latest;
+            // it was replaced and released under our feet; try the new one
+        }
+    }
+
+    /**
+     * Get the publisher of the snapshot of each event. Its subscribers
+     * are called on their own threads, each at its own pace, rather than
+     * on the thread that runs the main loop.
+     * @return the publisher
+     */
+    public SnapshotPublisher getSnapshotPublisher() {
+        return publisher;
+    }
+
+    /**
+     * Record what goes over the wire from now on: frames and bytes, the
+     * length and execution time of each command, the time from receiving
+     * an event to the event listeners returning, and ping round trips
+     * @return the metrics
+     */
+    public WireMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new WireMetrics(COMMAND_NAMES);
+            setMetrics(metrics);
+            if (client != null)
+                client.setMetrics(metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * Get the wire metrics
+     * @return the metrics, or null if they are not enabled
+     */
+    public WireMetrics getMetrics() {
+        return metrics;
+    }
+
     /** ****************** Utilities ******************* */
 
+    protected void sendSingleCommand(byte cmd) throws IOException {
+        synchronized (sendLock) {
+            super.sendSingleCommand(cmd);
+        }
+    }
+
     private void calcMaxima() {
         for (int i = 0; i < spaceNum; ++i) {
             ClientSpace space = getClientSpace(i);
@@ -59,6 +210,19 @@ public class ClientInterpreter extends Interpreter {
         }
     }
 
+    /*
+     * Replace the last event's snapshot with one of the current state
+     */
+    private void publishSnapshot(int eventID, int elapsedTime,
+                                 int compensationTime) {
+        EventSnapshot previous = snapshot;
+        snapshot = new EventSnapshot(this, buffers, ++eventNum, eventID,
+                elapsedTime, compensationTime);
+        if (previous != null)
+            previous.release();
+        publisher.submit(snapshot);
+    }
+
     /** ****************** Listeners ******************* */
 
     // Pause
@@ -86,51 +250,68 @@ public class ClientInterpreter extends Interpreter {
         enableEventListeners = true;
     }
 
-  /*
-   * we need synchronization in the next three methods because the add/remove
-   * calls modify the number of elements in the list, and the iterator further
-   * down might throw a concurrent modification exception
-   */
-
     /**
-     * Add an event listener.
-     * We need synchronization because the add call modifies the number
-     * of elements in the list, and iterators might throw a concurrent
-     * modification exception.
+     * Add an event listener, called on the thread that runs the main loop,
+     * which waits for it to return. Use this for listeners that must read
+     * the spaces before the next event's data arrives.
+     * The listener lists can be changed while they are being called, as
+     * they are copied on write.
      * @param eventListener the event listener
      */
-    synchronized public void addEventListener(EventListener eventListener) {
+    public void addEventListener(EventListener eventListener) {
         eventListeners.add(eventListener);
     }
 
     /**
      * Remove an event listener
-     * We need synchronization because the remove call modifies the number
-     * of elements in the list, and iterators might throw a concurrent
-     * modification exception.
      * @param eventListener the event listener
      */
-    synchronized public void removeEventListener(EventListener eventListener) {
+    public void removeEventListener(EventListener eventListener) {
         eventListeners.remove(eventListener);
     }
 
     /**
      * Call the event listeners for an event
-     * We need synchronization because the add/remove calla modify the number
-     * of elements in the list, and the iterator might throw a concurrent
-     * modification exception.
      * @param eventID The event's ID
      * @param elapsedTime The elapsed time
      * @param compensationTime The compensation time
      */
-    synchronized public void callEventListeners(int eventID, int elapsedTime,
-                                                int compensationTime) {
+    public void callEventListeners(int eventID, int elapsedTime,
+                                   int compensationTime) {
         if (!enableEventListeners)
             return;
         for (EventListener listener : eventListeners)
             listener.event(eventID, elapsedTime, compensationTime);
     }
 
+    // Snapshot
+
+    /**
+     * Add a snapshot listener, called with the snapshot of each event on
+     * a thread of its own with the snapshot publisher, so that the main
+     * loop does not wait for it. If it is also a space listener, it is
+     * told about new spaces on the same thread, before the first event
+     * that uses them.
+     * @param snapshotListener the snapshot listener
+     * @param overflow What to do when the listener falls behind
+     * (see <code>SnapshotPublisher</code>)
+     */
+    public void addSnapshotListener(SnapshotListener snapshotListener, int overflow) {
+        ListenerSubscriber subscriber = new ListenerSubscriber(snapshotListener);
+        listenerSubscribers.put(snapshotListener, subscriber);
+        publisher.subscribe(subscriber, overflow, SnapshotPublisher.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Remove a snapshot listener
+     * @param snapshotListener the snapshot listener
+     */
+    public void removeSnapshotListener(SnapshotListener snapshotListener) {
+        ListenerSubscriber subscriber = listenerSubscribers.remove(snapshotListener);
+        if (subscriber != null)
+            subscriber.cancel();
+    }
+
     // Space
 
     /**
@@ -158,6 +339,69 @@ public class ClientInterpreter extends Interpreter {
             listener.space(space);
     }
 
+    // Adapter
+
+    /*
+     * Calls a listener with each snapshot the publisher delivers
+     */
+    private class ListenerSubscriber implements Flow.Subscriber<EventSnapshot> {
+        private final SnapshotListener listener;
+        private volatile Flow.Subscription subscription;
+        // the generations of the spaces the listener was last told about
+        private long generations[];
+
+        ListenerSubscriber(SnapshotListener listener) {
+            this.listener = listener;
+            if (spaces != null)
+                generations = getGenerations();
+        }
+
+        private long[] getGenerations() {
+            long generations[] = new long[spaceNum];
+            for (int i = 0; i < spaceNum; ++i)
+                generations[i] = getClientSpace(i).getGeneration();
+            return generations;
+        }
+
+        void cancel() {
+            Flow.Subscription subscription = this.subscription;
+            if (subscription != null)
+                subscription.cancel();
+        }
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        public void onNext(EventSnapshot snapshot) {
+            try {
+                if (generations == null)
+                    generations = getGenerations();
+                if (listener instanceof SpaceListener) {
+                    for (int i = 0; i < snapshot.getSpaceNum(); ++i) {
+                        long generation = snapshot.getSpace(i).getGeneration();
+                        if (generation != generations[i]) {
+                            generations[i] = generation;
+                            ((SpaceListener) listener).space(getClientSpace(i));
+                        }
+                    }
+                }
+                if (enableEventListeners)
+                    listener.event(snapshot);
+            } finally {
+                snapshot.release();
+            }
+            subscription.request(1);
+        }
+
+        public void onError(Throwable error) {
+        }
+
+        public void onComplete() {
+        }
+    }
+
     /** ****************** Commands ******************* */
 
     /** *** PAUSE REQ **** */
@@ -242,10 +486,69 @@ public class ClientInterpreter extends Interpreter {
         }
     }
 
+    /**
+     * A command that decodes the data of a stream. When decoder threads
+     * are used, the main loop only skips over the payload and a decoder
+     * reads it again.
+     */
+    private abstract class StreamDecoder implements Command {
+        public void execute(BufferedInput input, OutputStream os) throws IOException {
+            if ((pipeline == null) || (os != null)) {
+                decode(input, os);
+                return;
+            }
+            int start = input.getPosition();
+            int spaceID = (int) input.readByte();
+            int streamID = (int) input.readByte();
+            Stream stream = getClientSpace(spaceID).getStream(streamID);
+            skip(stream, input);
+
+            final BufferedInput payload = input.slice(start);
+            pipeline.submit(stream, new Callable<Void>() {
+                public Void call() throws IOException {
+                    decode(payload, null);
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Decode the command
+         * @param input The BufferedInput to read from
+         * @param os Where to dump the command, or null
+         * @throws IOException
+         */
+        abstract void decode(BufferedInput input, OutputStream os)
+                throws IOException;
+
+        /**
+         * Skip the payload that follows the space and stream IDs
+         * @param stream The stream
+         * @param input The BufferedInput to read from
+         */
+        abstract void skip(Stream stream, BufferedInput input);
+    }
+
+    /* the size of a tile of a stream in bytes */
+    static private int tileSize(Stream stream) {
+        switch (stream.getDataType()) {
+            case Stream.SHORT_TYPE:
+                return 2;
+            case Stream.INT_TYPE:
+                return 4;
+            default:
+                return 1;
+        }
+    }
+
     /** *** STREAM **** */
 
-    private class StreamCmd implements Command {
-        public void execute(BufferedInput input, OutputStream os) throws IOException {
+    private class StreamCmd extends StreamDecoder {
+        void skip(Stream stream, BufferedInput input) {
+            input.skip(input.readArrayLen(), tileSize(stream));
+        }
+
+        void decode(BufferedInput input, OutputStream os) throws IOException {
             byte bData[];
             short sData[];
             int iData[];
@@ -262,17 +565,20 @@ public class ClientInterpreter extends Interpreter {
             }
             switch (stream.getDataType()) {
                 case Stream.BYTE_TYPE:
-                    bData = input.readByteArray();
+                    bData = input.readByteArray(
+                            decodeInPlace ? (byte[]) buffers.writable(stream.getByteData()) : null);
                     stream.setByteData(bData);
                     if (os != null) os.write(bData);
                     break;
                 case Stream.SHORT_TYPE:
-                    sData = input.readShortArray();
+                    sData = input.readShortArray(
+                            decodeInPlace ? (short[]) buffers.writable(stream.getShortData()) : null);
                     stream.setShortData(sData);
                     if (os != null) os.write(Arrays.toString(sData).getBytes());
                     break;
                 case Stream.INT_TYPE:
-                    iData = input.readIntArray();
+                    iData = input.readIntArray(
+                            decodeInPlace ? (int[]) buffers.writable(stream.getIntData()) : null);
                     stream.setIntData(iData);
                     if (os != null) os.write(Arrays.toString(iData).getBytes());
                     break;
@@ -281,6 +587,108 @@ public class ClientInterpreter extends Interpreter {
         }
     }
 
+    /** *** STREAM DELTA **** */
+
+    private class StreamDeltaCmd extends StreamDecoder {
+        void skip(Stream stream, BufferedInput input) {
+            input.readVarInt();
+            int runNum = input.readVarInt();
+            for (int r = 0; r < runNum; ++r) {
+                input.readVarInt();
+                input.skip(input.readVarInt(), tileSize(stream));
+            }
+        }
+
+        void decode(BufferedInput input, OutputStream os) throws IOException {
+            int spaceID = (int) input.readByte();
+            int streamID = (int) input.readByte();
+
+            ClientSpace space = getClientSpace(spaceID);
+            Stream stream = space.getStream(streamID);
+
+            int len = input.readVarInt();
+            Object data = stream.getData();
+            if ((data == null) || (stream.getAccessor().getLength() != len))
+                throw new InterpreterException("Stream delta for space " +
+                        spaceID + ", stream " + streamID +
+                        " does not match the stream's data");
+            if (decodeInPlace) {
+                // snapshots may still hold on to the previous event's data
+                stream.setData(buffers.writableCopy(data));
+            } else {
+                // listeners may still hold on to the previous event's data
+                switch (stream.getDataType()) {
+                    case Stream.BYTE_TYPE:
+                        stream.setByteData(stream.getByteData().clone());
+                        break;
+                    case Stream.SHORT_TYPE:
+                        stream.setShortData(stream.getShortData().clone());
+                        break;
+                    case Stream.INT_TYPE:
+                        stream.setIntData(stream.getIntData().clone());
+                        break;
+                }
+            }
+
+            int runNum = input.readVarInt();
+            int start = 0;
+            for (int r = 0; r < runNum; ++r) {
+                start += input.readVarInt();
+                int count = input.readVarInt();
+                if ((start < 0) || (count < 0) || (start + count > len))
+                    throw new InterpreterException("Stream delta run out of bounds");
+                switch (stream.getDataType()) {
+                    case Stream.BYTE_TYPE:
+                        input.readBytes(stream.getByteData(), start, count);
+                        break;
+                    case Stream.SHORT_TYPE:
+                        input.readShorts(stream.getShortData(), start, count);
+                        break;
+                    case Stream.INT_TYPE:
+                        input.readInts(stream.getIntData(), start, count);
+                        break;
+                }
+                start += count;
+            }
+
+            if (os != null) {
+                os.write(String.format("Space[%d]: %s\n", spaceID, space.getFullName()).getBytes());
+                os.write(String.format("Stream %d delta: %d run(s)\n", streamID, runNum).getBytes());
+            }
+        }
+    }
+
+    /** *** STREAM PACKED **** */
+
+    private class StreamPackedCmd extends StreamDecoder {
+        void skip(Stream stream, BufferedInput input) {
+            ArrayPacker.skipPacked(input);
+        }
+
+        void decode(BufferedInput input, OutputStream os) throws IOException {
+            int spaceID = (int) input.readByte();
+            int streamID = (int) input.readByte();
+
+            ClientSpace space = getClientSpace(spaceID);
+            Stream stream = space.getStream(streamID);
+            if (stream.getDataType() != Stream.BYTE_TYPE)
+                throw new InterpreterException("Packed data for space " +
+                        spaceID + ", stream " + streamID +
+                        ", which is not a byte stream");
+
+            byte bData[] = packers.get().readPacked(input,
+                    decodeInPlace ? (byte[]) buffers.writable(stream.getByteData()) : null);
+            stream.setByteData(bData);
+
+            if (os != null) {
+                os.write(String.format("Space[%d]: %s\n", spaceID, space.getFullName()).getBytes());
+                stream.dump(os);
+                os.write(bData);
+                os.write("\n--   End Stream\n".getBytes());
+            }
+        }
+    }
+
     /** *** EVENT **** */
 
     private class EventCmd implements Command {
@@ -290,7 +698,12 @@ public class ClientInterpreter extends Interpreter {
             int compensationTime = input.readInt();
             if (os != null) os.write(String.format("Event ID: %d\n", eventID).getBytes());
             calcMaxima();
+            publishSnapshot(eventID, elapsedTime, compensationTime);
             callEventListeners(eventID, elapsedTime, compensationTime);
+            if (metrics != null)
+                metrics.rendered(System.nanoTime() - receivedAt);
+            if (hasCapability(Capabilities.EVENT_ACKS))
+                sendEventAck(++processedNum);
         }
     }
 
@@ -300,9 +713,29 @@ public class ClientInterpreter extends Interpreter {
         public void execute(BufferedInput input, OutputStream os) throws IOException {
             int spaceID = (int) input.readByte();
 
-            byte control[] = input.readByteArray();
+            ClientSpace space = getClientSpace(spaceID);
+            byte control[] = input.readByteArray(
+                    decodeInPlace ? (byte[]) buffers.writable(space.getControl()) : null);
+
+            space.setControl(control);
+            if (os != null) {
+                os.write(String.format("Space ID: %d, Controls: ", spaceID).getBytes());
+                os.write(control);
+                os.write('\n');
+            }
+        }
+    }
+
+    /** *** CONTROL RLE **** */
+
+    private class ControlRunLengthCmd implements Command {
+        public void execute(BufferedInput input, OutputStream os) throws IOException {
+            int spaceID = (int) input.readByte();
 
             ClientSpace space = getClientSpace(spaceID);
+            byte control[] = ArrayPacker.readRunLength(input,
+                    decodeInPlace ? (byte[]) buffers.writable(space.getControl()) : null);
+
             space.setControl(control);
             if (os != null) {
                 os.write(String.format("Space ID: %d, Controls: ", spaceID).getBytes());
@@ -334,34 +767,144 @@ public class ClientInterpreter extends Interpreter {
      * @throws IOException
      */
     public void sendEventFilters(EventFilters eventFilters) throws IOException {
-        BufferedOutput output = client.createBufferedOutput();
-        int len = eventFilters.getNum();
+        synchronized (sendLock) {
+            BufferedOutput output = client.createBufferedOutput();
+            int len = eventFilters.getNum();
+
+            start(output);
+            putCmd(output, EVENT_FILTERS_CMD);
+            output.writeShort((short) len);
+
+            boolean enabled[] = eventFilters.getEnabled();
+            int delays[] = eventFilters.getDelays();
+            boolean pauses[] = eventFilters.getPauses();
+            int periods[] = eventFilters.getPeriods();
+
+            for (int i = 0; i < len; ++i) {
+                output.writeBoolean(enabled[i]);
+                output.writeInt(delays[i]);
+                output.writeBoolean(pauses[i]);
+                output.writeInt(periods[i]);
+            }
+            finish(output);
 
-        start(output);
-        putCmd(output, EVENT_FILTERS_CMD);
-        output.writeShort((short) len);
+            client.send(output);
+        }
+    }
 
-        boolean enabled[] = eventFilters.getEnabled();
-        int delays[] = eventFilters.getDelays();
-        boolean pauses[] = eventFilters.getPauses();
-        int periods[] = eventFilters.getPeriods();
+    /** *** EVENT ACK **** */
 
-        for (int i = 0; i < len; ++i) {
-            output.writeBoolean(enabled[i]);
-            output.writeInt(delays[i]);
-            output.writeBoolean(pauses[i]);
-            output.writeInt(periods[i]);
+    private class EventAckCmd implements Command {
+        public void execute(BufferedInput input, OutputStream os) {
+            throw new InterpreterException("EVENT ACK Command not implemented");
+        }
+    }
+
+    /*
+     * Tell the server how many events have been processed
+     */
+    private void sendEventAck(int processedNum) throws IOException {
+        synchronized (sendLock) {
+            BufferedOutput output = client.createBufferedOutput();
+
+            start(output);
+            putCmd(output, EVENT_ACK_CMD);
+            output.writeInt(processedNum);
+            finish(output);
+
+            client.send(output);
+        }
+    }
+
+    /** *** SAMPLING **** */
+
+    private class SamplingCmd implements Command {
+        public void execute(BufferedInput input, OutputStream os) throws IOException {
+            samplingPeriod = input.readInt();
+            if (os != null)
+                os.write(String.format("Sampling period: %d\n", samplingPeriod).getBytes());
+        }
+    }
+
+    /** *** PING **** */
+
+    private class PingCmd implements Command {
+        public void execute(BufferedInput input, OutputStream os) {
+            throw new InterpreterException("PING Command not implemented");
+        }
+    }
+
+    /**
+     * Ping the server, so that the round trip time is recorded in the
+     * wire metrics when the pong arrives. Only one ping is outstanding at
+     * a time; a ping sent before the last one was answered replaces it.
+     * @return false if the server does not answer pings or metrics are
+     * not enabled, so no ping was sent
+     * @throws IOException
+     */
+    public boolean sendPing() throws IOException {
+        if ((metrics == null) || !hasCapability(Capabilities.PINGS))
+            return false;
+        synchronized (sendLock) {
+            BufferedOutput output = client.createBufferedOutput();
+
+            start(output);
+            putCmd(output, PING_CMD);
+            output.writeInt(++pingNum);
+            finish(output);
+
+            pingSentAt = System.nanoTime();
+            client.send(output);
+        }
+        return true;
+    }
+
+    /** *** PONG **** */
+
+    private class PongCmd implements Command {
+        public void execute(BufferedInput input, OutputStream os) throws IOException {
+            int num = input.readInt();
+            if (os != null)
+                os.write(String.format("Pong: %d\n", num).getBytes());
+            long now = System.nanoTime();
+            synchronized (sendLock) {
+                if ((metrics != null) && (num == pingNum))
+                    metrics.roundTrip(now - pingSentAt);
+            }
         }
-        finish(output);
+    }
 
-        client.send(output);
+    /**
+     * Print the wire metrics periodically, pinging the server first so
+     * that the round trip time is up to date, until the connection closes
+     * @param out Where to print them
+     * @param period How often to print them, in ms
+     */
+    public void startMetricsDump(final PrintStream out, final int period) {
+        final WireMetrics metrics = enableMetrics();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Utils.sleep(period);
+                        sendPing();
+                        out.print(metrics.getSummary());
+                    }
+                } catch (IOException e) {
+                    // the connection has closed
+                }
+            }
+        }, "GCspy metrics dump");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /** *** EVENT COUNT **** */
 
     private class EventCountCmd implements Command {
         public void execute(BufferedInput input, OutputStream os) throws IOException {
-            int count[] = input.readIntArray();
+            int count[] = input.readIntArray(
+                    decodeInPlace ? (int[]) buffers.writable(getEventCount()) : null);
             setEventCount(count);
             if (os != null) {
                 os.write(String.format("Event Count: %d\n", count.length).getBytes());
@@ -377,7 +920,10 @@ public class ClientInterpreter extends Interpreter {
         public void execute(BufferedInput input, OutputStream os) throws IOException {
             int spaceID = (int) input.readByte();
             int streamID = (int) input.readByte();
-            int summary[] = input.readIntArray();
+            ClientSpace space = getClientSpace(spaceID);
+            Stream stream = space.getStream(streamID);
+            int summary[] = input.readIntArray(
+                    decodeInPlace ? (int[]) buffers.writable(stream.getSummary()) : null);
 
             if (os != null) {
                 os.write(String.format("Begin Summary\nSpace ID: %d, Stream ID: %d\nSummary: ", spaceID, streamID).getBytes());
@@ -385,8 +931,6 @@ public class ClientInterpreter extends Interpreter {
                 os.write("End Summary\n".getBytes());
             }
 
-            ClientSpace space = getClientSpace(spaceID);
-            Stream stream = space.getStream(streamID);
             stream.setSummary(summary);
         }
     }
@@ -448,18 +992,28 @@ public class ClientInterpreter extends Interpreter {
 
     private void checkServer(BootstrapParameters params) throws IOException {
     /* client sends first */
+        // offering nothing sends the legacy handshake
+        boolean offered = (offeredCapabilities != 0);
+        if (offered)
+            params.capabilities = new Capabilities(offeredCapabilities,
+                    client.getMaxLen());
         sendBootInfo(false, params);
-        receiveBootInfo(false, null);
+        receiveBootInfo(false, params);
+        agreed = offered ? agree(client, params.capabilities) : Capabilities.LEGACY;
+        capabilities = agreed.getFlags();
+        setupFraming();
+        println(1, "  agreed on " + agreed);
     }
 
-    private void setupClient(String server, int port, int maxLen)
+    private void setupClient(Endpoint endpoint, int maxLen, int transport)
             throws IOException {
     /*
      * make sure we clear up the client variable before we re-assign it,
      * otherwise we need double the memory requirements
      */
         client = null;
-        client = new Client(server, port, maxLen);
+        client = new Client(endpoint, maxLen, transport);
+        client.setMetrics(metrics);
     }
 
     /**
@@ -485,8 +1039,51 @@ public class ClientInterpreter extends Interpreter {
      */
     public void connectToServer(String server, int port, boolean pauseAtStart,
                                 int maxLen) throws IOException {
+        connectToServer(server, port, pauseAtStart, maxLen, Client.STREAM_TRANSPORT);
+    }
+
+    /**
+     * Connect to the server
+     * @param server The server's host name
+     * @param port The port on which to connect
+     * @param pauseAtStart Whether the server should pause at the start
+     * @param maxLen The maximum length of the  communication buffers
+     * @param transport The transport to use
+     * (one of <code>Client.STREAM_TRANSPORT</code>, <code>Client.CHANNEL_TRANSPORT</code>)
+     * @throws IOException
+     */
+    public void connectToServer(String server, int port, boolean pauseAtStart,
+                                int maxLen, int transport) throws IOException {
+        connectToServer(new Endpoint(server, port), pauseAtStart, maxLen,
+                transport);
+    }
+
+    /**
+     * Connect to the server
+     * @param endpoint Where the server is
+     * @param pauseAtStart Whether the server should pause at the start
+     * @throws IOException
+     */
+    public void connectToServer(Endpoint endpoint, boolean pauseAtStart)
+            throws IOException {
+        println(1, "connecting to server " + endpoint);
+        connectToServer(endpoint, pauseAtStart, DEFAULT_MAX_LEN,
+                Client.STREAM_TRANSPORT);
+    }
+
+    /**
+     * Connect to the server
+     * @param endpoint Where the server is
+     * @param pauseAtStart Whether the server should pause at the start
+     * @param maxLen The maximum length of the  communication buffers
+     * @param transport The transport to use for a TCP endpoint
+     * (one of <code>Client.STREAM_TRANSPORT</code>, <code>Client.CHANNEL_TRANSPORT</code>)
+     * @throws IOException
+     */
+    public void connectToServer(Endpoint endpoint, boolean pauseAtStart,
+                                int maxLen, int transport) throws IOException {
         BootstrapParameters params = new BootstrapParameters(pauseAtStart);
-        setupClient(server, port, maxLen);
+        setupClient(endpoint, maxLen, transport);
         println(1, "  connected to server");
         // println(1, " checking server");
         checkServer(params);
@@ -504,6 +1101,20 @@ public class ClientInterpreter extends Interpreter {
     public void mainLoop() throws IOException {
 
         println(1, "  starting client main loop");
+        try {
+            if (decodeThreadNum > 0)
+                pipelinedLoop();
+            else
+                sequentialLoop();
+        } catch (IOException | RuntimeException e) {
+            publisher.close(e);
+            throw e;
+        }
+        publisher.close(null);
+        client.close();
+    }
+
+    private void sequentialLoop() throws IOException {
         while (true) {
             client.receive();
             if (client.hasTerminated()) {
@@ -511,13 +1122,83 @@ public class ClientInterpreter extends Interpreter {
                 break;
             }
             terminated = false;
-            execute(client.createBufferedInput());
+            receivedAt = System.nanoTime();
+            execute(client.getBufferedInput());
             if (terminated) {
                 println(1, "  main loop terminated (shutdown received)");
                 break;
             }
         }
-        client.close();
+    }
+
+    private void pipelinedLoop() throws IOException {
+        Command sequential[] = cmds;
+        cmds = sequential.clone();
+        for (int i = 0; i < cmds.length; ++i) {
+            if ((cmds[i] != null) && !(cmds[i] instanceof StreamDecoder) &&
+                    !isIndependent(i))
+                cmds[i] = new BarrierCmd(cmds[i]);
+        }
+        pipeline = new DecodePipeline(client, decodeThreadNum);
+        println(1, "  decoding on " + decodeThreadNum + " threads");
+        try {
+            while (true) {
+                DecodePipeline.Frame frame = pipeline.take();
+                if (frame == null) {
+                    println(1, "  main loop terminated (server died)");
+                    break;
+                }
+                terminated = false;
+                receivedAt = frame.receivedAt;
+                execute(frame.createBufferedInput());
+                pipeline.done(frame);
+                if (terminated) {
+                    println(1, "  main loop terminated (shutdown received)");
+                    break;
+                }
+            }
+            pipeline.barrier();
+        } finally {
+            pipeline.close();
+            pipeline = null;
+            cmds = sequential;
+        }
+    }
+
+    /*
+     * Can a command run while streams are still being decoded?
+     * Only if it neither reads nor replaces their data.
+     */
+    private boolean isIndependent(int cmd) {
+        switch (cmd) {
+            case CONTROL_CMD:
+            case CONTROL_RLE_CMD:
+            case SUMMARY_CMD:
+            case SPACE_INFO_CMD:
+            case EVENT_COUNT_CMD:
+            case SAMPLING_CMD:
+            case PONG_CMD:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * Waits for the decoders before running a command that depends on
+     * the streams they decode
+     */
+    private class BarrierCmd implements Command {
+        private Command cmd;
+
+        BarrierCmd(Command cmd) {
+            this.cmd = cmd;
+        }
+
+        public void execute(BufferedInput input, OutputStream os) throws IOException {
+            pipeline.barrier();
+            cmd.execute(input, os);
+        }
     }
 
     /** ****************** Constructors ******************* */
@@ -540,6 +1221,13 @@ public class ClientInterpreter extends Interpreter {
         cmds[SUMMARY_CMD] = new SummaryCmd();
         cmds[SPACE_INFO_CMD] = new SpaceInfoCmd();
         cmds[SPACE_CMD] = new SpaceCmd();
+        cmds[STREAM_DELTA_CMD] = new StreamDeltaCmd();
+        cmds[STREAM_PACKED_CMD] = new StreamPackedCmd();
+        cmds[CONTROL_RLE_CMD] = new ControlRunLengthCmd();
+        cmds[EVENT_ACK_CMD] = new EventAckCmd();
+        cmds[SAMPLING_CMD] = new SamplingCmd();
+        cmds[PING_CMD] = new PingCmd();
+        cmds[PONG_CMD] = new PongCmd();
     }
 
 }
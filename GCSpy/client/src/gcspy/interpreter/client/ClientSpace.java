@@ -12,6 +12,8 @@ import gcspy.comm.BufferedInput;
 import gcspy.interpreter.Space;
 import gcspy.interpreter.Stream;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Represents a client-side space
  *
@@ -19,6 +21,22 @@ import gcspy.interpreter.Stream;
  */
 public class ClientSpace extends Space {
 
+    static private final AtomicLong generations = new AtomicLong();
+
+    private long generation = generations.incrementAndGet();
+
+    /** ****************** Accessor Methods ******************* */
+
+    /**
+     * Get the number that tells this space's configuration apart from
+     * that of the space it replaced, when the server sent a new one.
+     * Snapshots of the space have the same number as the space.
+     * @return the generation
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
     /** ****************** Utilities ******************* */
 
     /**
@@ -32,6 +50,50 @@ public class ClientSpace extends Space {
         }
     }
 
+    /**
+     * Copy this space for a snapshot of an event, with its streams'
+     * current data and the space's current controls and information
+     * @param buffers Where to record the arrays the copy shares
+     * @return the copy
+     */
+    ClientSpace snapshot(SnapshotBuffers buffers) {
+        ClientSpace copy = new ClientSpace();
+        copy.generation = generation;
+        copy.id = id;
+        copy.name = name;
+        copy.driverName = driverName;
+        copy.title = title;
+        copy.blockInfo = blockInfo;
+        copy.tileNum = tileNum;
+        copy.tileNames = tileNames;
+        copy.unusedString = unusedString;
+        copy.mainSpace = mainSpace;
+        copy.spaceInfo = spaceInfo;
+        copy.control = control;
+        buffers.retain(control);
+        copy.streamNum = streamNum;
+        copy.streams = new Stream[streamNum];
+        for (int i = 0; i < streamNum; ++i) {
+            Stream stream = streams[i];
+            copy.streams[i] = stream.copy(copy, stream.getData(), stream.getSummary());
+            buffers.retain(stream.getData());
+            buffers.retain(stream.getSummary());
+        }
+        return copy;
+    }
+
+    /**
+     * Give back the arrays a snapshot of this space shared
+     * @param buffers Where they were recorded
+     */
+    void release(SnapshotBuffers buffers) {
+        buffers.release(control);
+        for (int i = 0; i < streamNum; ++i) {
+            buffers.release(streams[i].getData());
+            buffers.release(streams[i].getSummary());
+        }
+    }
+
     /** ****************** Presentation ******************* */
 
     /**
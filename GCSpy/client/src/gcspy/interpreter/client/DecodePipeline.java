@@ -0,0 +1,231 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter.client;
+
+import gcspy.comm.BufferedInput;
+import gcspy.comm.Client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits the client main loop into stages, so that receiving, decoding
+ * and the listeners do not all wait for each other:
+ * <ul>
+ * <li>a reader thread receives frames and copies them into a queue,
+ * so the socket keeps draining while the rest of the pipeline works
+ * <li>the thread running the main loop takes frames off the queue in
+ * order and executes their commands, handing the payloads of stream
+ * commands to a pool of decoder threads
+ * <li>before any command that depends on the decoded streams, such as
+ * an event, the main loop waits for the decoders to finish, so the
+ * listeners see each event complete and in order
+ * </ul>
+ * Decodes of the same stream are run one after the other, so that a
+ * delta is applied to the data it was sent against.
+ */
+class DecodePipeline {
+
+    /* how many frames the reader gets ahead by */
+    static private final int QUEUE_LEN = 64;
+
+    /** A frame copied out of the client */
+    static class Frame {
+        private byte buffer[];
+        private int len;
+        /** When the frame was received, in ns */
+        long receivedAt;
+        /* set on the last frame if the reader failed */
+        private IOException error;
+
+        private Frame(int len) {
+            buffer = new byte[len];
+        }
+
+        /**
+         * Create a new input buffer over the frame
+         * @return the BufferedInput
+         */
+        BufferedInput createBufferedInput() {
+            return new BufferedInput(buffer, len);
+        }
+    }
+
+    private Client client;
+
+    private BlockingQueue<Frame> frames = new ArrayBlockingQueue<Frame>(QUEUE_LEN);
+
+    private ConcurrentLinkedQueue<Frame> free = new ConcurrentLinkedQueue<Frame>();
+
+    private ExecutorService decoders;
+
+    private Thread reader;
+
+    /* the decodes not waited for yet, by stream */
+    private HashMap<Object, Future<Void>> pending = new HashMap<Object, Future<Void>>();
+
+    /* frames whose bytes decodes may still be reading */
+    private ArrayList<Frame> inFlight = new ArrayList<Frame>();
+
+    /**
+     * Start the reader and decoder threads
+     * @param client The client to receive frames from
+     * @param threadNum The number of decoder threads
+     */
+    DecodePipeline(Client client, int threadNum) {
+        this.client = client;
+        decoders = Executors.newFixedThreadPool(threadNum, new ThreadFactory() {
+            private int num = 0;
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GCspy decoder " + (num++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reader = new Thread(new Runnable() {
+            public void run() {
+                read();
+            }
+        }, "GCspy reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /******************** Reader ********************/
+
+    private Frame obtain(int len) {
+        Frame frame = free.poll();
+        if ((frame == null) || (frame.buffer.length < len))
+            frame = new Frame(len);
+        frame.len = len;
+        return frame;
+    }
+
+    private void read() {
+        Frame frame;
+        try {
+            while (true) {
+                client.receive();
+                if (client.hasTerminated())
+                    break;
+                frame = obtain(client.getLen());
+                client.copyBufferIn(frame.buffer);
+                frame.receivedAt = System.nanoTime();
+                frames.put(frame);
+            }
+            frame = obtain(0);
+        } catch (IOException e) {
+            frame = obtain(0);
+            frame.error = e;
+        } catch (InterruptedException e) {
+            return; // the pipeline has been closed
+        }
+        try {
+            frames.put(frame);
+        } catch (InterruptedException e) {
+            // the pipeline has been closed
+        }
+    }
+
+    /******************** Main Loop ********************/
+
+    /**
+     * Take the next frame received
+     * @return the frame, or null if the server has gone away
+     * @throws IOException if the reader failed
+     */
+    Frame take() throws IOException {
+        Frame frame;
+        try {
+            frame = frames.take();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for a frame");
+        }
+        if (frame.error != null)
+            throw frame.error;
+        if (frame.len == 0)
+            return null;
+        return frame;
+    }
+
+    /**
+     * Decode a stream on a decoder thread, once any earlier decode of
+     * the same stream has finished
+     * @param stream The stream
+     * @param decode What decodes it
+     * @throws IOException if an earlier decode failed
+     */
+    void submit(Object stream, Callable<Void> decode) throws IOException {
+        Future<Void> previous = pending.get(stream);
+        if (previous != null)
+            await(previous);
+        pending.put(stream, decoders.submit(decode));
+    }
+
+    /**
+     * Let the decodes that read a frame finish before its buffer is used
+     * again. Frames without decodes are recycled straight away.
+     * @param frame The frame whose commands have been executed
+     */
+    void done(Frame frame) {
+        if (pending.isEmpty())
+            free.add(frame);
+        else
+            inFlight.add(frame);
+    }
+
+    /**
+     * Wait for all the decodes to finish
+     * @throws IOException if one failed
+     */
+    void barrier() throws IOException {
+        try {
+            for (Future<Void> decode : pending.values())
+                await(decode);
+        } finally {
+            pending.clear();
+            free.addAll(inFlight);
+            inFlight.clear();
+        }
+    }
+
+    private void await(Future<Void> decode) throws IOException {
+        try {
+            decode.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for a decoder");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /** Stop the reader and decoder threads */
+    void close() {
+        reader.interrupt();
+        decoders.shutdownNow();
+    }
+
+}
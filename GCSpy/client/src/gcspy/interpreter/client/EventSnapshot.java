@@ -0,0 +1,167 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state of all spaces at an event: their streams' data, maxima and
+ * summaries, their controls and information, plus the event counts and
+ * the event's timings. A snapshot never changes once published, so it
+ * can be read from any thread without locking, while the interpreter
+ * goes on receiving later events.
+ * <p>
+ * The snapshot's arrays are shared with the interpreter until it
+ * receives new data, and are recycled once the snapshot is released,
+ * so every <code>ClientInterpreter.acquireSnapshot</code> must be
+ * matched by a <code>release</code>, after which the snapshot must not
+ * be read. The spaces, streams and arrays of a snapshot must not be
+ * modified.
+ */
+public class EventSnapshot {
+
+    private final long sequenceNum;
+    private final int eventID;
+    private final int elapsedTime;
+    private final int compensationTime;
+    private final int eventCount[];
+    private final ClientSpace spaces[];
+
+    private final SnapshotBuffers buffers;
+    // the interpreter holds one reference until the next event
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /** ****************** Accessor Methods ******************* */
+
+    /**
+     * Get the number of this event, counting from 1 for the first one
+     * the interpreter received, so that readers can tell if they missed any
+     * @return the number of the event
+     */
+    public long getSequenceNum() {
+        return sequenceNum;
+    }
+
+    /**
+     * Get the event's ID
+     * @return the ID
+     */
+    public int getEventID() {
+        return eventID;
+    }
+
+    /**
+     * Get the elapsed time the server reported for the event
+     * @return the elapsed time
+     */
+    public int getElapsedTime() {
+        return elapsedTime;
+    }
+
+    /**
+     * Get the compensation time the server reported for the event
+     * @return the compensation time
+     */
+    public int getCompensationTime() {
+        return compensationTime;
+    }
+
+    /**
+     * Get the number of times each event has occurred
+     * @return the counts, indexed by event ID
+     */
+    public int[] getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Get the number of spaces
+     * @return the number of spaces
+     */
+    public int getSpaceNum() {
+        return spaces.length;
+    }
+
+    /**
+     * Get a space as it was at the event
+     * @param i The space's ID
+     * @return the space
+     */
+    public ClientSpace getSpace(int i) {
+        return spaces[i];
+    }
+
+    /** ****************** Reference Counting ******************* */
+
+    /*
+     * Take another reference, unless the last one has already gone
+     */
+    boolean retain() {
+        while (true) {
+            int count = refs.get();
+            if (count == 0)
+                return false;
+            if (refs.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Take another reference, to go on reading the snapshot after the
+     * call it was passed to has returned. It must be matched by a
+     * <code>release</code>.
+     * @return the snapshot
+     */
+    public EventSnapshot acquire() {
+        if (!retain())
+            throw new IllegalStateException("Snapshot already released");
+        return this;
+    }
+
+    /**
+     * Let go of the snapshot. Once every holder has let go of it, its
+     * arrays are given back to the interpreter to decode into.
+     */
+    public void release() {
+        int count = refs.decrementAndGet();
+        if (count > 0)
+            return;
+        if (count < 0)
+            throw new IllegalStateException("Snapshot released too often");
+        buffers.release(eventCount);
+        for (ClientSpace space : spaces)
+            space.release(buffers);
+    }
+
+    /** ****************** Constructors ******************* */
+
+    /**
+     * Take a snapshot of the interpreter's current state
+     * @param interpreter The interpreter
+     * @param buffers Where to record the arrays the snapshot shares
+     * @param sequenceNum The event's number
+     * @param eventID The event's ID
+     * @param elapsedTime The elapsed time
+     * @param compensationTime The compensation time
+     */
+    EventSnapshot(ClientInterpreter interpreter, SnapshotBuffers buffers,
+                  long sequenceNum, int eventID, int elapsedTime,
+                  int compensationTime) {
+        this.buffers = buffers;
+        this.sequenceNum = sequenceNum;
+        this.eventID = eventID;
+        this.elapsedTime = elapsedTime;
+        this.compensationTime = compensationTime;
+        eventCount = interpreter.getEventCount();
+        buffers.retain(eventCount);
+        spaces = new ClientSpace[interpreter.getSpaceNum()];
+        for (int i = 0; i < spaces.length; ++i)
+            spaces[i] = interpreter.getClientSpace(i).snapshot(buffers);
+    }
+
+}
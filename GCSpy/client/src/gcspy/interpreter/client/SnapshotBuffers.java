@@ -0,0 +1,135 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter.client;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Keeps track of the arrays that event snapshots share with the
+ * streams, spaces and event counts, so that they are copied on write:
+ * <ul>
+ * <li>an array that no live snapshot holds is decoded into in place
+ * <li>an array that a snapshot holds is left alone, and the data is
+ * decoded into another array, taken from a pool
+ * <li>once the last snapshot holding an array that has been replaced
+ * is released, the array goes back to the pool
+ * </ul>
+ * Snapshots are built and arrays replaced by the threads that run the
+ * main loop and decode streams, but snapshots can be released by any
+ * thread, so all methods are synchronized.
+ */
+class SnapshotBuffers {
+
+    /* how many spare arrays of each type and length to keep */
+    static private final int SPARE_NUM = 4;
+
+    /* an array held by at least one live snapshot */
+    static private class Buffer {
+        private int refs;
+        /* set once the interpreter has moved on to another array */
+        private boolean detached;
+    }
+
+    private IdentityHashMap<Object, Buffer> shared = new IdentityHashMap<Object, Buffer>();
+
+    private HashMap<Long, ArrayDeque<Object>> spares = new HashMap<Long, ArrayDeque<Object>>();
+
+    /* the key of the spares of an array's type and length */
+    static private Long key(Class<?> type, int len) {
+        long kind;
+        if (type == byte.class)
+            kind = 0;
+        else if (type == short.class)
+            kind = 1;
+        else
+            kind = 2;
+        return (kind << 32) | len;
+    }
+
+    /******************** Snapshots ********************/
+
+    /**
+     * Record that a snapshot holds an array
+     * @param array The array, or null
+     */
+    synchronized void retain(Object array) {
+        if (array == null)
+            return;
+        Buffer buffer = shared.get(array);
+        if (buffer == null) {
+            buffer = new Buffer();
+            shared.put(array, buffer);
+        }
+        ++buffer.refs;
+    }
+
+    /**
+     * Record that a snapshot no longer holds an array
+     * @param array The array, or null
+     */
+    synchronized void release(Object array) {
+        if (array == null)
+            return;
+        Buffer buffer = shared.get(array);
+        if (buffer == null)
+            throw new IllegalStateException("Released an array that was not retained");
+        if (--buffer.refs > 0)
+            return;
+        shared.remove(array);
+        if (buffer.detached) {
+            Long key = key(array.getClass().getComponentType(), Array.getLength(array));
+            ArrayDeque<Object> free = spares.get(key);
+            if (free == null) {
+                free = new ArrayDeque<Object>();
+                spares.put(key, free);
+            }
+            if (free.size() < SPARE_NUM)
+                free.push(array);
+        }
+    }
+
+    /******************** Decoding ********************/
+
+    /**
+     * Get the array to decode new data into, in place of the current one
+     * @param current The array the data is in now, or null
+     * @return current if no snapshot holds it, otherwise a spare array of
+     * the same type and length, whose contents are undefined
+     */
+    synchronized Object writable(Object current) {
+        if (current == null)
+            return null;
+        Buffer buffer = shared.get(current);
+        if (buffer == null)
+            return current;
+        buffer.detached = true;
+
+        Class<?> type = current.getClass().getComponentType();
+        int len = Array.getLength(current);
+        ArrayDeque<Object> free = spares.get(key(type, len));
+        if ((free != null) && !free.isEmpty())
+            return free.pop();
+        return Array.newInstance(type, len);
+    }
+
+    /**
+     * Get the array to update in place, in place of the current one
+     * @param current The array the data is in now, or null
+     * @return current if no snapshot holds it, otherwise a copy of it
+     */
+    Object writableCopy(Object current) {
+        Object array = writable(current);
+        if (array != current)
+            System.arraycopy(current, 0, array, 0, Array.getLength(current));
+        return array;
+    }
+
+}
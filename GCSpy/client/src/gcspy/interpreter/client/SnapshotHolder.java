@@ -0,0 +1,48 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter.client;
+
+/**
+ * Keeps the newest snapshot a listener was handed, so that it can be
+ * drawn again later, e.g. from the GUI thread when a view is resized
+ * or a stream selected, without reading the interpreter's own spaces.
+ */
+public class SnapshotHolder {
+
+    private EventSnapshot snapshot;
+
+    /**
+     * Keep a snapshot, letting go of the one kept before
+     * @param snapshot The snapshot, or null to keep none
+     */
+    public void hold(EventSnapshot snapshot) {
+        EventSnapshot previous;
+        synchronized (this) {
+            previous = this.snapshot;
+            this.snapshot = (snapshot != null) ? snapshot.acquire() : null;
+        }
+        if (previous != null)
+            previous.release();
+    }
+
+    /** Let go of the snapshot kept */
+    public void clear() {
+        hold(null);
+    }
+
+    /**
+     * Take a reference to the snapshot kept. It must be matched by a
+     * <code>release</code>.
+     * @return the snapshot, or null if none is kept
+     */
+    public synchronized EventSnapshot acquire() {
+        // cannot fail, as this holds a reference of its own
+        return (snapshot != null) ? snapshot.acquire() : null;
+    }
+
+}
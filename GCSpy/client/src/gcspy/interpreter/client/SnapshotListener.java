@@ -0,0 +1,25 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter.client;
+
+/**
+ * Gets called with the snapshot of each event, on a thread other than
+ * the one that runs the main loop. The interpreter's own spaces change
+ * while the listener runs, as the next event's data arrives, so it must
+ * read the spaces, streams and counts from the snapshot instead.
+ */
+public interface SnapshotListener {
+
+    /**
+     * Respond to an event. The snapshot is released once this returns;
+     * to read it later, <code>acquire</code> it and release it when done.
+     * @param snapshot The snapshot of the event
+     */
+    void event(EventSnapshot snapshot);
+
+}
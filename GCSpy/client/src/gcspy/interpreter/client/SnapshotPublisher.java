@@ -0,0 +1,324 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter.client;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Publishes the snapshot of each event the client interpreter receives.
+ * Every subscriber has its own queue, demand and delivery thread, so a
+ * slow one holds up neither the interpreter nor the other subscribers,
+ * and chooses what happens when it falls behind:
+ * <ul>
+ * <li><code>OVERFLOW_BUFFER</code>: every event is delivered; once the
+ * queue is full, the interpreter waits for the subscriber to catch up
+ * <li><code>OVERFLOW_DROP</code>: once the queue is full, new events
+ * are dropped until there is room again
+ * <li><code>OVERFLOW_LATEST</code>: only the newest event not yet
+ * delivered is kept
+ * </ul>
+ * A subscriber owns a reference to each snapshot passed to
+ * <code>onNext</code>, and must release the snapshot when it is done
+ * with it. Gaps in the snapshots' sequence numbers show which events
+ * were dropped. When the interpreter's main loop ends, subscribers are
+ * sent <code>onComplete</code>, or <code>onError</code> if it failed,
+ * once they have been delivered the events queued for them.
+ */
+public class SnapshotPublisher implements Flow.Publisher<EventSnapshot> {
+
+    /** Deliver every event, making the interpreter wait while the queue is full */
+    static public final int OVERFLOW_BUFFER = 0;
+    /** Drop new events while the queue is full */
+    static public final int OVERFLOW_DROP = 1;
+    /** Keep only the newest event not yet delivered */
+    static public final int OVERFLOW_LATEST = 2;
+
+    /** How many events a subscriber's queue holds by default */
+    static public final int DEFAULT_CAPACITY = 16;
+
+    private final Executor executor;
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions =
+            new CopyOnWriteArrayList<Subscription>();
+
+    private boolean closed = false;
+    private Throwable error;
+
+    /******************** Subscriptions ********************/
+
+    private class Subscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super EventSnapshot> subscriber;
+        private final int overflow;
+        private final int capacity;
+
+        private final ArrayDeque<EventSnapshot> queue = new ArrayDeque<EventSnapshot>();
+        private long demand = 0;
+        private long dropped = 0;
+        /* set while a delivery thread is draining the queue */
+        private boolean scheduled = false;
+        private boolean cancelled = false;
+        /* set once the main loop has ended */
+        private boolean closing = false;
+        private Throwable error;
+
+        private Subscription(Flow.Subscriber<? super EventSnapshot> subscriber,
+                             int overflow, int capacity) {
+            this.subscriber = subscriber;
+            this.overflow = overflow;
+            this.capacity = (overflow == OVERFLOW_LATEST) ? 1 : capacity;
+        }
+
+        /*
+         * Queue a snapshot, as the overflow policy says; called by the
+         * thread that runs the main loop
+         */
+        synchronized void offer(EventSnapshot snapshot) throws InterruptedException {
+            if (overflow == OVERFLOW_BUFFER) {
+                while (!cancelled && (queue.size() >= capacity))
+                    wait();
+            }
+            if (cancelled)
+                return;
+            if (queue.size() >= capacity) {
+                ++dropped;
+                if (overflow == OVERFLOW_DROP)
+                    return;
+                queue.poll().release();
+            }
+            snapshot.retain();
+            queue.add(snapshot);
+            schedule();
+        }
+
+        synchronized void close(Throwable error) {
+            closing = true;
+            this.error = error;
+            schedule();
+        }
+
+        synchronized long getDropped() {
+            return dropped;
+        }
+
+        /* start a delivery thread, if there is anything to deliver */
+        private void schedule() {
+            if (scheduled || cancelled)
+                return;
+            if (((demand > 0) && !queue.isEmpty()) || (closing && queue.isEmpty())) {
+                scheduled = true;
+                executor.execute(this);
+            }
+        }
+
+        /* deliver what the subscriber has asked for */
+        public void run() {
+            while (true) {
+                EventSnapshot snapshot;
+                Throwable terminal;
+                synchronized (this) {
+                    if (cancelled) {
+                        scheduled = false;
+                        return;
+                    }
+                    if ((demand > 0) && !queue.isEmpty()) {
+                        snapshot = queue.poll();
+                        --demand;
+                        terminal = null;
+                        notifyAll();
+                    } else if (closing && queue.isEmpty()) {
+                        snapshot = null;
+                        terminal = error;
+                        cancelled = true;
+                    } else {
+                        scheduled = false;
+                        return;
+                    }
+                }
+
+                if (snapshot == null) {
+                    subscriptions.remove(this);
+                    if (terminal != null)
+                        subscriber.onError(terminal);
+                    else
+                        subscriber.onComplete();
+                    return;
+                }
+                try {
+                    subscriber.onNext(snapshot);
+                } catch (Throwable t) {
+                    // a subscriber that throws is treated as cancelled
+                    cancel();
+                    return;
+                }
+            }
+        }
+
+        public void request(long n) {
+            synchronized (this) {
+                if (n > 0) {
+                    demand += n;
+                    if (demand < 0)
+                        demand = Long.MAX_VALUE;
+                    schedule();
+                    return;
+                }
+                if (cancelled)
+                    return;
+            }
+            cancel();
+            subscriber.onError(new IllegalArgumentException(
+                    "Requested " + n + " snapshots, which is not positive"));
+        }
+
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                for (EventSnapshot snapshot : queue)
+                    snapshot.release();
+                queue.clear();
+                notifyAll();
+            }
+            subscriptions.remove(this);
+        }
+    }
+
+    /**
+     * Subscribe, buffering every event
+     * @param subscriber The subscriber
+     */
+    public void subscribe(Flow.Subscriber<? super EventSnapshot> subscriber) {
+        subscribe(subscriber, OVERFLOW_BUFFER, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Subscribe
+     * @param subscriber The subscriber
+     * @param overflow What to do when the subscriber falls behind (one of
+     * <code>OVERFLOW_BUFFER</code>, <code>OVERFLOW_DROP</code>,
+     * <code>OVERFLOW_LATEST</code>)
+     * @param capacity How many events to queue for the subscriber;
+     * ignored for <code>OVERFLOW_LATEST</code>, which queues one
+     */
+    public void subscribe(Flow.Subscriber<? super EventSnapshot> subscriber,
+                          int overflow, int capacity) {
+        if (subscriber == null)
+            throw new NullPointerException("No subscriber");
+        if ((overflow < OVERFLOW_BUFFER) || (overflow > OVERFLOW_LATEST))
+            throw new IllegalArgumentException("Bad overflow policy " + overflow);
+        if (capacity < 1)
+            throw new IllegalArgumentException("Bad capacity " + capacity);
+
+        Subscription subscription = new Subscription(subscriber, overflow, capacity);
+        for (Subscription other : subscriptions) {
+            if (other.subscriber == subscriber) {
+                subscriber.onSubscribe(subscription);
+                subscription.cancel();
+                subscriber.onError(new IllegalStateException("Already subscribed"));
+                return;
+            }
+        }
+        subscriber.onSubscribe(subscription);
+        synchronized (this) {
+            if (!closed) {
+                subscriptions.add(subscription);
+                return;
+            }
+        }
+        subscription.close(error);
+    }
+
+    /**
+     * Get the number of current subscribers
+     * @return the number of subscribers
+     */
+    public int getSubscriberNum() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Get the number of events dropped for a subscriber so far, because
+     * it fell behind
+     * @param subscriber The subscriber
+     * @return the number of events, or 0 if it is not subscribed
+     */
+    public long getDropped(Flow.Subscriber<? super EventSnapshot> subscriber) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.subscriber == subscriber)
+                return subscription.getDropped();
+        }
+        return 0;
+    }
+
+    /******************** Publishing ********************/
+
+    /**
+     * Queue a snapshot for every subscriber
+     * @param snapshot The snapshot
+     */
+    void submit(EventSnapshot snapshot) {
+        for (Subscription subscription : subscriptions) {
+            try {
+                subscription.offer(snapshot);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Tell the subscribers that no more events will come, once they
+     * have been delivered those already queued
+     * @param error Why, or null if the server went away or shut down
+     */
+    void close(Throwable error) {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            this.error = error;
+        }
+        for (Subscription subscription : subscriptions)
+            subscription.close(error);
+    }
+
+    /******************** Constructors ********************/
+
+    /**
+     * Create a publisher that delivers on the given threads
+     * @param executor The executor to run deliveries on; it needs as many
+     * threads as there are subscribers that are ever behind at once
+     */
+    public SnapshotPublisher(Executor executor) {
+        this.executor = executor;
+    }
+
+    /** Create a publisher that delivers on a pool of daemon threads */
+    public SnapshotPublisher() {
+        this(createExecutor());
+    }
+
+    static private ExecutorService createExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private int num = 0;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GCspy subscriber " + (num++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,202 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter.server;
+
+import java.io.IOException;
+
+/**
+ * Transmits event boundaries on a thread of its own.
+ * The thread that reaches an event boundary copies the data into one of
+ * two send buffers and returns; the sender thread encodes and transmits
+ * the buffer while the other one is being filled.
+ */
+class AsyncSender implements Runnable {
+
+    private ServerInterpreter interpreter;
+    private int mode;
+
+    private SendBuffer buffers[] = new SendBuffer[2];
+    private int freeNum;
+    /* filled, waiting for the sender thread */
+    private SendBuffer pending;
+    /* true while the sender thread transmits a buffer */
+    private boolean sending;
+
+    private boolean running;
+    private Thread thread;
+
+    private int droppedNum;
+    private int blockedNum;
+    private int coalescedNum;
+
+    /**
+     * Create an asynchronous sender
+     * @param interpreter The interpreter that transmits the buffers
+     * @param mode What to do when the sender is behind (one of
+     * <code>ServerInterpreter.SEND_ASYNC_DROP</code>,
+     * <code>ServerInterpreter.SEND_ASYNC_BLOCK</code>,
+     * <code>ServerInterpreter.SEND_ASYNC_COALESCE</code>)
+     * @param maxLen The buffer length
+     */
+    AsyncSender(ServerInterpreter interpreter, int mode, int maxLen) {
+        this.interpreter = interpreter;
+        this.mode = mode;
+        for (int i = 0; i < buffers.length; ++i)
+            buffers[i] = new SendBuffer(maxLen);
+        freeNum = buffers.length;
+    }
+
+    /** Start the sender thread */
+    synchronized void start() {
+        running = true;
+        thread = new Thread(this, "GCspy sender");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stop the sender thread, once it has sent what is pending */
+    void stop() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copy an event boundary and queue it for the sender thread
+     * @param eventID The event's ID
+     * @param elapsedTime The elapsed time for the event
+     * @param compensationTime The compensation time for the event
+     * @return false if the event was dropped
+     */
+    boolean submit(int eventID, int elapsedTime, int compensationTime) {
+        SendBuffer buffer;
+        boolean coalesce = false;
+        synchronized (this) {
+            // the sender is behind if it has not taken the previous event yet
+            if (pending != null) {
+                switch (mode) {
+                    case ServerInterpreter.SEND_ASYNC_DROP:
+                        ++droppedNum;
+                        return false;
+                    case ServerInterpreter.SEND_ASYNC_BLOCK:
+                        ++blockedNum;
+                        while (pending != null)
+                            waitUninterruptibly();
+                        break;
+                    case ServerInterpreter.SEND_ASYNC_COALESCE:
+                        ++coalescedNum;
+                        coalesce = true;
+                        break;
+                }
+            }
+            if (coalesce) {
+                buffer = pending;
+                pending = null;
+            } else {
+                buffer = buffers[--freeNum];
+            }
+        }
+
+        buffer.fill(interpreter, eventID, elapsedTime, compensationTime, coalesce);
+
+        synchronized (this) {
+            pending = buffer;
+            notifyAll();
+        }
+        return true;
+    }
+
+    /** Wait until everything queued has been sent */
+    synchronized void drain() {
+        while ((pending != null) || sending)
+            waitUninterruptibly();
+    }
+
+    /** Forget anything queued but not yet sent, e.g. for a new client */
+    synchronized void discard() {
+        if (pending != null) {
+            buffers[freeNum++] = pending;
+            pending = null;
+        }
+    }
+
+    private void waitUninterruptibly() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        while (true) {
+            SendBuffer buffer;
+            synchronized (this) {
+                while ((pending == null) && running)
+                    waitUninterruptibly();
+                if (pending == null)
+                    break;
+                buffer = pending;
+                pending = null;
+                sending = true;
+            }
+
+            try {
+                interpreter.transmit(buffer);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+
+            synchronized (this) {
+                buffers[freeNum++] = buffer;
+                sending = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Get the length of the event waiting for the sender thread
+     * @return the copied length in bytes, or 0 if none is waiting
+     */
+    synchronized int getPendingLen() {
+        return (pending != null) ? pending.len : 0;
+    }
+
+    /**
+     * Get the number of events dropped because the sender was behind
+     * @return the number of dropped events
+     */
+    synchronized int getDroppedNum() {
+        return droppedNum;
+    }
+
+    /**
+     * Get the number of event boundaries that waited for the sender
+     * @return the number of blocked events
+     */
+    synchronized int getBlockedNum() {
+        return blockedNum;
+    }
+
+    /**
+     * Get the number of events replaced by a later one before being sent
+     * @return the number of coalesced events
+     */
+    synchronized int getCoalescedNum() {
+        return coalescedNum;
+    }
+
+}
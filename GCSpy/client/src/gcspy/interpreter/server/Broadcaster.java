@@ -0,0 +1,236 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter.server;
+
+import gcspy.comm.BufferedOutput;
+import gcspy.comm.Client;
+import gcspy.interpreter.Capabilities;
+
+import java.util.ArrayList;
+
+/**
+ * Fans the frames of a broadcasting server out to its client sessions.
+ * Each frame is encoded once into a shared buffer, copied once, and
+ * queued on every session it is meant for.
+ * <p>
+ * The encoding of an event boundary depends on whether the client
+ * agreed to batching, stream deltas and packed arrays, so the sessions
+ * are grouped into profiles by those capabilities and each event is
+ * encoded once per profile in use. Compression is applied by each
+ * session as it writes. A session whose queue is longer than the limit at the start
+ * of an event misses the whole event, and gets the next one it is
+ * sent without deltas. A session that acknowledges events is also sent
+ * only one in every so many while it lags behind, as its LagThrottle
+ * decides.
+ * <p>
+ * Only used under the interpreter's send lock.
+ */
+class Broadcaster {
+
+    /* the capabilities that change how an event is encoded */
+    static private final int PROFILE_CAPABILITIES =
+            Capabilities.BATCHING | Capabilities.DELTA_STREAMS |
+            Capabilities.PACKED_ARRAYS;
+
+    /** The sessions an event is encoded for in one way */
+    static class Profile {
+        int capabilities;
+        /* what the sessions of this profile were last sent */
+        StreamDeltaEncoder deltas = new StreamDeltaEncoder();
+        ArrayList<ClientSession> sessions = new ArrayList<ClientSession>();
+
+        Profile(int capabilities) {
+            this.capabilities = capabilities;
+        }
+    }
+
+    private ArrayList<ClientSession> sessions = new ArrayList<ClientSession>();
+    private Profile profiles[] = new Profile[PROFILE_CAPABILITIES + 1];
+    private ArrayList<Profile> used = new ArrayList<Profile>();
+
+    /* the sessions frames are queued on; all of them if null */
+    private ArrayList<ClientSession> targets;
+    private ArrayList<ClientSession> single = new ArrayList<ClientSession>(1);
+
+    private byte buffer[];
+    /* the last BufferedOutput handed out, whose buffer may have grown */
+    private BufferedOutput output;
+    private int queueLen;
+    private int droppedNum;
+
+    /* the sessions whose sampling period changed in the last event */
+    private ArrayList<ClientSession> retuned = new ArrayList<ClientSession>();
+
+    /**
+     * Create a broadcaster
+     * @param maxLen The buffer length, which grows if a frame does not fit
+     * @param queueLen How long a session's queue may get before it misses events
+     */
+    Broadcaster(int maxLen, int queueLen) {
+        buffer = new byte[maxLen];
+        this.queueLen = queueLen;
+        for (int i = 0; i < profiles.length; ++i)
+            profiles[i] = new Profile(i);
+    }
+
+    /**
+     * Add a session, which is sent everything from now on
+     * @param session The session
+     */
+    void add(ClientSession session) {
+        sessions.add(session);
+    }
+
+    /* forget the sessions whose clients have gone */
+    private void prune() {
+        for (int i = sessions.size() - 1; i >= 0; --i)
+            if (sessions.get(i).isClosing())
+                sessions.remove(i);
+    }
+
+    /**
+     * Get the number of sessions
+     * @return the number of live sessions
+     */
+    int getSessionNum() {
+        prune();
+        return sessions.size();
+    }
+
+    /**
+     * Get how long a session's queue may get before it misses events
+     * @return the queue length in bytes
+     */
+    int getQueueLen() {
+        return queueLen;
+    }
+
+    /**
+     * Get the sessions whose sampling period changed during the last event
+     * @return the sessions, until the next event
+     */
+    ArrayList<ClientSession> getRetuned() {
+        return retuned;
+    }
+
+    /**
+     * Get the number of events that sessions missed because they were behind
+     * @return the number of dropped events, over all sessions
+     */
+    int getDroppedNum() {
+        return droppedNum;
+    }
+
+    /**
+     * Create a BufferedOutput to encode a frame in
+     * @return the BufferedOutput, over the shared buffer
+     */
+    BufferedOutput createBufferedOutput() {
+        output = new BufferedOutput(buffer, Client.MAX_MESSAGE_LEN);
+        return output;
+    }
+
+    /**
+     * Queue the frame in the shared buffer on the target sessions
+     * @param len The frame's length
+     */
+    void send(int len) {
+        buffer = output.getBuffer();
+        ArrayList<ClientSession> to = (targets == null) ? sessions : targets;
+        if (to.isEmpty())
+            return;
+        byte frame[] = new byte[len];
+        System.arraycopy(buffer, 0, frame, 0, len);
+        for (int i = 0; i < to.size(); ++i)
+            to.get(i).enqueue(frame);
+    }
+
+    /**
+     * Send frames to one session only, until targetAll() is called
+     * @param session The session
+     */
+    void target(ClientSession session) {
+        single.clear();
+        single.add(session);
+        targets = single;
+    }
+
+    /**
+     * Send frames to the sessions of a profile only
+     * @param profile The profile
+     */
+    void target(Profile profile) {
+        targets = profile.sessions;
+    }
+
+    /** Send frames to every session */
+    void targetAll() {
+        targets = null;
+    }
+
+    /**
+     * Start an event boundary
+     * @return the profiles to encode the event for
+     */
+    ArrayList<Profile> startEvent() {
+        prune();
+        for (int i = 0; i < profiles.length; ++i)
+            profiles[i].sessions.clear();
+        used.clear();
+        retuned.clear();
+
+        for (int i = 0; i < sessions.size(); ++i) {
+            ClientSession session = sessions.get(i);
+            LagThrottle throttle = session.getThrottle();
+            if (throttle != null) {
+                if (!throttle.offer()) {
+                    // sampled out while the client catches up
+                    session.resync = true;
+                    continue;
+                }
+                if (throttle.update(session.getQueuedLen()))
+                    retuned.add(session);
+            }
+            if (session.getQueuedLen() > queueLen) {
+                session.countDropped();
+                ++droppedNum;
+                session.resync = true;
+                continue;
+            }
+            int key = session.getCapabilities() & PROFILE_CAPABILITIES;
+            if (session.resync)
+                key &= ~Capabilities.DELTA_STREAMS;
+            Profile profile = profiles[key];
+            if (profile.sessions.isEmpty())
+                used.add(profile);
+            profile.sessions.add(session);
+        }
+        return used;
+    }
+
+    /** Finish an event boundary started by startEvent() */
+    void endEvent() {
+        for (int i = 0; i < profiles.length; ++i) {
+            Profile profile = profiles[i];
+            if (profile.sessions.isEmpty()) {
+                // its deltas would be against an event nobody was sent
+                profile.deltas.reset();
+            } else {
+                for (int j = 0; j < profile.sessions.size(); ++j) {
+                    ClientSession session = profile.sessions.get(j);
+                    session.resync = false;
+                    if (session.getThrottle() != null)
+                        session.getThrottle().sent();
+                }
+            }
+            profile.sessions.clear();
+        }
+        targets = null;
+    }
+
+}
@@ -0,0 +1,162 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter.server;
+
+import gcspy.comm.Client;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * One of the clients of a broadcasting server.
+ * Frames encoded for the session are queued and written to the client
+ * by a thread of its own, so a slow client only holds up itself.
+ */
+class ClientSession implements Runnable {
+
+    private Client client;
+    private int capabilities;
+    private LagThrottle throttle;
+
+    /*
+     * true until the session has been sent a whole event, so that it
+     * gets the next one without stream deltas; only used under the
+     * interpreter's send lock
+     */
+    boolean resync = true;
+
+    private ArrayDeque<byte[]> queue = new ArrayDeque<byte[]>();
+    private int queuedLen;
+    /* no more frames are queued, close once the queue is empty */
+    private boolean closing;
+
+    private int droppedNum;
+
+    /**
+     * Create a session
+     * @param client The client, after the handshake
+     * @param capabilities The capabilities agreed with it
+     * @param throttle The throttle, or null if the client does not
+     * acknowledge events
+     */
+    ClientSession(Client client, int capabilities, LagThrottle throttle) {
+        this.client = client;
+        this.capabilities = capabilities;
+        this.throttle = throttle;
+    }
+
+    /** Start the thread that writes to the client */
+    void start() {
+        Thread thread = new Thread(this, "GCspy client sender");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get the capabilities agreed with the client
+     * @return the capabilities
+     */
+    int getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Get the throttle that samples events while the client lags
+     * @return the throttle, or null if the client does not acknowledge events
+     */
+    LagThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Queue a frame for the client
+     * @param frame The frame, which is shared with other sessions
+     */
+    synchronized void enqueue(byte frame[]) {
+        if (closing)
+            return;
+        queue.add(frame);
+        queuedLen += frame.length;
+        notifyAll();
+    }
+
+    /**
+     * Get the length of the frames queued but not yet written
+     * @return the queued length in bytes
+     */
+    synchronized int getQueuedLen() {
+        return queuedLen;
+    }
+
+    /** Count an event that was not queued because the client is behind */
+    synchronized void countDropped() {
+        ++droppedNum;
+    }
+
+    /**
+     * Get the number of events not sent to the client because it was behind
+     * @return the number of dropped events
+     */
+    synchronized int getDroppedNum() {
+        return droppedNum;
+    }
+
+    /** Queue nothing more and close the client once the queue is written */
+    synchronized void closeWhenSent() {
+        closing = true;
+        notifyAll();
+    }
+
+    /**
+     * Has the session stopped accepting frames?
+     * @return true if the session is closing or closed
+     */
+    synchronized boolean isClosing() {
+        return closing;
+    }
+
+    private synchronized byte[] take() {
+        while (queue.isEmpty() && !closing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return queue.poll();
+    }
+
+    private synchronized void sent(byte frame[]) {
+        queuedLen -= frame.length;
+    }
+
+    public void run() {
+        try {
+            byte frame[];
+            while ((frame = take()) != null) {
+                client.send(frame);
+                sent(frame);
+            }
+        } catch (IOException e) {
+            // the client has gone; its receiving thread will notice too
+        } finally {
+            synchronized (this) {
+                closing = true;
+                queue.clear();
+                queuedLen = 0;
+            }
+            try {
+                client.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+}
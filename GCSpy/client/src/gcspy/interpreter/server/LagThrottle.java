@@ -0,0 +1,118 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter.server;
+
+import gcspy.interpreter.EventFilters;
+
+/**
+ * Decides how many events to skip while a client lags behind.
+ * The client acknowledges every event it has processed; the events sent
+ * but not yet acknowledged, and the bytes still queued for the client,
+ * say how far behind it is. The sampling period doubles when the
+ * client is behind at the point an event is sent, but not again until
+ * the client has processed the events sent before the last change, so
+ * that the change had a chance to take effect, unless the client has
+ * fallen twice as far behind meanwhile. It halves again once the
+ * client has kept up for a few events in a row.
+ * <p>
+ * Events are sent and the period updated under the interpreter's send
+ * lock; acknowledgements arrive on the thread that reads the client.
+ */
+class LagThrottle {
+
+    /* more events than this in flight and the client is behind */
+    static private final int MAX_IN_FLIGHT = 2;
+    /* events in a row the client must keep up with before speeding up */
+    static private final int CALM_EVENTS = 4;
+
+    private int queueLimit;
+
+    private volatile int period = 1;
+    private int offeredNum;
+    private int calmNum;
+    /* the events sent, and in flight, when the period was last raised */
+    private int raisedAt;
+    private int raisedInFlight;
+
+    /* the events sent to the client, and those it has acknowledged */
+    private int sentNum;
+    private volatile int ackedNum;
+
+    /**
+     * Create a throttle
+     * @param queueLimit The queued bytes beyond which the client is behind
+     */
+    LagThrottle(int queueLimit) {
+        this.queueLimit = queueLimit;
+    }
+
+    /**
+     * Get the sampling period
+     * @return 1 if every event is sent, n if one in n is
+     */
+    int getPeriod() {
+        return period;
+    }
+
+    /**
+     * Record the client's acknowledgement
+     * @param ackedNum The number of events the client has processed
+     */
+    void acknowledge(int ackedNum) {
+        this.ackedNum = ackedNum;
+    }
+
+    /**
+     * Get the number of events sent but not yet acknowledged
+     * @return the events in flight
+     */
+    int getInFlight() {
+        return sentNum - ackedNum;
+    }
+
+    /**
+     * Offer an event, for throttles that skip events themselves rather
+     * than through the event filter periods
+     * @return true if the event should be sent
+     */
+    boolean offer() {
+        return (offeredNum++ % period) == 0;
+    }
+
+    /** Record that an event was sent */
+    void sent() {
+        ++sentNum;
+    }
+
+    /**
+     * Update the period before an event is sent
+     * @param queuedLen The bytes queued for the client, if known
+     * @return true if the period changed
+     */
+    boolean update(int queuedLen) {
+        int oldPeriod = period;
+        int inFlight = getInFlight();
+        if ((inFlight > MAX_IN_FLIGHT) || (queuedLen > queueLimit)) {
+            if ((ackedNum >= raisedAt) || (inFlight >= 2 * raisedInFlight)) {
+                period = Math.min(2 * period, EventFilters.PERIOD_MAX);
+                raisedAt = sentNum;
+                raisedInFlight = inFlight;
+            }
+            calmNum = 0;
+        } else if ((inFlight <= 1) && (period > 1)) {
+            if (++calmNum >= CALM_EVENTS) {
+                period /= 2;
+                calmNum = 0;
+            }
+        }
+        if (period != oldPeriod)
+            offeredNum = 0;
+        return period != oldPeriod;
+    }
+
+}
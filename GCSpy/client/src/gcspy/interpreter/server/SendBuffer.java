@@ -0,0 +1,203 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter.server;
+
+import gcspy.comm.BufferedOutput;
+import gcspy.comm.Client;
+import gcspy.interpreter.Stream;
+
+/**
+ * A copy of everything the server transmits at an event boundary,
+ * taken so that it can be sent after the boundary has returned.
+ * The arrays are kept from one event to the next and only
+ * reallocated when their lengths change.
+ */
+class SendBuffer {
+
+    /** The part of the copy that belongs to one space */
+    static class SpaceBuffer {
+        /** The serialised space if it changed, otherwise null */
+        byte serialised[];
+
+        int dataType[];
+        /** The stream data, null for a stream without data */
+        Object data[];
+        int dataLen[];
+        int summary[][];
+        boolean hasSummary[];
+
+        String spaceInfo;
+        byte control[];
+    }
+
+    int eventID;
+    int elapsedTime;
+    int compensationTime;
+    int eventCount[];
+
+    int spaceNum;
+    SpaceBuffer spaces[] = new SpaceBuffer[0];
+
+    /** The bytes copied, which is about what the event will take to send */
+    int len;
+
+    private byte spaceBuffer[];
+    private int maxLen;
+
+    /**
+     * Create a send buffer
+     * @param maxLen The length of the buffer spaces are serialised in,
+     *               which grows if a space does not fit
+     */
+    SendBuffer(int maxLen) {
+        this.maxLen = maxLen;
+    }
+
+    static private int[] copy(int src[], int dst[]) {
+        if ((dst == null) || (dst.length != src.length))
+            dst = new int[src.length];
+        System.arraycopy(src, 0, dst, 0, src.length);
+        return dst;
+    }
+
+    static private byte[] copy(byte src[], byte dst[]) {
+        if ((dst == null) || (dst.length != src.length))
+            dst = new byte[src.length];
+        System.arraycopy(src, 0, dst, 0, src.length);
+        return dst;
+    }
+
+    static private Object copy(int dataType, Object src, int len, Object dst) {
+        switch (dataType) {
+            case Stream.BYTE_TYPE:
+                if ((dst == null) || (((byte[]) dst).length != len))
+                    dst = new byte[len];
+                break;
+            case Stream.SHORT_TYPE:
+                if ((dst == null) || (((short[]) dst).length != len))
+                    dst = new short[len];
+                break;
+            case Stream.INT_TYPE:
+                if ((dst == null) || (((int[]) dst).length != len))
+                    dst = new int[len];
+                break;
+        }
+        System.arraycopy(src, 0, dst, 0, len);
+        return dst;
+    }
+
+    static private int elementLen(int dataType) {
+        switch (dataType) {
+            case Stream.SHORT_TYPE:
+                return 2;
+            case Stream.INT_TYPE:
+                return 4;
+        }
+        return 1;
+    }
+
+    static private int arrayLength(int dataType, Object array) {
+        switch (dataType) {
+            case Stream.BYTE_TYPE:
+                return ((byte[]) array).length;
+            case Stream.SHORT_TYPE:
+                return ((short[]) array).length;
+            case Stream.INT_TYPE:
+                return ((int[]) array).length;
+        }
+        return 0;
+    }
+
+    private void fillSpace(ServerSpace space, SpaceBuffer buffer,
+                           boolean coalesce) {
+        if (space.hasChanged()) {
+            if (spaceBuffer == null)
+                spaceBuffer = new byte[maxLen];
+            BufferedOutput output =
+                    new BufferedOutput(spaceBuffer, Client.MAX_MESSAGE_LEN);
+            space.serialise(output);
+            spaceBuffer = output.getBuffer();
+            // the serialised space is rare enough to copy out
+            buffer.serialised = new byte[output.getLen()];
+            System.arraycopy(spaceBuffer, 0, buffer.serialised, 0, output.getLen());
+            space.unflagChanged();
+        } else if (!coalesce) {
+            buffer.serialised = null;
+        }
+
+        int streamNum = space.getStreamNum();
+        if ((buffer.data == null) || (buffer.data.length != streamNum)) {
+            buffer.dataType = new int[streamNum];
+            buffer.data = new Object[streamNum];
+            buffer.dataLen = new int[streamNum];
+            buffer.summary = new int[streamNum][];
+            buffer.hasSummary = new boolean[streamNum];
+        }
+        for (int j = 0; j < streamNum; ++j) {
+            Stream stream = space.getStream(j);
+            Object data = stream.getData();
+            int dataType = stream.getDataType();
+            if (data == null) {
+                buffer.data[j] = null;
+                continue;
+            }
+            int len = space.getTilesToSend();
+            if (len == 0)
+                len = arrayLength(dataType, data);
+            if (buffer.dataType[j] != dataType)
+                buffer.data[j] = null;
+            buffer.dataType[j] = dataType;
+            buffer.data[j] = copy(dataType, data, len, buffer.data[j]);
+            buffer.dataLen[j] = len;
+            this.len += len * elementLen(dataType);
+
+            int summary[] = stream.getSummary();
+            buffer.hasSummary[j] = (summary != null);
+            if (summary != null) {
+                buffer.summary[j] = copy(summary, buffer.summary[j]);
+                this.len += 4 * summary.length;
+            }
+        }
+
+        buffer.spaceInfo = space.getSpaceInfo();
+        buffer.control = copy(space.getControl(), buffer.control);
+        this.len += buffer.control.length;
+        if (buffer.serialised != null)
+            this.len += buffer.serialised.length;
+    }
+
+    /**
+     * Copy everything sent at an event boundary
+     * @param interpreter The interpreter to copy from
+     * @param eventID The event's ID
+     * @param elapsedTime The elapsed time for the event
+     * @param compensationTime The compensation time for the event
+     * @param coalesce Whether this buffer still holds an unsent event,
+     * whose space definitions must not be lost
+     */
+    void fill(ServerInterpreter interpreter, int eventID, int elapsedTime,
+              int compensationTime, boolean coalesce) {
+        this.eventID = eventID;
+        this.elapsedTime = elapsedTime;
+        this.compensationTime = compensationTime;
+        eventCount = copy(interpreter.getEventCount(), eventCount);
+        len = 4 * eventCount.length;
+
+        spaceNum = interpreter.getSpaceNum();
+        if (spaces.length < spaceNum) {
+            SpaceBuffer tmp[] = spaces;
+            spaces = new SpaceBuffer[spaceNum];
+            System.arraycopy(tmp, 0, spaces, 0, tmp.length);
+            for (int i = tmp.length; i < spaceNum; ++i)
+                spaces[i] = new SpaceBuffer();
+        }
+        for (int i = 0; i < spaceNum; ++i)
+            fillSpace(interpreter.getServerSpace(i), spaces[i], coalesce);
+    }
+
+}
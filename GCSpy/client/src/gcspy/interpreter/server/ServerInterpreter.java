@@ -15,6 +15,7 @@ import gcspy.utils.Utils;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 
 /**
  * The server interpreter
@@ -23,11 +24,51 @@ import java.io.OutputStream;
  */
 public class ServerInterpreter extends Interpreter implements Runnable {
 
+    /** Transmit on the thread that reaches the event boundary */
+    static public final int SEND_SYNC = 0;
+    /** Transmit on a sender thread, dropping events while it is behind */
+    static public final int SEND_ASYNC_DROP = 1;
+    /** Transmit on a sender thread, waiting for it while it is behind */
+    static public final int SEND_ASYNC_BLOCK = 2;
+    /**
+     * Transmit on a sender thread, replacing the event it has not
+     * started sending yet while it is behind
+     */
+    static public final int SEND_ASYNC_COALESCE = 3;
+
     private Server server;
     private int maxLen;
 
     private boolean connected;
 
+    // serve any number of clients at once
+    private boolean broadcast;
+    private int clientQueueLen;
+    private Broadcaster broadcaster;
+    // only one client's commands are executed at a time
+    private final Object commandLock = new Object();
+    private ClientSession currentSession;
+    // whether a client that joins is sent the last event straight away
+    private boolean replayLastEvent;
+    private int lastEventID = -1;
+    private int lastElapsedTime;
+    private int lastCompensationTime;
+
+    // sends fewer events while the client lags, if it acknowledges them
+    private volatile LagThrottle throttle;
+
+    // the frame that commands are packed into during an event boundary
+    private boolean batching;
+    private BufferedOutput batch;
+
+    private StreamDeltaEncoder deltas = new StreamDeltaEncoder();
+    private ArrayPacker packer = new ArrayPacker();
+
+    // only one thread at a time may talk to the client
+    private final Object sendLock = new Object();
+    private int sendMode = SEND_SYNC;
+    private AsyncSender sender;
+
     private boolean paused;
     private boolean pauseNow;
 
@@ -55,6 +96,138 @@ public class ServerInterpreter extends Interpreter implements Runnable {
         return (ServerSpace) getSpace(i);
     }
 
+    /**
+     * Get the number of events dropped because the sender thread was behind
+     *
+     * @return the number of dropped events
+     */
+    public int getDroppedEventNum() {
+        int droppedNum = (sender == null) ? 0 : sender.getDroppedNum();
+        if (broadcaster != null) {
+            synchronized (sendLock) {
+                droppedNum += broadcaster.getDroppedNum();
+            }
+        }
+        return droppedNum;
+    }
+
+    /**
+     * Get the sampling period the server has fallen back to because the
+     * client lags behind. When broadcasting, each client has a period of
+     * its own and this is always 1.
+     *
+     * @return 1 if every event the filters pass is sent, n if one in n is
+     */
+    public int getSamplingPeriod() {
+        LagThrottle throttle = this.throttle;
+        return (throttle == null) ? 1 : throttle.getPeriod();
+    }
+
+    /**
+     * Get the number of event boundaries that waited for the sender thread
+     *
+     * @return the number of blocked events
+     */
+    public int getBlockedEventNum() {
+        return (sender == null) ? 0 : sender.getBlockedNum();
+    }
+
+    /**
+     * Get the number of events replaced by a later one before the sender
+     * thread got to them
+     *
+     * @return the number of coalesced events
+     */
+    public int getCoalescedEventNum() {
+        return (sender == null) ? 0 : sender.getCoalescedNum();
+    }
+
+    /**
+     * Set how event boundaries are transmitted.
+     * In the asynchronous modes the event boundary only copies the data
+     * to send, and a sender thread encodes and transmits it, so the
+     * thread reaching the boundary does not wait for the network.
+     *
+     * @param sendMode one of <code>SEND_SYNC</code>, <code>SEND_ASYNC_DROP</code>,
+     *                 <code>SEND_ASYNC_BLOCK</code>, <code>SEND_ASYNC_COALESCE</code>
+     */
+    public void setSendMode(int sendMode) {
+        if ((sendMode < SEND_SYNC) || (sendMode > SEND_ASYNC_COALESCE))
+            throw new IllegalArgumentException("Unknown send mode: " + sendMode);
+        this.sendMode = sendMode;
+        if (server != null)
+            startSender();
+    }
+
+    /**
+     * Get the number of clients connected
+     *
+     * @return the number of clients
+     */
+    public int getClientNum() {
+        if (broadcaster == null)
+            return isConnected() ? 1 : 0;
+        synchronized (sendLock) {
+            return broadcaster.getSessionNum();
+        }
+    }
+
+    /**
+     * Serve any number of clients at once, rather than one at a time.
+     * Each client that connects is sent the current state and then every
+     * event, alongside the others. Frames are queued per client and
+     * written by a thread per client, so a slow client does not hold up
+     * the others or the event boundary; it misses events instead.
+     * Any client can pause and restart the server, and the event filters
+     * are the ones last sent by any client.
+     * Must be called before the server is started.
+     *
+     * @param broadcast Whether to serve many clients
+     */
+    public void setBroadcast(boolean broadcast) {
+        if (server != null)
+            throw new IllegalStateException("Server already started");
+        this.broadcast = broadcast;
+    }
+
+    /**
+     * Set how many bytes may be queued for a client of a broadcasting
+     * server before it misses events.
+     * The default is twice the buffer length.
+     * Must be called before the server is started.
+     *
+     * @param clientQueueLen The queue length in bytes
+     */
+    public void setClientQueueLen(int clientQueueLen) {
+        if (server != null)
+            throw new IllegalStateException("Server already started");
+        this.clientQueueLen = clientQueueLen;
+    }
+
+    /**
+     * Send a client that joins a broadcasting server the data of the
+     * last event as well as the spaces, so that it has something to show
+     * before the next event. The data is taken from the spaces when the
+     * client joins, so it should be replaced, rather than changed in
+     * place, between event boundaries.
+     *
+     * @param replayLastEvent Whether to send the last event
+     */
+    public void setReplayLastEvent(boolean replayLastEvent) {
+        this.replayLastEvent = replayLastEvent;
+    }
+
+    private void startSender() {
+        if (sender != null) {
+            sender.stop();
+            sender = null;
+        }
+        if (sendMode != SEND_SYNC) {
+            sender = new AsyncSender(this, sendMode, maxLen);
+            sender.start();
+        }
+    }
+
     /**
      * ***************** Utilities *******************
      */
@@ -71,6 +244,87 @@ public class ServerInterpreter extends Interpreter implements Runnable {
         return 0;
     }
 
+    /*
+     * Create a BufferedOutput for a frame, for the client or, when
+     * broadcasting, for the sessions being sent to
+     */
+    private BufferedOutput createOutput() {
+        if (broadcaster == null)
+            return client.createBufferedOutput();
+        return broadcaster.createBufferedOutput();
+    }
+
+    /*
+     * Send the frame of the last createOutput()
+     */
+    private void sendFrame(int len) throws IOException {
+        if (broadcaster == null)
+            client.send(len);
+        else
+            broadcaster.send(len);
+    }
+
+    private void sendCommand(byte cmd) throws IOException {
+        BufferedOutput output = createOutput();
+
+        start(output);
+        putCmd(output, cmd);
+        finish(output);
+        sendFrame(output.getLen());
+    }
+
+    /*
+     * Start a command that needs at most sizeBound bytes.
+     * Outside an event boundary, or if batching was not agreed, each
+     * command gets its own frame; otherwise it is appended to the current
+     * batch, which is sent first if the command would not fit.
+     */
+    private BufferedOutput startCommand(int sizeBound) throws IOException {
+        if (!batching) {
+            BufferedOutput output = createOutput();
+            start(output);
+            return output;
+        }
+        if ((batch != null) &&
+                (batch.getLen() + sizeBound + FINISH_LEN > maxLen))
+            flushBatch();
+        if (batch == null) {
+            batch = createOutput();
+            start(batch);
+        }
+        return batch;
+    }
+
+    /*
+     * Finish a command started by startCommand
+     */
+    private void endCommand(BufferedOutput output) throws IOException {
+        if (output != batch) {
+            finish(output);
+            sendFrame(output.getLen());
+        }
+    }
+
+    /*
+     * Send the commands batched so far, if any
+     */
+    private void flushBatch() throws IOException {
+        if (batch != null) {
+            finish(batch);
+            sendFrame(batch.getLen());
+            batch = null;
+        }
+    }
+
+    private void startBatch() {
+        batching = hasCapability(Capabilities.BATCHING);
+    }
+
+    private void endBatch() throws IOException {
+        flushBatch();
+        batching = false;
+    }
+
     /**
      * Add a server space to the interpreter
      *
@@ -94,12 +348,29 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      * @throws IOException
      */
     public void transmitStreams() throws IOException {
+        transmitStreams(takeChangedSpaces());
+    }
+
+    /*
+     * Find the spaces that changed since they were last sent,
+     * and unflag them
+     */
+    private boolean[] takeChangedSpaces() {
+        boolean changed[] = new boolean[spaceNum];
         for (int i = 0; i < spaceNum; ++i) {
             ServerSpace space = getServerSpace(i);
-            if (space.hasChanged()) {
-                sendSpace(space);
+            changed[i] = space.hasChanged();
+            if (changed[i])
                 space.unflagChanged();
-            }
+        }
+        return changed;
+    }
+
+    private void transmitStreams(boolean changed[]) throws IOException {
+        for (int i = 0; i < spaceNum; ++i) {
+            ServerSpace space = getServerSpace(i);
+            if (changed[i])
+                sendSpace(space);
             for (int j = 0; j < space.getStreamNum(); ++j) {
                 Stream stream = space.getStream(j);
                 Object data = stream.getData();
@@ -145,7 +416,10 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      * @throws IOException
      */
     public void sendPause() throws IOException {
-        sendSingleCommand(PAUSE_CMD);
+        synchronized (sendLock) {
+            if (canSend())
+                sendCommand(PAUSE_CMD);
+        }
     }
 
     /**
@@ -174,7 +448,21 @@ public class ServerInterpreter extends Interpreter implements Runnable {
 
     private class ShutdownReqCmd implements Command {
         public void execute(BufferedInput input, OutputStream os) {
-            shutdownReq = true;
+            if (currentSession != null) {
+                // only the client that asked is shut down
+                try {
+                    synchronized (sendLock) {
+                        broadcaster.target(currentSession);
+                        sendCommand(SHUTDOWN_CMD);
+                        broadcaster.targetAll();
+                    }
+                } catch (IOException e) {
+                    // not possible, the frame is only queued
+                }
+                currentSession.closeWhenSent();
+            } else {
+                shutdownReq = true;
+            }
         }
     }
 
@@ -194,7 +482,10 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      * @throws IOException
      */
     public void sendShutdown() throws IOException {
-        sendSingleCommand(SHUTDOWN_CMD);
+        synchronized (sendLock) {
+            if (canSend())
+                sendCommand(SHUTDOWN_CMD);
+        }
     }
 
     /**
@@ -233,9 +524,26 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      */
     public void sendStream(int spaceID, int streamID, int dataType, Object data,
                            int len) throws IOException {
-        BufferedOutput output = client.createBufferedOutput();
+        int bits = packedBits(spaceID, streamID, dataType, data, len);
+        int packedSize = (bits > 0) ? ArrayPacker.packedSize(len, bits) : -1;
+
+        if (hasCapability(Capabilities.DELTA_STREAMS)) {
+            int size = deltas.encodedSize(spaceID, streamID, dataType, data, len);
+            deltas.remember(spaceID, streamID, dataType, data, len);
+            if ((size >= 0) && ((packedSize < 0) || (size <= packedSize))) {
+                sendStreamDelta(spaceID, streamID, dataType, data, len, size);
+                return;
+            }
+        }
+
+        if (packedSize >= 0) {
+            sendStreamPacked(spaceID, streamID, (byte[]) data, len, bits,
+                    packedSize);
+            return;
+        }
+
+        BufferedOutput output = startCommand(8 + 4 * len);
 
-        start(output);
         putCmd(output, STREAM_CMD);
         output.writeByte((byte) spaceID);
         output.writeByte((byte) streamID);
@@ -250,9 +558,71 @@ public class ServerInterpreter extends Interpreter implements Runnable {
                 output.writeIntArray((int[]) data, len);
                 break;
         }
-        finish(output);
+        endCommand(output);
+    }
 
-        client.send(output);
+    /**
+     * ** STREAM DELTA ****
+     */
+
+    private class StreamDeltaCmd implements Command {
+        public void execute(BufferedInput input, OutputStream os) {
+            throw new InterpreterException("STREAM DELTA Command not implemented");
+        }
+    }
+
+    /*
+     * Send the tiles of a stream that changed since it was last sent
+     */
+    private void sendStreamDelta(int spaceID, int streamID, int dataType,
+                                 Object data, int len, int size)
+            throws IOException {
+        BufferedOutput output = startCommand(3 + size);
+
+        putCmd(output, STREAM_DELTA_CMD);
+        output.writeByte((byte) spaceID);
+        output.writeByte((byte) streamID);
+        deltas.writeDelta(output, dataType, data, len);
+        endCommand(output);
+    }
+
+    /**
+     * ** STREAM PACKED ****
+     */
+
+    private class StreamPackedCmd implements Command {
+        public void execute(BufferedInput input, OutputStream os) {
+            throw new InterpreterException("STREAM PACKED Command not implemented");
+        }
+    }
+
+    /*
+     * The number of bits per tile a stream can be packed into,
+     * or 0 if it should be sent as it is
+     */
+    private int packedBits(int spaceID, int streamID, int dataType,
+                           Object data, int len) {
+        if (!hasCapability(Capabilities.PACKED_ARRAYS) || (dataType != Stream.BYTE_TYPE))
+            return 0;
+        Stream stream = getServerSpace(spaceID).getStream(streamID);
+        if (stream.getMinValue() < 0)
+            return 0;
+        return ArrayPacker.packedBits((byte[]) data, len, stream.getMaxValue());
+    }
+
+    /*
+     * Send a byte stream with each tile packed into a few bits
+     */
+    private void sendStreamPacked(int spaceID, int streamID, byte data[],
+                                  int len, int bits, int size)
+            throws IOException {
+        BufferedOutput output = startCommand(3 + size);
+
+        putCmd(output, STREAM_PACKED_CMD);
+        output.writeByte((byte) spaceID);
+        output.writeByte((byte) streamID);
+        packer.writePacked(output, data, len, bits);
+        endCommand(output);
     }
 
     /**
@@ -275,16 +645,13 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      */
     public void sendEvent(int eventID, int elapsedTime, int compensationTime)
             throws IOException {
-        BufferedOutput output = client.createBufferedOutput();
+        BufferedOutput output = startCommand(10);
 
-        start(output);
         putCmd(output, EVENT_CMD);
         output.writeByte((byte) eventID);
         output.writeInt(elapsedTime);
         output.writeInt(compensationTime);
-        finish(output);
-
-        client.send(output);
+        endCommand(output);
     }
 
     /**
@@ -305,15 +672,124 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      * @throws IOException
      */
     public void sendControl(int spaceID, byte control[]) throws IOException {
-        BufferedOutput output = client.createBufferedOutput();
+        if (hasCapability(Capabilities.PACKED_ARRAYS)) {
+            int size = ArrayPacker.runLengthSize(control, control.length);
+            if (size < 4 + control.length) {
+                sendControlRunLength(spaceID, control, size);
+                return;
+            }
+        }
+
+        BufferedOutput output = startCommand(6 + control.length);
 
-        start(output);
         putCmd(output, CONTROL_CMD);
         output.writeByte((byte) spaceID);
         output.writeByteArray(control);
+        endCommand(output);
+    }
+
+    /**
+     * ** CONTROL RLE ****
+     */
+
+    private class ControlRunLengthCmd implements Command {
+        public void execute(BufferedInput input, OutputStream os) {
+            throw new InterpreterException("CONTROL RLE Command not implemented");
+        }
+    }
+
+    /*
+     * Send a control stream as runs of the same controls
+     */
+    private void sendControlRunLength(int spaceID, byte control[], int size)
+            throws IOException {
+        BufferedOutput output = startCommand(2 + size);
+
+        putCmd(output, CONTROL_RLE_CMD);
+        output.writeByte((byte) spaceID);
+        ArrayPacker.writeRunLength(output, control, control.length);
+        endCommand(output);
+    }
+
+    /**
+     * ** EVENT ACK ****
+     */
+
+    private class EventAckCmd implements Command {
+        public void execute(BufferedInput input, OutputStream os) {
+            int ackedNum = input.readInt();
+            LagThrottle throttle = (currentSession != null) ?
+                    currentSession.getThrottle() : ServerInterpreter.this.throttle;
+            if (throttle != null)
+                throttle.acknowledge(ackedNum);
+        }
+    }
+
+    /**
+     * ** SAMPLING ****
+     */
+
+    private class SamplingCmd implements Command {
+        public void execute(BufferedInput input, OutputStream os) {
+            throw new InterpreterException("SAMPLING Command not implemented");
+        }
+    }
+
+    /*
+     * Tell the client the sampling period it is being sent events at
+     */
+    private void sendSampling(int period) throws IOException {
+        BufferedOutput output = createOutput();
+
+        start(output);
+        putCmd(output, SAMPLING_CMD);
+        output.writeInt(period);
         finish(output);
+        sendFrame(output.getLen());
+    }
 
-        client.send(output);
+    /**
+     * ** PING ****
+     */
+
+    private class PingCmd implements Command {
+        public void execute(BufferedInput input, OutputStream os) throws IOException {
+            int num = input.readInt();
+            synchronized (sendLock) {
+                // only the client that pinged is answered
+                if (currentSession != null)
+                    broadcaster.target(currentSession);
+                try {
+                    sendPong(num);
+                } finally {
+                    if (currentSession != null)
+                        broadcaster.targetAll();
+                }
+            }
+        }
+    }
+
+    /*
+     * Answer a ping with the same number
+     */
+    private void sendPong(int num) throws IOException {
+        BufferedOutput output = createOutput();
+
+        start(output);
+        putCmd(output, PONG_CMD);
+        output.writeInt(num);
+        finish(output);
+        sendFrame(output.getLen());
+    }
+
+    /**
+     * ** PONG ****
+     */
+
+    private class PongCmd implements Command {
+        public void execute(BufferedInput input, OutputStream os) {
+            throw new InterpreterException("PONG Command not implemented");
+        }
     }
 
     /**
@@ -361,14 +837,15 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      * @throws IOException
      */
     public void sendEventCount() throws IOException {
-        BufferedOutput output = client.createBufferedOutput();
+        sendEventCount(eventCount);
+    }
 
-        start(output);
-        putCmd(output, EVENT_COUNT_CMD);
-        output.writeIntArray(eventCount);
-        finish(output);
+    private void sendEventCount(int counts[]) throws IOException {
+        BufferedOutput output = startCommand(5 + 4 * counts.length);
 
-        client.send(output);
+        putCmd(output, EVENT_COUNT_CMD);
+        output.writeIntArray(counts);
+        endCommand(output);
     }
 
     /**
@@ -391,9 +868,9 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      */
     public void sendSummary(int spaceID, int streamID, int summary[])
             throws IOException {
-        BufferedOutput output = client.createBufferedOutput();
+        BufferedOutput output =
+                startCommand(7 + ((summary == null) ? 0 : 4 * summary.length));
 
-        start(output);
         putCmd(output, SUMMARY_CMD);
         output.writeByte((byte) spaceID);
         output.writeByte((byte) streamID);
@@ -401,9 +878,7 @@ public class ServerInterpreter extends Interpreter implements Runnable {
             output.writeEmptyArray();
         else
             output.writeIntArray(summary);
-        finish(output);
-
-        client.send(output);
+        endCommand(output);
     }
 
     /**
@@ -424,15 +899,13 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      * @throws IOException
      */
     public void sendSpaceInfo(int spaceID, String spaceInfo) throws IOException {
-        BufferedOutput output = client.createBufferedOutput();
+        // no character takes more than 3 bytes once encoded
+        BufferedOutput output = startCommand(3 + 3 * spaceInfo.length());
 
-        start(output);
         putCmd(output, SPACE_INFO_CMD);
         output.writeByte((byte) spaceID);
         output.writeString(spaceInfo);
-        finish(output);
-
-        client.send(output);
+        endCommand(output);
     }
 
     /**
@@ -452,13 +925,136 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      * @throws IOException
      */
     public void sendSpace(Space space) throws IOException {
-        BufferedOutput output = client.createBufferedOutput();
+        // a space can be as large as a frame, so it always goes on its own
+        flushBatch();
+        // the client starts the new space without data
+        deltas.forgetSpace(space.getID());
+        BufferedOutput output = createOutput();
 
         start(output);
         putCmd(output, SPACE_CMD);
         space.serialise(output);
         finish(output);
-        client.send(output);
+        sendFrame(output.getLen());
+    }
+
+    /*
+     * Send a space serialised earlier by a SendBuffer
+     */
+    private void sendSpace(int spaceID, byte serialised[]) throws IOException {
+        flushBatch();
+        deltas.forgetSpace(spaceID);
+        BufferedOutput output = createOutput();
+
+        start(output);
+        putCmd(output, SPACE_CMD);
+        output.writeBytes(serialised, 0, serialised.length);
+        finish(output);
+        sendFrame(output.getLen());
+    }
+
+    /**
+     * Transmit an event boundary copied by a SendBuffer
+     *
+     * @param buffer The copy
+     * @throws IOException
+     */
+    void transmit(SendBuffer buffer) throws IOException {
+        synchronized (sendLock) {
+            if (canSend())
+                sendEventBoundary(buffer, null, 0, 0, 0);
+        }
+    }
+
+    /*
+     * Send an event boundary, either from a SendBuffer or, if buffer is
+     * null, from the spaces themselves. When broadcasting, it is encoded
+     * once for each profile of the sessions, with the capabilities and
+     * stream deltas of that profile.
+     */
+    private void sendEventBoundary(SendBuffer buffer, boolean changed[],
+                                   int eventID, int elapsedTime,
+                                   int compensationTime) throws IOException {
+        if (broadcaster == null) {
+            LagThrottle throttle = this.throttle;
+            // an event waiting for the sender thread is the backlog
+            AsyncSender sender = this.sender;
+            int queuedLen = (sender != null) ? sender.getPendingLen() : 0;
+            boolean retuned = (throttle != null) && throttle.update(queuedLen);
+            encodeEventBoundary(buffer, changed, eventID, elapsedTime,
+                    compensationTime);
+            if (throttle != null)
+                throttle.sent();
+            if (retuned)
+                sendSampling(throttle.getPeriod());
+            return;
+        }
+
+        if (buffer == null) {
+            lastEventID = eventID;
+            lastElapsedTime = elapsedTime;
+            lastCompensationTime = compensationTime;
+        } else {
+            lastEventID = buffer.eventID;
+            lastElapsedTime = buffer.elapsedTime;
+            lastCompensationTime = buffer.compensationTime;
+        }
+
+        int agreed = capabilities;
+        StreamDeltaEncoder ownDeltas = deltas;
+        try {
+            ArrayList<Broadcaster.Profile> profiles = broadcaster.startEvent();
+            for (int i = 0; i < profiles.size(); ++i) {
+                Broadcaster.Profile profile = profiles.get(i);
+                capabilities = profile.capabilities;
+                deltas = profile.deltas;
+                broadcaster.target(profile);
+                encodeEventBoundary(buffer, changed, eventID, elapsedTime,
+                        compensationTime);
+            }
+        } finally {
+            broadcaster.endEvent();
+            capabilities = agreed;
+            deltas = ownDeltas;
+        }
+
+        ArrayList<ClientSession> retuned = broadcaster.getRetuned();
+        for (int i = 0; i < retuned.size(); ++i) {
+            ClientSession session = retuned.get(i);
+            broadcaster.target(session);
+            sendSampling(session.getThrottle().getPeriod());
+        }
+        broadcaster.targetAll();
+    }
+
+    private void encodeEventBoundary(SendBuffer buffer, boolean changed[],
+                                     int eventID, int elapsedTime,
+                                     int compensationTime) throws IOException {
+        startBatch();
+        if (buffer == null) {
+            transmitStreams(changed);
+            sendEventCount();
+            sendEvent(eventID, elapsedTime, compensationTime);
+            endBatch();
+            return;
+        }
+
+        for (int i = 0; i < buffer.spaceNum; ++i) {
+            SendBuffer.SpaceBuffer space = buffer.spaces[i];
+            if (space.serialised != null)
+                sendSpace(i, space.serialised);
+            for (int j = 0; j < space.data.length; ++j) {
+                if (space.data[j] == null)
+                    continue;
+                sendStream(i, j, space.dataType[j], space.data[j], space.dataLen[j]);
+                sendSummary(i, j, space.hasSummary[j] ? space.summary[j] : null);
+            }
+            sendSpaceInfo(i, space.spaceInfo);
+            sendControl(i, space.control);
+        }
+        sendEventCount(buffer.eventCount);
+        sendEvent(buffer.eventID, buffer.elapsedTime, buffer.compensationTime);
+        endBatch();
     }
 
     /**
@@ -467,23 +1063,17 @@ public class ServerInterpreter extends Interpreter implements Runnable {
 
     private class ClientOutputGenerator implements OutputGenerator {
 
-        private Client client;
-
         public BufferedOutput createBufferedOutput() throws IOException {
-            return client.createBufferedOutput();
+            return createOutput();
         }
 
         public void done(int len) throws IOException {
-            client.send(len);
-        }
-
-        ClientOutputGenerator(Client client) {
-            this.client = client;
+            sendFrame(len);
         }
     }
 
     private void serialiseEverything() throws IOException {
-        super.serialiseEverything(new ClientOutputGenerator(client));
+        super.serialiseEverything(new ClientOutputGenerator());
     }
 
     /**
@@ -491,15 +1081,34 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      */
 
     private boolean isConnected() {
+        if (broadcaster != null)
+            return getClientNum() > 0;
         return connected;
     }
 
+    /*
+     * Whether there is anyone to send to; called with sendLock held.
+     * A single client is only replaced while it is not connected, and
+     * everything is sent again once the next one is.
+     */
+    private boolean canSend() {
+        return (broadcaster != null) || connected;
+    }
+
     private void checkClient() throws IOException {
         BootstrapParameters params = new BootstrapParameters();
 
     /* client sends first */
         receiveBootInfo(true, params);
-        sendBootInfo(true, null);
+        agreed = agree(client, params.capabilities);
+        capabilities = agreed.getFlags();
+        // only answer a versioned handshake with one
+        if (params.capabilities != null)
+            params.capabilities = agreed;
+        sendBootInfo(true, params);
+        setupFraming();
+        println(0, "agreed on " + agreed);
+        throttle = hasCapability(Capabilities.EVENT_ACKS) ? new LagThrottle(maxLen) : null;
 
         if (params.pauseAtStart) {
             pauseNow = true;
@@ -557,13 +1166,63 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      */
     public void startServer(int port, boolean wait, int maxLen)
             throws IOException {
-        println(0, "starting server, port " + port);
-        server = new Server(port);
+        startServer(port, wait, maxLen, Client.STREAM_TRANSPORT);
+    }
+
+    /**
+     * Start the server
+     *
+     * @param port      The port on which to communicate
+     * @param wait      Whether to wait until client connects
+     * @param maxLen    The buffer length
+     * @param transport The transport to use
+     *                  (one of <code>Client.STREAM_TRANSPORT</code>, <code>Client.CHANNEL_TRANSPORT</code>)
+     * @throws IOException
+     */
+    public void startServer(int port, boolean wait, int maxLen, int transport)
+            throws IOException {
+        startServer(new Endpoint("localhost", port), wait, maxLen, transport);
+    }
+
+    /**
+     * Start the server
+     *
+     * @param endpoint The endpoint on which to communicate
+     * @param wait     Whether to wait until client connects
+     * @throws IOException
+     */
+    public void startServer(Endpoint endpoint, boolean wait) throws IOException {
+        startServer(endpoint, wait, DEFAULT_MAX_LEN, Client.STREAM_TRANSPORT);
+    }
+
+    /**
+     * Start the server
+     *
+     * @param endpoint  The endpoint on which to communicate;
+     *                  only the port of a TCP endpoint is used
+     * @param wait      Whether to wait until client connects
+     * @param maxLen    The buffer length
+     * @param transport The transport to use for TCP clients
+     *                  (one of <code>Client.STREAM_TRANSPORT</code>, <code>Client.CHANNEL_TRANSPORT</code>)
+     * @throws IOException
+     */
+    public void startServer(Endpoint endpoint, boolean wait, int maxLen,
+                            int transport)
+            throws IOException {
+        if (endpoint.getKind() == Endpoint.TCP)
+            println(0, "starting server, port " + endpoint.getPort());
+        else
+            println(0, "starting server, " + endpoint);
+        server = new Server(endpoint, Server.DEFAULT_BACKLOG, transport);
 
         if (wait)
             println(0, "blocked until client connects");
 
         this.maxLen = maxLen;
+        if (broadcast)
+            broadcaster = new Broadcaster(maxLen,
+                    (clientQueueLen > 0) ? clientQueueLen : 2 * maxLen);
+        startSender();
         new Thread(this).start();
 
         if (wait)
@@ -601,21 +1260,33 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      * Start the main interpreter thread loop
      */
     public void run() {
-        mainThreadLoop();
+        if (broadcaster != null)
+            acceptLoop();
+        else
+            mainThreadLoop();
     }
 
     private void connectToClient() throws IOException {
+        synchronized (sendLock) {
+            if (sender != null)
+                sender.discard();
+        }
+        // no lock is held while waiting, so senders find no client and
+        // return rather than wait for the next one
         waitForNewClient(maxLen);
-        internalSetup();
-        // println(0, " checking client");
-        checkClient();
-        // println(0, " sending boot info");
-        serialiseEverything();
+        synchronized (sendLock) {
+            internalSetup();
+            deltas.reset();
+            // println(0, " checking client");
+            checkClient();
+            // println(0, " sending boot info");
+            serialiseEverything();
 
-        if (collectStats)
-            resetTimers();
+            if (collectStats)
+                resetTimers();
 
-        connected = true;
+            connected = true;
+        }
     }
 
     private void mainLoop() throws IOException {
@@ -628,7 +1299,7 @@ public class ServerInterpreter extends Interpreter implements Runnable {
                 break;
             }
 
-            BufferedInput input = client.createBufferedInput();
+            BufferedInput input = client.getBufferedInput();
             execute(input);
             if (shutdownReq) {
                 println(0, "  main loop terminated (shutdown request received)");
@@ -657,12 +1328,125 @@ public class ServerInterpreter extends Interpreter implements Runnable {
         }
     }
 
+    private void acceptLoop() {
+        internalSetup();
+        while (true) {
+            try {
+                println(0, "waiting for clients to connect");
+                final Client newClient = server.waitForNewClient(maxLen);
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        serveSession(newClient);
+                    }
+                }, "GCspy client");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+    }
+
+    /*
+     * Send the data of the last event to a session that is joining,
+     * without deltas; the session gets the next event without them too
+     */
+    private void replayLastEvent(ClientSession session) throws IOException {
+        int agreed = capabilities;
+        capabilities = session.getCapabilities() &
+                (Capabilities.BATCHING | Capabilities.PACKED_ARRAYS);
+        try {
+            encodeEventBoundary(null, new boolean[spaceNum], lastEventID,
+                    lastElapsedTime, lastCompensationTime);
+            if (session.getThrottle() != null)
+                session.getThrottle().sent();
+        } finally {
+            capabilities = agreed;
+        }
+    }
+
+    /*
+     * Agree on the capabilities with a new client of a broadcasting server,
+     * queue the current state for it, and then execute its commands
+     */
+    private void serveSession(Client newClient) {
+        ClientSession session = null;
+        try {
+            BootstrapParameters params = new BootstrapParameters();
+            receiveBootInfo(newClient, true, params);
+            Capabilities sessionAgreed = agree(newClient, params.capabilities);
+            if (params.capabilities != null)
+                params.capabilities = sessionAgreed;
+            sendBootInfo(newClient, true, params);
+            setupFraming(newClient, sessionAgreed);
+
+            LagThrottle sessionThrottle = null;
+            if (sessionAgreed.has(Capabilities.EVENT_ACKS))
+                sessionThrottle = new LagThrottle(broadcaster.getQueueLen() / 2);
+            session = new ClientSession(newClient, sessionAgreed.getFlags(),
+                    sessionThrottle);
+            int clientNum;
+            synchronized (sendLock) {
+                // the state is queued, so it goes before any later event
+                broadcaster.target(session);
+                serialiseEverything();
+                if (replayLastEvent && (lastEventID >= 0))
+                    replayLastEvent(session);
+                broadcaster.targetAll();
+                if ((broadcaster.getSessionNum() == 0) && collectStats)
+                    resetTimers();
+                broadcaster.add(session);
+                clientNum = broadcaster.getSessionNum();
+                if (params.pauseAtStart)
+                    pauseNow = true;
+            }
+            session.start();
+            println(0, "  client connected, " + clientNum + " connected");
+
+            while (!session.isClosing()) {
+                newClient.receive();
+                if (newClient.hasTerminated())
+                    break;
+                BufferedInput input = newClient.getBufferedInput();
+                synchronized (commandLock) {
+                    currentSession = session;
+                    try {
+                        execute(input);
+                    } finally {
+                        currentSession = null;
+                    }
+                }
+            }
+            println(0, "  client disconnected");
+        } catch (IOException e) {
+            println(0, "  client failed: " + e.getMessage());
+        } catch (InterpreterException e) {
+            println(0, "  client failed: " + e.getMessage());
+        } finally {
+            if (session != null) {
+                session.closeWhenSent();
+            } else {
+                try {
+                    newClient.close();
+                } catch (IOException e) {
+                    // already gone
+                }
+            }
+        }
+    }
+
     /**
      * ***************** Safepoints *******************
      */
 
     private void internalSafepoint() {
         try {
+            // anything the client is told now must follow the queued events
+            if ((sender != null) && isConnected() &&
+                    (shutdownReq || pauseNow || paused))
+                sender.drain();
+
             if (shutdownReq) {
                 sendShutdown();
                 shutdownSent = true;
@@ -719,9 +1503,15 @@ public class ServerInterpreter extends Interpreter implements Runnable {
     private void internalEventBoundary(int eventID, int elapsedTime,
                                        int compensationTime) {
         try {
-            transmitStreams();
-            sendEventCount();
-            sendEvent(eventID, elapsedTime, compensationTime);
+            if (sender != null) {
+                sender.submit(eventID, elapsedTime, compensationTime);
+            } else {
+                synchronized (sendLock) {
+                    if (canSend())
+                        sendEventBoundary(null, takeChangedSpaces(), eventID,
+                                elapsedTime, compensationTime);
+                }
+            }
 
             int delay = eventFilters.getDelays()[eventID];
             if (delay > 0) {
@@ -752,6 +1542,25 @@ public class ServerInterpreter extends Interpreter implements Runnable {
         }
     }
 
+    /**
+     * Indicate an event boundary, first installing the event's data in
+     * the spaces. The data is installed with the send lock held, so a
+     * client connecting meanwhile is sent either all of the previous
+     * event or all of this one.
+     *
+     * @param install          Puts the event's data and counts in place
+     * @param eventID          The event's ID
+     * @param elapsedTime      The elapsed time at this event
+     * @param compensationTime The compensation time
+     */
+    public void eventBoundary(Runnable install, int eventID, int elapsedTime,
+                              int compensationTime) {
+        synchronized (sendLock) {
+            install.run();
+        }
+        eventBoundary(eventID, elapsedTime, compensationTime);
+    }
+
     /**
      * Indicate an event boundary and update counters if necessary
      *
@@ -782,8 +1591,16 @@ public class ServerInterpreter extends Interpreter implements Runnable {
      * this event is enabled?
      */
     public boolean shouldTransmit(int eventID) {
-        return isConnected() && eventFilters.getEnabled()[eventID]
-                && (eventCount[eventID] % (eventFilters.getPeriods()[eventID]) == 0);
+        // there are no event filters before the first client connects
+        if (!isConnected())
+            return false;
+        int period = eventFilters.getPeriods()[eventID];
+        // raised while the client lags behind
+        LagThrottle throttle = this.throttle;
+        if ((throttle != null) && (broadcaster == null))
+            period *= throttle.getPeriod();
+        return eventFilters.getEnabled()[eventID]
+                && (eventCount[eventID] % period == 0);
     }
 
     /** ****************** Constructors ******************* */
@@ -824,6 +1641,15 @@ public class ServerInterpreter extends Interpreter implements Runnable {
         cmds[EVENT_COUNT_CMD] = new EventCountCmd();
         cmds[SUMMARY_CMD] = new SummaryCmd();
         cmds[SPACE_INFO_CMD] = new SpaceInfoCmd();
+        cmds[STREAM_DELTA_CMD] = new StreamDeltaCmd();
+        cmds[STREAM_PACKED_CMD] = new StreamPackedCmd();
+        cmds[CONTROL_RLE_CMD] = new ControlRunLengthCmd();
+        cmds[EVENT_ACK_CMD] = new EventAckCmd();
+        cmds[SAMPLING_CMD] = new SamplingCmd();
+        cmds[PING_CMD] = new PingCmd();
+        cmds[PONG_CMD] = new PongCmd();
+
+        offeredCapabilities = Capabilities.SUPPORTED;
 
         this.collectStats = collectStats;
         if (collectStats) {
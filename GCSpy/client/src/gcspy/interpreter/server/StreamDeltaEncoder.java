@@ -0,0 +1,247 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.interpreter.server;
+
+import gcspy.comm.BufferedOutput;
+import gcspy.interpreter.Stream;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the stream data last sent to the client and encodes new data
+ * as the runs of tiles that changed since then.
+ * A delta is encoded as
+ * <pre>
+ * varint len       the number of tiles
+ * varint runNum    the number of runs
+ * run...           varint skip, varint count, count items
+ * </pre>
+ * where skip is the number of unchanged tiles before the run.
+ */
+public class StreamDeltaEncoder {
+
+    /** An unchanged gap this short (in bytes) is cheaper to resend than to skip */
+    static public final int MAX_GAP_BYTES = 2;
+
+    /* [spaceID][streamID] -> a copy of the data last sent */
+    private Object sent[][] = new Object[0][];
+
+    /* The runs found by encodedSize, as (start, count) pairs */
+    private int runs[] = new int[64];
+    private int runNum;
+
+    /** Forget everything sent, e.g. for a new client */
+    public void reset() {
+        sent = new Object[0][];
+    }
+
+    /**
+     * Forget what was sent for a space, e.g. because the client has
+     * replaced it
+     * @param spaceID The space's ID
+     */
+    public void forgetSpace(int spaceID) {
+        if (spaceID < sent.length)
+            sent[spaceID] = null;
+    }
+
+    static private int itemSize(int dataType) {
+        switch (dataType) {
+            case Stream.SHORT_TYPE:
+                return 2;
+            case Stream.INT_TYPE:
+                return 4;
+        }
+        return 1;
+    }
+
+    static private int arrayLength(int dataType, Object array) {
+        switch (dataType) {
+            case Stream.BYTE_TYPE:
+                return ((byte[]) array).length;
+            case Stream.SHORT_TYPE:
+                return ((short[]) array).length;
+            case Stream.INT_TYPE:
+                return ((int[]) array).length;
+        }
+        return 0;
+    }
+
+    private Object getSent(int spaceID, int streamID) {
+        if ((spaceID >= sent.length) || (sent[spaceID] == null) ||
+                (streamID >= sent[spaceID].length))
+            return null;
+        return sent[spaceID][streamID];
+    }
+
+    /* the first index from 'from' where cur and prev differ, or len */
+    static private int nextChange(int dataType, Object cur, Object prev,
+                                  int from, int len) {
+        int i = -1;
+        switch (dataType) {
+            case Stream.BYTE_TYPE:
+                i = Arrays.mismatch((byte[]) cur, from, len, (byte[]) prev, from, len);
+                break;
+            case Stream.SHORT_TYPE:
+                i = Arrays.mismatch((short[]) cur, from, len, (short[]) prev, from, len);
+                break;
+            case Stream.INT_TYPE:
+                i = Arrays.mismatch((int[]) cur, from, len, (int[]) prev, from, len);
+                break;
+        }
+        return (i < 0) ? len : from + i;
+    }
+
+    /* the first index from 'from' where cur and prev agree, or len */
+    static private int nextSame(int dataType, Object cur, Object prev,
+                                int from, int len) {
+        switch (dataType) {
+            case Stream.BYTE_TYPE: {
+                byte c[] = (byte[]) cur;
+                byte p[] = (byte[]) prev;
+                while ((from < len) && (c[from] != p[from]))
+                    ++from;
+                break;
+            }
+            case Stream.SHORT_TYPE: {
+                short c[] = (short[]) cur;
+                short p[] = (short[]) prev;
+                while ((from < len) && (c[from] != p[from]))
+                    ++from;
+                break;
+            }
+            case Stream.INT_TYPE: {
+                int c[] = (int[]) cur;
+                int p[] = (int[]) prev;
+                while ((from < len) && (c[from] != p[from]))
+                    ++from;
+                break;
+            }
+        }
+        return from;
+    }
+
+    private void addRun(int start, int count) {
+        if (2 * runNum + 2 > runs.length)
+            runs = Arrays.copyOf(runs, 2 * runs.length);
+        runs[2 * runNum] = start;
+        runs[2 * runNum + 1] = count;
+        ++runNum;
+    }
+
+    /**
+     * Find the runs of tiles that changed since the data was last sent
+     * @param spaceID The space's ID
+     * @param streamID The stream's ID
+     * @param dataType The stream's data type
+     * @param data The stream's data
+     * @param len The number of tiles to send
+     * @return the size of the delta, or -1 if there is nothing to compare
+     * against or the delta would not be smaller than the whole array
+     */
+    public int encodedSize(int spaceID, int streamID, int dataType, Object data,
+                    int len) {
+        Object prev = getSent(spaceID, streamID);
+        if ((prev == null) || (arrayLength(dataType, prev) != len))
+            return -1;
+
+        int itemSize = itemSize(dataType);
+        int limit = 4 + len * itemSize;
+        int size = BufferedOutput.varIntSize(len);
+        int last = 0;
+        runNum = 0;
+
+        int start = nextChange(dataType, data, prev, 0, len);
+        while (start < len) {
+            int end = nextSame(dataType, data, prev, start, len);
+            while (end < len) {
+                int next = nextChange(dataType, data, prev, end, len);
+                if ((next == len) || ((next - end) * itemSize > MAX_GAP_BYTES))
+                    break;
+                end = nextSame(dataType, data, prev, next, len);
+            }
+            addRun(start, end - start);
+            size += BufferedOutput.varIntSize(start - last) +
+                    BufferedOutput.varIntSize(end - start) +
+                    (end - start) * itemSize;
+            if (size + BufferedOutput.varIntSize(runNum) >= limit)
+                return -1;
+
+            last = end;
+            start = nextChange(dataType, data, prev, end, len);
+        }
+        return size + BufferedOutput.varIntSize(runNum);
+    }
+
+    /**
+     * Write the runs found by the last call to encodedSize
+     * @param output The BufferedOutput to write to
+     * @param dataType The stream's data type
+     * @param data The stream's data
+     * @param len The number of tiles
+     */
+    public void writeDelta(BufferedOutput output, int dataType, Object data, int len) {
+        output.writeVarInt(len);
+        output.writeVarInt(runNum);
+        int last = 0;
+        for (int r = 0; r < runNum; ++r) {
+            int start = runs[2 * r];
+            int count = runs[2 * r + 1];
+            output.writeVarInt(start - last);
+            output.writeVarInt(count);
+            switch (dataType) {
+                case Stream.BYTE_TYPE:
+                    output.writeBytes((byte[]) data, start, count);
+                    break;
+                case Stream.SHORT_TYPE:
+                    output.writeShorts((short[]) data, start, count);
+                    break;
+                case Stream.INT_TYPE:
+                    output.writeInts((int[]) data, start, count);
+                    break;
+            }
+            last = start + count;
+        }
+    }
+
+    /**
+     * Remember the data just sent for a stream
+     * @param spaceID The space's ID
+     * @param streamID The stream's ID
+     * @param dataType The stream's data type
+     * @param data The stream's data
+     * @param len The number of tiles sent
+     */
+    public void remember(int spaceID, int streamID, int dataType, Object data,
+                  int len) {
+        if (spaceID >= sent.length)
+            sent = Arrays.copyOf(sent, spaceID + 1);
+        if (sent[spaceID] == null)
+            sent[spaceID] = new Object[streamID + 1];
+        else if (streamID >= sent[spaceID].length)
+            sent[spaceID] = Arrays.copyOf(sent[spaceID], streamID + 1);
+
+        Object prev = sent[spaceID][streamID];
+        if ((prev == null) || (arrayLength(dataType, prev) != len)) {
+            switch (dataType) {
+                case Stream.BYTE_TYPE:
+                    prev = new byte[len];
+                    break;
+                case Stream.SHORT_TYPE:
+                    prev = new short[len];
+                    break;
+                case Stream.INT_TYPE:
+                    prev = new int[len];
+                    break;
+            }
+            sent[spaceID][streamID] = prev;
+        }
+        System.arraycopy(data, 0, prev, 0, len);
+    }
+
+}
@@ -0,0 +1,55 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ * <p>
+ * *  gcspy.test.Checks
+ * *
+ * *  Reporting for the self-checking tests
+ **/
+
+/**
+ **  gcspy.test.Checks
+ **
+ **  Reporting for the self-checking tests
+ **/
+
+package gcspy.test;
+
+/**
+ * Reports the checks made by a test, and exits with a non-zero status
+ * if any of them failed
+ */
+class Checks {
+
+    static private int failed = 0;
+
+    /**
+     * Report a check
+     * @param what What was checked
+     * @param ok Whether it passed
+     */
+    static void check(String what, boolean ok) {
+        System.out.println((ok ? "ok      " : "FAILED  ") + what);
+        if (!ok)
+            ++failed;
+    }
+
+    /** Report how many checks failed, and exit with 1 if any did */
+    static void finish() {
+        System.out.println((failed == 0) ? "All passed" : (failed + " FAILED"));
+        if (failed > 0)
+            System.exit(1);
+    }
+
+    /**
+     * Report an exception that stopped the test, as a failure
+     * @param e The exception
+     */
+    static void error(Exception e) {
+        e.printStackTrace();
+        ++failed;
+    }
+
+}
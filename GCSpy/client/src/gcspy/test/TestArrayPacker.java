@@ -0,0 +1,143 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ * <p>
+ * *  gcspy.test.TestArrayPacker
+ * *
+ * *  Tests the bit-packed and run-length encodings of byte arrays
+ **/
+
+/**
+ **  gcspy.test.TestArrayPacker
+ **
+ **  Tests the bit-packed and run-length encodings of byte arrays
+ **/
+
+package gcspy.test;
+
+import gcspy.comm.BufferedIOException;
+import gcspy.comm.BufferedInput;
+import gcspy.comm.BufferedOutput;
+import gcspy.interpreter.ArrayPacker;
+import gcspy.interpreter.InterpreterException;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static gcspy.test.Checks.*;
+
+public class TestArrayPacker {
+
+    static private final int LENS[] = {0, 1, 7, 8, 9, 1000};
+
+    static private void packed(ArrayPacker packer, byte data[], int maxValue,
+                               int expectedBits) {
+        int len = data.length;
+        int bits = ArrayPacker.packedBits(data, len, maxValue);
+        String what = "packed " + len + " tiles up to " + maxValue;
+        if (bits == 0) {
+            check(what + ": not packed", expectedBits == 0);
+            return;
+        }
+        byte buffer[] = new byte[16 + len];
+        BufferedOutput output = new BufferedOutput(buffer);
+        packer.writePacked(output, data, len, bits);
+        // the array read into is reused when its length matches
+        byte into[] = new byte[len];
+        BufferedInput input = new BufferedInput(buffer, output.getLen());
+        byte read[] = packer.readPacked(input, into);
+        check(what + ": " + bits + " bits, " + output.getLen() + " bytes",
+                (bits == expectedBits) &&
+                        (output.getLen() == ArrayPacker.packedSize(len, bits)) &&
+                        input.finished() && (read == into) &&
+                        Arrays.equals(data, read));
+    }
+
+    static private void runLength(byte data[], String what) {
+        int len = data.length;
+        byte buffer[] = new byte[16 + 6 * len];
+        BufferedOutput output = new BufferedOutput(buffer);
+        ArrayPacker.writeRunLength(output, data, len);
+        BufferedInput input = new BufferedInput(buffer, output.getLen());
+        // an array of the wrong length is replaced
+        byte read[] = ArrayPacker.readRunLength(input, new byte[len + 1]);
+        check("run-length " + what + ": " + len + " tiles, " +
+                        output.getLen() + " bytes",
+                (output.getLen() == ArrayPacker.runLengthSize(data, len)) &&
+                        input.finished() && Arrays.equals(data, read));
+    }
+
+    /* a corrupt array must be rejected, as corrupt or as running out of data */
+    static private void rejected(byte encoded[], boolean packed, String what) {
+        String result;
+        try {
+            BufferedInput input = new BufferedInput(encoded, encoded.length);
+            if (packed)
+                new ArrayPacker().readPacked(input, null);
+            else
+                ArrayPacker.readRunLength(input, null);
+            result = null;
+        } catch (InterpreterException e) {
+            result = "InterpreterException";
+        } catch (BufferedIOException e) {
+            result = "BufferedIOException";
+        } catch (RuntimeException e) {
+            result = e.getClass().getName();
+        }
+        check(what + " rejected (" + result + ")",
+                "InterpreterException".equals(result) ||
+                        "BufferedIOException".equals(result));
+    }
+
+    static public void main(String args[]) {
+        try {
+            Random random = new Random(42);
+            ArrayPacker packer = new ArrayPacker();
+
+            for (int len : LENS) {
+                for (int bits = 1; bits <= ArrayPacker.MAX_PACKED_BITS; ++bits) {
+                    int maxValue = (1 << bits) - 1;
+                    byte data[] = new byte[len];
+                    for (int i = 0; i < len; ++i)
+                        data[i] = (byte) random.nextInt(maxValue + 1);
+                    // the stream's maximum needs all the bits, even if the data does not
+                    packed(packer, data, maxValue, bits);
+                }
+            }
+            byte values[] = new byte[100];
+            for (int i = 0; i < values.length; ++i)
+                values[i] = (byte) (i % 4);
+            packed(packer, values, 0, 2);
+            packed(packer, values, 128, 0);
+            values[50] = -1;
+            packed(packer, values, 3, 0);
+
+            for (int len : LENS) {
+                byte same[] = new byte[len];
+                Arrays.fill(same, (byte) 5);
+                runLength(same, "all the same");
+                byte different[] = new byte[len];
+                for (int i = 0; i < len; ++i)
+                    different[i] = (byte) i;
+                runLength(different, "all different");
+            }
+            byte runs[] = new byte[2000];
+            for (int i = 0; i < runs.length; ++i)
+                runs[i] = (byte) ((i < 300) ? 0 : (i < 1700) ? -1 : i / 500);
+            runLength(runs, "long runs");
+
+            rejected(new byte[]{0, 4}, true, "packed with 0 bits");
+            rejected(new byte[]{8, 4}, true, "packed with 8 bits");
+            rejected(new byte[]{3, 100, 1}, true, "truncated packed");
+            rejected(new byte[]{4, 0, 1}, false, "empty run");
+            rejected(new byte[]{4, 5, 1}, false, "run past the end");
+            rejected(new byte[]{4, 2, 1}, false, "truncated run-length");
+        } catch (Exception e) {
+            error(e);
+        }
+        finish();
+    }
+
+}
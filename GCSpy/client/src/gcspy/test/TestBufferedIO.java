@@ -20,6 +20,8 @@ package gcspy.test;
 import gcspy.comm.BufferedInput;
 import gcspy.comm.BufferedOutput;
 
+import java.util.Arrays;
+
 public class TestBufferedIO {
 
     static public void main(String args[]) {
@@ -32,6 +34,11 @@ public class TestBufferedIO {
             out.writeUShort(1034);
             out.writeInt(2000666);
             out.writeString("This is a string!");
+            short shorts[] = {-32768, -1, 0, 1, 32767};
+            int ints[] = {Integer.MIN_VALUE, -666, 0, 666, Integer.MAX_VALUE};
+            out.writeShortArray(shorts);
+            out.writeIntArray(ints);
+            out.writeUByteArray(new short[]{0, 127, 128, 255});
             for (int n = 0; n < 15; ++n) {
                 out.writeInt(n);
             }
@@ -44,10 +51,16 @@ public class TestBufferedIO {
             int us = in.readUShort();
             int i = in.readInt();
             String string = in.readString();
+            short shortsIn[] = in.readShortArray(new short[shorts.length]);
+            int intsIn[] = in.readIntArray();
+            short ubytesIn[] = in.readUByteArray();
 
             System.out.println("b = " + b + ", ub = " + ub + ", s = " + s +
                     ", us = " + us + ", i = " + i +
                     ", string = " + string);
+            System.out.println("shorts = " + Arrays.toString(shortsIn) +
+                    ", ints = " + Arrays.toString(intsIn) +
+                    ", ubytes = " + Arrays.toString(ubytesIn));
             System.out.print("Rest:");
             while (!in.finished()) {
                 System.out.print(" " + in.readInt());
@@ -0,0 +1,185 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ * <p>
+ * *  gcspy.test.TestFrameCodec
+ * *
+ * *  Tests the frame compression
+ **/
+
+/**
+ **  gcspy.test.TestFrameCodec
+ **
+ **  Tests the frame compression
+ **/
+
+package gcspy.test;
+
+import gcspy.comm.Client;
+import gcspy.comm.FrameCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static gcspy.test.Checks.*;
+
+public class TestFrameCodec {
+
+    static private final int MAX_LEN = (1024 * 1024);
+
+    static private final int CODECS[] = {
+            Client.COMPRESSION_LZ, Client.COMPRESSION_DEFLATE
+    };
+
+    static private String name(int compression) {
+        return (compression == Client.COMPRESSION_LZ) ? "lz" : "deflate";
+    }
+
+    static private byte[] pack(FrameCodec codec, byte data[], int len) {
+        int packedLen = codec.pack(data, len);
+        return Arrays.copyOf(codec.getPacked(), packedLen);
+    }
+
+    static private byte[] unpack(FrameCodec codec, byte packed[], boolean direct)
+            throws IOException {
+        ByteBuffer frame;
+        if (direct) {
+            frame = ByteBuffer.allocateDirect(packed.length);
+            frame.put(packed);
+            frame.flip();
+        } else {
+            frame = ByteBuffer.wrap(packed);
+        }
+        ByteBuffer payload = codec.unpack(frame, MAX_LEN);
+        byte data[] = new byte[payload.remaining()];
+        payload.get(data);
+        return data;
+    }
+
+    static private void roundTrip(int compression, String what, byte data[],
+                                  boolean compressible, boolean direct)
+            throws IOException {
+        FrameCodec codec = new FrameCodec(compression);
+        byte packed[] = pack(codec, data, data.length);
+        boolean compressed = (packed[0] != Client.COMPRESSION_NONE);
+        byte unpacked[] = unpack(codec, packed, direct);
+        check(name(compression) + " " + what + ": " + data.length + " -> " +
+                        packed.length + " bytes",
+                Arrays.equals(data, unpacked) &&
+                        (compressed == compressible) &&
+                        (packed.length <= data.length + FrameCodec.MAX_OVERHEAD));
+        codec.end();
+    }
+
+    /* a corrupt frame must be rejected, with an IOException */
+    static private void rejected(int compression, String what, byte packed[]) {
+        FrameCodec codec = new FrameCodec(compression);
+        String result;
+        try {
+            unpack(codec, packed, false);
+            result = null;
+        } catch (IOException e) {
+            result = "IOException";
+        } catch (RuntimeException e) {
+            result = e.getClass().getName();
+        }
+        check(name(compression) + " " + what + " rejected (" + result + ")",
+                "IOException".equals(result));
+        codec.end();
+    }
+
+    /* a damaged frame must be rejected with an IOException, or unpack to the right length */
+    static private int damaged(int compression, byte packed[], int len) {
+        FrameCodec codec = new FrameCodec(compression);
+        int bad = 0;
+        // from 1, as a damaged codec byte can make a valid uncompressed frame
+        for (int i = 1; i < packed.length; ++i) {
+            byte copy[] = packed.clone();
+            copy[i] ^= (byte) (1 + (i % 255));
+            try {
+                if (unpack(codec, copy, false).length != len)
+                    ++bad;
+            } catch (IOException e) {
+                // rejected
+            } catch (RuntimeException e) {
+                ++bad;
+            }
+        }
+        codec.end();
+        return bad;
+    }
+
+    static private byte[] withLength(byte packed[], int len) {
+        byte copy[] = packed.clone();
+        ByteBuffer.wrap(copy).putInt(1, len);
+        return copy;
+    }
+
+    static public void main(String args[]) {
+        try {
+            Random random = new Random(42);
+            byte random4k[] = new byte[4096];
+            random.nextBytes(random4k);
+            byte repetitive[] = new byte[64 * 1024];
+            for (int i = 0; i < repetitive.length; ++i)
+                repetitive[i] = (byte) ((i % 16 == 0) ? i / 16 : 0);
+            byte maximum[] = new byte[MAX_LEN];
+            for (int i = 0; i < maximum.length; ++i)
+                maximum[i] = (byte) random.nextInt(4);
+
+            for (int compression : CODECS) {
+                roundTrip(compression, "empty", new byte[0], false, false);
+                roundTrip(compression, "short", new byte[16], false, false);
+                roundTrip(compression, "incompressible", random4k, false, false);
+                roundTrip(compression, "repetitive", repetitive, true, false);
+                roundTrip(compression, "maximum length", maximum, true, false);
+                roundTrip(compression, "maximum length, direct", maximum, true, true);
+
+                FrameCodec codec = new FrameCodec(compression);
+                byte packed[] = pack(codec, repetitive, repetitive.length);
+                codec.end();
+                rejected(compression, "empty frame", new byte[0]);
+                rejected(compression, "truncated header",
+                        Arrays.copyOf(packed, 3));
+                rejected(compression, "truncated frame",
+                        Arrays.copyOf(packed, packed.length / 2));
+                rejected(compression, "length over maximum",
+                        withLength(packed, MAX_LEN + 1));
+                rejected(compression, "negative length",
+                        withLength(packed, -1));
+                rejected(compression, "length too short",
+                        withLength(packed, repetitive.length - 1));
+                rejected(compression, "length too long",
+                        withLength(packed, repetitive.length + 1));
+                check(name(compression) + " damaged frames",
+                        damaged(compression, packed, repetitive.length) == 0);
+            }
+
+            // one literal, then a match reaching back before the start
+            byte offsetBefore[] = {
+                    (byte) Client.COMPRESSION_LZ, 0, 0, 0, 5,
+                    0x10, 'a', 0, 2
+            };
+            rejected(Client.COMPRESSION_LZ, "offset before the start", offsetBefore);
+            byte offsetZero[] = offsetBefore.clone();
+            offsetZero[8] = 0;
+            rejected(Client.COMPRESSION_LZ, "zero offset", offsetZero);
+            // a literal count that runs past the end of the frame
+            byte longLiterals[] = {
+                    (byte) Client.COMPRESSION_LZ, 0, 0, 0, 5,
+                    (byte) 0xF0, (byte) 255, (byte) 255, 10, 'a'
+            };
+            rejected(Client.COMPRESSION_LZ, "literals past the end", longLiterals);
+            byte unknown[] = {9, 0, 0, 0, 1, 0};
+            rejected(Client.COMPRESSION_LZ, "unknown codec", unknown);
+        } catch (Exception e) {
+            error(e);
+        }
+        finish();
+    }
+
+}
@@ -0,0 +1,228 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ * <p>
+ * *  gcspy.test.TestStreamDelta
+ * *
+ * *  Tests the delta encoding of streams
+ **/
+
+/**
+ **  gcspy.test.TestStreamDelta
+ **
+ **  Tests the delta encoding of streams
+ **/
+
+package gcspy.test;
+
+import gcspy.comm.BufferedInput;
+import gcspy.comm.BufferedOutput;
+import gcspy.interpreter.Stream;
+import gcspy.interpreter.server.StreamDeltaEncoder;
+
+import java.util.Arrays;
+
+import static gcspy.test.Checks.*;
+
+public class TestStreamDelta {
+
+    static private final int LEN = 1000;
+
+    static private final int TYPES[] = {
+            Stream.BYTE_TYPE, Stream.SHORT_TYPE, Stream.INT_TYPE
+    };
+
+    static private String name(int dataType) {
+        switch (dataType) {
+            case Stream.SHORT_TYPE:
+                return "short";
+            case Stream.INT_TYPE:
+                return "int";
+        }
+        return "byte";
+    }
+
+    static private int itemSize(int dataType) {
+        switch (dataType) {
+            case Stream.SHORT_TYPE:
+                return 2;
+            case Stream.INT_TYPE:
+                return 4;
+        }
+        return 1;
+    }
+
+    static private Object create(int dataType, int len) {
+        switch (dataType) {
+            case Stream.SHORT_TYPE:
+                return new short[len];
+            case Stream.INT_TYPE:
+                return new int[len];
+        }
+        return new byte[len];
+    }
+
+    static private Object copy(int dataType, Object data) {
+        switch (dataType) {
+            case Stream.SHORT_TYPE:
+                return ((short[]) data).clone();
+            case Stream.INT_TYPE:
+                return ((int[]) data).clone();
+        }
+        return ((byte[]) data).clone();
+    }
+
+    static private boolean equal(int dataType, Object a, Object b) {
+        switch (dataType) {
+            case Stream.SHORT_TYPE:
+                return Arrays.equals((short[]) a, (short[]) b);
+            case Stream.INT_TYPE:
+                return Arrays.equals((int[]) a, (int[]) b);
+        }
+        return Arrays.equals((byte[]) a, (byte[]) b);
+    }
+
+    /* change a tile's value, so that it differs from before */
+    static private void change(int dataType, Object data, int i) {
+        switch (dataType) {
+            case Stream.BYTE_TYPE:
+                ((byte[]) data)[i] += 1;
+                break;
+            case Stream.SHORT_TYPE:
+                ((short[]) data)[i] += 300;
+                break;
+            case Stream.INT_TYPE:
+                ((int[]) data)[i] += 70000;
+                break;
+        }
+    }
+
+    /* apply a delta to the data it was encoded against; return the number of runs */
+    static private int apply(BufferedInput input, int dataType, Object data) {
+        int len = input.readVarInt();
+        if (len != length(dataType, data))
+            return -1;
+        int runNum = input.readVarInt();
+        int start = 0;
+        for (int r = 0; r < runNum; ++r) {
+            start += input.readVarInt();
+            int count = input.readVarInt();
+            switch (dataType) {
+                case Stream.BYTE_TYPE:
+                    input.readBytes((byte[]) data, start, count);
+                    break;
+                case Stream.SHORT_TYPE:
+                    input.readShorts((short[]) data, start, count);
+                    break;
+                case Stream.INT_TYPE:
+                    input.readInts((int[]) data, start, count);
+                    break;
+            }
+            start += count;
+        }
+        return input.finished() ? runNum : -1;
+    }
+
+    static private int length(int dataType, Object data) {
+        switch (dataType) {
+            case Stream.SHORT_TYPE:
+                return ((short[]) data).length;
+            case Stream.INT_TYPE:
+                return ((int[]) data).length;
+        }
+        return ((byte[]) data).length;
+    }
+
+    /**
+     * Send data as the server would, decode it against what was sent
+     * before, and check it arrived unchanged
+     * @return the number of runs, or -1 if the whole array had to be sent
+     */
+    static private int send(StreamDeltaEncoder encoder, int dataType,
+                            Object sent, Object data, String what) {
+        int len = length(dataType, data);
+        int size = encoder.encodedSize(0, 0, dataType, data, len);
+        encoder.remember(0, 0, dataType, data, len);
+        if (size < 0)
+            return -1;
+        byte buffer[] = new byte[16 + len * itemSize(dataType) * 2];
+        BufferedOutput output = new BufferedOutput(buffer);
+        encoder.writeDelta(output, dataType, data, len);
+        Object decoded = copy(dataType, sent);
+        int runNum = apply(new BufferedInput(buffer, output.getLen()),
+                dataType, decoded);
+        check(name(dataType) + " " + what + ": " + size + " bytes, " +
+                        runNum + " run(s)",
+                (output.getLen() == size) && (runNum >= 0) &&
+                        equal(dataType, decoded, data));
+        return runNum;
+    }
+
+    static private void test(int dataType) {
+        String type = name(dataType);
+        StreamDeltaEncoder encoder = new StreamDeltaEncoder();
+        Object data = create(dataType, LEN);
+        for (int i = 0; i < LEN; ++i)
+            if (i % 3 == 0)
+                change(dataType, data, i);
+
+        check(type + " nothing sent before",
+                send(encoder, dataType, null, data, "first") == -1);
+
+        Object sent = copy(dataType, data);
+        check(type + " no change",
+                send(encoder, dataType, sent, data, "no change") == 0);
+
+        sent = copy(dataType, data);
+        change(dataType, data, 0);
+        change(dataType, data, LEN - 1);
+        check(type + " first and last tiles",
+                send(encoder, dataType, sent, data, "first and last") == 2);
+
+        // a gap this many tiles long is cheaper to resend than to skip
+        int mergedGap = StreamDeltaEncoder.MAX_GAP_BYTES / itemSize(dataType);
+        sent = copy(dataType, data);
+        change(dataType, data, 100);
+        change(dataType, data, 101 + mergedGap);
+        check(type + " gap of " + mergedGap + " tile(s) resent",
+                send(encoder, dataType, sent, data, "short gap") == 1);
+
+        sent = copy(dataType, data);
+        change(dataType, data, 200);
+        change(dataType, data, 202 + mergedGap);
+        check(type + " gap of " + (mergedGap + 1) + " tile(s) skipped",
+                send(encoder, dataType, sent, data, "long gap") == 2);
+
+        sent = copy(dataType, data);
+        for (int i = 0; i < LEN; ++i)
+            change(dataType, data, i);
+        check(type + " all changed sent whole",
+                send(encoder, dataType, sent, data, "all changed") == -1);
+
+        Object longer = create(dataType, LEN + 10);
+        System.arraycopy(data, 0, longer, 0, LEN);
+        check(type + " length change sent whole",
+                send(encoder, dataType, data, longer, "length change") == -1);
+        sent = copy(dataType, longer);
+        change(dataType, longer, LEN + 5);
+        check(type + " delta after a length change",
+                send(encoder, dataType, sent, longer, "after length change") == 1);
+
+        encoder.forgetSpace(0);
+        check(type + " forgotten space sent whole",
+                send(encoder, dataType, longer, longer, "forgotten") == -1);
+    }
+
+    static public void main(String args[]) {
+        try {
+            for (int dataType : TYPES)
+                test(dataType);
+        } catch (Exception e) {
+            error(e);
+        }
+        finish();
+    }
+
+}
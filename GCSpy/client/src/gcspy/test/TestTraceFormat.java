@@ -0,0 +1,546 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ * <p>
+ * *  gcspy.test.TestTraceFormat
+ * *
+ * *  Tests writing and reading traces, in every container
+ **/
+
+/**
+ **  gcspy.test.TestTraceFormat
+ **
+ **  Tests writing and reading traces, in every container
+ **/
+
+package gcspy.test;
+
+import gcspy.comm.BufferedInput;
+import gcspy.comm.BufferedOutput;
+import gcspy.interpreter.Space;
+import gcspy.interpreter.Stream;
+import gcspy.interpreter.server.ServerSpace;
+import gcspy.tools.FileTrace;
+import gcspy.tools.FileTraceException;
+import gcspy.tools.MappedTrace;
+
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static gcspy.test.Checks.*;
+
+public class TestTraceFormat {
+
+    static private final int EVENT_NUM = 30;
+    static private final int KEYFRAME_INTERVAL = 4;
+    /* the events where a space is resized, and where one is replaced */
+    static private final int RESIZE_EVENT = 10;
+    static private final int REPLACE_EVENT = 21;
+    static private final String BOOT = "boot of the test trace";
+
+    /* events to seek to: keyframes, either side of them, and the changes of space */
+    static private final int SEEKS[] = {
+            0, 1, 3, 4, 5, 9, RESIZE_EVENT, RESIZE_EVENT + 1, 12, 19, 20,
+            REPLACE_EVENT, REPLACE_EVENT + 1, EVENT_NUM - 1
+    };
+
+    /******************** State ********************/
+
+    /* the state a player would see, reduced to a hash at each event */
+    static private class State {
+        private TreeMap<String, Object> values = new TreeMap<String, Object>();
+
+        void stream(int spaceID, int streamID, Object data, int summary[]) {
+            values.put("stream " + spaceID + "." + streamID, copy(data));
+            values.put("summary " + spaceID + "." + streamID, summary.clone());
+        }
+
+        void control(int spaceID, byte control[]) {
+            values.put("control " + spaceID, control.clone());
+        }
+
+        void eventCount(int counts[]) {
+            values.put("counts", counts.clone());
+        }
+
+        void spaceInfo(int spaceID, String spaceInfo) {
+            values.put("info " + spaceID, spaceInfo);
+        }
+
+        /* a replaced space starts with no streams */
+        void space(int spaceID) {
+            Iterator<String> keys = values.keySet().iterator();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (key.startsWith("stream " + spaceID + ".") ||
+                        key.startsWith("summary " + spaceID + "."))
+                    keys.remove();
+            }
+        }
+
+        long hash(int eventID, int elapsedTime, int compensationTime) {
+            long hash = (eventID * 31L + elapsedTime) * 31 + compensationTime;
+            for (String key : values.keySet()) {
+                Object value = values.get(key);
+                hash = hash * 31 + key.hashCode();
+                if (value instanceof byte[])
+                    hash = hash * 31 + Arrays.hashCode((byte[]) value);
+                else if (value instanceof short[])
+                    hash = hash * 31 + Arrays.hashCode((short[]) value);
+                else if (value instanceof int[])
+                    hash = hash * 31 + Arrays.hashCode((int[]) value);
+                else
+                    hash = hash * 31 + value.hashCode();
+            }
+            return hash;
+        }
+
+        static private Object copy(Object data) {
+            if (data instanceof byte[])
+                return ((byte[]) data).clone();
+            if (data instanceof short[])
+                return ((short[]) data).clone();
+            return ((int[]) data).clone();
+        }
+    }
+
+    /******************** Writing ********************/
+
+    /* what the test trace is written through */
+    private interface Writer {
+        void boot(byte data[], int len) throws IOException;
+
+        void space(Space space) throws IOException;
+
+        void startEvent(Space spaces[]) throws IOException;
+
+        void stream(int spaceID, int streamID, Object data, int summary[]) throws IOException;
+
+        void control(int spaceID, byte control[]) throws IOException;
+
+        void eventCount(int counts[]) throws IOException;
+
+        void spaceInfo(int spaceID, String spaceInfo) throws IOException;
+
+        void event(int eventID, int elapsedTime, int compensationTime) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    static private ServerSpace createSpace(int spaceID, String name, int tileNum) {
+        ServerSpace space = new ServerSpace(name, "test", tileNum, "Tile ",
+                "info", 3, "UNUSED", spaceID == 0);
+        space.setID(spaceID);
+        for (int i = 0; i < tileNum; ++i)
+            space.setTileName(i, "tile " + i);
+        space.addStream(new Stream("bytes", Stream.BYTE_TYPE, 0, 100, 0, 0,
+                "", "", Stream.PRESENTATION_PLUS, Stream.PAINT_STYLE_ZERO, 0,
+                Color.red, null, tileNum));
+        space.addStream(new Stream("shorts", Stream.SHORT_TYPE, 0, 10000, 0, 0,
+                "", "", Stream.PRESENTATION_PLUS, Stream.PAINT_STYLE_ZERO, 0,
+                Color.green, null, tileNum));
+        space.addStream(new Stream("ints", Stream.INT_TYPE, 0, 1000000, 0, 0,
+                "", "", Stream.PRESENTATION_PERCENT, Stream.PAINT_STYLE_ZERO, 0,
+                Color.blue, null, tileNum));
+        return space;
+    }
+
+    static private void change(Stream stream, int tile, Random random) {
+        switch (stream.getDataType()) {
+            case Stream.BYTE_TYPE:
+                stream.getByteData()[tile] = (byte) random.nextInt(100);
+                break;
+            case Stream.SHORT_TYPE:
+                stream.getShortData()[tile] = (short) random.nextInt(10000);
+                break;
+            case Stream.INT_TYPE:
+                stream.getIntData()[tile] = random.nextInt(1000000);
+                break;
+        }
+    }
+
+    /**
+     * Write the test trace
+     * @return the hash of the state at each event
+     */
+    static private List<Long> write(Writer writer) throws IOException {
+        List<Long> hashes = new ArrayList<Long>();
+        State state = new State();
+        Random random = new Random(42);
+
+        BufferedOutput boot = new BufferedOutput(new byte[256]);
+        boot.writeString(BOOT);
+        writer.boot(boot.getBuffer(), boot.getLen());
+
+        ServerSpace spaces[] = {
+                createSpace(0, "Heap", 64), createSpace(1, "Other", 16)
+        };
+        int counts[] = new int[2];
+        for (int e = 0; e < EVENT_NUM; ++e) {
+            if (e == RESIZE_EVENT)
+                spaces[1] = createSpace(1, "Other", 24);
+            if (e == REPLACE_EVENT)
+                spaces[0] = createSpace(0, "Heap", 64);
+            if ((e == RESIZE_EVENT) || (e == REPLACE_EVENT)) {
+                int spaceID = (e == RESIZE_EVENT) ? 1 : 0;
+                writer.space(spaces[spaceID]);
+                state.space(spaceID);
+            }
+            writer.startEvent(spaces);
+
+            ++counts[e % 2];
+            writer.eventCount(counts);
+            state.eventCount(counts);
+            for (ServerSpace space : spaces) {
+                int spaceID = space.getID();
+                int tileNum = space.getTileNum();
+                String info = space.getName() + " at event " + e;
+                writer.spaceInfo(spaceID, info);
+                state.spaceInfo(spaceID, info);
+
+                byte control[] = space.getControl();
+                control[random.nextInt(tileNum)] = (byte) random.nextInt(4);
+                writer.control(spaceID, control);
+                state.control(spaceID, control);
+
+                for (int streamID = 0; streamID < space.getStreamNum(); ++streamID) {
+                    Stream stream = space.getStream(streamID);
+                    // now and then every tile changes, usually only a few
+                    int changes = (e % 9 == 0) ? tileNum : 3;
+                    for (int i = 0; i < changes; ++i)
+                        change(stream, (changes == tileNum) ? i : random.nextInt(tileNum), random);
+                    int summary[] = {e, streamID, random.nextInt(1000)};
+                    writer.stream(spaceID, streamID, stream.getData(), summary);
+                    state.stream(spaceID, streamID, stream.getData(), summary);
+                }
+            }
+            int eventID = e % 2;
+            writer.event(eventID, e * 10, e);
+            hashes.add(state.hash(eventID, e * 10, e));
+        }
+        writer.close();
+        return hashes;
+    }
+
+    static private Writer fileWriter(final FileTrace trace) {
+        return new Writer() {
+            public void boot(byte data[], int len) throws IOException {
+                BufferedOutput output = trace.createBufferedOutput();
+                output.writeBytes(data, 0, len);
+                trace.done(output.getLen());
+            }
+
+            public void space(Space space) {
+                trace.writeSpace(space);
+            }
+
+            public void startEvent(Space spaces[]) {
+                trace.startEvent(spaces);
+            }
+
+            public void stream(int spaceID, int streamID, Object data, int summary[]) {
+                trace.writeStream(spaceID, streamID, data, summary);
+            }
+
+            public void control(int spaceID, byte control[]) {
+                trace.writeControl(spaceID, control);
+            }
+
+            public void eventCount(int counts[]) {
+                trace.writeEventCount(counts);
+            }
+
+            public void spaceInfo(int spaceID, String spaceInfo) {
+                trace.writeSpaceInfo(spaceID, spaceInfo);
+            }
+
+            public void event(int eventID, int elapsedTime, int compensationTime) {
+                trace.writeEvent(eventID, elapsedTime, compensationTime);
+            }
+
+            public void close() {
+                trace.close();
+            }
+        };
+    }
+
+    /* writes the Java serialisation traces of earlier versions */
+    static private Writer legacyWriter(String fileName) throws IOException {
+        final FileOutputStream foutput = new FileOutputStream(fileName);
+        final ObjectOutputStream output = new ObjectOutputStream(foutput);
+        return new Writer() {
+            private void writeObject(Object obj) throws IOException {
+                ByteArrayOutputStream aoutput = new ByteArrayOutputStream();
+                ObjectOutputStream ooutput = new ObjectOutputStream(aoutput);
+                ooutput.writeObject(obj);
+                ooutput.close();
+                byte arr[] = aoutput.toByteArray();
+                output.writeInt(arr.length);
+                output.write(arr, 0, arr.length);
+            }
+
+            public void boot(byte data[], int len) throws IOException {
+                output.writeInt(len);
+                output.write(data, 0, len);
+            }
+
+            public void space(Space space) throws IOException {
+                output.writeByte(5);
+                BufferedOutput boutput = new BufferedOutput(new byte[64 * 1024]);
+                space.serialise(boutput);
+                boot(boutput.getBuffer(), boutput.getLen());
+            }
+
+            public void startEvent(Space spaces[]) {
+            }
+
+            public void stream(int spaceID, int streamID, Object data, int summary[])
+                    throws IOException {
+                output.writeByte(0);
+                output.writeByte(spaceID);
+                output.writeByte(streamID);
+                writeObject(data);
+                writeObject(summary);
+            }
+
+            public void control(int spaceID, byte control[]) throws IOException {
+                output.writeByte(1);
+                output.writeByte(spaceID);
+                writeObject(control);
+            }
+
+            public void eventCount(int counts[]) throws IOException {
+                output.writeByte(2);
+                writeObject(counts);
+            }
+
+            public void spaceInfo(int spaceID, String spaceInfo) throws IOException {
+                output.writeByte(4);
+                output.writeByte(spaceID);
+                writeObject(spaceInfo);
+            }
+
+            public void event(int eventID, int elapsedTime, int compensationTime)
+                    throws IOException {
+                output.writeByte(3);
+                output.writeByte(eventID);
+                output.writeInt(elapsedTime);
+                output.writeInt(compensationTime);
+            }
+
+            public void close() throws IOException {
+                output.close();
+                foutput.close();
+            }
+        };
+    }
+
+    /******************** Reading ********************/
+
+    static private class Reader extends FileTrace {
+        private State state = new State();
+        private List<Long> hashes = new ArrayList<Long>();
+        /* events after the first limit are ignored once done */
+        private int limit = Integer.MAX_VALUE;
+        private boolean done = false;
+
+        protected void stream(int spaceID, int streamID, Object data, int summary[]) {
+            state.stream(spaceID, streamID, data, summary);
+        }
+
+        protected void control(int spaceID, byte control[]) {
+            state.control(spaceID, control);
+        }
+
+        protected void eventCount(int counts[]) {
+            state.eventCount(counts);
+        }
+
+        protected void spaceInfo(int spaceID, String spaceInfo) {
+            state.spaceInfo(spaceID, spaceInfo);
+        }
+
+        protected void space(ServerSpace space) {
+            state.space(space.getID());
+        }
+
+        protected void event(int eventID, int elapsedTime, int compensationTime)
+                throws IOException {
+            if (done)
+                return;
+            hashes.add(state.hash(eventID, elapsedTime, compensationTime));
+            done = (hashes.size() >= limit);
+        }
+
+        /* read from an event, with none of the state of the events before */
+        List<Long> readFrom(int eventIndex, int num) throws IOException {
+            state = new State();
+            hashes = new ArrayList<Long>();
+            limit = num;
+            done = false;
+            seek(eventIndex);
+            if (getEventIndex() != eventIndex)
+                return null;
+            parse();
+            return hashes;
+        }
+
+        Reader(String fileName) {
+            super(fileName, false);
+            setupInput();
+        }
+    }
+
+    static private long hash(MappedTrace.Cursor cursor) {
+        State state = new State();
+        state.eventCount(cursor.getEventCount());
+        for (int spaceID = 0; spaceID < cursor.getSpaceNum(); ++spaceID) {
+            ServerSpace space = cursor.getSpace(spaceID);
+            state.spaceInfo(spaceID, space.getSpaceInfo());
+            state.control(spaceID, space.getControl());
+            for (int streamID = 0; streamID < space.getStreamNum(); ++streamID) {
+                Stream stream = space.getStream(streamID);
+                state.stream(spaceID, streamID, stream.getData(), stream.getSummary());
+            }
+        }
+        return state.hash(cursor.getEventID(), cursor.getElapsedTime(),
+                cursor.getCompensationTime());
+    }
+
+    static private boolean matches(List<Long> read, List<Long> expected, int from) {
+        return (read != null) &&
+                read.equals(expected.subList(from, Math.min(from + read.size(), expected.size())));
+    }
+
+    static private void read(String fileName, List<Long> expected) throws IOException {
+        String name = new File(fileName).getName();
+
+        Reader reader = new Reader(fileName);
+        BufferedInput boot = reader.createBufferedInput();
+        check(name + ": bootstrap", BOOT.equals(boot.readString()));
+        reader.parse();
+        check(name + ": parse " + reader.hashes.size() + " events",
+                reader.hashes.equals(expected));
+        reader.close();
+
+        reader = new Reader(fileName);
+        check(name + ": index of " + reader.getIndexedEventNum() + " events",
+                reader.isSeekable() && (reader.getIndexedEventNum() == EVENT_NUM));
+        boolean seeks = true;
+        for (int eventIndex : SEEKS)
+            seeks &= matches(reader.readFrom(eventIndex, 3), expected, eventIndex);
+        // and back again
+        for (int s = SEEKS.length - 1; s >= 0; --s)
+            seeks &= matches(reader.readFrom(SEEKS[s], 2), expected, SEEKS[s]);
+        check(name + ": seek", seeks);
+        reader.close();
+    }
+
+    static private void readMapped(String fileName, List<Long> expected) throws IOException {
+        String name = new File(fileName).getName();
+        MappedTrace trace = new MappedTrace(fileName);
+        MappedTrace.Cursor cursor = trace.newCursor();
+        List<Long> hashes = new ArrayList<Long>();
+        while (cursor.next())
+            hashes.add(hash(cursor));
+        check(name + ": mapped next " + hashes.size() + " events",
+                (trace.getEventNum() == EVENT_NUM) && hashes.equals(expected));
+
+        boolean seeks = true;
+        for (int eventIndex : SEEKS) {
+            cursor.seek(eventIndex);
+            for (int i = eventIndex; (i < eventIndex + 3) && (i < EVENT_NUM); ++i)
+                seeks &= cursor.next() && (hash(cursor) == expected.get(i));
+        }
+        check(name + ": mapped seek", seeks);
+        trace.close();
+    }
+
+    static private void notMapped(String fileName) {
+        String result;
+        try {
+            new MappedTrace(fileName).close();
+            result = null;
+        } catch (FileTraceException e) {
+            result = "FileTraceException";
+        } catch (IOException e) {
+            result = e.getClass().getName();
+        } catch (RuntimeException e) {
+            result = e.getClass().getName();
+        }
+        check(new File(fileName).getName() + ": not mapped (" + result + ")",
+                "FileTraceException".equals(result));
+    }
+
+    static public void main(String args[]) {
+        File dir = null;
+        try {
+            dir = Files.createTempDirectory("gcspy-trace").toFile();
+            String path = dir.getPath() + File.separator;
+
+            FileTrace plain = new FileTrace(path + "trace.gcspy", false);
+            FileTrace gzip = new FileTrace(path + "trace.gcspy.gz", false);
+            FileTrace zip = new FileTrace(path + "trace.zip", false);
+            FileTrace blocks = new FileTrace(path + "trace.blk", false);
+            blocks.setCompressionThreads(2);
+            FileTrace queued = new FileTrace(path + "queued.blk", false);
+            queued.setWriteQueue(1024 * 1024);
+            FileTrace traces[] = {plain, gzip, zip, blocks, queued};
+            String names[] = {
+                    "trace.gcspy", "trace.gcspy.gz", "trace.zip", "trace.blk", "queued.blk"
+            };
+
+            List<Long> expected = null;
+            for (FileTrace trace : traces) {
+                trace.setKeyframeInterval(KEYFRAME_INTERVAL);
+                trace.setupOutput();
+                List<Long> hashes = write(fileWriter(trace));
+                if (expected == null)
+                    expected = hashes;
+            }
+            for (String name : names)
+                read(path + name, expected);
+            readMapped(path + "trace.gcspy", expected);
+            readMapped(path + "trace.blk", expected);
+            readMapped(path + "queued.blk", expected);
+            notMapped(path + "trace.gcspy.gz");
+            notMapped(path + "trace.zip");
+
+            String legacy = path + "legacy.gcspy";
+            write(legacyWriter(legacy));
+            Reader reader = new Reader(legacy);
+            BufferedInput boot = reader.createBufferedInput();
+            check("legacy.gcspy: bootstrap", BOOT.equals(boot.readString()));
+            reader.parse();
+            check("legacy.gcspy: parse " + reader.hashes.size() + " events",
+                    reader.hashes.equals(expected));
+            check("legacy.gcspy: not seekable", !reader.isSeekable());
+            reader.close();
+        } catch (Exception e) {
+            error(e);
+        } finally {
+            if (dir != null) {
+                File files[] = dir.listFiles();
+                if (files != null)
+                    for (File file : files)
+                        file.delete();
+                dir.delete();
+            }
+        }
+        finish();
+    }
+
+}
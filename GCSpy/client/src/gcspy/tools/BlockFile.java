@@ -0,0 +1,370 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a block-compressed trace. The uncompressed trace is cut into
+ * blocks of the same length, but for the last one, and each block is
+ * compressed on its own, so that blocks can be decompressed in parallel
+ * and from anywhere in the trace. The file starts with a header:
+ * <pre>
+ *   magic     8 bytes  "GCSPYBLK"
+ *   version   short
+ *   flags     short
+ *   block     int      the length of a block, uncompressed
+ * </pre>
+ * followed by the blocks, each of which is a method byte (stored or
+ * raw deflate), its compressed and its uncompressed length as ints, and
+ * its data. Then comes the table of blocks, which holds their number as
+ * an int, the length of the uncompressed trace as a long, and the
+ * position of each block as a long, and finally a trailer:
+ * <pre>
+ *   table     long
+ *   magic     8 bytes  "GCSPYBTB"
+ * </pre>
+ * Everything is little-endian. The file is mapped, and the methods can
+ * be called by several threads at once.
+ */
+final class BlockFile {
+
+    static final byte MAGIC[] = {'G', 'C', 'S', 'P', 'Y', 'B', 'L', 'K'};
+    static final short VERSION = 1;
+    static final int HEADER_LEN = 16;
+
+    static final byte TRAILER_MAGIC[] = {'G', 'C', 'S', 'P', 'Y', 'B', 'T', 'B'};
+    static final int TRAILER_LEN = 16;
+
+    static final int BLOCK_HEADER_LEN = 9;
+    static final byte STORED = 0;
+    static final byte DEFLATED = 1;
+
+    /* files larger than this are mapped in several parts */
+    static private final int SEGMENT_SHIFT = 30;
+    static private final long SEGMENT_LEN = 1L << SEGMENT_SHIFT;
+
+    /* how many blocks a stream decompresses ahead of its reader */
+    static private final int READ_AHEAD = Runtime.getRuntime().availableProcessors();
+
+    static private ExecutorService decompressors;
+
+    private final String fileName;
+    private final FileChannel channel;
+    private final ByteBuffer segments[];
+    private final int blockLen;
+    private final long length;
+    /* the position of each block, and of the table after the last one */
+    private final long positions[];
+
+    /******************** Header ********************/
+
+    /**
+     * Does a file start with the header of a block-compressed trace?
+     * @param start The first bytes of the file
+     * @param len How many there are
+     * @return true if it does
+     */
+    static boolean isBlocks(byte start[], int len) {
+        if (len < MAGIC.length)
+            return false;
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (start[i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the header of a block-compressed trace
+     * @param buffer Where to put it
+     * @param blockLen The length of a block
+     */
+    static void putHeader(ByteBuffer buffer, int blockLen) {
+        buffer.put(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(blockLen);
+    }
+
+    /******************** Accessor Methods ********************/
+
+    /**
+     * Get the length of a block, uncompressed
+     * @return the length in bytes
+     */
+    int getBlockLen() {
+        return blockLen;
+    }
+
+    /**
+     * Get the number of blocks
+     * @return the number of blocks
+     */
+    int getBlockNum() {
+        return positions.length - 1;
+    }
+
+    /**
+     * Get the length of the uncompressed trace
+     * @return the length in bytes
+     */
+    long getLength() {
+        return length;
+    }
+
+    /******************** Blocks ********************/
+
+    /* a block as it is in the file */
+    private ByteBuffer compressed(int block) throws IOException {
+        long start = positions[block];
+        int len = (int) (positions[block + 1] - start);
+        int segment = (int) (start >>> SEGMENT_SHIFT);
+        int offset = (int) (start & (SEGMENT_LEN - 1));
+        if ((long) offset + len <= segments[segment].capacity()) {
+            ByteBuffer view = segments[segment].duplicate();
+            view.limit(offset + len).position(offset);
+            return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        // it spans two parts of the mapping
+        ByteBuffer buffer = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0)
+                throw new FileTraceException("Trace " + fileName + " is truncated");
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Decompress a block
+     * @param block The block's number
+     * @param array The array to decompress into, or null
+     * @return the block's data, from its start to its end
+     */
+    ByteBuffer readBlock(int block, byte array[]) throws IOException {
+        ByteBuffer in = compressed(block);
+        if (in.remaining() < BLOCK_HEADER_LEN)
+            throw new FileTraceException("Corrupt block " + block);
+        byte method = in.get();
+        int storedLen = in.getInt();
+        int rawLen = in.getInt();
+        if ((storedLen != in.remaining()) || (rawLen < 0) || (rawLen > blockLen))
+            throw new FileTraceException("Corrupt block " + block);
+        if ((array == null) || (array.length < rawLen))
+            array = new byte[blockLen];
+
+        if (method == STORED) {
+            in.get(array, 0, rawLen);
+        } else if (method == DEFLATED) {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(in);
+                int len = 0;
+                while (len < rawLen) {
+                    int inflated = inflater.inflate(array, len, rawLen - len);
+                    if ((inflated == 0) && (inflater.finished() || inflater.needsInput()))
+                        throw new FileTraceException("Block " + block + " is short");
+                    len += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new FileTraceException(e);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new FileTraceException("Corrupt block " + block);
+        }
+        return ByteBuffer.wrap(array, 0, rawLen).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /******************** Streams ********************/
+
+    /* reads the uncompressed trace, decompressing blocks ahead in parallel */
+    private class BlockInputStream extends InputStream {
+        private int nextBlock;
+        private int skip;
+        private final ArrayDeque<Future<ByteBuffer>> ahead = new ArrayDeque<Future<ByteBuffer>>();
+        private ByteBuffer current;
+
+        private BlockInputStream(long position) {
+            nextBlock = (int) (position / blockLen);
+            skip = (int) (position % blockLen);
+            readAhead();
+        }
+
+        private void readAhead() {
+            while ((ahead.size() < READ_AHEAD) && (nextBlock < getBlockNum())) {
+                final int block = nextBlock++;
+                ahead.add(getDecompressors().submit(new Callable<ByteBuffer>() {
+                    public ByteBuffer call() throws IOException {
+                        return readBlock(block, null);
+                    }
+                }));
+            }
+        }
+
+        /* make sure there is something to read, unless at the end */
+        private boolean advance() throws IOException {
+            while ((current == null) || !current.hasRemaining()) {
+                Future<ByteBuffer> next = ahead.poll();
+                if (next == null)
+                    return false;
+                try {
+                    current = next.get();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while decompressing");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    throw new IOException(cause);
+                }
+                if (skip > 0) {
+                    current.position(Math.min(skip, current.limit()));
+                    skip = 0;
+                }
+                readAhead();
+            }
+            return true;
+        }
+
+        public int read() throws IOException {
+            if (!advance())
+                return -1;
+            return current.get() & 0xff;
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!advance())
+                return -1;
+            int n = Math.min(len, current.remaining());
+            current.get(b, off, n);
+            return n;
+        }
+
+        public void close() {
+            for (Future<ByteBuffer> future : ahead)
+                future.cancel(false);
+            ahead.clear();
+            current = null;
+        }
+    }
+
+    /**
+     * Open the uncompressed trace at a position. Only the block the
+     * position is in and those after it are decompressed.
+     * @param position The position
+     * @return a stream of the uncompressed trace
+     */
+    InputStream openStream(long position) {
+        if ((position < 0) || (position > length))
+            throw new FileTraceException("No position " + position + " in " + fileName);
+        return new BlockInputStream(position);
+    }
+
+    static private synchronized ExecutorService getDecompressors() {
+        if (decompressors == null) {
+            decompressors = Executors.newFixedThreadPool(READ_AHEAD, new ThreadFactory() {
+                private int num = 0;
+
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "GCspy decompressor " + (num++));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return decompressors;
+    }
+
+    /******************** Constructors ********************/
+
+    /** Unmap the file, once its streams are no longer used */
+    void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Open a block-compressed trace
+     * @param fileName The name of the file
+     */
+    BlockFile(String fileName) throws IOException {
+        this.fileName = fileName;
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            long fileLength = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+            if ((fileLength < HEADER_LEN + TRAILER_LEN) || (channel.read(header, 0) < HEADER_LEN) ||
+                    !isBlocks(header.array(), HEADER_LEN))
+                throw new FileTraceException("Trace " + fileName + " is not block-compressed");
+            header.flip().position(MAGIC.length);
+            int version = header.getShort();
+            header.getShort();
+            blockLen = header.getInt();
+            if ((version < 1) || (version > VERSION))
+                throw new FileTraceException("Unsupported block version " + version);
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(trailer, fileLength - TRAILER_LEN);
+            trailer.flip();
+            long tablePosition = trailer.getLong();
+            for (int i = 0; i < TRAILER_MAGIC.length; ++i) {
+                if (trailer.get() != TRAILER_MAGIC[i])
+                    throw new FileTraceException("Trace " + fileName + " was not closed");
+            }
+            if ((tablePosition < HEADER_LEN) || (tablePosition > fileLength - TRAILER_LEN - 12))
+                throw new FileTraceException("Corrupt block table");
+
+            ByteBuffer table = ByteBuffer.allocate((int) (fileLength - TRAILER_LEN - tablePosition))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            while (table.hasRemaining()) {
+                if (channel.read(table, tablePosition + table.position()) < 0)
+                    throw new FileTraceException("Trace " + fileName + " is truncated");
+            }
+            table.flip();
+            int blockNum = table.getInt();
+            length = table.getLong();
+            if ((blockNum < 0) || (table.remaining() != 8 * blockNum))
+                throw new FileTraceException("Corrupt block table");
+            positions = new long[blockNum + 1];
+            table.asLongBuffer().get(positions, 0, blockNum);
+            positions[blockNum] = tablePosition;
+
+            segments = new ByteBuffer[(int) ((tablePosition + SEGMENT_LEN - 1) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; ++i) {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(SEGMENT_LEN, tablePosition - start));
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+}
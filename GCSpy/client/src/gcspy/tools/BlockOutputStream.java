@@ -0,0 +1,224 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.tools;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+
+import static gcspy.tools.BlockFile.*;
+
+/**
+ * Writes a block-compressed trace, as described in BlockFile. Full
+ * blocks are compressed by a pool of threads while the writer goes on
+ * filling the next one, and are written in order as they are done. The
+ * writer only waits when it is so far ahead that every thread is busy
+ * and as many blocks again are waiting.
+ */
+final class BlockOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final int blockLen;
+    private final ExecutorService compressors;
+    private final int maxPending;
+
+    /* the blocks being compressed, in order */
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    /* blocks to fill, given back by the compressors */
+    private final ArrayDeque<byte[]> free = new ArrayDeque<byte[]>();
+
+    private byte block[];
+    private int fill;
+
+    private long position;
+    private long length;
+    private long positions[] = new long[64];
+    private int blockNum;
+    private boolean closed;
+
+    /******************** Writing ********************/
+
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    public void write(byte b[], int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        while (len > 0) {
+            if (block == null)
+                block = takeFree();
+            int n = Math.min(len, blockLen - fill);
+            System.arraycopy(b, off, block, fill, n);
+            fill += n;
+            off += n;
+            len -= n;
+            if (fill == blockLen)
+                submit();
+        }
+    }
+
+    /** Write the blocks already compressed; a partial block is kept */
+    public void flush() throws IOException {
+        while (!pending.isEmpty() && pending.peek().isDone())
+            writeBlock(pending.poll());
+        out.flush();
+    }
+
+    /** Compress the last block, and write the table of blocks */
+    public void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            if (fill > 0)
+                submit();
+            closed = true;
+            while (!pending.isEmpty())
+                writeBlock(pending.poll());
+
+            ByteBuffer table = ByteBuffer.allocate(12 + 8 * blockNum + TRAILER_LEN)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            table.putInt(blockNum);
+            table.putLong(length);
+            for (int i = 0; i < blockNum; ++i)
+                table.putLong(positions[i]);
+            table.putLong(position);
+            table.put(TRAILER_MAGIC);
+            out.write(table.array(), 0, table.position());
+        } finally {
+            closed = true;
+            for (Future<byte[]> future : pending)
+                future.cancel(false);
+            compressors.shutdown();
+            out.close();
+        }
+    }
+
+    /******************** Blocks ********************/
+
+    private byte[] takeFree() {
+        synchronized (free) {
+            byte array[] = free.poll();
+            return (array != null) ? array : new byte[blockLen];
+        }
+    }
+
+    private void giveBack(byte array[]) {
+        synchronized (free) {
+            if (free.size() < maxPending)
+                free.push(array);
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte raw[] = block;
+        final int rawLen = fill;
+        block = null;
+        fill = 0;
+        length += rawLen;
+        pending.add(compressors.submit(new Callable<byte[]>() {
+            public byte[] call() {
+                try {
+                    return compress(raw, rawLen);
+                } finally {
+                    giveBack(raw);
+                }
+            }
+        }));
+
+        while (!pending.isEmpty() &&
+                ((pending.size() > maxPending) || pending.peek().isDone()))
+            writeBlock(pending.poll());
+    }
+
+    private void writeBlock(Future<byte[]> future) throws IOException {
+        byte compressed[];
+        try {
+            compressed = future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (blockNum == positions.length)
+            positions = Arrays.copyOf(positions, 2 * positions.length);
+        positions[blockNum++] = position;
+        out.write(compressed);
+        position += compressed.length;
+    }
+
+    /* a block, with its header, stored if it does not get any smaller */
+    static private byte[] compress(byte raw[], int rawLen) {
+        byte compressed[] = new byte[BLOCK_HEADER_LEN + rawLen];
+        ByteBuffer header = ByteBuffer.wrap(compressed).order(ByteOrder.LITTLE_ENDIAN);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(raw, 0, rawLen);
+            deflater.finish();
+            int len = BLOCK_HEADER_LEN;
+            while (!deflater.finished() && (len < compressed.length))
+                len += deflater.deflate(compressed, len, compressed.length - len);
+            if (deflater.finished() && (len < compressed.length)) {
+                header.put(DEFLATED);
+                header.putInt(len - BLOCK_HEADER_LEN);
+                header.putInt(rawLen);
+                return Arrays.copyOf(compressed, len);
+            }
+        } finally {
+            deflater.end();
+        }
+        header.put(STORED);
+        header.putInt(rawLen);
+        header.putInt(rawLen);
+        System.arraycopy(raw, 0, compressed, BLOCK_HEADER_LEN, rawLen);
+        return compressed;
+    }
+
+    /******************** Constructors ********************/
+
+    /**
+     * Start writing a block-compressed trace
+     * @param out Where to write it
+     * @param blockLen The length of a block
+     * @param threads How many threads to compress blocks on
+     */
+    BlockOutputStream(OutputStream out, int blockLen, int threads) throws IOException {
+        if ((blockLen < 1) || (threads < 1))
+            throw new IllegalArgumentException("Bad block length " + blockLen +
+                    " or threads " + threads);
+        this.out = out;
+        this.blockLen = blockLen;
+        maxPending = 2 * threads;
+        compressors = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int num = 0;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GCspy compressor " + (num++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        putHeader(header, blockLen);
+        out.write(header.array());
+        position = HEADER_LEN;
+    }
+
+}
@@ -24,6 +24,7 @@ package gcspy.tools;
 
 import gcspy.comm.BufferedInput;
 import gcspy.comm.BufferedOutput;
+import gcspy.comm.Client;
 import gcspy.interpreter.InputGenerator;
 import gcspy.interpreter.OutputGenerator;
 import gcspy.interpreter.Space;
@@ -32,28 +33,33 @@ import gcspy.utils.FileUtils;
 import gcspy.utils.Verbose;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.zip.*;
 
+import static gcspy.tools.TraceFormat.*;
+
 /**
- * Contains facilities to store / retrieve traces to / from files
+ * Contains facilities to store / retrieve traces to / from files.
+ * Traces are written in the binary format described in TraceFormat;
+ * traces written with Java serialisation by older versions are still read.
+ * <p>
+ * A trace is written with a keyframe every so many events, and an
+ * index of the keyframes at the end, so that it can be played from any
+ * event with <code>seek</code> without handing on every event before it.
  *
  * @author Tony Printezis
  */
 public class FileTrace extends Verbose implements OutputGenerator,
         InputGenerator {
 
-    static private final int MAX_LEN = (256 * 1024);
-
-    static private final byte STREAM_CMD = 0;
-    static private final byte CONTROL_CMD = 1;
-    static private final byte EVENT_COUNT_CMD = 2;
-    static private final byte EVENT_CMD = 3;
-    static private final byte SPACE_INFO_CMD = 4;
-    static private final byte SPACE_CMD = 5;
-
     static private final String CMD_NAMES[] = {"STREAM", "CONTROL",
-            "EVENT COUNT", "EVENT", "SPACE INFO", "SPACE"};
+            "EVENT COUNT", "EVENT", "SPACE INFO", "SPACE", "BOOT",
+            "STREAM DELTA", "CONTROL DELTA", "SPACE KEY", "INDEX"};
+
+    /** How often a keyframe is written by default, in events */
+    static public final int DEFAULT_KEYFRAME_INTERVAL = 100;
 
     static private final int COMPRESSION_UNSET = 0;
     /** No compression */
@@ -62,24 +68,75 @@ public class FileTrace extends Verbose implements OutputGenerator,
     static public final int COMPRESSION_GZIP = 2;
     /** Use zip format */
     static public final int COMPRESSION_ZIP = 3;
+    /** Use blocks compressed in parallel, which can be read from anywhere */
+    static public final int COMPRESSION_BLOCKS = 4;
+
+    static private final String COMPRESSION_NAMES[] = {"", "NONE", "GZIP", "ZIP", "BLOCKS"};
 
-    static private final String COMPRESSION_NAMES[] = {"", "NONE", "GZIP", "ZIP"};
+    /* the length of a block, uncompressed */
+    static private final int BLOCK_LEN = (1024 * 1024);
+    /* the length of a chunk queued for the writer thread */
+    static private final int WRITE_CHUNK_LEN = (256 * 1024);
 
+    /* the buffer grows if a record does not fit */
     static private final int DEFAULT_BUFFER_LEN = (256 * 1024);
 
+    static private final int STREAM_BUFFER_LEN = (64 * 1024);
+
     private OutputStream foutput = null;
-    private FileTraceOutputStream output = null;
+    private OutputStream output = null;
+    private QueuedOutputStream queuedOutput = null;
 
-    private InputStream finput = null;
-    private FileTraceInputStream input = null;
+    private DataInputStream input = null;
+    /* set instead of input for a serialised trace */
+    private FileTraceInputStream legacyInput = null;
     private ZipFile zFile = null;
+    private BlockFile blockFile = null;
+    private int version;
+
+    /* the record being written or read */
+    private ByteBuffer record;
+    private byte recordTag;
+    /* the position of the next record, and of the one just read */
+    private long position;
+    private long recordPosition;
+
+    /*
+     * The streams and controls last written or read, which deltas are
+     * relative to; a writer keeps copies, as the arrays it is given are
+     * reused. A reader also keeps the rest of the state, to hand on
+     * after a seek.
+     */
+    private Object streams[][] = new Object[0][];
+    private int summaries[][][] = new int[0][][];
+    private byte controls[][] = new byte[0][];
+    private String spaceInfos[] = new String[0];
+    private int eventCounts[];
+    /* the position of the record of each space, or -1 for the bootstrap one */
+    private long spacePositions[] = new long[0];
+    /* spaces read while seeking, not handed on yet */
+    private ServerSpace pendingSpaces[] = new ServerSpace[0];
+
+    private int keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+    /* the number of events written or read so far */
+    private int eventIndex;
+    /* set while writing the records of an event, and if it is a keyframe */
+    private boolean inEvent;
+    private boolean keyframe;
+    /* when reading, null until it is needed */
+    private TraceIndex index;
+    private long firstEventTime;
 
     /** The name of the file containng the trace */
     String fileName;
     private int bufferLen;
     private int compression;
+    private int compressionThreads = Runtime.getRuntime().availableProcessors();
+    private int writeQueueLen = 0;
 
     private byte buffer[];
+    /* the last BufferedOutput handed out, whose buffer may have grown */
+    private BufferedOutput bufferedOutput;
 
     /** ****************** Accessor Methods ******************* */
 
@@ -93,28 +150,7 @@ public class FileTrace extends Verbose implements OutputGenerator,
 
   /* ****************** Object Input/Output ******************* */
 
-    private class FileTraceOutputStream extends ObjectOutputStream {
-        public void customWriteObject(Object obj) throws IOException {
-            ByteArrayOutputStream aoutput = new ByteArrayOutputStream();
-            ObjectOutputStream ooutput = new ObjectOutputStream(aoutput);
-            ooutput.writeObject(obj);
-            byte arr[] = aoutput.toByteArray();
-            ooutput.close();
-            aoutput.close();
-
-            writeInt(arr.length);
-            write(arr, 0, arr.length);
-        }
-
-        public void writeTag(int tag) throws IOException {
-            writeByte((byte) tag);
-        }
-
-        public FileTraceOutputStream(OutputStream out) throws IOException {
-            super(out);
-        }
-    }
-
+    /* reads traces written with Java serialisation */
     private class FileTraceInputStream extends ObjectInputStream {
         public Object customReadObject() throws IOException, ClassNotFoundException {
             int length = readInt();
@@ -149,7 +185,8 @@ public class FileTrace extends Verbose implements OutputGenerator,
      * @return the bufferd outpu object
      */
     public BufferedOutput createBufferedOutput() throws IOException {
-        return new BufferedOutput(buffer);
+        bufferedOutput = new BufferedOutput(buffer, Client.MAX_MESSAGE_LEN);
+        return bufferedOutput;
     }
 
     /**
@@ -159,8 +196,124 @@ public class FileTrace extends Verbose implements OutputGenerator,
      *          the lenght of the stream
      */
     public void done(int len) throws IOException {
-        output.writeInt(len);
-        output.write(buffer, 0, len);
+        if (bufferedOutput != null)
+            buffer = bufferedOutput.getBuffer();
+        startRecord(BOOT_REC, len).put(buffer, 0, len);
+        writeRecord();
+    }
+
+    /*
+     * Start encoding a record, growing the buffer if it does not fit
+     */
+    private ByteBuffer startRecord(byte tag, int len) {
+        int needed = RECORD_HEADER_LEN + len;
+        if (record.capacity() < needed)
+            record = TraceFormat.allocate(Math.max(needed, 2 * record.capacity()));
+        record.clear();
+        record.put(tag);
+        record.putInt(len);
+        return record;
+    }
+
+    private void writeRecord() throws IOException {
+        output.write(record.array(), 0, record.position());
+        position += record.position();
+    }
+
+    /** *** KEYFRAMES **** */
+
+    /**
+     * Set how often to write a keyframe. Events between keyframes only
+     * hold what changed since the event before, so the more often, the
+     * larger the trace, and the fewer events have to be read to seek.
+     * @param interval The number of events from one keyframe to the next
+     */
+    public void setKeyframeInterval(int interval) {
+        if (interval < 1)
+            throw new IllegalArgumentException("Bad keyframe interval " + interval);
+        keyframeInterval = interval;
+    }
+
+    /**
+     * Set how many threads compress a block-compressed trace, so that
+     * the thread writing it does not have to. This must be called before
+     * the output is set up.
+     * @param threads The number of threads
+     */
+    public void setCompressionThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Bad number of threads " + threads);
+        compressionThreads = threads;
+    }
+
+    /**
+     * Write the trace, and compress it, on a thread of its own, so that
+     * waiting for the disk does not hold up encoding the events. Each
+     * event is copied into buffers from a pool and queued for the
+     * thread, and only once the queue is full does writing an event
+     * wait. This must be called before the output is set up.
+     * @param len How much can be queued, in bytes, or 0 to write on the
+     * calling thread
+     */
+    public void setWriteQueue(int len) {
+        if (len < 0)
+            throw new IllegalArgumentException("Bad write queue length " + len);
+        writeQueueLen = len;
+    }
+
+    /* the queue to the writer thread, or null if there is none */
+    QueuedOutputStream getQueuedOutput() {
+        return queuedOutput;
+    }
+
+    /**
+     * Start writing the records of an event. This is implied by writing
+     * any of them, but only here can a keyframe find the spaces it needs,
+     * so it should be called once the spaces the server replaced have
+     * been written.
+     * @param spaces The spaces at the event, or null if not known
+     */
+    public void startEvent(Space spaces[]) {
+        if (inEvent)
+            return;
+        inEvent = true;
+        keyframe = (eventIndex % keyframeInterval == 0);
+        if (!keyframe)
+            return;
+
+        try {
+            int spaceNum = spacePositions.length;
+            if (spaces != null) {
+                // the bootstrap spaces are not records of their own
+                for (Space space : spaces) {
+                    int spaceID = space.getID();
+                    ensureSpace(spaceID);
+                    if (spacePositions[spaceID] < 0) {
+                        spacePositions[spaceID] = position;
+                        writeSpace(SPACE_KEY_REC, space);
+                    }
+                }
+                spaceNum = spaces.length;
+            }
+
+            long positions[] = new long[spaceNum];
+            Arrays.fill(positions, -1);
+            System.arraycopy(spacePositions, 0, positions, 0,
+                    Math.min(spaceNum, spacePositions.length));
+            index.addKeyframe(new TraceIndex.Keyframe(eventIndex, position, positions));
+        } catch (IOException e) {
+            throw new FileTraceException(e);
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        long indexPosition = position;
+        index.put(startRecord(INDEX_REC, index.sizeOf()));
+        writeRecord();
+
+        record.clear();
+        putTrailer(record, indexPosition);
+        writeRecord();
     }
 
     /** *** STREAM **** */
@@ -179,13 +332,28 @@ public class FileTrace extends Verbose implements OutputGenerator,
      */
     public void writeStream(int spaceID, int streamID, Object data, int summary[]) {
         try {
-            output.writeTag(STREAM_CMD);
-            output.writeByte((byte) spaceID);
-            output.writeByte((byte) streamID);
-            output.customWriteObject(data);
-            output.customWriteObject(summary);
-            // writeObject(output, data);
-            // writeObject(output, summary);
+            startEvent(null);
+            ensureStream(spaceID, streamID);
+            Object copy = streams[spaceID][streamID];
+            int runs[] = keyframe ? null : diff(copy, data);
+            if ((runs != null) && (sizeOfDelta(runs, data) < sizeOf(data))) {
+                ByteBuffer record = startRecord(STREAM_DELTA_REC,
+                        2 + sizeOfDelta(runs, data) + sizeOf(summary));
+                record.put((byte) spaceID);
+                record.put((byte) streamID);
+                putDelta(record, runs, data);
+                putArray(record, summary);
+            } else {
+                ByteBuffer record = startRecord(STREAM_REC,
+                        2 + sizeOf(data) + sizeOf(summary));
+                record.put((byte) spaceID);
+                record.put((byte) streamID);
+                putArray(record, data);
+                putArray(record, summary);
+                runs = null;
+            }
+            writeRecord();
+            streams[spaceID][streamID] = update(copy, data, runs);
         } catch (IOException e) {
             throw new FileTraceException(e);
         }
@@ -203,10 +371,23 @@ public class FileTrace extends Verbose implements OutputGenerator,
      */
     public void writeControl(int spaceID, byte control[]) {
         try {
-            output.writeTag(CONTROL_CMD);
-            output.writeByte((byte) spaceID);
-            output.customWriteObject(control);
-            // writeObject(output, control);
+            startEvent(null);
+            ensureSpace(spaceID);
+            byte copy[] = controls[spaceID];
+            int runs[] = keyframe ? null : diff(copy, control);
+            if ((runs != null) && (sizeOfDelta(runs, control) < sizeOf(control))) {
+                ByteBuffer record = startRecord(CONTROL_DELTA_REC,
+                        1 + sizeOfDelta(runs, control));
+                record.put((byte) spaceID);
+                putDelta(record, runs, control);
+            } else {
+                ByteBuffer record = startRecord(CONTROL_REC, 1 + sizeOf(control));
+                record.put((byte) spaceID);
+                putArray(record, control);
+                runs = null;
+            }
+            writeRecord();
+            controls[spaceID] = (byte[]) update(copy, control, runs);
         } catch (IOException e) {
             throw new FileTraceException(e);
         }
@@ -222,9 +403,9 @@ public class FileTrace extends Verbose implements OutputGenerator,
      */
     public void writeEventCount(int counts[]) {
         try {
-            output.writeTag(EVENT_COUNT_CMD);
-            output.customWriteObject(counts);
-            // writeObject(output, counts);
+            startEvent(null);
+            putArray(startRecord(EVENT_COUNT_REC, sizeOf(counts)), counts);
+            writeRecord();
         } catch (IOException e) {
             throw new FileTraceException(e);
         }
@@ -233,7 +414,7 @@ public class FileTrace extends Verbose implements OutputGenerator,
     /** *** EVENT **** */
 
     /**
-     * Write an event
+     * Write an event, which ends its records
      *
      * @param eventID
      *          The event's iD
@@ -244,13 +425,25 @@ public class FileTrace extends Verbose implements OutputGenerator,
      */
     public void writeEvent(int eventID, int elapsedTime, int compensationTime) {
         try {
-            output.writeTag(EVENT_CMD);
-            output.writeByte((byte) eventID);
-            output.writeInt(elapsedTime);
-            output.writeInt(compensationTime);
+            startEvent(null);
+            ByteBuffer record = startRecord(EVENT_REC, 9);
+            record.put((byte) eventID);
+            record.putInt(elapsedTime);
+            record.putInt(compensationTime);
+            writeRecord();
+            // hand the event over now, rather than when a chunk fills
+            if (queuedOutput != null)
+                queuedOutput.flush();
         } catch (IOException e) {
             throw new FileTraceException(e);
         }
+
+        long now = System.currentTimeMillis();
+        if (eventIndex == 0)
+            firstEventTime = now;
+        index.addEvent(now - firstEventTime);
+        ++eventIndex;
+        inEvent = false;
     }
 
     /** *** SPACE INFO **** */
@@ -265,15 +458,12 @@ public class FileTrace extends Verbose implements OutputGenerator,
      */
     public void writeSpaceInfo(int spaceID, String spaceInfo) {
         try {
-            output.writeTag(SPACE_INFO_CMD);
-            output.writeByte((byte) spaceID);
-            if (spaceInfo != null) {
-                output.customWriteObject(spaceInfo);
-                // writeObject(output, spaceInfo);
-            } else {
-                output.customWriteObject("");
-                // writeObject(output, "");
-            }
+            startEvent(null);
+            byte encoded[] = encode((spaceInfo != null) ? spaceInfo : "");
+            ByteBuffer record = startRecord(SPACE_INFO_REC, 5 + encoded.length);
+            record.put((byte) spaceID);
+            putString(record, encoded);
+            writeRecord();
         } catch (IOException e) {
             throw new FileTraceException(e);
         }
@@ -282,22 +472,66 @@ public class FileTrace extends Verbose implements OutputGenerator,
     /** *** SPACE **** */
 
     /**
-     * Write a space
+     * Write a space the server replaced, before the records of the event
+     * that uses it
      *
      * @param space
      *          The space
      */
     public void writeSpace(Space space) {
         try {
-            output.writeTag(SPACE_CMD);
-            BufferedOutput output = createBufferedOutput();
-            space.serialise(output);
-            done(output.getLen());
+            int spaceID = space.getID();
+            forgetSpace(spaceID);
+            spacePositions[spaceID] = position;
+            writeSpace(SPACE_REC, space);
         } catch (IOException e) {
             throw new FileTraceException(e);
         }
     }
 
+    private void writeSpace(byte tag, Space space) throws IOException {
+        BufferedOutput output = createBufferedOutput();
+        space.serialise(output);
+        buffer = output.getBuffer();
+        startRecord(tag, output.getLen()).put(buffer, 0, output.getLen());
+        writeRecord();
+    }
+
+    /** ****************** State ******************* */
+
+    private void ensureSpace(int spaceID) {
+        int spaceNum = streams.length;
+        if (spaceID < spaceNum)
+            return;
+        streams = Arrays.copyOf(streams, spaceID + 1);
+        summaries = Arrays.copyOf(summaries, spaceID + 1);
+        controls = Arrays.copyOf(controls, spaceID + 1);
+        spaceInfos = Arrays.copyOf(spaceInfos, spaceID + 1);
+        pendingSpaces = Arrays.copyOf(pendingSpaces, spaceID + 1);
+        spacePositions = Arrays.copyOf(spacePositions, spaceID + 1);
+        for (int i = spaceNum; i <= spaceID; ++i) {
+            streams[i] = new Object[0];
+            summaries[i] = new int[0][];
+            spacePositions[i] = -1;
+        }
+    }
+
+    private void ensureStream(int spaceID, int streamID) {
+        ensureSpace(spaceID);
+        if (streamID >= streams[spaceID].length) {
+            streams[spaceID] = Arrays.copyOf(streams[spaceID], streamID + 1);
+            summaries[spaceID] = Arrays.copyOf(summaries[spaceID], streamID + 1);
+        }
+    }
+
+    /* a replaced space starts with no streams or controls */
+    private void forgetSpace(int spaceID) {
+        ensureSpace(spaceID);
+        streams[spaceID] = new Object[0];
+        summaries[spaceID] = new int[0][];
+        controls[spaceID] = null;
+    }
+
     /** ****************** Input ******************* */
 
     /** *** InputGenerator **** */
@@ -309,11 +543,50 @@ public class FileTrace extends Verbose implements OutputGenerator,
      * @throws IOException
      */
     public BufferedInput createBufferedInput() throws IOException {
-        int len = input.readInt();
-        FileUtils.read(input, buffer, 0, len);
+        if (legacyInput != null)
+            return readBlob(legacyInput, legacyInput.readInt());
+        if (!readRecord() || (recordTag != BOOT_REC))
+            throw new IOException("Missing bootstrap record");
+        return new BufferedInput(record.array(), record.limit());
+    }
+
+    private BufferedInput readBlob(InputStream in, int len) throws IOException {
+        if ((len < 0) || (len > Client.MAX_MESSAGE_LEN))
+            throw new IOException("Corrupt record length " + len);
+        if (len > buffer.length)
+            buffer = new byte[Math.max(len, 2 * buffer.length)];
+        FileUtils.read(in, buffer, 0, len);
         return new BufferedInput(buffer, len);
     }
 
+    /*
+     * Read the next record of a binary trace into the record buffer
+     * @return false at the end of the trace
+     */
+    private boolean readRecord() throws IOException {
+        int tag = input.read();
+        if (tag < 0)
+            return false;
+        int len = Integer.reverseBytes(input.readInt());
+        if ((len < 0) || (len > Client.MAX_MESSAGE_LEN))
+            throw new IOException("Corrupt record length " + len);
+        if (record.capacity() < len)
+            record = TraceFormat.allocate(Math.max(len, 2 * record.capacity()));
+        FileUtils.read(input, record.array(), 0, len);
+        record.clear();
+        record.limit(len);
+        recordTag = (byte) tag;
+        recordPosition = position;
+        position += RECORD_HEADER_LEN + len;
+        return true;
+    }
+
+    private ServerSpace readSpace() {
+        ServerSpace space = (ServerSpace) createSpace();
+        space.deserialise(new BufferedInput(record.array(), record.limit()));
+        return space;
+    }
+
     // is this safe?
 
     /**
@@ -385,10 +658,277 @@ public class FileTrace extends Verbose implements OutputGenerator,
     }
 
     /**
-     * Parse input
+     * Parse input, until the end of the trace
      * @throws IOException
      */
     public void parse() throws IOException {
+        if (legacyInput != null) {
+            parseLegacy();
+            return;
+        }
+        while (readRecord() && (recordTag != INDEX_REC))
+            apply(true);
+    }
+
+    /*
+     * Bring the state up to date with the record just read, and hand it
+     * on unless seeking
+     */
+    private void apply(boolean handOn) throws IOException {
+        ByteBuffer record = this.record;
+        switch (recordTag) {
+            case STREAM_REC:
+            case STREAM_DELTA_REC: {
+                int spaceID = (int) record.get();
+                int streamID = (int) record.get();
+                ensureStream(spaceID, streamID);
+                Object data;
+                if (recordTag == STREAM_REC)
+                    data = getArray(record);
+                else
+                    data = getDelta(record, streams[spaceID][streamID]);
+                int summary[] = (int[]) getArray(record);
+                streams[spaceID][streamID] = data;
+                summaries[spaceID][streamID] = summary;
+                if (handOn)
+                    stream(spaceID, streamID, data, summary);
+                break;
+            }
+            case CONTROL_REC:
+            case CONTROL_DELTA_REC: {
+                int spaceID = (int) record.get();
+                ensureSpace(spaceID);
+                byte control[];
+                if (recordTag == CONTROL_REC)
+                    control = (byte[]) getArray(record);
+                else
+                    control = (byte[]) getDelta(record, controls[spaceID]);
+                controls[spaceID] = control;
+                if (handOn)
+                    control(spaceID, control);
+                break;
+            }
+            case EVENT_COUNT_REC:
+                eventCounts = (int[]) getArray(record);
+                if (handOn)
+                    eventCount(eventCounts);
+                break;
+            case EVENT_REC: {
+                int eventID = (int) record.get();
+                int elapsedTime = record.getInt();
+                int compensationTime = record.getInt();
+                ++eventIndex;
+                if (handOn)
+                    event(eventID, elapsedTime, compensationTime);
+                break;
+            }
+            case SPACE_INFO_REC: {
+                int spaceID = (int) record.get();
+                ensureSpace(spaceID);
+                spaceInfos[spaceID] = getString(record);
+                if (handOn)
+                    spaceInfo(spaceID, spaceInfos[spaceID]);
+                break;
+            }
+            case SPACE_REC: {
+                ServerSpace space = readSpace();
+                int spaceID = space.getID();
+                forgetSpace(spaceID);
+                spacePositions[spaceID] = recordPosition;
+                if (handOn)
+                    space(space);
+                else
+                    pendingSpaces[spaceID] = space;
+                break;
+            }
+            case SPACE_KEY_REC: {
+                // a bootstrap space, which need not be read again to seek
+                int spaceID = readSpace().getID();
+                ensureSpace(spaceID);
+                if (spacePositions[spaceID] < 0)
+                    spacePositions[spaceID] = recordPosition;
+                break;
+            }
+            default:
+                // added by later versions
+                break;
+        }
+    }
+
+    /** *** Seeking **** */
+
+    /*
+     * Read the index, if there is one and it has not been read yet
+     */
+    private boolean readIndex() throws IOException {
+        if (index != null)
+            return true;
+        if ((legacyInput != null) || (version < 2))
+            return false;
+
+        DataInputStream in;
+        if ((compression == COMPRESSION_NONE) || (compression == COMPRESSION_BLOCKS)) {
+            // the trailer says where the index is
+            long length;
+            if (compression == COMPRESSION_NONE)
+                length = new File(fileName).length();
+            else
+                length = getBlockFile().getLength();
+            if (length < HEADER_LEN + TRAILER_LEN)
+                return false;
+            ByteBuffer trailer = TraceFormat.allocate(TRAILER_LEN);
+            try (InputStream tinput = openContainer(length - TRAILER_LEN)) {
+                FileUtils.read(tinput, trailer.array(), 0, TRAILER_LEN);
+            }
+            long indexPosition = getTrailer(trailer);
+            if (indexPosition < 0)
+                return false;
+            in = new DataInputStream(openContainer(indexPosition));
+            if (in.read() != INDEX_REC) {
+                in.close();
+                throw new FileTraceException("Corrupt trace index");
+            }
+        } else {
+            // there is no way to get at the end without reading up to it
+            in = new DataInputStream(new BufferedInputStream(
+                    openContainer(HEADER_LEN), STREAM_BUFFER_LEN));
+            while (true) {
+                int tag = in.read();
+                if (tag < 0) {
+                    in.close();
+                    return false;
+                }
+                if (tag == INDEX_REC)
+                    break;
+                in.skipNBytes(Integer.reverseBytes(in.readInt()));
+            }
+        }
+
+        try {
+            ByteBuffer buffer = TraceFormat.allocate(Integer.reverseBytes(in.readInt()));
+            in.readFully(buffer.array());
+            index = TraceIndex.get(buffer);
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Can the trace be played from any event? Traces written by older
+     * versions, or whose recording was cut short, cannot.
+     * @return true if it can
+     */
+    public boolean isSeekable() throws IOException {
+        return readIndex();
+    }
+
+    /**
+     * Get the number of events in a seekable trace
+     * @return the number of events
+     */
+    public int getIndexedEventNum() throws IOException {
+        checkIndex();
+        return index.getEventNum();
+    }
+
+    /**
+     * Get when an event of a seekable trace was recorded
+     * @param eventIndex The event's number, counting from 0
+     * @return the time in ms since the first event was recorded
+     */
+    public long getEventOffset(int eventIndex) throws IOException {
+        checkIndex();
+        return index.getEventOffset(eventIndex);
+    }
+
+    /**
+     * Find the first event of a seekable trace recorded at or after a time
+     * @param offset The time in ms since the first event was recorded
+     * @return the event's number, or the last event if there is none
+     */
+    public int findEvent(long offset) throws IOException {
+        checkIndex();
+        return index.findEvent(offset);
+    }
+
+    /**
+     * Get the number of the next event that parsing will hand on
+     * @return the event's number, counting from 0
+     */
+    public int getEventIndex() {
+        return eventIndex;
+    }
+
+    private void checkIndex() throws IOException {
+        if (!readIndex())
+            throw new FileTraceException("Trace " + fileName + " has no index");
+    }
+
+    /**
+     * Go to an event of a seekable trace, so that it is the next one that
+     * parsing hands on. The state the events before it left (spaces,
+     * event counts, space information, streams and controls) is handed
+     * on first, so that the event finds the state it was recorded with.
+     * Only the events since the keyframe before it are read.
+     * @param eventIndex The event's number, counting from 0
+     * @throws IOException
+     */
+    public void seek(int eventIndex) throws IOException {
+        checkIndex();
+        TraceIndex.Keyframe frame = index.findKeyframe(eventIndex);
+
+        for (int spaceID = 0; spaceID < frame.spaces.length; ++spaceID) {
+            long spacePosition = frame.spaces[spaceID];
+            ensureSpace(spaceID);
+            if ((spacePosition >= 0) && (spacePosition != spacePositions[spaceID])) {
+                reopen(spacePosition);
+                if (!readRecord() || ((recordTag != SPACE_REC) && (recordTag != SPACE_KEY_REC)))
+                    throw new FileTraceException("Corrupt trace index");
+                forgetSpace(spaceID);
+                spacePositions[spaceID] = spacePosition;
+                pendingSpaces[spaceID] = readSpace();
+            }
+        }
+
+        reopen(frame.position);
+        this.eventIndex = frame.eventIndex;
+        boolean skipped = (frame.eventIndex < eventIndex);
+        while (this.eventIndex < eventIndex) {
+            if (!readRecord() || (recordTag == INDEX_REC))
+                throw new FileTraceException("Trace " + fileName + " ends before event " + eventIndex);
+            apply(false);
+        }
+
+        for (int spaceID = 0; spaceID < pendingSpaces.length; ++spaceID) {
+            if (pendingSpaces[spaceID] != null) {
+                space(pendingSpaces[spaceID]);
+                pendingSpaces[spaceID] = null;
+            }
+        }
+        if (!skipped)
+            // the keyframe's records hold the rest
+            return;
+        if (eventCounts != null)
+            eventCount(eventCounts);
+        for (int spaceID = 0; spaceID < streams.length; ++spaceID) {
+            if (spaceInfos[spaceID] != null)
+                spaceInfo(spaceID, spaceInfos[spaceID]);
+            for (int streamID = 0; streamID < streams[spaceID].length; ++streamID) {
+                if (streams[spaceID][streamID] != null)
+                    stream(spaceID, streamID, streams[spaceID][streamID],
+                            summaries[spaceID][streamID]);
+            }
+            if (controls[spaceID] != null)
+                control(spaceID, controls[spaceID]);
+        }
+    }
+
+    /*
+     * Parse a trace written with Java serialisation
+     */
+    private void parseLegacy() throws IOException {
+        FileTraceInputStream input = legacyInput;
         int spaceID, streamID;
         int eventID;
         int elapsedTime, compensationTime;
@@ -402,48 +942,44 @@ public class FileTrace extends Verbose implements OutputGenerator,
             try {
                 int tag = input.readTag();
                 switch (tag) {
-                    case STREAM_CMD:
+                    case STREAM_REC:
                         spaceID = (int) input.readByte();
                         streamID = (int) input.readByte();
                         data = input.customReadObject();
                         summary = (int[]) input.customReadObject();
-                        // Data = readObject(input);
-                        // summary = (int[]) readObject(input);
                         stream(spaceID, streamID, data, summary);
                         break;
-                    case CONTROL_CMD:
+                    case CONTROL_REC:
                         spaceID = (int) input.readByte();
                         control = (byte[]) input.customReadObject();
-                        // control = (byte[]) readObject(input);
                         control(spaceID, control);
                         break;
-                    case EVENT_COUNT_CMD:
+                    case EVENT_COUNT_REC:
                         counts = (int[]) input.customReadObject();
-                        // counts = (int[]) readObject(input);
                         eventCount(counts);
                         break;
-                    case EVENT_CMD:
+                    case EVENT_REC:
                         eventID = (int) input.readByte();
                         elapsedTime = input.readInt();
                         compensationTime = input.readInt();
                         event(eventID, elapsedTime, compensationTime);
                         break;
-                    case SPACE_INFO_CMD:
+                    case SPACE_INFO_REC:
                         spaceID = (int) input.readByte();
                         spaceInfo = (String) input.customReadObject();
-                        // spaceInfo = (String) readObject(input);
                         spaceInfo(spaceID, spaceInfo);
                         break;
-                    case SPACE_CMD:
-                        BufferedInput input = createBufferedInput();
+                    case SPACE_REC:
+                        BufferedInput binput = createBufferedInput();
                         ServerSpace space = (ServerSpace) createSpace();
-                        space.deserialise(input);
+                        space.deserialise(binput);
                         space(space);
                         break;
                 }
             } catch (ClassNotFoundException e) {
                 e.printStackTrace();
             } catch (EOFException e) {
+                return;
             }
         }
     }
@@ -465,37 +1001,74 @@ public class FileTrace extends Verbose implements OutputGenerator,
                 compression = COMPRESSION_GZIP;
             else if (fileName.endsWith(".zip"))
                 compression = COMPRESSION_ZIP;
+            else if (fileName.endsWith(".blk"))
+                compression = COMPRESSION_BLOCKS;
             else
                 compression = COMPRESSION_NONE;
         }
     }
 
-    /** Set up the input */
-    public void setupInput() {
+    /*
+     * Open the uncompressed trace at a position
+     */
+    private InputStream openContainer(long position) throws IOException {
         InputStream cinput;
-        ZipEntry entry;
+        switch (compression) {
+            case COMPRESSION_NONE:
+                FileInputStream finput = new FileInputStream(fileName);
+                finput.getChannel().position(position);
+                return finput;
+            case COMPRESSION_GZIP:
+                cinput = new GZIPInputStream(new FileInputStream(fileName),
+                        STREAM_BUFFER_LEN);
+                break;
+            case COMPRESSION_BLOCKS:
+                // only the blocks from the position on are read
+                return getBlockFile().openStream(position);
+            default:
+                if (zFile == null)
+                    zFile = new ZipFile(fileName);
+                Enumeration<? extends ZipEntry> enumm = zFile.entries();
+                // only get the first entry
+                cinput = zFile.getInputStream(enumm.nextElement());
+                break;
+        }
+        cinput.skipNBytes(position);
+        return cinput;
+    }
 
+    private BlockFile getBlockFile() throws IOException {
+        if (blockFile == null)
+            blockFile = new BlockFile(fileName);
+        return blockFile;
+    }
+
+    /* carry on reading from another position */
+    private void reopen(long position) throws IOException {
+        input.close();
+        input = new DataInputStream(new BufferedInputStream(
+                openContainer(position), STREAM_BUFFER_LEN));
+        this.position = position;
+    }
+
+    /** Set up the input */
+    public void setupInput() {
         try {
             setCompression();
 
-            switch (compression) {
-                case COMPRESSION_NONE:
-                    finput = new FileInputStream(fileName);
-                    input = new FileTraceInputStream(finput);
-                    break;
-                case COMPRESSION_GZIP:
-                    finput = new FileInputStream(fileName);
-                    cinput = new GZIPInputStream(finput);
-                    input = new FileTraceInputStream(cinput);
-                    break;
-                case COMPRESSION_ZIP:
-                    zFile = new ZipFile(fileName);
-                    Enumeration<? extends ZipEntry> enumm = zFile.entries();
-                    // only get the first entry
-                    entry = enumm.nextElement();
-                    cinput = zFile.getInputStream(entry);
-                    input = new FileTraceInputStream(cinput);
-                    break;
+            // look at the header to tell the formats apart
+            BufferedInputStream binput = new BufferedInputStream(openContainer(0),
+                    STREAM_BUFFER_LEN);
+            byte header[] = new byte[HEADER_LEN];
+            binput.mark(HEADER_LEN);
+            int len = binput.readNBytes(header, 0, HEADER_LEN);
+            if (isBinary(header, len) && (len == HEADER_LEN)) {
+                version = getHeader(TraceFormat.allocate(HEADER_LEN).put(header).flip());
+                input = new DataInputStream(binput);
+                position = HEADER_LEN;
+            } else {
+                binput.reset();
+                legacyInput = new FileTraceInputStream(binput);
             }
         } catch (IOException e) {
             throw new FileTraceException(e);
@@ -505,7 +1078,6 @@ public class FileTrace extends Verbose implements OutputGenerator,
     /** Set up the output */
     public void setupOutput() {
         ZipOutputStream zoutput;
-        OutputStream coutput;
         ZipEntry entry;
         String entryName;
 
@@ -515,20 +1087,35 @@ public class FileTrace extends Verbose implements OutputGenerator,
             foutput = new FileOutputStream(fileName);
             switch (compression) {
                 case COMPRESSION_NONE:
-                    output = new FileTraceOutputStream(foutput);
+                    output = new BufferedOutputStream(foutput, STREAM_BUFFER_LEN);
                     break;
                 case COMPRESSION_GZIP:
-                    coutput = new GZIPOutputStream(foutput);
-                    output = new FileTraceOutputStream(coutput);
+                    output = new GZIPOutputStream(foutput, STREAM_BUFFER_LEN);
+                    break;
+                case COMPRESSION_BLOCKS:
+                    output = new BlockOutputStream(foutput, BLOCK_LEN, compressionThreads);
                     break;
                 case COMPRESSION_ZIP:
-                    zoutput = new ZipOutputStream(foutput);
+                    zoutput = new ZipOutputStream(
+                            new BufferedOutputStream(foutput, STREAM_BUFFER_LEN));
                     entryName = getEntryName();
                     entry = new ZipEntry(entryName);
                     zoutput.putNextEntry(entry);
-                    output = new FileTraceOutputStream(zoutput);
+                    output = zoutput;
                     break;
             }
+
+            if (writeQueueLen > 0) {
+                queuedOutput = new QueuedOutputStream(output, WRITE_CHUNK_LEN,
+                        Math.max(1, writeQueueLen / WRITE_CHUNK_LEN));
+                output = queuedOutput;
+            }
+
+            ByteBuffer header = TraceFormat.allocate(HEADER_LEN);
+            putHeader(header);
+            output.write(header.array(), 0, HEADER_LEN);
+            position = HEADER_LEN;
+            index = new TraceIndex();
         } catch (IOException e) {
             throw new FileTraceException(e);
         }
@@ -537,14 +1124,16 @@ public class FileTrace extends Verbose implements OutputGenerator,
     /** Close the input / output */
     public void close() {
         try {
-            if (input != null) {
+            if (input != null)
                 input.close();
-                if (finput != null)
-                    finput.close();
-                if (zFile != null)
-                    zFile.close();
-            }
+            if (legacyInput != null)
+                legacyInput.close();
+            if (zFile != null)
+                zFile.close();
+            if (blockFile != null)
+                blockFile.close();
             if (output != null) {
+                writeIndex();
                 output.close();
                 foutput.close();
             }
@@ -588,6 +1177,7 @@ public class FileTrace extends Verbose implements OutputGenerator,
         this.bufferLen = bufferLen;
         this.compression = compression;
         buffer = new byte[bufferLen];
+        record = TraceFormat.allocate(bufferLen);
     }
 
 }
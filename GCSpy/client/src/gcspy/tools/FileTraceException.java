@@ -24,4 +24,12 @@ public class FileTraceException extends RuntimeException {
         e.printStackTrace();
     }
 
+    /**
+     * An exception for trace files
+     * @param message What went wrong
+     */
+    public FileTraceException(String message) {
+        super(message);
+    }
+
 }
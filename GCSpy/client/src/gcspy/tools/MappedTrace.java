@@ -0,0 +1,453 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.tools;
+
+import gcspy.comm.BufferedInput;
+import gcspy.interpreter.Stream;
+import gcspy.interpreter.server.ServerSpace;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static gcspy.tools.TraceFormat.*;
+
+/**
+ * Reads a seekable trace through a memory mapping of the file, instead
+ * of a stream, so that any event can be got at without reading what
+ * comes before its keyframe, and several threads can read the same trace
+ * at once. Each thread reads through a cursor of its own, which keeps
+ * its own spaces; stream data is decoded straight from the mapping into
+ * the arrays of their streams.
+ * <p>
+ * Only traces of version 2 or later, with an index, can be read this
+ * way, and they must be uncompressed or block-compressed. The blocks of
+ * a block-compressed trace are decompressed by the cursors as they get
+ * to them, each cursor keeping the block it last read.
+ */
+public class MappedTrace {
+
+    /* traces larger than this are mapped in several parts */
+    static private final int SEGMENT_SHIFT = 30;
+    static private final long SEGMENT_LEN = 1L << SEGMENT_SHIFT;
+
+    private final String fileName;
+    /* the file, if uncompressed */
+    private final FileChannel channel;
+    /* the blocks, if block-compressed */
+    private final BlockFile blocks;
+    /* the length of the uncompressed trace */
+    private final long length;
+    /* the parts of the mapping, which are never read from directly */
+    private final ByteBuffer segments[];
+    private final TraceIndex index;
+
+    /******************** Cursors ********************/
+
+    /**
+     * Reads the events of a trace, one after the other from wherever it
+     * was sought to. A cursor must only be used by one thread at a time.
+     */
+    public class Cursor {
+        /* views of the segments, with positions of their own */
+        private final ByteBuffer views[] = new ByteBuffer[segments.length];
+        /* for records that span two segments, or two blocks */
+        private ByteBuffer spanning;
+        /* the block last decompressed, and a view of it */
+        private int blockIndex = -1;
+        private byte blockData[];
+        private ByteBuffer blockView;
+
+        private long position;
+        private long recordPosition;
+        private byte recordTag;
+
+        private int eventIndex;
+        private int eventID;
+        private int elapsedTime;
+        private int compensationTime;
+        private int eventCount[];
+        private ServerSpace spaces[] = new ServerSpace[0];
+        /* the position of the record of each space */
+        private long spacePositions[] = new long[0];
+
+        /**
+         * Go to an event, so that it is the next one read
+         * @param eventIndex The event's number, counting from 0
+         */
+        public void seek(int eventIndex) throws IOException {
+            TraceIndex.Keyframe keyframe = index.findKeyframe(eventIndex);
+            ensureSpace(keyframe.spaces.length - 1);
+            for (int spaceID = 0; spaceID < keyframe.spaces.length; ++spaceID) {
+                long spacePosition = keyframe.spaces[spaceID];
+                if ((spacePosition >= 0) && (spacePosition != spacePositions[spaceID])) {
+                    ByteBuffer record = readRecord(spacePosition);
+                    if ((recordTag != SPACE_REC) && (recordTag != SPACE_KEY_REC))
+                        throw new FileTraceException("Corrupt trace index");
+                    setSpace(record);
+                }
+            }
+
+            position = keyframe.position;
+            this.eventIndex = keyframe.eventIndex;
+            while (this.eventIndex < eventIndex)
+                next();
+        }
+
+        /**
+         * Read the next event
+         * @return false at the end of the trace
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                ByteBuffer record = readRecord(position);
+                if (recordTag == INDEX_REC)
+                    return false;
+                position = recordPosition + RECORD_HEADER_LEN + record.remaining();
+                switch (recordTag) {
+                    case STREAM_REC:
+                    case STREAM_DELTA_REC: {
+                        int spaceID = (int) record.get();
+                        int streamID = (int) record.get();
+                        Stream stream = space(spaceID).getStream(streamID);
+                        if (recordTag == STREAM_REC)
+                            stream.setData(getArray(record, stream.getData()));
+                        else
+                            applyDelta(record, stream.getData());
+                        stream.setSummary((int[]) getArray(record, stream.getSummary()));
+                        break;
+                    }
+                    case CONTROL_REC:
+                    case CONTROL_DELTA_REC: {
+                        ServerSpace space = space((int) record.get());
+                        if (recordTag == CONTROL_REC)
+                            space.setControl((byte[]) getArray(record, space.getControl()));
+                        else
+                            applyDelta(record, space.getControl());
+                        break;
+                    }
+                    case EVENT_COUNT_REC:
+                        eventCount = (int[]) getArray(record, eventCount);
+                        break;
+                    case SPACE_INFO_REC: {
+                        ServerSpace space = space((int) record.get());
+                        space.setSpaceInfo(getString(record));
+                        break;
+                    }
+                    case SPACE_REC:
+                        setSpace(record);
+                        break;
+                    case EVENT_REC:
+                        eventID = (int) record.get();
+                        elapsedTime = record.getInt();
+                        compensationTime = record.getInt();
+                        ++eventIndex;
+                        return true;
+                    default:
+                        // only read when seeking, or added by later versions
+                        break;
+                }
+            }
+        }
+
+        /*
+         * Get the record at a position, from the mapping or the block it
+         * is in if it is within one, positioned at its payload
+         */
+        private ByteBuffer readRecord(long position) throws IOException {
+            if (position + RECORD_HEADER_LEN > length)
+                throw new FileTraceException("Trace " + fileName + " is truncated");
+            ByteBuffer header = bytes(position, RECORD_HEADER_LEN);
+            recordTag = header.get();
+            int len = header.getInt();
+            if ((len < 0) || (position + RECORD_HEADER_LEN + len > length))
+                throw new FileTraceException("Corrupt record length " + len);
+            recordPosition = position;
+            return bytes(position + RECORD_HEADER_LEN, len);
+        }
+
+        /* the bytes at a position, valid until the next call */
+        private ByteBuffer bytes(long position, int len) throws IOException {
+            if (blocks != null)
+                return blockBytes(position, len);
+            int segment = (int) (position >>> SEGMENT_SHIFT);
+            int offset = (int) (position & (SEGMENT_LEN - 1));
+            if ((long) offset + len > segments[segment].capacity())
+                return read(position, len);
+            ByteBuffer view = views[segment];
+            if (view == null) {
+                view = segments[segment].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                views[segment] = view;
+            }
+            view.clear();
+            view.limit(offset + len);
+            view.position(offset);
+            return view;
+        }
+
+        private ByteBuffer read(long position, int len) throws IOException {
+            ByteBuffer buffer = spanning(len);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new FileTraceException("Trace " + fileName + " is truncated");
+            }
+            return buffer.flip();
+        }
+
+        private ByteBuffer blockBytes(long position, int len) throws IOException {
+            int offset = loadBlock(position);
+            if (offset + len <= blockView.capacity()) {
+                blockView.clear();
+                blockView.limit(offset + len);
+                blockView.position(offset);
+                return blockView;
+            }
+            // gather it from the blocks it spans
+            ByteBuffer buffer = spanning(len);
+            while (buffer.hasRemaining()) {
+                offset = loadBlock(position + buffer.position());
+                int n = Math.min(buffer.remaining(), blockView.capacity() - offset);
+                if (n <= 0)
+                    throw new FileTraceException("Trace " + fileName + " is truncated");
+                blockView.clear();
+                blockView.limit(offset + n);
+                blockView.position(offset);
+                buffer.put(blockView);
+            }
+            return buffer.flip();
+        }
+
+        /* decompress the block a position is in, unless it already is */
+        private int loadBlock(long position) throws IOException {
+            int blockLen = blocks.getBlockLen();
+            int block = (int) (position / blockLen);
+            if (block != blockIndex) {
+                blockIndex = -1;
+                blockView = blocks.readBlock(block, blockData);
+                blockData = blockView.array();
+                blockIndex = block;
+            }
+            return (int) (position % blockLen);
+        }
+
+        private ByteBuffer spanning(int len) {
+            if ((spanning == null) || (spanning.capacity() < len))
+                spanning = TraceFormat.allocate(len);
+            spanning.clear().limit(len);
+            return spanning;
+        }
+
+        private void ensureSpace(int spaceID) {
+            int spaceNum = spaces.length;
+            if (spaceID < spaceNum)
+                return;
+            spaces = Arrays.copyOf(spaces, spaceID + 1);
+            spacePositions = Arrays.copyOf(spacePositions, spaceID + 1);
+            Arrays.fill(spacePositions, spaceNum, spaceID + 1, -1);
+        }
+
+        private void setSpace(ByteBuffer record) {
+            byte payload[] = new byte[record.remaining()];
+            record.get(payload);
+            ServerSpace space = new ServerSpace();
+            space.deserialise(new BufferedInput(payload, payload.length));
+            int spaceID = space.getID();
+            ensureSpace(spaceID);
+            spaces[spaceID] = space;
+            spacePositions[spaceID] = recordPosition;
+        }
+
+        /* records for a space that has not been read are a corrupt trace */
+        private ServerSpace space(int spaceID) {
+            if ((spaceID < 0) || (spaceID >= spaces.length) || (spaces[spaceID] == null))
+                throw new FileTraceException("Record for unknown space " + spaceID);
+            return spaces[spaceID];
+        }
+
+        /** ****************** Accessor Methods ******************* */
+
+        /**
+         * Get the number of the next event to be read
+         * @return the event's number, counting from 0
+         */
+        public int getEventIndex() {
+            return eventIndex;
+        }
+
+        /**
+         * Get the ID of the event last read
+         * @return the event's ID
+         */
+        public int getEventID() {
+            return eventID;
+        }
+
+        /**
+         * Get the elapsed time of the event last read
+         * @return the elapsed time
+         */
+        public int getElapsedTime() {
+            return elapsedTime;
+        }
+
+        /**
+         * Get the compensation time of the event last read
+         * @return the compensation time
+         */
+        public int getCompensationTime() {
+            return compensationTime;
+        }
+
+        /**
+         * Get the event counts at the event last read
+         * @return the counts, indexed by event ID
+         */
+        public int[] getEventCount() {
+            return eventCount;
+        }
+
+        /**
+         * Get the number of spaces
+         * @return the number of spaces
+         */
+        public int getSpaceNum() {
+            return spaces.length;
+        }
+
+        /**
+         * Get a space as it was at the event last read. Its streams' data
+         * is overwritten by the next event read.
+         * @param spaceID The space's ID
+         * @return the space
+         */
+        public ServerSpace getSpace(int spaceID) {
+            return spaces[spaceID];
+        }
+
+        private Cursor() {
+        }
+    }
+
+    /**
+     * Create a cursor, at the first event
+     * @return the cursor
+     */
+    public Cursor newCursor() throws IOException {
+        Cursor cursor = new Cursor();
+        cursor.seek(0);
+        return cursor;
+    }
+
+    /******************** Index ********************/
+
+    /**
+     * Get the number of events
+     * @return the number of events
+     */
+    public int getEventNum() {
+        return index.getEventNum();
+    }
+
+    /**
+     * Get when an event was recorded
+     * @param eventIndex The event's number, counting from 0
+     * @return the time in ms since the first event was recorded
+     */
+    public long getEventOffset(int eventIndex) {
+        return index.getEventOffset(eventIndex);
+    }
+
+    /**
+     * Find the first event recorded at or after a time
+     * @param offset The time in ms since the first event was recorded
+     * @return the event's number, or the last event if there is none
+     */
+    public int findEvent(long offset) {
+        return index.findEvent(offset);
+    }
+
+    /******************** Constructors ********************/
+
+    /**
+     * Close the trace once the cursors are no longer used. Segments
+     * already mapped are only unmapped when they are garbage collected.
+     */
+    public void close() throws IOException {
+        if (blocks != null)
+            blocks.close();
+        else
+            channel.close();
+    }
+
+    /**
+     * Map a trace
+     * @param fileName The name of the file
+     * @throws FileTraceException if the trace cannot be read this way
+     */
+    public MappedTrace(String fileName) throws IOException {
+        this.fileName = fileName;
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        BlockFile blockFile = null;
+        try {
+            ByteBuffer start = TraceFormat.allocate(BlockFile.HEADER_LEN);
+            channel.read(start, 0);
+            if (BlockFile.isBlocks(start.array(), start.position())) {
+                channel.close();
+                channel = null;
+                blockFile = new BlockFile(fileName);
+                length = blockFile.getLength();
+                segments = new ByteBuffer[0];
+            } else {
+                length = channel.size();
+                segments = new ByteBuffer[(int) ((length + SEGMENT_LEN - 1) >>> SEGMENT_SHIFT)];
+                for (int i = 0; i < segments.length; ++i) {
+                    long segmentStart = (long) i << SEGMENT_SHIFT;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart,
+                            Math.min(SEGMENT_LEN, length - segmentStart));
+                }
+            }
+            this.channel = channel;
+            blocks = blockFile;
+            index = readIndex();
+        } catch (IOException | RuntimeException e) {
+            if (channel != null)
+                channel.close();
+            if (blockFile != null)
+                blockFile.close();
+            throw e;
+        }
+    }
+
+    private TraceIndex readIndex() throws IOException {
+        if (length < HEADER_LEN + TRAILER_LEN)
+            throw new FileTraceException("Trace " + fileName + " is not a binary trace");
+        Cursor cursor = new Cursor();
+        ByteBuffer header = cursor.bytes(0, HEADER_LEN);
+        byte start[] = new byte[HEADER_LEN];
+        header.duplicate().get(start);
+        if (!isBinary(start, HEADER_LEN))
+            throw new FileTraceException("Trace " + fileName +
+                    " is not an uncompressed or block-compressed binary trace");
+        if (getHeader(header) < 2)
+            throw new FileTraceException("Trace " + fileName + " is too old to have an index");
+
+        long indexPosition = getTrailer(cursor.bytes(length - TRAILER_LEN, TRAILER_LEN));
+        if ((indexPosition < HEADER_LEN) || (indexPosition >= length - TRAILER_LEN))
+            throw new FileTraceException("Trace " + fileName + " has no index");
+
+        ByteBuffer record = cursor.readRecord(indexPosition);
+        if (cursor.recordTag != INDEX_REC)
+            throw new FileTraceException("Corrupt trace index");
+        return TraceIndex.get(record.slice().order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+}
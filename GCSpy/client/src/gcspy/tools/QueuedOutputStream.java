@@ -0,0 +1,264 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.tools;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Hands what is written to a thread of its own, which writes it out, so
+ * that the thread writing does not wait for the disk. What is written is
+ * copied into chunks from a pool, and a chunk is queued once it is full
+ * or the stream is flushed; the writer only waits once the queue is
+ * full. How deep the queue got and how often it was full are kept, to
+ * show whether the disk kept up.
+ */
+final class QueuedOutputStream extends OutputStream {
+
+    /* a chunk of what was written */
+    static private final class Chunk {
+        final byte data[];
+        int len;
+
+        Chunk(int chunkLen) {
+            data = new byte[chunkLen];
+        }
+    }
+
+    /* queued to stop the writer thread */
+    static private final Chunk END = new Chunk(0);
+
+    private final OutputStream out;
+    private final int chunkLen;
+    private final int capacity;
+    private final ArrayBlockingQueue<Chunk> queue;
+    private final ArrayBlockingQueue<Chunk> free;
+    private final Thread writer;
+
+    private Chunk chunk;
+    private boolean closed;
+    /* what went wrong on the writer thread */
+    private volatile IOException error;
+
+    private int maxDepth;
+    private long depthSum;
+    private long queued;
+    private long blocked;
+    private long blockedTime;
+
+    /******************** Writing ********************/
+
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    public void write(byte b[], int off, int len) throws IOException {
+        checkError();
+        if (closed)
+            throw new IOException("Stream closed");
+        while (len > 0) {
+            if (chunk == null)
+                chunk = takeFree();
+            int n = Math.min(len, chunkLen - chunk.len);
+            System.arraycopy(b, off, chunk.data, chunk.len, n);
+            chunk.len += n;
+            off += n;
+            len -= n;
+            if (chunk.len == chunkLen)
+                enqueue();
+        }
+    }
+
+    /** Queue what has been written so far; this does not wait for it to be written out */
+    public void flush() throws IOException {
+        checkError();
+        if ((chunk != null) && (chunk.len > 0))
+            enqueue();
+    }
+
+    /** Wait for everything to be written out, and close the stream underneath */
+    public void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            flush();
+        } finally {
+            closed = true;
+            try {
+                put(END);
+                writer.join();
+            } catch (InterruptedException e) {
+                writer.interrupt();
+                throw new InterruptedIOException("Interrupted while writing the trace");
+            } finally {
+                out.close();
+            }
+        }
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        IOException e = error;
+        if (e != null)
+            throw new IOException("Writing the trace failed", e);
+    }
+
+    /******************** Queue ********************/
+
+    private Chunk takeFree() {
+        Chunk free = this.free.poll();
+        if (free == null)
+            free = new Chunk(chunkLen);
+        free.len = 0;
+        return free;
+    }
+
+    private void enqueue() throws IOException {
+        Chunk full = chunk;
+        chunk = null;
+        try {
+            put(full);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while queuing the trace");
+        }
+    }
+
+    private void put(Chunk full) throws InterruptedException {
+        if (full == END) {
+            queue.put(END);
+            return;
+        }
+        if (!queue.offer(full)) {
+            long start = System.nanoTime();
+            synchronized (this) {
+                ++blocked;
+            }
+            queue.put(full);
+            synchronized (this) {
+                blockedTime += System.nanoTime() - start;
+            }
+        }
+        int depth = queue.size();
+        synchronized (this) {
+            maxDepth = Math.max(maxDepth, depth);
+            depthSum += depth;
+            ++queued;
+        }
+    }
+
+    /* the writer thread's loop */
+    private void drain() {
+        try {
+            while (true) {
+                Chunk full = queue.take();
+                if (full == END)
+                    return;
+                // after an error, chunks are only given back
+                if (error == null) {
+                    try {
+                        out.write(full.data, 0, full.len);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                free.offer(full);
+            }
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException("Interrupted while writing the trace");
+        }
+    }
+
+    /******************** Accessor Methods ********************/
+
+    /**
+     * Get the length of a chunk
+     * @return the length in bytes
+     */
+    int getChunkLen() {
+        return chunkLen;
+    }
+
+    /**
+     * Get how many chunks can be queued
+     * @return the number of chunks
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the most chunks that were queued at once
+     * @return the number of chunks
+     */
+    synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Get how many chunks were queued on average, when one was queued
+     * @return the number of chunks
+     */
+    synchronized double getAverageDepth() {
+        return (queued == 0) ? 0.0 : (double) depthSum / queued;
+    }
+
+    /**
+     * Get how many chunks were queued
+     * @return the number of chunks
+     */
+    synchronized long getQueued() {
+        return queued;
+    }
+
+    /**
+     * Get how many times the queue was full, so that the thread writing
+     * had to wait
+     * @return the number of times
+     */
+    synchronized long getBlocked() {
+        return blocked;
+    }
+
+    /**
+     * Get how long the thread writing waited for the queue
+     * @return the time in ms
+     */
+    synchronized long getBlockedTime() {
+        return blockedTime / 1000000;
+    }
+
+    /******************** Constructors ********************/
+
+    /**
+     * Start a thread to write a stream
+     * @param out The stream to write; only the new thread writes to it
+     * @param chunkLen The length of a chunk
+     * @param capacity How many chunks can be queued
+     */
+    QueuedOutputStream(OutputStream out, int chunkLen, int capacity) {
+        if ((chunkLen < 1) || (capacity < 1))
+            throw new IllegalArgumentException("Bad chunk length " + chunkLen +
+                    " or capacity " + capacity);
+        this.out = out;
+        this.chunkLen = chunkLen;
+        this.capacity = capacity;
+        queue = new ArrayBlockingQueue<Chunk>(capacity);
+        // one more than can be queued, for the chunk being filled
+        free = new ArrayBlockingQueue<Chunk>(capacity + 1);
+        writer = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "GCspy trace writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+}
@@ -8,6 +8,8 @@
 
 package gcspy.tools;
 
+import gcspy.comm.Endpoint;
+import gcspy.interpreter.Capabilities;
 import gcspy.interpreter.DataAccessor;
 import gcspy.interpreter.Space;
 import gcspy.interpreter.Stream;
@@ -61,6 +63,7 @@ public class TerminalClient
 
     private void dumpAllData() {
         int eventCount[] = interpreter.getEventCount();
+        int values[] = new int[DataAccessor.BULK_LEN];
 
         System.out.println("  Event Counts");
         for (int i = 0; i < eventCount.length; ++i) {
@@ -91,16 +94,21 @@ public class TerminalClient
                 Stream stream = space.getStream(j);
                 System.out.println("     Stream[" + j + "]: " + stream.getName());
                 DataAccessor accessor = stream.getAccessor();
-                System.out.print("        Data:");
-                for (int k = 0; k < tileNum; ++k) {
-                    if (Space.isControlUsed(control[k]))
-                        System.out.print(" " + accessor.get(k));
-                    else if (Space.isControlBackground(control[k]))
-                        System.out.print(" #");
-                    else if (Space.isControlUnused(control[k]))
-                        System.out.print(" -");
+                StringBuilder str = new StringBuilder("        Data:");
+                for (int start = 0; start < tileNum; start += DataAccessor.BULK_LEN) {
+                    int n = Math.min(DataAccessor.BULK_LEN, tileNum - start);
+                    accessor.getValues(start, n, values);
+                    for (int k = 0; k < n; ++k) {
+                        byte c = control[start + k];
+                        if (Space.isControlUsed(c))
+                            str.append(' ').append(values[k]);
+                        else if (Space.isControlBackground(c))
+                            str.append(" #");
+                        else if (Space.isControlUnused(c))
+                            str.append(" -");
+                    }
                 }
-                System.out.println();
+                System.out.println(str);
             }
 
             System.out.println("     Summary:");
@@ -111,9 +119,14 @@ public class TerminalClient
 
     /******************** Connection ********************/
 
-    private void connect(String host, int port) {
+    private void connect(Endpoint endpoint, int offered, int metricsPeriod) {
         try {
-            interpreter.connectToServer(host, port, false);
+            interpreter.setOfferedCapabilities(offered);
+            if (metricsPeriod > 0)
+                interpreter.enableMetrics().register(endpoint.toString());
+            interpreter.connectToServer(endpoint, false);
+            if (metricsPeriod > 0)
+                interpreter.startMetricsDump(System.out, metricsPeriod * 1000);
 
             interpreter.dump();
             interpreter.dumpSpaces();
@@ -134,6 +147,8 @@ public class TerminalClient
 
     private TerminalClient() {
         interpreter = new ClientInterpreter();
+        // data is dumped before the next event arrives
+        interpreter.setDecodeInPlace(true);
     }
 
     /******************** Main ********************/
@@ -144,7 +159,13 @@ public class TerminalClient
         System.out.println("    gcspy.tools.TerminalStoreTrace <options>");
         System.out.println();
         System.out.println("where <options> are");
-        System.out.println("    -server <host> <port>");
+        System.out.println("    -server <host> <port, or unix:<socket> or shm:<file>>");
+        System.out.println("    -offer <capabilities> (optional, " +
+                Capabilities.presentNames() + ", all or none;");
+        System.out.println("        none, the default, also works with older servers)");
+        System.out.println("    -metrics <period in secs> (optional, print wire metrics;");
+        System.out.println("        they are also published through JMX)");
+        System.out.println("    -decoders <threads> (optional, decode streams in parallel)");
         if (mesg != null) {
             reportError(mesg);
         }
@@ -161,9 +182,21 @@ public class TerminalClient
     static public void main(String args[]) {
         Arguments arguments = new Arguments();
 
-        int serverParams[] = {Arguments.STRING_TYPE, Arguments.POS_INT_TYPE};
+        int serverParams[] = {Arguments.STRING_TYPE, Arguments.STRING_TYPE};
         arguments.add("-server", true, serverParams);
 
+        int offerParams[] = {Arguments.STRING_TYPE};
+        Object offerDefault[] = {"none"};
+        arguments.add("-offer", false, offerParams, offerDefault);
+
+        int metricsParam[] = {Arguments.POS_INT_TYPE};
+        Object metricsDefault[] = {0};
+        arguments.add("-metrics", false, metricsParam, metricsDefault);
+
+        int decodersParam[] = {Arguments.POS_INT_TYPE};
+        Object decodersDefault[] = {0};
+        arguments.add("-decoders", false, decodersParam, decodersDefault);
+
         if (!arguments.parse(args)) {
             usage(arguments.getError());
         }
@@ -171,14 +204,29 @@ public class TerminalClient
         Object values[];
 
         values = arguments.getValues("-server");
-        String host = (String) values[0];
-        int port = ((Integer) values[1]).intValue();
+        Endpoint endpoint = null;
+        try {
+            endpoint = Endpoint.parse((String) values[1], (String) values[0]);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+        int offered = 0;
+        try {
+            offered = Capabilities.parseFlags((String) arguments.getValues("-offer")[0]);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+        int metricsPeriod =
+                ((Integer) arguments.getValues("-metrics")[0]).intValue();
+        int decoders =
+                ((Integer) arguments.getValues("-decoders")[0]).intValue();
 
         System.out.println("-- gcspy.tools.TerminalClient starting");
         System.out.println();
 
         TerminalClient client = new TerminalClient();
-        client.connect(host, port);
+        client.interpreter.setDecodeThreads(decoders);
+        client.connect(endpoint, offered, metricsPeriod);
     }
 
 }
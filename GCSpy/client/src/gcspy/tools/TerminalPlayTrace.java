@@ -8,6 +8,8 @@
 
 package gcspy.tools;
 
+import gcspy.comm.Endpoint;
+import gcspy.interpreter.Capabilities;
 import gcspy.interpreter.Stream;
 import gcspy.interpreter.server.ServerInterpreter;
 import gcspy.interpreter.server.ServerSpace;
@@ -84,7 +86,9 @@ public class TerminalPlayTrace extends FileTrace {
         space.flagChanged();
     }
 
-    private void go(int port, boolean wait) throws IOException {
+    private void go(Endpoint endpoint, boolean wait, boolean broadcast,
+                    int offered, int start, int startTime)
+            throws IOException {
         Timer timer = new Timer();
 
         System.out.println("Input file: " + fileName);
@@ -105,11 +109,30 @@ public class TerminalPlayTrace extends FileTrace {
         interpreter.deserialiseEverything(this);
         // println(" DONE.");
 
-        println("Starting server at port " + port);
-        interpreter.startServer(port, wait);
+        println("Starting server at " + endpoint);
+        interpreter.setBroadcast(broadcast);
+        interpreter.setOfferedCapabilities(offered);
+        interpreter.startServer(endpoint, wait);
         // println(" DONE.");
         println();
 
+        if ((start >= 0) || (startTime >= 0)) {
+            if (!isSeekable()) {
+                reportError("    File '" + fileName + "' cannot be played from an event.");
+                System.exit(-1);
+            }
+            if (startTime >= 0)
+                start = findEvent(startTime * 1000L);
+            if (start >= getIndexedEventNum()) {
+                reportError("    File '" + fileName + "' has only " +
+                        getIndexedEventNum() + " events.");
+                System.exit(-1);
+            }
+            println("Starting from event " + start);
+            seek(start);
+            count = start;
+        }
+
         timer.start();
         parse();
         timer.stop();
@@ -165,11 +188,18 @@ public class TerminalPlayTrace extends FileTrace {
         System.out.println("    gcspy.tools.TerminalPlayTrace <options>");
         System.out.println();
         System.out.println("where <options> are");
-        System.out.println("    -port <port>");
+        System.out.println("    -port <port, or unix:<socket> or shm:<file>>");
         System.out.println("    -input <file name>");
         System.out.println("    -wait (optional)");
+        System.out.println("    -broadcast (optional, serve many clients at once)");
+        System.out.println("    -offer <capabilities> (optional, " +
+                Capabilities.presentNames() + ", all or none;");
+        System.out.println("        all by default)");
         System.out.println("    -delay <delay in ms> (optional)");
         System.out.println("    -compensate (optional)");
+        System.out.println("    -start <event> (optional, play from an event, counting from 0)");
+        System.out.println("    -starttime <secs> (optional, play from the first event");
+        System.out.println("        recorded that long after the first one)");
         System.out.println("    -verbose (optional)");
         System.out.println("    -iverbose (optional)");
         if (mesg != null) {
@@ -192,7 +222,7 @@ public class TerminalPlayTrace extends FileTrace {
         int delay = 0;
         boolean compensate = false;
 
-        int portType[] = {Arguments.POS_INT_TYPE};
+        int portType[] = {Arguments.STRING_TYPE};
         arguments.add("-port", true, portType);
 
         int fileType[] = {Arguments.STRING_TYPE};
@@ -200,6 +230,12 @@ public class TerminalPlayTrace extends FileTrace {
 
         arguments.add("-wait");
 
+        arguments.add("-broadcast");
+
+        int offerParams[] = {Arguments.STRING_TYPE};
+        Object offerDefault[] = {"all"};
+        arguments.add("-offer", false, offerParams, offerDefault);
+
         int delayType[] = {Arguments.POS_INT_TYPE};
         String delayExcluded[] = {"-compensate"};
         arguments.add("-delay", false, delayType, null, delayExcluded);
@@ -207,6 +243,14 @@ public class TerminalPlayTrace extends FileTrace {
         String compensateExcluded[] = {"-delay"};
         arguments.add("-compensate", null, compensateExcluded);
 
+        int startType[] = {Arguments.POS_INT_TYPE};
+        String startExcluded[] = {"-starttime"};
+        arguments.add("-start", false, startType, null, startExcluded);
+
+        int startTimeType[] = {Arguments.POS_INT_TYPE};
+        String startTimeExcluded[] = {"-start"};
+        arguments.add("-starttime", false, startTimeType, null, startTimeExcluded);
+
         arguments.add("-verbose");
 
         arguments.add("-iverbose");
@@ -218,13 +262,27 @@ public class TerminalPlayTrace extends FileTrace {
         Object values[];
 
         values = arguments.getValues("-port");
-        int port = ((Integer) values[0]).intValue();
+        Endpoint endpoint = null;
+        try {
+            endpoint = Endpoint.parse((String) values[0]);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
 
         values = arguments.getValues("-input");
         String fileName = (String) values[0];
 
         boolean wait = arguments.isSet("-wait");
 
+        boolean broadcast = arguments.isSet("-broadcast");
+
+        int offered = 0;
+        try {
+            offered = Capabilities.parseFlags((String) arguments.getValues("-offer")[0]);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+
         if (arguments.isSet("-delay")) {
             ignoreDelay = false;
             values = arguments.getValues("-delay");
@@ -233,6 +291,13 @@ public class TerminalPlayTrace extends FileTrace {
 
         compensate = arguments.isSet("-compensate");
 
+        int start = -1;
+        if (arguments.isSet("-start"))
+            start = ((Integer) arguments.getValues("-start")[0]).intValue();
+        int startTime = -1;
+        if (arguments.isSet("-starttime"))
+            startTime = ((Integer) arguments.getValues("-starttime")[0]).intValue();
+
         boolean verbose = arguments.isSet("-verbose");
 
         boolean iVerbose = arguments.isSet("-iverbose");
@@ -244,7 +309,7 @@ public class TerminalPlayTrace extends FileTrace {
             } else {
                 playTrace = new TerminalPlayTrace(verbose, iVerbose, fileName, delay);
             }
-            playTrace.go(port, wait);
+            playTrace.go(endpoint, wait, broadcast, offered, start, startTime);
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(-1);
@@ -0,0 +1,261 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.tools;
+
+import gcspy.comm.BufferedInput;
+import gcspy.comm.BufferedOutput;
+import gcspy.comm.Client;
+import gcspy.interpreter.InputGenerator;
+import gcspy.interpreter.OutputGenerator;
+import gcspy.interpreter.Space;
+import gcspy.interpreter.Stream;
+import gcspy.interpreter.client.ClientInterpreter;
+import gcspy.interpreter.client.ClientSpace;
+import gcspy.interpreter.client.EventListener;
+import gcspy.interpreter.client.SpaceListener;
+import gcspy.interpreter.server.ServerInterpreter;
+import gcspy.interpreter.server.ServerSpace;
+import gcspy.utils.Arguments;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Relays a server to any number of clients.
+ * The relay is the only client of the upstream server, C or Java, and
+ * keeps its latest spaces, streams and controls. Clients connect to
+ * the relay as they would to the server; each is sent the cached state
+ * when it connects, without the server having to send it again.
+ * <p>
+ * A client that pauses the relay stops it reading from the server,
+ * which in turn holds up the server once its connection fills up.
+ */
+public class TerminalRelay implements EventListener, SpaceListener {
+
+    static private final int DEFAULT_MAX_LEN = 4 * 1024 * 1024;
+
+    private ClientInterpreter upstream;
+    private ServerInterpreter downstream;
+
+    private boolean verbose;
+    private int count;
+
+    private int maxLen;
+    private byte buffer[];
+
+    /******************** Copying ********************/
+
+    /*
+     * Collects the serialised bootstrap information of the upstream
+     * interpreter and hands it to the downstream one
+     */
+    private class Bootstrap implements OutputGenerator, InputGenerator {
+
+        private List<byte[]> frames = new ArrayList<byte[]>();
+        private int next;
+        private BufferedOutput output;
+
+        public BufferedOutput createBufferedOutput() {
+            output = createOutput();
+            return output;
+        }
+
+        public void done(int len) {
+            byte frame[] = new byte[len];
+            System.arraycopy(output.getBuffer(), 0, frame, 0, len);
+            frames.add(frame);
+        }
+
+        public BufferedInput createBufferedInput() {
+            byte frame[] = frames.get(next++);
+            return new BufferedInput(frame, frame.length);
+        }
+
+        public Space createSpace() {
+            return new ServerSpace();
+        }
+    }
+
+    /* a BufferedOutput over the buffer, which grows if necessary */
+    private BufferedOutput createOutput() {
+        return new BufferedOutput(buffer, Client.MAX_MESSAGE_LEN);
+    }
+
+    /* a server space with the definition of a client space */
+    private ServerSpace copySpace(ClientSpace space) {
+        BufferedOutput output = createOutput();
+        space.serialise(output);
+        buffer = output.getBuffer();
+        ServerSpace copy = new ServerSpace();
+        copy.deserialise(new BufferedInput(buffer, output.getLen()));
+        return copy;
+    }
+
+    /******************** For Listeners ********************/
+
+    public void event(int eventID, int elapsedTime, int compensationTime) {
+        ++count;
+        if (verbose)
+            System.out.println(count + ". EVENT  '" +
+                    upstream.getEvents().getName(eventID) + "'  (" + eventID + ")");
+
+        // swapped in under the send lock, so that a client connecting
+        // now is not sent some streams of this event and some of the last
+        downstream.eventBoundary(new Runnable() {
+            public void run() {
+                install();
+            }
+        }, eventID, elapsedTime, compensationTime);
+    }
+
+    /* put the upstream interpreter's latest data in the downstream spaces */
+    private void install() {
+        // the upstream interpreter decodes into new arrays, so these
+        // can be shared until the next event replaces them
+        int spaceNum = upstream.getSpaceNum();
+        for (int spaceID = 0; spaceID < spaceNum; ++spaceID) {
+            ClientSpace space = upstream.getClientSpace(spaceID);
+            ServerSpace copy = downstream.getServerSpace(spaceID);
+            for (int streamID = 0; streamID < space.getStreamNum(); ++streamID) {
+                Stream stream = space.getStream(streamID);
+                Stream copyStream = copy.getStream(streamID);
+                copyStream.setData(stream.getData());
+                copyStream.setSummary(stream.getSummary());
+            }
+            copy.setControl(space.getControl());
+            copy.setSpaceInfo(space.getSpaceInfo());
+        }
+        downstream.setEventCount(upstream.getEventCount());
+    }
+
+    public void space(ClientSpace space) {
+        ServerSpace copy = copySpace(space);
+        downstream.setSpace(copy);
+        copy.flagChanged();
+    }
+
+    /******************** Connection ********************/
+
+    private void go(int listenPort) throws IOException {
+        Bootstrap bootstrap = new Bootstrap();
+        upstream.serialiseEverything(bootstrap);
+
+        downstream = new ServerInterpreter(upstream.getName(), false);
+        downstream.setVerbose(verbose);
+        downstream.deserialiseEverything(bootstrap);
+        downstream.setBroadcast(true);
+        downstream.setReplayLastEvent(true);
+
+        upstream.addEventListener(this);
+        upstream.addSpaceListener(this);
+        upstream.enableEventListeners();
+
+        System.out.println("Relaying at port " + listenPort);
+        downstream.startServer(listenPort, false, maxLen);
+
+        upstream.mainLoop();
+
+        System.out.println();
+        System.out.println("Server disconnected, relayed " + count + " events");
+        downstream.sendShutdown();
+        System.exit(0);
+    }
+
+    /******************** Constructor ********************/
+
+    private TerminalRelay(String host, int port, int maxLen, boolean verbose,
+                          boolean iVerbose) throws IOException {
+        this.verbose = verbose;
+        this.maxLen = maxLen;
+        buffer = new byte[maxLen];
+
+        System.out.println("-- gcspy.tools.TerminalRelay starting");
+        System.out.println();
+
+        upstream = new ClientInterpreter();
+        upstream.setVerbose(iVerbose);
+
+        System.out.println("Connecting to " + host + ":" + port);
+        upstream.connectToServer(host, port, false, maxLen);
+    }
+
+    /******************** Main ********************/
+
+    static private void usage(String mesg) {
+        System.out.println();
+        System.out.println("usage:");
+        System.out.println("    gcspy.tools.TerminalRelay <options>");
+        System.out.println();
+        System.out.println("where <options> are");
+        System.out.println("    -server <host> <port>");
+        System.out.println("    -port <port to relay at>");
+        System.out.println("    -maxlen <buffer length> (optional)");
+        System.out.println("    -verbose (optional)");
+        System.out.println("    -iverbose (optional)");
+        if (mesg != null) {
+            reportError(mesg);
+        }
+        System.exit(-1);
+    }
+
+    static private void reportError(String mesg) {
+        System.out.println();
+        System.out.println("Error:");
+        System.out.println("    " + mesg);
+        System.out.println();
+    }
+
+    static public void main(String args[]) {
+        Arguments arguments = new Arguments();
+
+        int serverParams[] = {Arguments.STRING_TYPE, Arguments.POS_INT_TYPE};
+        arguments.add("-server", true, serverParams);
+
+        int portType[] = {Arguments.POS_INT_TYPE};
+        arguments.add("-port", true, portType);
+
+        int maxLenType[] = {Arguments.POS_INT_TYPE};
+        Object maxLenDefault[] = {DEFAULT_MAX_LEN};
+        arguments.add("-maxlen", false, maxLenType, maxLenDefault);
+
+        arguments.add("-verbose");
+
+        arguments.add("-iverbose");
+
+        if (!arguments.parse(args)) {
+            usage(arguments.getError());
+        }
+
+        Object values[];
+
+        values = arguments.getValues("-server");
+        String host = (String) values[0];
+        int port = ((Integer) values[1]).intValue();
+
+        values = arguments.getValues("-port");
+        int listenPort = ((Integer) values[0]).intValue();
+
+        values = arguments.getValues("-maxlen");
+        int maxLen = ((Integer) values[0]).intValue();
+
+        boolean verbose = arguments.isSet("-verbose");
+
+        boolean iVerbose = arguments.isSet("-iverbose");
+
+        try {
+            TerminalRelay relay = new TerminalRelay(host, port, maxLen,
+                    verbose, iVerbose);
+            relay.go(listenPort);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+}
@@ -8,11 +8,14 @@
 
 package gcspy.tools;
 
+import gcspy.comm.Endpoint;
+import gcspy.interpreter.Capabilities;
+import gcspy.interpreter.Space;
 import gcspy.interpreter.Stream;
 import gcspy.interpreter.client.ClientInterpreter;
 import gcspy.interpreter.client.ClientSpace;
-import gcspy.interpreter.client.EventListener;
-import gcspy.interpreter.client.SpaceListener;
+import gcspy.interpreter.client.EventSnapshot;
+import gcspy.interpreter.client.SnapshotPublisher;
 import gcspy.utils.Arguments;
 import gcspy.utils.FileUtils;
 import gcspy.utils.Timer;
@@ -20,29 +23,87 @@ import gcspy.utils.Utils;
 
 import java.io.IOException;
 import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+
+import javax.management.JMException;
 
 /**
  * Dumps the transmission from the server to the terminal in ASCII format
  * @author Tony Printezis
  */
 public class TerminalStoreTrace extends FileTrace
-        implements EventListener, SpaceListener {
+        implements Flow.Subscriber<EventSnapshot> {
+
+    /** How much the writer thread can fall behind by default, in MBs */
+    static public final int DEFAULT_WRITE_QUEUE_MBS = 16;
 
     private ClientInterpreter interpreter;
     private int count, maxCount;
 
-    /******************** For Listeners ********************/
+    private Flow.Subscription subscription;
+    private boolean drop;
+    // to count the events dropped while writing was behind
+    private long lastSequenceNum = -1;
+    private long dropped = 0;
+    // the generations of the spaces last written
+    private long generations[];
+    private CountDownLatch finished = new CountDownLatch(1);
+
+    /******************** For The Publisher ********************/
 
     private boolean shouldReturn() {
         return ((maxCount > 0) && (count >= maxCount));
     }
 
-    public void event(int eventID, int elapsedTime, int compensationTime) {
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(SnapshotPublisher.DEFAULT_CAPACITY);
+    }
+
+    public void onNext(EventSnapshot snapshot) {
+        try {
+            event(snapshot);
+        } finally {
+            snapshot.release();
+        }
+        subscription.request(1);
+    }
+
+    public void onError(Throwable error) {
+        finished.countDown();
+    }
+
+    public void onComplete() {
+        finished.countDown();
+    }
+
+    private void event(EventSnapshot snapshot) {
         if (shouldReturn())
             return;
         ++count;
+        long sequenceNum = snapshot.getSequenceNum();
+        if (lastSequenceNum >= 0)
+            dropped += sequenceNum - lastSequenceNum - 1;
+        lastSequenceNum = sequenceNum;
+
+        // spaces the server replaced go before the event that uses them
+        for (int spaceID = 0; spaceID < snapshot.getSpaceNum(); ++spaceID) {
+            ClientSpace space = snapshot.getSpace(spaceID);
+            if (space.getGeneration() != generations[spaceID]) {
+                generations[spaceID] = space.getGeneration();
+                writeSpace(space);
+            }
+        }
+        Space spaces[] = new Space[snapshot.getSpaceNum()];
+        for (int spaceID = 0; spaceID < spaces.length; ++spaceID)
+            spaces[spaceID] = snapshot.getSpace(spaceID);
+        startEvent(spaces);
 
-        int counts[] = interpreter.getEventCount();
+        int eventID = snapshot.getEventID();
+        int elapsedTime = snapshot.getElapsedTime();
+        int compensationTime = snapshot.getCompensationTime();
+        int counts[] = snapshot.getEventCount();
 
         println(count + ". EVENT  '" +
                 interpreter.getEvents().getName(eventID) +
@@ -52,7 +113,7 @@ public class TerminalStoreTrace extends FileTrace
                 compensationTime + "ms");
 
         try {
-            dumpStreams(eventID, elapsedTime, compensationTime);
+            dumpStreams(snapshot);
             if (count == maxCount) {
                 println();
                 println("Requesting shutdown");
@@ -64,18 +125,13 @@ public class TerminalStoreTrace extends FileTrace
         }
     }
 
-    public void space(ClientSpace space) {
-        writeSpace(space);
-    }
-
-    private void dumpStreams(int eventID, int elapsedTime, int compensationTime)
-            throws IOException {
-        int counts[] = interpreter.getEventCount();
+    private void dumpStreams(EventSnapshot snapshot) throws IOException {
+        int counts[] = snapshot.getEventCount();
         writeEventCount(counts);
 
-        int spaceNum = interpreter.getSpaceNum();
+        int spaceNum = snapshot.getSpaceNum();
         for (int spaceID = 0; spaceID < spaceNum; ++spaceID) {
-            ClientSpace space = interpreter.getClientSpace(spaceID);
+            ClientSpace space = snapshot.getSpace(spaceID);
             writeSpaceInfo(spaceID, space.getSpaceInfo());
             int streamNum = space.getStreamNum();
             for (int streamID = 0; streamID < streamNum; ++streamID) {
@@ -90,12 +146,13 @@ public class TerminalStoreTrace extends FileTrace
             writeControl(spaceID, control);
         }
 
-        writeEvent(eventID, elapsedTime, compensationTime);
+        writeEvent(snapshot.getEventID(), snapshot.getElapsedTime(),
+                snapshot.getCompensationTime());
     }
 
     /******************** Connection ********************/
 
-    private void ammendGeneralInfo(String host, int port) {
+    private void ammendGeneralInfo(Endpoint endpoint) {
         String str = interpreter.getGeneralInfo();
         Date date = new Date();
 
@@ -108,7 +165,7 @@ public class TerminalStoreTrace extends FileTrace
                         "Recorded On:\n  " +
                         Utils.formatDateTime(date) + "\n" +
                         "Host:\n  " +
-                        host + ":" + port + "\n" +
+                        endpoint + "\n" +
                         "\n" +
                         "----------\n" +
                         "\n" +
@@ -137,12 +194,22 @@ public class TerminalStoreTrace extends FileTrace
         // println("    DONE.");
         println();
 
-        interpreter.addEventListener(this);
-        interpreter.addSpaceListener(this);
-        interpreter.enableEventListeners();
+        int spaceNum = interpreter.getSpaceNum();
+        generations = new long[spaceNum];
+        for (int spaceID = 0; spaceID < spaceNum; ++spaceID)
+            generations[spaceID] = interpreter.getClientSpace(spaceID).getGeneration();
+        // unless dropping, every event is written, even if the main loop has to wait
+        interpreter.getSnapshotPublisher().subscribe(this,
+                drop ? SnapshotPublisher.OVERFLOW_DROP : SnapshotPublisher.OVERFLOW_BUFFER,
+                SnapshotPublisher.DEFAULT_CAPACITY);
 
         timer.start();
         interpreter.mainLoop();
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while writing the last events");
+        }
         timer.stop();
 
         close();
@@ -156,6 +223,18 @@ public class TerminalStoreTrace extends FileTrace
                 Utils.formatSize(kbs) + " KBs, " +
                 Utils.formatSize(length) + " bytes)");
         System.out.println("    Wrote " + count + " events");
+        if (drop)
+            System.out.println("    Dropped " + dropped + " events while writing was behind");
+        QueuedOutputStream queue = getQueuedOutput();
+        if (queue != null) {
+            System.out.println("    Write queue held at most " + queue.getMaxDepth() +
+                    " of " + queue.getCapacity() + " chunks (" +
+                    Utils.formatSize(queue.getChunkLen() / 1024L) +
+                    " KBs each), " + Utils.formatSize(queue.getAverageDepth()) +
+                    " on average");
+            System.out.println("    Waited for the writer " + queue.getBlocked() +
+                    " times, for " + queue.getBlockedTime() + " ms");
+        }
         System.out.println("    Storing time was " +
                 (timer.getTime() / 1000) + " secs");
         System.out.println();
@@ -163,14 +242,18 @@ public class TerminalStoreTrace extends FileTrace
 
     /******************** Constructor ********************/
 
-    private TerminalStoreTrace(String host,
-                               int port,
+    private TerminalStoreTrace(Endpoint endpoint,
+                               int offered,
+                               int metricsPeriod,
+                               int decoders,
+                               boolean drop,
                                boolean overwrite,
                                boolean verbose,
                                boolean iVerbose,
                                String fileName)
-            throws IOException {
+            throws IOException, JMException {
         super(fileName, verbose);
+        this.drop = drop;
 
         if (!overwrite) {
             if (FileUtils.fileExists(fileName)) {
@@ -184,13 +267,21 @@ public class TerminalStoreTrace extends FileTrace
 
         interpreter = new ClientInterpreter();
         interpreter.setVerbose(iVerbose);
-
-        println("Connecting to " + host + ":" + port);
-        interpreter.connectToServer(host, port, false);
+        // the snapshots keep the arrays that have not been written out yet
+        interpreter.setDecodeInPlace(true);
+        interpreter.setOfferedCapabilities(offered);
+        interpreter.setDecodeThreads(decoders);
+        if (metricsPeriod > 0)
+            interpreter.enableMetrics().register(endpoint.toString());
+
+        println("Connecting to " + endpoint);
+        interpreter.connectToServer(endpoint, false);
+        if (metricsPeriod > 0)
+            interpreter.startMetricsDump(System.out, metricsPeriod * 1000);
         // println("    DONE.");
         println();
 
-        ammendGeneralInfo(host, port);
+        ammendGeneralInfo(endpoint);
     }
 
     /******************** Main ********************/
@@ -201,9 +292,25 @@ public class TerminalStoreTrace extends FileTrace
         System.out.println("    gcspy.tools.TerminalStoreTrace <options>");
         System.out.println();
         System.out.println("where <options> are");
-        System.out.println("    -server <host> <port>");
-        System.out.println("    -output <file name>");
+        System.out.println("    -server <host> <port, or unix:<socket> or shm:<file>>");
+        System.out.println("    -offer <capabilities> (optional, " +
+                Capabilities.presentNames() + ", all or none;");
+        System.out.println("        none, the default, also works with older servers)");
+        System.out.println("    -metrics <period in secs> (optional, print wire metrics;");
+        System.out.println("        they are also published through JMX)");
+        System.out.println("    -decoders <threads> (optional, decode streams in parallel)");
+        System.out.println("    -output <file name> (.gz and .zip are compressed, and .blk is");
+        System.out.println("        compressed in blocks, in parallel, and can be read from anywhere)");
+        System.out.println("    -compressors <threads> (optional, threads compressing a .blk");
+        System.out.println("        file, one per processor by default)");
         System.out.println("    -count <count> (optional)");
+        System.out.println("    -queue <MBs> (optional, how far the writer thread can fall");
+        System.out.println("        behind, " + DEFAULT_WRITE_QUEUE_MBS +
+                " by default; 0 writes on the thread encoding the events)");
+        System.out.println("    -drop (optional, drop events rather than hold up the server");
+        System.out.println("        once the queue is full)");
+        System.out.println("    -keyframes <interval> (optional, events from one keyframe to");
+        System.out.println("        the next, " + DEFAULT_KEYFRAME_INTERVAL + " by default)");
         System.out.println("    -overwrite (optional)");
         System.out.println("    -verbose (optional)");
         System.out.println("    -iverbose (optional)");
@@ -224,18 +331,44 @@ public class TerminalStoreTrace extends FileTrace
         TerminalStoreTrace storeTrace;
         Arguments arguments = new Arguments();
 
-        int serverParams[] = {Arguments.STRING_TYPE, Arguments.POS_INT_TYPE};
+        int serverParams[] = {Arguments.STRING_TYPE, Arguments.STRING_TYPE};
         arguments.add("-server", true, serverParams);
 
+        int offerParams[] = {Arguments.STRING_TYPE};
+        Object offerDefault[] = {"none"};
+        arguments.add("-offer", false, offerParams, offerDefault);
+
+        int metricsParam[] = {Arguments.POS_INT_TYPE};
+        Object metricsDefault[] = {0};
+        arguments.add("-metrics", false, metricsParam, metricsDefault);
+
+        int decodersParam[] = {Arguments.POS_INT_TYPE};
+        Object decodersDefault[] = {0};
+        arguments.add("-decoders", false, decodersParam, decodersDefault);
+
         int fileParam[] = {Arguments.STRING_TYPE};
         arguments.add("-output", true, fileParam);
 
+        int compressorsParam[] = {Arguments.POS_INT_TYPE};
+        Object compressorsDefault[] = {0};
+        arguments.add("-compressors", false, compressorsParam, compressorsDefault);
+
+        int queueParam[] = {Arguments.POS_INT_TYPE};
+        Object queueDefault[] = {DEFAULT_WRITE_QUEUE_MBS};
+        arguments.add("-queue", false, queueParam, queueDefault);
+
+        arguments.add("-drop");
+
         arguments.add("-overwrite");
 
         int countParam[] = {Arguments.POS_INT_TYPE};
         Object countDefault[] = {-1};
         arguments.add("-count", false, countParam, countDefault);
 
+        int keyframesParam[] = {Arguments.POS_INT_TYPE};
+        Object keyframesDefault[] = {DEFAULT_KEYFRAME_INTERVAL};
+        arguments.add("-keyframes", false, keyframesParam, keyframesDefault);
+
         arguments.add("-verbose");
 
         arguments.add("-iverbose");
@@ -249,28 +382,60 @@ public class TerminalStoreTrace extends FileTrace
         Object values[];
 
         values = arguments.getValues("-server");
-        String host = (String) values[0];
-        int port = ((Integer) values[1]).intValue();
+        Endpoint endpoint = null;
+        try {
+            endpoint = Endpoint.parse((String) values[1], (String) values[0]);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+        int offered = 0;
+        try {
+            offered = Capabilities.parseFlags((String) arguments.getValues("-offer")[0]);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+        int metricsPeriod =
+                ((Integer) arguments.getValues("-metrics")[0]).intValue();
+        int decoders =
+                ((Integer) arguments.getValues("-decoders")[0]).intValue();
 
         values = arguments.getValues("-output");
         String fileName = (String) values[0];
 
+        int compressors =
+                ((Integer) arguments.getValues("-compressors")[0]).intValue();
+
+        int queueMBs = ((Integer) arguments.getValues("-queue")[0]).intValue();
+        if (queueMBs > 1024)
+            usage("-queue: at most 1024 MBs can be queued");
+
+        boolean drop = arguments.isSet("-drop");
+
         boolean overwrite = arguments.isSet("-overwrite");
 
         values = arguments.getValues("-count");
         int count = ((Integer) values[0]).intValue();
 
+        int keyframes = ((Integer) arguments.getValues("-keyframes")[0]).intValue();
+        if (keyframes == 0)
+            usage("-keyframes: the interval must be at least 1");
+
         boolean verbose = arguments.isSet("-verbose");
 
         boolean iVerbose = arguments.isSet("-iverbose");
 
         try {
-            storeTrace = new TerminalStoreTrace(host, port,
-                    overwrite,
+            storeTrace = new TerminalStoreTrace(endpoint, offered,
+                    metricsPeriod, decoders,
+                    drop, overwrite,
                     verbose, iVerbose,
                     fileName);
+            storeTrace.setKeyframeInterval(keyframes);
+            if (compressors > 0)
+                storeTrace.setCompressionThreads(compressors);
+            storeTrace.setWriteQueue(queueMBs * 1024 * 1024);
             storeTrace.go(count);
-        } catch (IOException e) {
+        } catch (IOException | JMException e) {
             e.printStackTrace();
             System.exit(-1);
         }
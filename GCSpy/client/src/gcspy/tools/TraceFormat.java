@@ -0,0 +1,477 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.tools;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The binary trace format. A trace starts with a header:
+ * <pre>
+ *   magic     8 bytes  "GCSPYTRC"
+ *   version   short
+ *   flags     short
+ *   reserved  int
+ * </pre>
+ * followed by records, each of which is a tag byte, the length of the
+ * payload as an int, and the payload. Everything is little-endian.
+ * Arrays are written as a type byte, their length as an int, and their
+ * elements; strings as their length in bytes and their UTF-8 encoding.
+ * <p>
+ * The first records are the bootstrap information, as blobs of the
+ * wire format, followed by the records of each event, the last of which
+ * is the event record itself.
+ * <p>
+ * Every so many events, a keyframe holds the full data of every stream
+ * and control; in between, only the elements that changed since the
+ * previous event are written, as runs. At the end, an index lists the
+ * keyframes and the time of every event, and a trailer holds the
+ * position of the index:
+ * <pre>
+ *   index     long
+ *   magic     8 bytes  "GCSPYIDX"
+ * </pre>
+ * Positions are offsets in the uncompressed trace.
+ * <p>
+ * Older traces were written with Java serialisation instead, and start
+ * with its stream header.
+ */
+final class TraceFormat {
+
+    static final byte MAGIC[] = {'G', 'C', 'S', 'P', 'Y', 'T', 'R', 'C'};
+    /* version 2 added deltas, keyframes and the index */
+    static final short VERSION = 2;
+    static final int HEADER_LEN = 16;
+
+    static final byte TRAILER_MAGIC[] = {'G', 'C', 'S', 'P', 'Y', 'I', 'D', 'X'};
+    static final int TRAILER_LEN = 16;
+
+    /* record tags; the first six are those of the serialised format */
+    static final byte STREAM_REC = 0;
+    static final byte CONTROL_REC = 1;
+    static final byte EVENT_COUNT_REC = 2;
+    static final byte EVENT_REC = 3;
+    static final byte SPACE_INFO_REC = 4;
+    static final byte SPACE_REC = 5;
+    static final byte BOOT_REC = 6;
+    static final byte STREAM_DELTA_REC = 7;
+    static final byte CONTROL_DELTA_REC = 8;
+    /* a space as it was at a keyframe, only read when seeking */
+    static final byte SPACE_KEY_REC = 9;
+    static final byte INDEX_REC = 10;
+
+    static final int RECORD_HEADER_LEN = 5;
+
+    /* array types, which match the stream data types */
+    static final byte NULL_ARRAY = -1;
+    static final byte BYTE_ARRAY = 0;
+    static final byte SHORT_ARRAY = 1;
+    static final byte INT_ARRAY = 2;
+
+    private TraceFormat() {
+    }
+
+    /******************** Header ********************/
+
+    /**
+     * Write the header of a trace
+     * @param buffer Where to put it
+     */
+    static void putHeader(ByteBuffer buffer) {
+        buffer.put(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(0);
+    }
+
+    /**
+     * Does a trace start with the header of the binary format?
+     * @param start The first bytes of the trace
+     * @param len How many there are
+     * @return true if it does
+     */
+    static boolean isBinary(byte start[], int len) {
+        if (len < MAGIC.length)
+            return false;
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (start[i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check the header of a binary trace
+     * @param buffer The buffer holding it
+     * @return the version of the format
+     * @throws FileTraceException if it is not a version this can read
+     */
+    static int getHeader(ByteBuffer buffer) {
+        buffer.position(buffer.position() + MAGIC.length);
+        int version = buffer.getShort();
+        buffer.getShort();
+        buffer.getInt();
+        if ((version < 1) || (version > VERSION))
+            throw new FileTraceException("Unsupported trace version " + version);
+        return version;
+    }
+
+    /**
+     * Write the trailer of a trace
+     * @param buffer Where to put it
+     * @param indexPosition The position of the index
+     */
+    static void putTrailer(ByteBuffer buffer, long indexPosition) {
+        buffer.putLong(indexPosition);
+        buffer.put(TRAILER_MAGIC);
+    }
+
+    /**
+     * Read the trailer of a trace
+     * @param buffer Where to get it from
+     * @return the position of the index, or -1 if there is no trailer
+     */
+    static long getTrailer(ByteBuffer buffer) {
+        long indexPosition = buffer.getLong();
+        for (int i = 0; i < TRAILER_MAGIC.length; ++i) {
+            if (buffer.get() != TRAILER_MAGIC[i])
+                return -1;
+        }
+        return indexPosition;
+    }
+
+    /**
+     * Create a buffer to encode or decode records with
+     * @param len Its length
+     * @return the buffer
+     */
+    static ByteBuffer allocate(int len) {
+        return ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /******************** Arrays ********************/
+
+    /**
+     * Get the length of an array once encoded
+     * @param array The array, or null
+     * @return the length in bytes
+     */
+    static int sizeOf(Object array) {
+        if (array instanceof byte[])
+            return 5 + ((byte[]) array).length;
+        if (array instanceof short[])
+            return 5 + 2 * ((short[]) array).length;
+        if (array instanceof int[])
+            return 5 + 4 * ((int[]) array).length;
+        return 1;
+    }
+
+    /**
+     * Encode an array
+     * @param buffer Where to put it
+     * @param array The array, or null
+     */
+    static void putArray(ByteBuffer buffer, Object array) {
+        if (array instanceof byte[]) {
+            byte bData[] = (byte[]) array;
+            buffer.put(BYTE_ARRAY);
+            buffer.putInt(bData.length);
+            buffer.put(bData);
+        } else if (array instanceof short[]) {
+            short sData[] = (short[]) array;
+            buffer.put(SHORT_ARRAY);
+            buffer.putInt(sData.length);
+            buffer.asShortBuffer().put(sData);
+            buffer.position(buffer.position() + 2 * sData.length);
+        } else if (array instanceof int[]) {
+            int iData[] = (int[]) array;
+            buffer.put(INT_ARRAY);
+            buffer.putInt(iData.length);
+            buffer.asIntBuffer().put(iData);
+            buffer.position(buffer.position() + 4 * iData.length);
+        } else {
+            buffer.put(NULL_ARRAY);
+        }
+    }
+
+    /**
+     * Decode an array
+     * @param buffer Where to get it from
+     * @return the array, or null
+     */
+    static Object getArray(ByteBuffer buffer) {
+        return getArray(buffer, null);
+    }
+
+    /**
+     * Decode an array, into an existing one if it is of the right type
+     * and length
+     * @param buffer Where to get it from
+     * @param array The array to decode into, or null
+     * @return the array decoded into, or null
+     */
+    static Object getArray(ByteBuffer buffer, Object array) {
+        byte type = buffer.get();
+        if (type == NULL_ARRAY)
+            return null;
+        int len = buffer.getInt();
+        int elementSize = (type == SHORT_ARRAY) ? 2 : ((type == INT_ARRAY) ? 4 : 1);
+        if ((len < 0) || (len > buffer.remaining() / elementSize))
+            throw new FileTraceException("Corrupt array length " + len);
+        switch (type) {
+            case BYTE_ARRAY:
+                byte bData[] = (array instanceof byte[]) ? (byte[]) array : null;
+                if ((bData == null) || (bData.length != len))
+                    bData = new byte[len];
+                buffer.get(bData);
+                return bData;
+            case SHORT_ARRAY:
+                short sData[] = (array instanceof short[]) ? (short[]) array : null;
+                if ((sData == null) || (sData.length != len))
+                    sData = new short[len];
+                buffer.asShortBuffer().get(sData);
+                buffer.position(buffer.position() + 2 * len);
+                return sData;
+            case INT_ARRAY:
+                int iData[] = (array instanceof int[]) ? (int[]) array : null;
+                if ((iData == null) || (iData.length != len))
+                    iData = new int[len];
+                buffer.asIntBuffer().get(iData);
+                buffer.position(buffer.position() + 4 * len);
+                return iData;
+            default:
+                throw new FileTraceException("Corrupt array type " + type);
+        }
+    }
+
+    /******************** Deltas ********************/
+
+    /* runs of unchanged elements shorter than this are not worth breaking a run for */
+    static private final int RUN_GAP = 8;
+
+    static private int elementSize(Object array) {
+        if (array instanceof short[])
+            return 2;
+        if (array instanceof int[])
+            return 4;
+        return 1;
+    }
+
+    static private int length(Object array) {
+        if (array instanceof byte[])
+            return ((byte[]) array).length;
+        if (array instanceof short[])
+            return ((short[]) array).length;
+        return ((int[]) array).length;
+    }
+
+    /* the first index from which two arrays differ, or -1 */
+    static private int mismatch(Object prev, Object cur, int from, int to) {
+        int i;
+        if (cur instanceof byte[])
+            i = Arrays.mismatch((byte[]) prev, from, to, (byte[]) cur, from, to);
+        else if (cur instanceof short[])
+            i = Arrays.mismatch((short[]) prev, from, to, (short[]) cur, from, to);
+        else
+            i = Arrays.mismatch((int[]) prev, from, to, (int[]) cur, from, to);
+        return (i < 0) ? -1 : from + i;
+    }
+
+    /**
+     * Find the elements of an array that changed
+     * @param prev The array as it was, or null
+     * @param cur The array as it is
+     * @return the runs of changed elements, as pairs of the start and the
+     * end of each run, or null if the arrays are not of the same type
+     * and length
+     */
+    static int[] diff(Object prev, Object cur) {
+        if ((prev == null) || (cur == null) || (prev.getClass() != cur.getClass()))
+            return null;
+        int len = length(cur);
+        if (length(prev) != len)
+            return null;
+
+        int runs[] = new int[16];
+        int runNum = 0;
+        int start = mismatch(prev, cur, 0, len);
+        while (start >= 0) {
+            int end = start + 1;
+            while (true) {
+                // extend the run over the next change, if it is close
+                int next = mismatch(prev, cur, end, Math.min(end + RUN_GAP, len));
+                if (next < 0)
+                    break;
+                end = next + 1;
+            }
+            if (2 * runNum + 2 > runs.length)
+                runs = Arrays.copyOf(runs, 2 * runs.length);
+            runs[2 * runNum] = start;
+            runs[2 * runNum + 1] = end;
+            ++runNum;
+            start = (end < len) ? mismatch(prev, cur, end, len) : -1;
+        }
+        return Arrays.copyOf(runs, 2 * runNum);
+    }
+
+    /**
+     * Get the length of the changes to an array once encoded
+     * @param runs The runs of changed elements
+     * @param cur The array
+     * @return the length in bytes
+     */
+    static int sizeOfDelta(int runs[], Object cur) {
+        int size = 9;
+        int elementSize = elementSize(cur);
+        for (int i = 0; i < runs.length; i += 2)
+            size += 8 + (runs[i + 1] - runs[i]) * elementSize;
+        return size;
+    }
+
+    /**
+     * Encode the changes to an array
+     * @param buffer Where to put them
+     * @param runs The runs of changed elements
+     * @param cur The array
+     */
+    static void putDelta(ByteBuffer buffer, int runs[], Object cur) {
+        int elementSize = elementSize(cur);
+        buffer.put((elementSize == 1) ? BYTE_ARRAY :
+                ((elementSize == 2) ? SHORT_ARRAY : INT_ARRAY));
+        buffer.putInt(length(cur));
+        buffer.putInt(runs.length / 2);
+        for (int i = 0; i < runs.length; i += 2) {
+            int start = runs[i];
+            int count = runs[i + 1] - start;
+            buffer.putInt(start);
+            buffer.putInt(count);
+            if (cur instanceof byte[])
+                buffer.put((byte[]) cur, start, count);
+            else if (cur instanceof short[])
+                buffer.asShortBuffer().put((short[]) cur, start, count);
+            else
+                buffer.asIntBuffer().put((int[]) cur, start, count);
+            if (elementSize > 1)
+                buffer.position(buffer.position() + count * elementSize);
+        }
+    }
+
+    /**
+     * Decode the changes to an array
+     * @param buffer Where to get them from
+     * @param prev The array as it was, which is left alone
+     * @return a copy of the array with the changes applied
+     */
+    static Object getDelta(ByteBuffer buffer, Object prev) {
+        Object cur = null;
+        if (prev instanceof byte[])
+            cur = ((byte[]) prev).clone();
+        else if (prev instanceof short[])
+            cur = ((short[]) prev).clone();
+        else if (prev instanceof int[])
+            cur = ((int[]) prev).clone();
+        applyDelta(buffer, cur);
+        return cur;
+    }
+
+    /**
+     * Decode the changes to an array, and apply them to it
+     * @param buffer Where to get them from
+     * @param cur The array
+     */
+    static void applyDelta(ByteBuffer buffer, Object cur) {
+        byte type = buffer.get();
+        int len = buffer.getInt();
+        int runNum = buffer.getInt();
+        if (!(((type == BYTE_ARRAY) && (cur instanceof byte[])) ||
+                ((type == SHORT_ARRAY) && (cur instanceof short[])) ||
+                ((type == INT_ARRAY) && (cur instanceof int[]))))
+            throw new FileTraceException("Delta of type " + type + " without a matching array");
+        if (length(cur) != len)
+            throw new FileTraceException("Delta of length " + len + " without a matching array");
+
+        int elementSize = elementSize(cur);
+        for (int i = 0; i < runNum; ++i) {
+            int start = buffer.getInt();
+            int count = buffer.getInt();
+            if ((start < 0) || (count < 0) || (count > len - start))
+                throw new FileTraceException("Corrupt delta run " + start + "+" + count);
+            if (count > buffer.remaining() / elementSize)
+                throw new FileTraceException("Truncated delta run " + start + "+" + count);
+            if (cur instanceof byte[])
+                buffer.get((byte[]) cur, start, count);
+            else if (cur instanceof short[])
+                buffer.asShortBuffer().get((short[]) cur, start, count);
+            else
+                buffer.asIntBuffer().get((int[]) cur, start, count);
+            if (elementSize > 1)
+                buffer.position(buffer.position() + count * elementSize);
+        }
+    }
+
+    /**
+     * Bring a copy of an array up to date
+     * @param copy The copy, or null
+     * @param cur The array
+     * @param runs The runs of elements that changed, or null for all of them
+     * @return the copy, which is a new one if the old one did not match
+     */
+    static Object update(Object copy, Object cur, int runs[]) {
+        if (cur == null)
+            return null;
+        if (runs == null) {
+            int len = length(cur);
+            if ((copy == null) || (copy.getClass() != cur.getClass()) || (length(copy) != len))
+                copy = Array.newInstance(cur.getClass().getComponentType(), len);
+            System.arraycopy(cur, 0, copy, 0, len);
+        } else {
+            for (int i = 0; i < runs.length; i += 2)
+                System.arraycopy(cur, runs[i], copy, runs[i], runs[i + 1] - runs[i]);
+        }
+        return copy;
+    }
+
+    /******************** Strings ********************/
+
+    /**
+     * Encode a string
+     * @param str The string
+     * @return its encoding
+     */
+    static byte[] encode(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write an encoded string
+     * @param buffer Where to put it
+     * @param encoded The string's encoding
+     */
+    static void putString(ByteBuffer buffer, byte encoded[]) {
+        buffer.putInt(encoded.length);
+        buffer.put(encoded);
+    }
+
+    /**
+     * Decode a string
+     * @param buffer Where to get it from
+     * @return the string
+     */
+    static String getString(ByteBuffer buffer) {
+        int len = buffer.getInt();
+        if ((len < 0) || (len > buffer.remaining()))
+            throw new FileTraceException("Corrupt string length " + len);
+        byte encoded[] = new byte[len];
+        buffer.get(encoded);
+        return new String(encoded, StandardCharsets.UTF_8);
+    }
+
+}
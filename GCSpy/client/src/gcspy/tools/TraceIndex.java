@@ -0,0 +1,173 @@
+/**
+ * * Copyright (c) 2002 Sun Microsystems, Inc.
+ * *
+ * * See the file "license.terms" for information on usage and redistribution
+ * * of this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ **/
+
+package gcspy.tools;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The index at the end of a trace: the keyframes it can be played from,
+ * and when each event was recorded. It is built while a trace is
+ * written, and never changes once read, so readers can share it.
+ */
+final class TraceIndex {
+
+    /** A point a trace can be played from */
+    static final class Keyframe {
+        /** The number of the first event after the keyframe */
+        final int eventIndex;
+        /** The position of the event's first record */
+        final long position;
+        /** Where the spaces at the keyframe are, or -1 if not known */
+        final long spaces[];
+
+        Keyframe(int eventIndex, long position, long spaces[]) {
+            this.eventIndex = eventIndex;
+            this.position = position;
+            this.spaces = spaces;
+        }
+    }
+
+    private ArrayList<Keyframe> keyframes = new ArrayList<Keyframe>();
+    private long eventOffsets[] = new long[256];
+    private int eventNum = 0;
+
+    /******************** Building ********************/
+
+    /**
+     * Add a keyframe, after those already added
+     * @param keyframe The keyframe
+     */
+    void addKeyframe(Keyframe keyframe) {
+        keyframes.add(keyframe);
+    }
+
+    /**
+     * Add an event
+     * @param offset When it was recorded, in ms since the first event
+     */
+    void addEvent(long offset) {
+        if (eventNum == eventOffsets.length)
+            eventOffsets = Arrays.copyOf(eventOffsets, 2 * eventOffsets.length);
+        eventOffsets[eventNum++] = offset;
+    }
+
+    /******************** Lookup ********************/
+
+    /**
+     * Get the number of events
+     * @return the number of events
+     */
+    int getEventNum() {
+        return eventNum;
+    }
+
+    /**
+     * Get when an event was recorded
+     * @param eventIndex The event's number, counting from 0
+     * @return the time in ms since the first event was recorded
+     */
+    long getEventOffset(int eventIndex) {
+        if ((eventIndex < 0) || (eventIndex >= eventNum))
+            throw new IndexOutOfBoundsException("No event " + eventIndex);
+        return eventOffsets[eventIndex];
+    }
+
+    /**
+     * Find the first event recorded at or after a time
+     * @param offset The time in ms since the first event was recorded
+     * @return the event's number, or the last event if there is none
+     */
+    int findEvent(long offset) {
+        int i = Arrays.binarySearch(eventOffsets, 0, eventNum, offset);
+        if (i < 0)
+            i = -i - 1;
+        else
+            // the first of the events recorded at the same time
+            while ((i > 0) && (eventOffsets[i - 1] == offset))
+                --i;
+        return Math.min(i, eventNum - 1);
+    }
+
+    /**
+     * Find the last keyframe at or before an event
+     * @param eventIndex The event's number, counting from 0
+     * @return the keyframe
+     * @throws FileTraceException if there is no such event
+     */
+    Keyframe findKeyframe(int eventIndex) {
+        if ((eventIndex < 0) || (eventIndex >= eventNum) || keyframes.isEmpty())
+            throw new FileTraceException("No event " + eventIndex);
+        int low = 0, high = keyframes.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (keyframes.get(mid).eventIndex <= eventIndex)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return keyframes.get(low);
+    }
+
+    /******************** Encoding ********************/
+
+    /**
+     * Get the length of the index once encoded
+     * @return the length in bytes
+     */
+    int sizeOf() {
+        int len = 8 + 8 * eventNum;
+        for (Keyframe keyframe : keyframes)
+            len += 16 + 8 * keyframe.spaces.length;
+        return len;
+    }
+
+    /**
+     * Encode the index
+     * @param buffer Where to put it
+     */
+    void put(ByteBuffer buffer) {
+        buffer.putInt(eventNum);
+        for (int i = 0; i < eventNum; ++i)
+            buffer.putLong(eventOffsets[i]);
+        buffer.putInt(keyframes.size());
+        for (Keyframe keyframe : keyframes) {
+            buffer.putInt(keyframe.eventIndex);
+            buffer.putLong(keyframe.position);
+            buffer.putInt(keyframe.spaces.length);
+            for (long position : keyframe.spaces)
+                buffer.putLong(position);
+        }
+    }
+
+    /**
+     * Decode an index
+     * @param buffer Where to get it from
+     * @return the index
+     */
+    static TraceIndex get(ByteBuffer buffer) {
+        TraceIndex index = new TraceIndex();
+        index.eventNum = buffer.getInt();
+        index.eventOffsets = new long[index.eventNum];
+        buffer.asLongBuffer().get(index.eventOffsets);
+        buffer.position(buffer.position() + 8 * index.eventNum);
+        int keyframeNum = buffer.getInt();
+        index.keyframes.ensureCapacity(keyframeNum);
+        for (int i = 0; i < keyframeNum; ++i) {
+            int eventIndex = buffer.getInt();
+            long position = buffer.getLong();
+            long spaces[] = new long[buffer.getInt()];
+            buffer.asLongBuffer().get(spaces);
+            buffer.position(buffer.position() + 8 * spaces.length);
+            index.keyframes.add(new Keyframe(eventIndex, position, spaces));
+        }
+        return index;
+    }
+
+}
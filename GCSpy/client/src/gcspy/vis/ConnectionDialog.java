@@ -8,6 +8,7 @@
 
 package gcspy.vis;
 
+import gcspy.comm.Endpoint;
 import gcspy.vis.utils.Factory;
 import gcspy.vis.utils.OKCancelDialog;
 
@@ -25,7 +26,7 @@ class ConnectionDialog extends OKCancelDialog {
     private JCheckBox pauseAtStartCB;
     private JCheckBox smallCB;
 
-    private int port;
+    private String port;
     private String host;
     private boolean pauseAtStart;
     private boolean small;
@@ -34,9 +35,10 @@ class ConnectionDialog extends OKCancelDialog {
         host = hostTF.getText();
         if (host.equals(""))
             oked = false;
+        port = portTF.getText();
         try {
-            port = Integer.parseInt(portTF.getText());
-        } catch (NumberFormatException e) {
+            Endpoint.parse(port, host);
+        } catch (IllegalArgumentException e) {
             oked = false;
         }
         pauseAtStart = pauseAtStartCB.isSelected();
@@ -55,10 +57,10 @@ class ConnectionDialog extends OKCancelDialog {
     }
 
     /**
-     * get the port number
-     * @return the port number
+     * get the port
+     * @return the port number, or unix:socket or shm:file
      */
-    int getPort() {
+    String getPort() {
         return port;
     }
 
@@ -81,7 +83,7 @@ class ConnectionDialog extends OKCancelDialog {
     protected void addButtons(JPanel panel) {
     }
 
-    private void setup(String host, int port, boolean pauseAtStart, boolean small) {
+    private void setup(String host, String port, boolean pauseAtStart, boolean small) {
         setup();
 
         JPanel panel;
@@ -97,7 +99,7 @@ class ConnectionDialog extends OKCancelDialog {
 
         panel = Factory.createFlowPanel(FlowLayout.LEFT);
         panel.add(Factory.createLabel("Port:"));
-        portTF = Factory.createTextField((port != -1) ? "" + port : null, 6, true);
+        portTF = Factory.createTextField(port, 15, true);
         panel.add(portTF);
         vertical.add(panel);
 
@@ -124,18 +126,18 @@ class ConnectionDialog extends OKCancelDialog {
      * @param owner The parent frame
      */
     ConnectionDialog(Frame owner) {
-        this(owner, null, -1, false, false);
+        this(owner, null, null, false, false);
     }
 
     /**
      * Create a new dialog
      * @param owner The parent frame
      * @param host The host to use
-     * @param port The port number to use
+     * @param port The port number to use, or unix:socket or shm:file
      * @param pauseAtStart True if the server should pause at the start
      * @param small True if small tiles should be used
      */
-    ConnectionDialog(Frame owner, String host, int port, boolean pauseAtStart,
+    ConnectionDialog(Frame owner, String host, String port, boolean pauseAtStart,
                      boolean small) {
         super(owner);
         setup(host, port, pauseAtStart, small);
@@ -145,7 +147,7 @@ class ConnectionDialog extends OKCancelDialog {
     /** *** Testing **** */
 
     static public void main(String args[]) {
-        ConnectionDialog cd = new ConnectionDialog(null, "greenwich", 30000, false,
+        ConnectionDialog cd = new ConnectionDialog(null, "greenwich", "30000", false,
                 false);
         if (cd.result()) {
             System.out.println("OK");
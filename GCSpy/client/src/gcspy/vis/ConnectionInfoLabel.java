@@ -9,6 +9,7 @@
 
 package gcspy.vis;
 
+import gcspy.comm.Endpoint;
 import gcspy.vis.utils.Factory;
 
 import javax.swing.*;
@@ -19,8 +20,8 @@ import javax.swing.*;
  */
 class ConnectionInfoLabel extends JLabel {
 
-    private String connected(String host, int port, String name) {
-        return "  Connected to " + host + ":" + port + " [" + name + "]";
+    private String connected(Endpoint endpoint, String name) {
+        return "  Connected to " + endpoint + " [" + name + "]";
     }
 
     private void set(String text, boolean enabled) {
@@ -33,43 +34,39 @@ class ConnectionInfoLabel extends JLabel {
 
     /**
      * Set the label to show which host is connected
-     * @param host The hostname
-     * @param port The port number
+     * @param endpoint The server's endpoint
      * @param name The GCspy server name
      */
-    public void setConnected(String host, int port, String name) {
-        String str = connected(host, port, name);
+    public void setConnected(Endpoint endpoint, String name) {
+        String str = connected(endpoint, name);
         set(str, true);
     }
 
     /**
      * Set the label to show the host that we are connecting to
-     * @param host The hostname
-     * @param port The port number
+     * @param endpoint The server's endpoint
      */
-    public void setConnecting(String host, int port) {
-        set("  Connecting to " + host + ":" + port, false);
+    public void setConnecting(Endpoint endpoint) {
+        set("  Connecting to " + endpoint, false);
     }
 
     /**
      * Set the label to show that we are pausing a server
-     * @param host The hostname
-     * @param port The port number
+     * @param endpoint The server's endpoint
      * @param name the GCspy server name
      */
-    public void setPausing(String host, int port, String name) {
-        String str = connected(host, port, name) + "  (Pausing)";
+    public void setPausing(Endpoint endpoint, String name) {
+        String str = connected(endpoint, name) + "  (Pausing)";
         set(str, true);
     }
 
     /**
      * Set the label to show that a server has paused
-     * @param host The hostname
-     * @param port The port number
+     * @param endpoint The server's endpoint
      * @param name the GCspy server name
      */
-    public void setPaused(String host, int port, String name) {
-        String str = connected(host, port, name) + "  (Paused)";
+    public void setPaused(Endpoint endpoint, String name) {
+        String str = connected(endpoint, name) + "  (Paused)";
         set(str, true);
     }
 
@@ -10,7 +10,8 @@
 package gcspy.vis;
 
 import gcspy.interpreter.client.ClientInterpreter;
-import gcspy.interpreter.client.EventListener;
+import gcspy.interpreter.client.EventSnapshot;
+import gcspy.interpreter.client.SnapshotListener;
 import gcspy.vis.utils.AbstractFrame;
 import gcspy.vis.utils.Factory;
 
@@ -24,21 +25,30 @@ import java.awt.event.ActionListener;
  * @author Tony Printezis
  */
 class EventCountFrame extends AbstractFrame
-        implements EventListener {
+        implements SnapshotListener {
 
     private ClientInterpreter interpreter;
 
     private EventCountTableModel model;
 
+    private JLabel samplingL;
+
     private class CloseBListener implements ActionListener {
         public void actionPerformed(ActionEvent event) {
             setVisible(false);
         }
     }
 
-    public void event(int eventID, int elapsedTime, int compensationTime) {
-        int count[] = interpreter.getEventCount();
-        model.setData(count);
+    public void event(EventSnapshot snapshot) {
+        model.setData(snapshot.getEventCount());
+        samplingL.setText(getSamplingText());
+    }
+
+    private String getSamplingText() {
+        int period = interpreter.getSamplingPeriod();
+        if (period == 1)
+            return "Sampling: every event";
+        return "Sampling: 1 in " + period + " events, client lagging";
     }
 
     private void setup(ClientInterpreter interpreter) {
@@ -57,12 +67,17 @@ class EventCountFrame extends AbstractFrame
         cont.add(table, BorderLayout.CENTER);
         cont.add(table.getTableHeader(), BorderLayout.NORTH);
 
+        JPanel southP = Factory.createBorderPanel();
+        samplingL = Factory.createLabel(getSamplingText(), JLabel.CENTER);
+        southP.add(samplingL, BorderLayout.NORTH);
+
         JPanel panel = Factory.createFlowPanel(FlowLayout.CENTER);
         JButton closeB = Factory.createButton("Close", true,
                 new CloseBListener());
         panel.add(closeB);
+        southP.add(panel, BorderLayout.SOUTH);
 
-        cont.add(panel, BorderLayout.SOUTH);
+        cont.add(southP, BorderLayout.SOUTH);
         pack();
     }
 
@@ -14,7 +14,9 @@ import gcspy.interpreter.Space;
 import gcspy.interpreter.Stream;
 import gcspy.interpreter.client.ClientInterpreter;
 import gcspy.interpreter.client.ClientSpace;
-import gcspy.interpreter.client.EventListener;
+import gcspy.interpreter.client.EventSnapshot;
+import gcspy.interpreter.client.SnapshotListener;
+import gcspy.interpreter.client.SnapshotPublisher;
 import gcspy.interpreter.client.SpaceListener;
 import gcspy.vis.utils.AbstractFrame;
 import gcspy.vis.utils.AdjustedColor;
@@ -30,7 +32,7 @@ import java.awt.event.ActionListener;
  * @author Tony Printezis
  */
 class LegendFrame extends AbstractFrame
-        implements EventListener, SpaceListener, DisconnectListener {
+        implements SnapshotListener, SpaceListener, DisconnectListener {
 
     private ClientInterpreter interpreter;
     private Space space;
@@ -48,8 +50,11 @@ class LegendFrame extends AbstractFrame
         }
     }
 
-    public void event(int eventID, int elapsedTime, int compensationTime) {
-        // Space space = interpreter.getSpace(spaceID);
+    public void event(EventSnapshot snapshot) {
+        // only the streams' ranges are read, which stay valid once the
+        // snapshot is released, unlike the maxima of the interpreter's
+        // own streams
+        space = snapshot.getSpace(space.getID());
         Stream stream = space.getStream(streamID);
         if (stream.getPresentation() == Stream.PRESENTATION_MAX_VAR) {
             setupValues();
@@ -276,8 +281,7 @@ class LegendFrame extends AbstractFrame
         setResizable(false);
 
         this.interpreter = interpreter;
-        interpreter.addEventListener(this);
-        interpreter.addSpaceListener(this);
+        interpreter.addSnapshotListener(this, SnapshotPublisher.OVERFLOW_LATEST);
         // this.spaceID = spaceID;
         this.space = space;
         // this.space = interpreter.getSpace(spaceID);
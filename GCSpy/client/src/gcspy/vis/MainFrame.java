@@ -8,10 +8,13 @@
 
 package gcspy.vis;
 
+import gcspy.comm.Endpoint;
 import gcspy.interpreter.client.ClientInterpreter;
 import gcspy.interpreter.client.ClientSpace;
-import gcspy.interpreter.client.EventListener;
+import gcspy.interpreter.client.EventSnapshot;
 import gcspy.interpreter.client.PauseListener;
+import gcspy.interpreter.client.SnapshotListener;
+import gcspy.interpreter.client.SnapshotPublisher;
 import gcspy.utils.Utils;
 import gcspy.vis.plugins.PluginListener;
 import gcspy.vis.plugins.PluginManager;
@@ -38,7 +41,7 @@ import java.util.Set;
  * @author <a href="http://www/cs/kent.ac.uk">Richard Jones</a>
  */
 public class MainFrame extends AbstractFrame implements SpaceManagerInterface,
-        EventListener, PauseListener, EventFilterListener {
+        SnapshotListener, PauseListener, EventFilterListener {
     static private int BLOCK_INFO_MIN_ROWS = 10;
 
     private JTextField activityTF;
@@ -85,7 +88,14 @@ public class MainFrame extends AbstractFrame implements SpaceManagerInterface,
 
     private String host = null;
 
-    private int port = -1;
+    /* a port number, or unix:socket or shm:file */
+    private String port = null;
+
+    private Endpoint endpoint;
+
+    private int offeredCapabilities;
+
+    private int decodeThreadNum;
 
     private boolean pauseAtStart = false;
 
@@ -266,6 +276,23 @@ public class MainFrame extends AbstractFrame implements SpaceManagerInterface,
 
   /* *** Some Methods For Manipulating The Main Frame State **** */
 
+    /**
+     * Set the capabilities to offer the server on the next connection
+     * @param offeredCapabilities the capability flags (see Capabilities)
+     */
+    public void setOfferedCapabilities(int offeredCapabilities) {
+        this.offeredCapabilities = offeredCapabilities;
+    }
+
+    /**
+     * Set the number of threads to decode streams on, from the next connection
+     * @param decodeThreadNum the number of threads, or 0 to decode on the
+     * thread that receives
+     */
+    public void setDecodeThreads(int decodeThreadNum) {
+        this.decodeThreadNum = decodeThreadNum;
+    }
+
     public void setVisible(boolean visible) {
         super.setVisible(visible);
 
@@ -367,14 +394,21 @@ public class MainFrame extends AbstractFrame implements SpaceManagerInterface,
         }
     }
 
-    private void connect(String host, int port, boolean pauseAtStart) {
-        connectedL.setConnecting(host, port);
+    private void connect(String host, String port, boolean pauseAtStart) {
+        try {
+            endpoint = Endpoint.parse(port, host);
+        } catch (IllegalArgumentException e) {
+            showWarning(e.getMessage());
+            Factory.enableButton(connectB);
+            return;
+        }
+        connectedL.setConnecting(endpoint);
         callDisconnectListeners(true);
 
         try {
 
             setupInterpreter();
-            interpreter.connectToServer(host, port, pauseAtStart);
+            interpreter.connectToServer(endpoint, pauseAtStart);
             setCurrentActivity("");
             setupSpaceManagers();
             enableWindowsMenu();
@@ -387,7 +421,8 @@ public class MainFrame extends AbstractFrame implements SpaceManagerInterface,
                 eventCountFrame.destroy();
             }
             eventCountFrame = new EventCountFrame(this, interpreter);
-            interpreter.addEventListener(eventCountFrame);
+            interpreter.addSnapshotListener(eventCountFrame,
+                    SnapshotPublisher.OVERFLOW_LATEST);
 
             if (generalInfoFrame != null) {
                 generalInfoFrame.setVisible(false);
@@ -400,9 +435,10 @@ public class MainFrame extends AbstractFrame implements SpaceManagerInterface,
                 timersFrame.destroy();
             }
             timersFrame = new TimersFrame(this);
-            interpreter.addEventListener(timersFrame);
+            interpreter.addSnapshotListener(timersFrame,
+                    SnapshotPublisher.OVERFLOW_LATEST);
 
-            connectedL.setConnected(host, port, interpreter.getName());
+            connectedL.setConnected(endpoint, interpreter.getName());
 
             MainLoopThread mainLoopThread = new MainLoopThread();
             mainLoopThread.start();
@@ -438,8 +474,11 @@ public class MainFrame extends AbstractFrame implements SpaceManagerInterface,
         callDisconnectListeners(false);
     }
 
-    public void event(int event, int elapsedTime, int compensationTime) {
-        String eventName = interpreter.getEvents().getName(event);
+    public void event(EventSnapshot snapshot) {
+        ClientInterpreter interpreter = this.interpreter;
+        if (interpreter == null)
+            return; // the main loop has ended
+        String eventName = interpreter.getEvents().getName(snapshot.getEventID());
         setCurrentActivity(eventName);
     }
 
@@ -451,7 +490,7 @@ public class MainFrame extends AbstractFrame implements SpaceManagerInterface,
 
     private void pauseReq() {
         try {
-            connectedL.setPausing(host, port, interpreter.getName());
+            connectedL.setPausing(endpoint, interpreter.getName());
             interpreter.sendPauseReq();
         } catch (Exception e) {
             System.out.println(e.getClass() + " thrown.");
@@ -466,7 +505,7 @@ public class MainFrame extends AbstractFrame implements SpaceManagerInterface,
             Factory.enableButton(pauseB);
             Factory.disableButton(playB);
             Factory.disableButton(playOneB);
-            connectedL.setConnected(host, port, interpreter.getName());
+            connectedL.setConnected(endpoint, interpreter.getName());
         } catch (Exception e) {
             System.out.println(e.getClass() + " thrown.");
             e.printStackTrace();
@@ -488,7 +527,7 @@ public class MainFrame extends AbstractFrame implements SpaceManagerInterface,
         Factory.disableButton(pauseB);
         Factory.enableButton(playB);
         Factory.enableButton(playOneB);
-        connectedL.setPaused(host, port, interpreter.getName());
+        connectedL.setPaused(endpoint, interpreter.getName());
     }
 
   /* *** Space Managers **** */
@@ -540,8 +579,8 @@ public class MainFrame extends AbstractFrame implements SpaceManagerInterface,
        * have to do this after the component has been added to the frame to
        * ensure that any redraw events only happen after the comonent is visible
        */
-            interpreter.addEventListener(spaceManager);
-            interpreter.addSpaceListener(spaceManager);
+            interpreter.addSnapshotListener(spaceManager,
+                    SnapshotPublisher.OVERFLOW_LATEST);
         }
 
         interpreter.enableEventListeners();
@@ -685,8 +724,12 @@ public class MainFrame extends AbstractFrame implements SpaceManagerInterface,
     private void setupInterpreter() {
         interpreter = new ClientInterpreter();
         interpreter.setVerbose(true);
+        interpreter.setOfferedCapabilities(offeredCapabilities);
+        interpreter.setDecodeThreads(decodeThreadNum);
         interpreter.addPauseListener(this);
-        interpreter.addEventListener(this);
+        // the views only need the newest event, and are drawn off the
+        // thread that receives
+        interpreter.addSnapshotListener(this, SnapshotPublisher.OVERFLOW_LATEST);
     }
 
     /**
@@ -723,6 +766,28 @@ public class MainFrame extends AbstractFrame implements SpaceManagerInterface,
      */
     public MainFrame(String host, int port, boolean small, boolean tiny,
                      boolean pauseAtStart, boolean doConnect) {
+        this(host, (port != -1) ? "" + port : null, small, tiny, pauseAtStart,
+                doConnect);
+    }
+
+    /**
+     * Construct a new MainFrame
+     *
+     * @param host
+     *          the server's hostname
+     * @param port
+     *          The port on which to connect, or unix:socket or shm:file
+     * @param small
+     *          True if small tiles are to be used
+     * @param tiny
+     *          True if tiny tiles are to be used
+     * @param pauseAtStart
+     *          true if the server is to pause at the start
+     * @param doConnect
+     *          true if the visualiser is to connect
+     */
+    public MainFrame(String host, String port, boolean small, boolean tiny,
+                     boolean pauseAtStart, boolean doConnect) {
         super(Position.POS_ROOT_CENTER);
         setTitle("GCspy");
         addWindowListener(new MainWindowListener());
@@ -13,7 +13,9 @@ import gcspy.interpreter.Space;
 import gcspy.interpreter.Stream;
 import gcspy.interpreter.client.ClientInterpreter;
 import gcspy.interpreter.client.ClientSpace;
-import gcspy.interpreter.client.EventListener;
+import gcspy.interpreter.client.EventSnapshot;
+import gcspy.interpreter.client.SnapshotHolder;
+import gcspy.interpreter.client.SnapshotListener;
 import gcspy.interpreter.client.SpaceListener;
 import gcspy.vis.plugins.PluginFrame;
 import gcspy.vis.plugins.PluginListener;
@@ -33,7 +35,7 @@ import java.util.List;
  * @author <a href="http://www/cs/kent.ac.uk">Richard Jones</a>
  */
 public class SpaceManager implements TileManagerListener, DisconnectListener,
-        EventListener, SpaceListener {
+        SnapshotListener, SpaceListener {
 
     private JPanel mainPanel;
 
@@ -47,6 +49,9 @@ public class SpaceManager implements TileManagerListener, DisconnectListener,
     private ClientSpace space;
     private boolean active;
 
+    // the newest event, which redraws from the GUI thread draw again
+    private final SnapshotHolder latest = new SnapshotHolder();
+
     private boolean firstRedraw;
 
     private int selectedStream = 0;
@@ -94,7 +99,8 @@ public class SpaceManager implements TileManagerListener, DisconnectListener,
         redraw();
     }
 
-    public void event(int eventID, int elapsedTime, int compensationTime) {
+    public void event(EventSnapshot snapshot) {
+        latest.hold(snapshot);
         if (firstRedraw) {
             if (active) {
                 tileManager.enableSelection();
@@ -104,12 +110,14 @@ public class SpaceManager implements TileManagerListener, DisconnectListener,
             firstRedraw = false;
         }
         validateContainer();
-        redraw();
+        redraw(snapshot.getSpace(space.getID()));
     }
 
     public void space(ClientSpace space) {
         if (this.space.getID() == space.getID()) {
             this.space = space;
+            // the tiles no longer match; wait for the next event
+            latest.clear();
 
             int tileNum = space.getTileNum();
             if ((selectedTile != -1) && (selectedTile >= tileNum)) {
@@ -149,15 +157,27 @@ public class SpaceManager implements TileManagerListener, DisconnectListener,
     }
 
     public void redraw() {
-        redrawOne(tileManager);
+        EventSnapshot snapshot = latest.acquire();
+        if (snapshot == null)
+            return; // nothing to draw yet
+        try {
+            redraw(snapshot.getSpace(space.getID()));
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    private void redraw(ClientSpace drawn) {
+        redrawOne(tileManager, drawn);
         if (active) {
-            redrawOne(smallTileManager);
-            redrawOne(largeTileManager);
-            updateBlockInfo();
+            redrawOne(smallTileManager, drawn);
+            redrawOne(largeTileManager, drawn);
+            updateBlockInfo(drawn);
         }
     }
 
     public void disconnect(boolean reconnecting) {
+        latest.clear();
         for (PluginFrame frame : pluginFrames)
             frame.disconnect(reconnecting);
         if (reconnecting)
@@ -233,6 +253,22 @@ public class SpaceManager implements TileManagerListener, DisconnectListener,
      * @param tm The tile manager for this space
      */
     public void redrawOne(TileManager tm) {
+        EventSnapshot snapshot = latest.acquire();
+        if (snapshot == null)
+            return; // nothing to draw yet
+        try {
+            redrawOne(tm, snapshot.getSpace(space.getID()));
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * Redraw the space from a snapshot of it
+     * @param tm The tile manager for this space
+     * @param drawn The space to draw
+     */
+    private void redrawOne(TileManager tm, ClientSpace drawn) {
         if (tm == null)
             return;
 
@@ -240,35 +276,39 @@ public class SpaceManager implements TileManagerListener, DisconnectListener,
             tm.enableFooter(false);
             tm.clear();
 
-            Stream stream = space.getStream(selectedStream);
+            Stream stream = drawn.getStream(selectedStream);
             DataAccessor accessor = stream.getAccessor();
             int max = accessor.getAdjustedMax();
             Color theColor = colorConfig.getStreamColor(selectedStream);
             AdjustedColor ac = new AdjustedColor(theColor, max);
-            byte control[] = space.getControl();
-            int len = space.getTileNum();
+            byte control[] = drawn.getControl();
+            int len = drawn.getTileNum();
             if (accessor.isDataAvailable()) {
-                for (int i = 0; i < len; ++i) {
-                    if (Space.isControlUsed(control[i])) {
-                        if (accessor.isZero(i)) {
-                            tm.paintTileZero(i);
-                        } else if (accessor.isOverflow(i)) {
-                            int val = accessor.getAdjusted(i);
-                            Color c = ac.generate(val);
-                            tm.paintTileOverflow(i, c);
-                        } else {
-                            int val = accessor.getAdjusted(i);
-                            Color c = ac.generate(val);
-                            tm.paintTile(i, c);
+                int adjusted[] = new int[DataAccessor.BULK_LEN];
+                byte classes[] = new byte[DataAccessor.BULK_LEN];
+                for (int start = 0; start < len; start += DataAccessor.BULK_LEN) {
+                    int n = Math.min(DataAccessor.BULK_LEN, len - start);
+                    accessor.getTiles(control, start, n, adjusted, classes);
+                    for (int k = 0; k < n; ++k) {
+                        int i = start + k;
+                        byte c = classes[k];
+                        if (Space.isControlUsed(c)) {
+                            if ((c & DataAccessor.TILE_ZERO) != 0) {
+                                tm.paintTileZero(i);
+                            } else if ((c & DataAccessor.TILE_OVERFLOW) != 0) {
+                                tm.paintTileOverflow(i, ac.generate(adjusted[k]));
+                            } else {
+                                tm.paintTile(i, ac.generate(adjusted[k]));
+                            }
+                        } else if (Space.isControlUnused(c)) {
+                            tm.setTileUnused(i);
+                        }
+                        if (Space.isControlSeparator(c)) {
+                            tm.paintSeparator(i);
+                        }
+                        if (Space.isControlLink(c)) {
+                            tm.paintLink(i);
                         }
-                    } else if (Space.isControlUnused(control[i])) {
-                        tm.setTileUnused(i);
-                    }
-                    if (Space.isControlSeparator(control[i])) {
-                        tm.paintSeparator(i);
-                    }
-                    if (Space.isControlLink(control[i])) {
-                        tm.paintLink(i);
                     }
                 }
             }
@@ -352,10 +392,24 @@ public class SpaceManager implements TileManagerListener, DisconnectListener,
 
     /** Update the block info */
     public void updateBlockInfo() {
-        if (selectedTile == -1)
+        EventSnapshot snapshot = latest.acquire();
+        if (snapshot == null) {
+            spaceManagerInterface.setBlockInfo("");
+            return;
+        }
+        try {
+            updateBlockInfo(snapshot.getSpace(space.getID()));
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    private void updateBlockInfo(ClientSpace drawn) {
+        int tile = selectedTile;
+        if ((tile == -1) || (tile >= drawn.getTileNum()))
             spaceManagerInterface.setBlockInfo("");
         else
-            spaceManagerInterface.setBlockInfo(space.presentTile(selectedTile));
+            spaceManagerInterface.setBlockInfo(drawn.presentTile(tile));
     }
 
   /*
@@ -12,7 +12,9 @@ package gcspy.vis;
 import gcspy.interpreter.Events;
 import gcspy.interpreter.client.ClientInterpreter;
 import gcspy.interpreter.client.ClientSpace;
-import gcspy.interpreter.client.EventListener;
+import gcspy.interpreter.client.EventSnapshot;
+import gcspy.interpreter.client.SnapshotListener;
+import gcspy.interpreter.client.SnapshotPublisher;
 import gcspy.interpreter.client.SpaceListener;
 import gcspy.utils.Utils;
 import gcspy.vis.utils.AbstractFrame;
@@ -23,7 +25,7 @@ import gcspy.vis.utils.TextAreaFrame;
  * @author Tony Printezis
  */
 class SummaryFrame extends TextAreaFrame
-        implements EventListener, SpaceListener, DisconnectListener {
+        implements SnapshotListener, SpaceListener, DisconnectListener {
 
     // static private int EXTRA_ROWS = 2;
     static private int DEFAULT_ROWS = 10;
@@ -39,12 +41,13 @@ class SummaryFrame extends TextAreaFrame
         }
     }
 
-    public void event(int eventID, int elapsedTime, int compensationTime) {
-        int count[] = interpreter.getEventCount();
+    public void event(EventSnapshot snapshot) {
+        int eventID = snapshot.getEventID();
+        int count[] = snapshot.getEventCount();
         String summaryStr = "Event: " + events.getName(eventID) +
                 "  (" + Utils.formatSize(count[eventID]) + ")\n";
         summaryStr += "\n";
-        summaryStr += space.presentSummary("", "   ");
+        summaryStr += snapshot.getSpace(space.getID()).presentSummary("", "   ");
 
         int lines = Utils.countLines(summaryStr);
         if (lines != textArea.getRows()) {
@@ -65,8 +68,7 @@ class SummaryFrame extends TextAreaFrame
         events = interpreter.getEvents();
         this.space = space;
 
-        interpreter.addEventListener(this);
-        interpreter.addSpaceListener(this);
+        interpreter.addSnapshotListener(this, SnapshotPublisher.OVERFLOW_LATEST);
 
         String frameTitle = "Summary";
         String textAreaTitle = "Summary for " + space.getFullName();
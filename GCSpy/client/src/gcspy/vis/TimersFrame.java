@@ -9,7 +9,8 @@
 
 package gcspy.vis;
 
-import gcspy.interpreter.client.EventListener;
+import gcspy.interpreter.client.EventSnapshot;
+import gcspy.interpreter.client.SnapshotListener;
 import gcspy.vis.utils.AbstractFrame;
 import gcspy.vis.utils.Factory;
 
@@ -23,7 +24,7 @@ import java.awt.event.ActionListener;
  * @author Tony Printezis
  */
 class TimersFrame extends AbstractFrame
-        implements EventListener {
+        implements SnapshotListener {
 
     private JTable table;
     private TimersTableModel model;
@@ -36,8 +37,8 @@ class TimersFrame extends AbstractFrame
         }
     }
 
-    public void event(int eventID, int elapsedTime, int compensationTime) {
-        model.setData(elapsedTime, compensationTime);
+    public void event(EventSnapshot snapshot) {
+        model.setData(snapshot.getElapsedTime(), snapshot.getCompensationTime());
     }
 
     private void setup() {
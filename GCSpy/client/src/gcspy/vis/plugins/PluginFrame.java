@@ -10,7 +10,9 @@ package gcspy.vis.plugins;
 
 import gcspy.interpreter.client.ClientInterpreter;
 import gcspy.interpreter.client.ClientSpace;
-import gcspy.interpreter.client.EventListener;
+import gcspy.interpreter.client.EventSnapshot;
+import gcspy.interpreter.client.SnapshotListener;
+import gcspy.interpreter.client.SnapshotPublisher;
 import gcspy.interpreter.client.SpaceListener;
 import gcspy.vis.DisconnectListener;
 import gcspy.vis.TileManagerColors;
@@ -25,7 +27,7 @@ import java.util.List;
  * @author <a href="http://www/cs/kent.ac.uk">Richard Jones</a>
  */
 public abstract class PluginFrame extends AbstractFrame
-        implements EventListener, SpaceListener, DisconnectListener {
+        implements SnapshotListener, SpaceListener, DisconnectListener {
 
     /**
      * The Client Interpreter
@@ -56,7 +58,8 @@ public abstract class PluginFrame extends AbstractFrame
     }
 
     /**
-     * Initialise a Plugin Frame
+     * Initialise a Plugin Frame that only draws the newest event, without
+     * holding up the others
      *
      * @param interpreter  The ClientInterpreter
      * @param pluginFrames The list of PluginFrames to which this plugin belongs
@@ -67,6 +70,24 @@ public abstract class PluginFrame extends AbstractFrame
     protected void setup(ClientInterpreter interpreter,
                          List<PluginFrame> pluginFrames, ClientSpace space,
                          TileManagerColors tmColors, String title) {
+        setup(interpreter, pluginFrames, space, tmColors, title,
+                SnapshotPublisher.OVERFLOW_LATEST);
+    }
+
+    /**
+     * Initialise a Plugin Frame
+     *
+     * @param interpreter  The ClientInterpreter
+     * @param pluginFrames The list of PluginFrames to which this plugin belongs
+     * @param space        The ClientSpace
+     * @param tmColors     The TileManagerColors
+     * @param title        A title for the frame
+     * @param overflow     What to do with events when the frame falls behind
+     *                     (see <code>SnapshotPublisher</code>)
+     */
+    protected void setup(ClientInterpreter interpreter,
+                         List<PluginFrame> pluginFrames, ClientSpace space,
+                         TileManagerColors tmColors, String title, int overflow) {
 
         setTitle(title);
         this.interpreter = interpreter;
@@ -74,11 +95,10 @@ public abstract class PluginFrame extends AbstractFrame
         this.space = space;
         this.tmColors = tmColors;
         pluginFrames.add(this);
-        interpreter.addEventListener(this);
-        interpreter.addSpaceListener(this);
+        interpreter.addSnapshotListener(this, overflow);
     }
 
-    public abstract void event(int id, int elapsedTime, int compensationTime);
+    public abstract void event(EventSnapshot snapshot);
 
     public abstract void space(ClientSpace space);
 
@@ -88,8 +108,7 @@ public abstract class PluginFrame extends AbstractFrame
      * Shut down  this view
      */
     protected void shutdown() {
-        interpreter.removeEventListener(this);
-        interpreter.removeSpaceListener(this);
+        interpreter.removeSnapshotListener(this);
         setVisible(false);
         destroy();
     }
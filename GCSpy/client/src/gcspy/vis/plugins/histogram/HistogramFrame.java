@@ -13,6 +13,8 @@ import gcspy.interpreter.Space;
 import gcspy.interpreter.Stream;
 import gcspy.interpreter.client.ClientInterpreter;
 import gcspy.interpreter.client.ClientSpace;
+import gcspy.interpreter.client.EventSnapshot;
+import gcspy.interpreter.client.SnapshotHolder;
 import gcspy.vis.TileManagerColors;
 import gcspy.vis.plugins.PluginFrame;
 import gcspy.vis.utils.AbstractFrame;
@@ -45,6 +47,8 @@ public class HistogramFrame extends PluginFrame {
     private DefaultListModel tileLegendModel;
     private HistogramConfig config;
     private int currentTileNum;
+    // the newest event, which redraws from the GUI thread draw again
+    private final SnapshotHolder latest = new SnapshotHolder();
 
     /** Private inner classes */
 
@@ -256,6 +260,7 @@ public class HistogramFrame extends PluginFrame {
     }
 
     public void disconnect(boolean reconnecting) {
+        latest.clear();
         if (reconnecting) {
             if (space != null) {
                 shutdown();
@@ -263,16 +268,19 @@ public class HistogramFrame extends PluginFrame {
         }
     }
 
-    public void event(int id, int elapsedTime, int compensationTime) {
+    public void event(EventSnapshot snapshot) {
+        latest.hold(snapshot);
+        ClientSpace drawn = snapshot.getSpace(space.getID());
         // handle selection
-        fillLegendList();
+        fillLegendList(drawn);
         // redraw image
-        redraw();
+        redraw(drawn);
     }
 
     public void space(ClientSpace space) {
         if (this.space.getID() == space.getID()) {
             this.space = space;
+            latest.clear();
             if (space.getTileNum() > currentTileNum) {
                 currentTileNum = space.getTileNum();
                 canvas.resize(currentTileNum);
@@ -284,6 +292,17 @@ public class HistogramFrame extends PluginFrame {
     // Helper method to wipe and redraw the canvas with the stream data
     //
     private void redraw() {
+        EventSnapshot snapshot = latest.acquire();
+        if (snapshot == null)
+            return; // nothing to draw yet
+        try {
+            redraw(snapshot.getSpace(space.getID()));
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    private void redraw(ClientSpace drawn) {
         int streamID = config.getStream();
         Stream stream;
         DataAccessor accessor = null;
@@ -292,14 +311,14 @@ public class HistogramFrame extends PluginFrame {
         if (streamID == -1)
             stream = null;
         else {
-            stream = space.getStream(streamID);
+            stream = drawn.getStream(streamID);
             accessor = stream.getAccessor();
             max = accessor.getAdjustedMax();
             config.setStreamColor(tmColors.getStreamColor(streamID));
         }
 
-        byte control[] = space.getControl();
-        currentTileNum = space.getTileNum();
+        byte control[] = drawn.getControl();
+        currentTileNum = drawn.getTileNum();
 
         // wipe old image
         canvas.wipeImage();
@@ -330,15 +349,30 @@ public class HistogramFrame extends PluginFrame {
     // Helper method to fill the legend list with all tiles
     //
     private void fillLegendList() {
+        EventSnapshot snapshot = latest.acquire();
+        try {
+            fillLegendList((snapshot != null) ? snapshot.getSpace(space.getID()) : null);
+        } finally {
+            if (snapshot != null)
+                snapshot.release();
+        }
+    }
+
+    private void fillLegendList(ClientSpace drawn) {
         // remove all items
         tileLegendModel.removeAllElements();
-        // check stream
-        Stream stream = this.space.getStream(config.getStream());
-        if (stream == null) {
-            tileLegendModel.addElement("No Stream!");
-            return;
+        if (drawn != null) {
+            // check stream
+            Stream stream = drawn.getStream(config.getStream());
+            if (stream == null) {
+                tileLegendModel.addElement("No Stream!");
+                return;
+            }
+            currentTileNum = drawn.getTileNum();
+        } else {
+            // no tiles to list until the first event
+            currentTileNum = 0;
         }
-        currentTileNum = space.getTileNum();
         if (currentTileNum == 0) {
             // insert placeholder
             tileLegendModel.addElement(NO_TILE_STRING);
@@ -346,7 +380,7 @@ public class HistogramFrame extends PluginFrame {
         }
         // add tile items
         for (int i = 0; i < currentTileNum; ++i) {
-            String tileName = ("[" + i + "] " + space.getTileName(i)).trim();
+            String tileName = ("[" + i + "] " + drawn.getTileName(i)).trim();
             tileLegendModel.addElement(new TileLegendItem(tileName, i));
         }
     }
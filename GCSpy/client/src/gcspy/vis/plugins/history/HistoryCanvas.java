@@ -163,6 +163,31 @@ class HistoryCanvas extends JComponent {
         gotoNextLine(config.getTileSize());
     }
 
+    /**
+     * Paint a gap, for events that were not drawn
+     * @param missed How many events were not drawn
+     */
+    public void paintGap(long missed) {
+        int tileSize = config.getTileSize();
+        imageG.setColor(config.getBGColor());
+        imageG.fillRect(0, y, width, tileSize);
+
+        imageG.setColor(config.getBorderColor());
+        int lineY = y + tileSize / 2;
+        for (int x = config.getHorBorderSize(); x < width; x += 4)
+            imageG.drawLine(x, lineY, x + 1, lineY);
+
+        if ((y - lastHorSepY) > config.getFontSize()) {
+            String str = "-" + missed;
+            int sWidth = config.getTextWidth(str) + config.getTextGap()
+                    + config.getHorBorderSize();
+            imageG.setFont(config.getFont());
+            imageG.drawString(str, width - sWidth, y - config.getTextGap());
+            lastHorSepY = y;
+        }
+        gotoNextLine(tileSize);
+    }
+
     private void paintVerSep(Graphics g) {
         boolean legend = config.getVerSepLegend();
         Font font = config.getFont();
@@ -13,6 +13,8 @@ import gcspy.interpreter.Space;
 import gcspy.interpreter.Stream;
 import gcspy.interpreter.client.ClientInterpreter;
 import gcspy.interpreter.client.ClientSpace;
+import gcspy.interpreter.client.EventSnapshot;
+import gcspy.interpreter.client.SnapshotPublisher;
 import gcspy.vis.TileManagerColors;
 import gcspy.vis.plugins.PluginFrame;
 import gcspy.vis.utils.AbstractFrame;
@@ -60,6 +62,10 @@ public class HistoryFrame extends PluginFrame {
 
     private boolean scroll = false;
 
+    // the last event drawn, to spot those that were dropped
+    private long lastSequenceNum;
+    private int lastCount[];
+
     static private final int DEFAULT_WIDTH = 640;
 
     static private final int DEFAULT_HEIGHT = 400;
@@ -304,13 +310,31 @@ public class HistoryFrame extends PluginFrame {
         }
     }
 
-    public void event(int id, int elapsedTime, int compensationTime) {
-        int count[] = interpreter.getEventCount();
+    public void event(EventSnapshot snapshot) {
+        int id = snapshot.getEventID();
+        int count[] = snapshot.getEventCount();
+        long sequenceNum = snapshot.getSequenceNum();
+        long missed = (lastSequenceNum == 0) ? 0 : sequenceNum - lastSequenceNum - 1;
+        int previousCount[] = lastCount;
+        lastSequenceNum = sequenceNum;
+        lastCount = count.clone();
         if (started) {
+            if (missed > 0) {
+                canvas.paintGap(missed);
+                // a separator may have been among the events dropped
+                int sepID = config.getHorSepEvent();
+                if (config.horSep() && (sepID != id) && (previousCount != null)
+                        && (count[sepID] != previousCount[sepID]))
+                    drawHorSep(sepID, count[sepID]);
+                if (canvas.hasStopped()) {
+                    stop();
+                    return;
+                }
+            }
             if (config.horSep() && (id == config.getHorSepEvent())) {
                 drawHorSep(id, count[id]);
             } else {
-                redraw();
+                redraw(snapshot.getSpace(space.getID()));
             }
         }
     }
@@ -352,7 +376,7 @@ public class HistoryFrame extends PluginFrame {
         }
     }
 
-    private void redraw() {
+    private void redraw(ClientSpace drawn) {
         int streamID = config.getStream();
         Stream stream;
         DataAccessor accessor = null;
@@ -361,7 +385,7 @@ public class HistoryFrame extends PluginFrame {
         if (streamID == -1)
             stream = null;
         else {
-            stream = space.getStream(streamID);
+            stream = drawn.getStream(streamID);
             accessor = stream.getAccessor();
             max = accessor.getAdjustedMax();
         }
@@ -370,28 +394,35 @@ public class HistoryFrame extends PluginFrame {
                 .getHiColor(), max);
         canvas.start(ac);
 
-        byte control[] = space.getControl();
-        int len = space.getTileNum();
+        byte control[] = drawn.getControl();
+        int len = drawn.getTileNum();
         // previous version seemed to paint some used tiles as unused
         // this may of course be an error on the server side.
         if (accessor.isDataAvailable()) {
-            for (int i = 0; i < len; ++i) {
+            int adjusted[] = new int[DataAccessor.BULK_LEN];
+            byte classes[] = new byte[DataAccessor.BULK_LEN];
+            for (int start = 0; start < len; start += DataAccessor.BULK_LEN) {
+                int n = Math.min(DataAccessor.BULK_LEN, len - start);
                 if (stream == null) {
                     // if no stream selected, use zero color
-                    canvas.paintTile(i, config.getZeroColor());
-                } else {
-                    if (Space.isControlUsed(control[i])) {
-                        //int val = accessor.get(i);
-                        if (accessor.isZero(i)) {
+                    for (int k = 0; k < n; ++k)
+                        canvas.paintTile(start + k, config.getZeroColor());
+                    continue;
+                }
+                accessor.getTiles(control, start, n, adjusted, classes);
+                for (int k = 0; k < n; ++k) {
+                    int i = start + k;
+                    byte c = classes[k];
+                    if (Space.isControlUsed(c)) {
+                        if ((c & DataAccessor.TILE_ZERO) != 0) {
                             canvas.paintTile(i, config.getZeroColor());
                         } else {
-                            int adj = accessor.getAdjusted(i);
-                            canvas.paintTile(i, adj);
+                            canvas.paintTile(i, adjusted[k]);
                         }
-                    } else if (Space.isControlUnused(control[i])) {
+                    } else if (Space.isControlUnused(c)) {
                         canvas.paintTile(i, config.getUnusedColor());
                     } else if (config.getSpaceSep()) {
-                        if (Space.isControlSeparator(control[i])) {
+                        if (Space.isControlSeparator(c)) {
                             canvas.paintSep(i);
                         }
                     }
@@ -460,7 +491,9 @@ public class HistoryFrame extends PluginFrame {
     private void setup(ClientInterpreter interpreter,
                        List<PluginFrame> pluginFrames, ClientSpace space, int selectedStream,
                        TileManagerColors tmColors) {
-        super.setup(interpreter, pluginFrames, space, tmColors, "GCspy: History Graphs");
+        super.setup(interpreter, pluginFrames, space, tmColors, "GCspy: History Graphs",
+                // every event is a row, so dropped ones are drawn as gaps
+                SnapshotPublisher.OVERFLOW_DROP);
 
         config = new HistoryConfig(this, space.getTileNum(), selectedStream,
                 tmColors);
@@ -10,6 +10,7 @@ package gcspy.vis.plugins.text;
 
 import gcspy.interpreter.client.ClientInterpreter;
 import gcspy.interpreter.client.ClientSpace;
+import gcspy.interpreter.client.EventSnapshot;
 import gcspy.vis.TileManagerColors;
 import gcspy.vis.plugins.PluginFrame;
 import gcspy.vis.utils.AbstractFrame;
@@ -193,9 +194,8 @@ public class TextFrame extends PluginFrame {
         }
     }
 
-    public void event(int eventID, int elapsedTime, int compensationTime) {
-        // int count[] = interpreter.getEventCount();
-        tableModel.setData();
+    public void event(EventSnapshot snapshot) {
+        tableModel.setData(snapshot.getSpace(space.getID()));
     }
 
     public void space(ClientSpace space) {
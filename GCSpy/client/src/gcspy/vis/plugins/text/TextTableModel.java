@@ -46,28 +46,33 @@ public class TextTableModel extends AbstractTableModel {
     }
 
     /**
-     * Get the value of a tile
+     * Get the values of all the tiles of a stream
      *
-     * @param tile     The tile index
+     * @param drawn    The space to read
      * @param streamID The stream ID
+     * @return the values, or null if the stream has no data
+     */
+    private int[] getColumn(ClientSpace drawn, int streamID) {
+        DataAccessor accessor = drawn.getStream(streamID).getAccessor();
+        if (!accessor.isDataAvailable())
+            return null;
+        int values[] = new int[drawn.getTileNum()];
+        accessor.getValues(0, values.length, values);
+        return values;
+    }
+
+    /**
+     * Get the value of a tile
+     *
+     * @param column  The values of the stream, as returned by getColumn
+     * @param control The space's control values
+     * @param tile    The tile index
      * @return the tile's value
      */
-    private Integer getEntry(int tile, int streamID) {
-        Stream stream = space.getStream(streamID);
-        DataAccessor accessor = stream.getAccessor();
-        byte control[] = space.getControl();
-        if (accessor.isDataAvailable())
-            if (Space.isControlUsed(control[tile]))
-                return accessor.get(tile);
-            else if (Space.isControlUnused(control[tile]))
-                return null;
+    private Integer getEntry(int column[], byte control[], int tile) {
+        if ((column != null) && Space.isControlUsed(control[tile]))
+            return column[tile];
         return null;
-    /*
-    if (ClientSpace.isControlBackground(space.getControl()[tile]) ||
-        ClientSpace.isControlUnused(space.getControl()[tile]))
-      return null;
-    return stream.getAccessor().get(tile);  
-    */
     }
 
     private boolean isUsedTile(int tile) {
@@ -91,18 +96,26 @@ public class TextTableModel extends AbstractTableModel {
     /**
      * Refresh the data for the space, and reset the sorting parameters
      * Looks better if there is always a minimum number of rows.
+     * The values are copied, so the space can be a snapshot that is
+     * released afterwards.
+     *
+     * @param drawn The space to read the values from
      */
-    void setData() {
-        int tiles = space.getTileNum();
-        int cols = space.getStreamNum();
+    void setData(ClientSpace drawn) {
+        int tiles = drawn.getTileNum();
+        int cols = drawn.getStreamNum();
         int rows = (tiles > MIN_TABLE_ROWS) ? tiles : MIN_TABLE_ROWS;
         data = new ArrayList<TextRow>();
+        int columns[][] = new int[cols][];
+        for (int s = 0; s < cols; s++)
+            columns[s] = getColumn(drawn, s);
+        byte control[] = drawn.getControl();
         for (int t = 0; t < tiles; t++) {
             Integer[] tmp = new Integer[cols];
             for (int s = 0; s < cols; s++) {
-                tmp[s] = getEntry(t, s);
+                tmp[s] = getEntry(columns[s], control, t);
             }
-            TextRow tr = new TextRow(space.getTileName(t), tmp);
+            TextRow tr = new TextRow(drawn.getTileName(t), tmp);
             data.add(tr);
         }
         len = data.size();